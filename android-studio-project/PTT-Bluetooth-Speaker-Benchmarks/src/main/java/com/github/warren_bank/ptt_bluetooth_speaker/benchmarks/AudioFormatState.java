@@ -0,0 +1,58 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Frames of 16 kHz mono 16-bit PCM, which is the format captured by the sender.
+ *
+ * The frame duration is a JMH parameter,
+ * so every benchmark that extends this class is measured at 10, 20 and 40 ms.
+ */
+@State(Scope.Thread)
+public class AudioFormatState {
+  public static final int SAMPLE_RATE = 16000;
+
+  @Param({"10", "20", "40"})
+  public int frameMs;
+
+  public int     sampleCount;
+  public short[] samples;    // pristine input, never modified
+  public byte[]  bytes;      // same input, as little-endian bytes
+
+  @Setup
+  public void setupAudioFormat() {
+    sampleCount = (SAMPLE_RATE * frameMs) / 1000;
+    samples     = createSpeechLikeSignal(sampleCount, 1);
+    bytes       = new byte[sampleCount * 2];
+
+    for (int i = 0; i < sampleCount; i++) {
+      bytes[2*i]     = (byte) samples[i];
+      bytes[2*i + 1] = (byte) (samples[i] >> 8);
+    }
+  }
+
+  /**
+   * A few harmonics of a voiced fundamental plus noise, at a moderate level.
+   */
+  public static short[] createSpeechLikeSignal(int count, long seed) {
+    Random random = new Random(seed);
+    short[] signal = new short[count];
+    double value;
+
+    for (int i = 0; i < count; i++) {
+      value  = 0;
+      value += 6000 * Math.sin((2 * Math.PI * 140 * i) / SAMPLE_RATE);
+      value += 3000 * Math.sin((2 * Math.PI * 280 * i) / SAMPLE_RATE);
+      value += 1500 * Math.sin((2 * Math.PI * 560 * i) / SAMPLE_RATE);
+      value += 500  * random.nextGaussian();
+
+      signal[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+    return signal;
+  }
+}
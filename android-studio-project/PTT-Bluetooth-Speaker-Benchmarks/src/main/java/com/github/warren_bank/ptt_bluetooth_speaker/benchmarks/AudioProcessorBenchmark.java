@@ -0,0 +1,54 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AudioProcessor;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AudioProcessorChain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of each stage of the capture processing, and of the default chain of the sender.
+ *
+ * Every benchmark starts by copying the pristine input into a work buffer,
+ * which is included in the score, so that each stage sees the same speech on every invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioProcessorBenchmark extends AudioFormatState {
+  private static final String[] DEFAULT_CHAIN = {"dc_blocker", "high_pass:100", "feedback_suppressor", "noise_gate:-50", "agc"};
+
+  @Param({"dc_blocker", "high_pass", "low_shelf", "feedback_suppressor", "noise_gate", "agc", "chain"})
+  public String stage;
+
+  private short[]        workSamples;
+  private AudioProcessor processor;
+
+  @Setup
+  public void setup() {
+    AudioProcessorChain chain = new AudioProcessorChain();
+
+    chain.configure(stage.equals("chain") ? DEFAULT_CHAIN : new String[] {stage}, SAMPLE_RATE);
+
+    workSamples = new short[sampleCount];
+    processor   = chain;
+  }
+
+  @Benchmark
+  public short[] process() {
+    System.arraycopy(samples, 0, workSamples, 0, sampleCount);
+    processor.process(workSamples, 0, sampleCount);
+    return workSamples;
+  }
+}
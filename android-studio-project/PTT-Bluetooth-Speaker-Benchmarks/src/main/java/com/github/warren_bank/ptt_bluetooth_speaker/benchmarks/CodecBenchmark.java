@@ -0,0 +1,53 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodec;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodecs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of each codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark extends AudioFormatState {
+
+  @Param({"pcm", "ima_adpcm", "mulaw", "alaw"})
+  public String codecName;
+
+  private AudioCodec codec;
+  private byte[]     encoded;
+  private int        encodedLength;
+  private short[]    decoded;
+
+  @Setup
+  public void setup() {
+    codec         = AudioCodecs.create(codecName);
+    encoded       = new byte[codec.getMaxEncodedSize(sampleCount)];
+    encodedLength = codec.encode(samples, 0, sampleCount, encoded, 0);
+    decoded       = new short[codec.getMaxDecodedSize(encoded.length)];
+  }
+
+  @Benchmark
+  public int encode() {
+    return codec.encode(samples, 0, sampleCount, encoded, 0);
+  }
+
+  @Benchmark
+  public int decode() {
+    return codec.decode(encoded, 0, encodedLength, decoded, 0);
+  }
+}
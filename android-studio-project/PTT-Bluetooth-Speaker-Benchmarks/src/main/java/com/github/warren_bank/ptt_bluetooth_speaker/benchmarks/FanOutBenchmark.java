@@ -0,0 +1,121 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.FramePool;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of passing one encoded frame from the encoder to the send buffer of every receiver link.
+ *
+ * <ul>
+ *   <li>copied: the frame is copied into and out of the capture ring, then into and out of the ring of each link,
+ *       which moves (2 + 2 * links) times its size</li>
+ *   <li>pooled: the frame is encoded into a buffer from a {@link FramePool},
+ *       and only its reference is queued, so the only copy is the one into the send buffer of each link,
+ *       which moves (links) times its size</li>
+ * </ul>
+ *
+ * Every thread runs on the benchmark thread, so this measures the copies and the atomic updates,
+ * not the latency of waking up a parked thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark extends AudioFormatState {
+  private static final int CAPACITY = 32;
+
+  @Param({"1", "2", "4"})
+  public int links;
+
+  private byte[]            encoded;
+  private byte[][]          sendBuffers;
+  private long              timestamp;
+
+  private SpscFrameRing     captureRing;
+  private SpscFrameRing[]   linkRings;
+
+  private FramePool         pool;
+  private PooledFrameRing   pooledCaptureRing;
+  private PooledFrameRing[] pooledLinkRings;
+
+  @Setup
+  public void setup() {
+    encoded           = new byte[bytes.length];
+    sendBuffers       = new byte[links][FrameFormat.HEADER_SIZE + bytes.length];
+    captureRing       = new SpscFrameRing(CAPACITY, bytes.length, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    linkRings         = new SpscFrameRing[links];
+    pool              = new FramePool(CAPACITY * (links + 1), bytes.length);
+    pooledCaptureRing = new PooledFrameRing(CAPACITY, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    pooledLinkRings   = new PooledFrameRing[links];
+
+    for (int i = 0; i < links; i++) {
+      linkRings[i]       = new SpscFrameRing(CAPACITY, bytes.length, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+      pooledLinkRings[i] = new PooledFrameRing(CAPACITY, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    }
+  }
+
+  @Benchmark
+  public int copied() {
+    int length;
+    int sent = 0;
+
+    // capture thread: the encoder has written the frame to its own buffer
+    captureRing.offer(bytes, 0, bytes.length, timestamp++);
+
+    // fan out thread
+    length = captureRing.take(encoded, 0, 0);
+    for (int i = 0; i < links; i++) {
+      linkRings[i].offer(encoded, 0, length, captureRing.getLastTimestamp(), captureRing.getLastFlags());
+    }
+
+    // writer thread of each link
+    for (int i = 0; i < links; i++) {
+      sent += linkRings[i].take(sendBuffers[i], FrameFormat.HEADER_SIZE, 0);
+    }
+    return sent;
+  }
+
+  @Benchmark
+  public int pooled() {
+    PooledFrame frame;
+    int sent = 0;
+
+    // capture thread: the encoder writes the frame straight into a buffer from the pool
+    frame = pool.acquire();
+    frame.set(bytes.length, timestamp++, 0);
+    pooledCaptureRing.offer(frame);
+
+    // fan out thread
+    frame = pooledCaptureRing.take(0);
+    for (int i = 0; i < links; i++) {
+      frame.retain();
+      pooledLinkRings[i].offer(frame);
+    }
+    frame.release();
+
+    // writer thread of each link
+    for (int i = 0; i < links; i++) {
+      frame = pooledLinkRings[i].take(0);
+      System.arraycopy(frame.getData(), 0, sendBuffers[i], FrameFormat.HEADER_SIZE, frame.getLength());
+      sent += frame.getLength();
+      frame.release();
+    }
+    return sent;
+  }
+}
@@ -0,0 +1,58 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one frame from the capture thread to the writer thread of a receiver link.
+ *
+ * Both sides run on the benchmark thread, so this measures the copies and the atomic updates,
+ * not the latency of waking up a parked thread.
+ * The full ring measures the drop-oldest path, which is taken when a receiver falls behind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameRingBenchmark extends AudioFormatState {
+  private static final int CAPACITY = 32;
+
+  private SpscFrameRing ring;
+  private SpscFrameRing fullRing;
+  private byte[]        frame;
+  private long          timestamp;
+
+  @Setup
+  public void setup() {
+    ring     = new SpscFrameRing(CAPACITY, bytes.length, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    fullRing = new SpscFrameRing(CAPACITY, bytes.length, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    frame    = new byte[bytes.length];
+
+    for (int i = 0; i < CAPACITY; i++) {
+      fullRing.offer(bytes, 0, bytes.length, i);
+    }
+  }
+
+  @Benchmark
+  public int offerAndTake() {
+    ring.offer(bytes, 0, bytes.length, timestamp++);
+    return ring.take(frame, 0, 0);
+  }
+
+  @Benchmark
+  public int offerWhenFull() {
+    fullRing.offer(bytes, 0, bytes.length, timestamp++);
+    return fullRing.size();
+  }
+}
@@ -0,0 +1,82 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.Frame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameParser;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of the wire protocol, with an uncompressed payload.
+ *
+ * The parser is fed the bytes of one frame in two pieces,
+ * which is how a socket read typically splits them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark extends AudioFormatState {
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+
+  private FrameWriter writer;
+  private FrameParser parser;
+  private Frame       frame;
+  private byte[]      encodedFrame;
+  private long        timestamp;
+
+  @Setup
+  public void setup() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameWriter encoder = new FrameWriter(out);
+    encoder.write(0, 0L, bytes, 0, bytes.length);
+
+    writer       = new FrameWriter(new NullOutputStream());
+    parser       = new FrameParser();
+    frame        = new Frame();
+    encodedFrame = out.toByteArray();
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    writer.write(0, timestamp++, bytes, 0, bytes.length);
+    return writer.getSequence();
+  }
+
+  @Benchmark
+  public int parse() {
+    int half = encodedFrame.length / 2;
+    int payloadLength = 0;
+
+    parser.write(encodedFrame, 0, half);
+    while (parser.next(frame)) {
+      payloadLength += frame.getPayloadLength();
+    }
+    parser.write(encodedFrame, half, encodedFrame.length - half);
+    while (parser.next(frame)) {
+      payloadLength += frame.getPayloadLength();
+    }
+    return payloadLength;
+  }
+}
@@ -0,0 +1,73 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.GainEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of applying the microphone volume gain.
+ *
+ * Every benchmark starts by copying the pristine input into a work buffer,
+ * so that repeated invocations don't drive the signal into saturation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GainBenchmark extends AudioFormatState {
+  private static final float GAIN = 1.5f;
+
+  private byte[]     workBytes;
+  private short[]    workSamples;
+  private GainEngine constantGain;
+  private GainEngine rampedGain;
+  private boolean    toggle;
+
+  @Setup
+  public void setup() {
+    workBytes    = new byte[bytes.length];
+    workSamples  = new short[sampleCount];
+    constantGain = new GainEngine(GAIN);
+    rampedGain   = new GainEngine(GAIN);
+  }
+
+  /**
+   * The implementation of MainActivity.applyVolumeGain() up to release 001.01.03
+   */
+  @Benchmark
+  public byte[] legacyApplyVolumeGain() {
+    System.arraycopy(bytes, 0, workBytes, 0, bytes.length);
+    LegacyVolumeGain.apply(workBytes, workBytes.length, GAIN);
+    return workBytes;
+  }
+
+  @Benchmark
+  public short[] gainEngineConstant() {
+    System.arraycopy(samples, 0, workSamples, 0, sampleCount);
+    constantGain.process(workSamples, 0, sampleCount);
+    return workSamples;
+  }
+
+  /**
+   * Worst case: the gain changes on every frame, as it does while the slider is being dragged.
+   */
+  @Benchmark
+  public short[] gainEngineRamped() {
+    toggle = !toggle;
+    rampedGain.setGain(toggle ? GAIN : (GAIN / 2));
+
+    System.arraycopy(samples, 0, workSamples, 0, sampleCount);
+    rampedGain.process(workSamples, 0, sampleCount);
+    return workSamples;
+  }
+}
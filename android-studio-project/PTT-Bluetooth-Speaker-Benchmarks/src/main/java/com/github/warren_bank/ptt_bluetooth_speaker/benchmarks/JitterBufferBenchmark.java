@@ -0,0 +1,59 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.JitterBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one frame from the socket reader to the playout thread.
+ *
+ * The frame is pushed in one piece, and pulled in 10 ms chunks,
+ * which is how NetworkingService uses the buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JitterBufferBenchmark extends AudioFormatState {
+  private static final int CHUNK_SAMPLES = SAMPLE_RATE / 100;
+
+  private JitterBuffer jitterBuffer;
+  private short[]      chunk;
+  private long         frameNanos;
+  private long         now;
+
+  @Setup
+  public void setup() {
+    jitterBuffer = new JitterBuffer(SAMPLE_RATE, 1000, 40, 300, 60, CHUNK_SAMPLES);
+    chunk        = new short[CHUNK_SAMPLES];
+    frameNanos   = frameMs * 1000000L;
+
+    // prime the buffer to its target depth
+    for (int i = 0; i < 10; i++) {
+      handoff();
+    }
+  }
+
+  @Benchmark
+  public int handoff() {
+    int result = 0;
+
+    jitterBuffer.push(samples, 0, sampleCount, now, now);
+    now += frameNanos;
+
+    for (int pulled = 0; pulled < sampleCount; pulled += CHUNK_SAMPLES) {
+      result += jitterBuffer.pull(chunk, 0, CHUNK_SAMPLES);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,32 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+/**
+ * Verbatim copy of the gain loop that MainActivity used before GainEngine,
+ * kept as the baseline for {@link GainBenchmark}.
+ */
+final class LegacyVolumeGain {
+
+  private LegacyVolumeGain() {}
+
+  static void apply(byte[] buffer, int bytesRead, float volumeGain) {
+    short buf1, buf2, res;
+
+    if (bytesRead < 2) return;
+
+    for (int i = 0; (i+1) < bytesRead; i+=2) {
+      // convert byte pair to int
+      buf1 = buffer[i+1];
+      buf2 = buffer[i];
+
+      buf1 = (short) ((buf1 & 0xff) << 8);
+      buf2 = (short) (buf2 & 0xff);
+
+      res = (short) (buf1 | buf2);
+      res = (short) Math.min((int)(res * volumeGain), (int)Short.MAX_VALUE);
+
+      // convert back
+      buffer[i]   = (byte) res;
+      buffer[i+1] = (byte) (res >> 8);
+    }
+  }
+}
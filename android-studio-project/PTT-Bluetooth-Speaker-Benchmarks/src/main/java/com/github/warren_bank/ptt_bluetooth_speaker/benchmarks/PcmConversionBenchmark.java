@@ -0,0 +1,53 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of converting between little-endian PCM bytes and samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmConversionBenchmark extends AudioFormatState {
+  private short[] workSamples;
+  private byte[]  workBytes;
+
+  @Setup
+  public void setup() {
+    workSamples = new short[sampleCount];
+    workBytes   = new byte[bytes.length];
+  }
+
+  @Benchmark
+  public short[] bytesToShorts() {
+    PcmUtils.bytesToShorts(bytes, 0, bytes.length, workSamples, 0);
+    return workSamples;
+  }
+
+  @Benchmark
+  public byte[] shortsToBytes() {
+    PcmUtils.shortsToBytes(samples, 0, sampleCount, workBytes, 0);
+    return workBytes;
+  }
+
+  @Benchmark
+  public short[] bytesToShortsViaByteBuffer() {
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(workSamples, 0, sampleCount);
+    return workSamples;
+  }
+}
@@ -0,0 +1,72 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioSource;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.DirectPcmBuffer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AudioMixer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost on the playout thread of getting the mix of 2 senders into the direct buffer that the speaker reads.
+ *
+ * <ul>
+ *   <li>array: mixed into an array, then copied into a direct buffer</li>
+ *   <li>direct: mixed straight into the view of the direct buffer</li>
+ * </ul>
+ *
+ * This measures the cost of writing the samples through the view, against an array and a copy.
+ * The work that the framework does to read an array or a direct buffer is not included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayoutBufferBenchmark extends AudioFormatState {
+  private AudioMixer      mixer;
+  private short[]         chunk;
+  private DirectPcmBuffer direct;
+
+  @Setup
+  public void setup() {
+    mixer  = new AudioMixer(2, sampleCount);
+    chunk  = new short[sampleCount];
+    direct = new DirectPcmBuffer(sampleCount);
+
+    mixer.addSource(source(samples));
+    mixer.addSource(source(createSpeechLikeSignal(sampleCount, 2)));
+    mixer.setGain(1, 0.5f);
+  }
+
+  private static AudioSource source(final short[] signal) {
+    return new AudioSource() {
+      @Override
+      public boolean read(short[] out, int offset, int count) {
+        System.arraycopy(signal, 0, out, offset, count);
+        return true;
+      }
+    };
+  }
+
+  @Benchmark
+  public DirectPcmBuffer array() {
+    mixer.mix(chunk, 0, sampleCount);
+    direct.put(chunk, 0, sampleCount);
+    return direct;
+  }
+
+  @Benchmark
+  public DirectPcmBuffer direct() {
+    mixer.mix(direct.getSamples(), sampleCount);
+    return direct;
+  }
+}
@@ -0,0 +1,54 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per input sample of converting 16 kHz audio to the usual native output rates of a speaker.
+ *
+ * Each invocation converts one 20 ms frame, so the score is the cost of a frame divided by 320.
+ * The signal to noise ratio is measured by {@link ResamplerQuality}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResamplerBenchmark {
+  private static final int FRAME_SIZE = (AudioFormatState.SAMPLE_RATE * 20) / 1000;
+
+  @Param({"44100", "48000"})
+  public int outputRate;
+
+  private short[]   samples;
+  private short[]   output;
+  private Resampler resampler;
+
+  @Setup
+  public void setup() {
+    samples   = AudioFormatState.createSpeechLikeSignal(FRAME_SIZE, 1);
+    resampler = new Resampler(AudioFormatState.SAMPLE_RATE, outputRate, FRAME_SIZE);
+    output    = new short[resampler.getMaxOutputCount(FRAME_SIZE)];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAME_SIZE)
+  public int process() {
+    return resampler.process(samples, 0, FRAME_SIZE, output, 0);
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+
+/**
+ * Signal to noise ratio of the {@link Resampler}, which JMH doesn't measure.
+ *
+ * A sine at 16 kHz is resampled in 10 ms chunks, and the output is compared to the same sine
+ * computed directly at the output rate. Everything that differs counts as noise:
+ * aliasing, images, interpolation between filter rows, and rounding to 16 bits.
+ *
+ * usage:
+ *   ./gradlew :PTT-Bluetooth-Speaker-Benchmarks:resamplerQuality
+ */
+public class ResamplerQuality {
+  private static final int[]  OUTPUT_RATES = {44100, 48000};
+  private static final int[]  FREQUENCIES  = {250, 1000, 3000, 6000};
+  private static final double AMPLITUDE    = 16384;  // -6 dBFS
+  private static final int    CHUNK_MS     = 10;
+  private static final int    DURATION_MS  = 2000;
+  private static final int    SKIP_MS      = 100;    // filter delay, while the history fills
+
+  public static void main(String[] args) {
+    int inputRate = AudioFormatState.SAMPLE_RATE;
+
+    System.out.println("input rate, output rate, frequency (Hz), SNR (dB)");
+    for (int outputRate : OUTPUT_RATES) {
+      for (int frequency : FREQUENCIES) {
+        System.out.println(inputRate + ", " + outputRate + ", " + frequency + ", " + String.format("%.1f", measureSnr(inputRate, outputRate, frequency)));
+      }
+    }
+  }
+
+  public static double measureSnr(int inputRate, int outputRate, int frequency) {
+    int       chunkSize  = (inputRate * CHUNK_MS) / 1000;
+    Resampler resampler  = new Resampler(inputRate, outputRate, chunkSize);
+    short[]   chunk      = new short[chunkSize];
+    short[]   output     = new short[resampler.getMaxOutputCount(chunkSize)];
+    double    delay      = (double) Resampler.getDelaySamples() / inputRate;  // seconds
+    long      inputCount = 0;
+    long      outCount   = 0;
+    int       skip       = (outputRate * SKIP_MS) / 1000;
+    double    signal     = 0;
+    double    noise      = 0;
+    double    expected;
+    int       written;
+
+    while (inputCount < ((long) inputRate * DURATION_MS) / 1000) {
+      for (int i = 0; i < chunkSize; i++) {
+        chunk[i] = (short) Math.round(AMPLITUDE * Math.sin((2 * Math.PI * frequency * (inputCount + i)) / inputRate));
+      }
+      inputCount += chunkSize;
+
+      written = resampler.process(chunk, 0, chunkSize, output, 0);
+
+      for (int i = 0; i < written; i++, outCount++) {
+        if (outCount < skip)
+          continue;
+
+        expected = AMPLITUDE * Math.sin(2 * Math.PI * frequency * (((double) outCount / outputRate) - delay));
+        signal  += expected * expected;
+        noise   += (output[i] - expected) * (output[i] - expected);
+      }
+    }
+    return 10 * Math.log10(signal / noise);
+  }
+}
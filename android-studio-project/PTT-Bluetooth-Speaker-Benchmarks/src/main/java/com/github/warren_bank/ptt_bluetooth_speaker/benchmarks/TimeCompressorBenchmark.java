@@ -0,0 +1,65 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.benchmarks;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.TimeCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per output sample of playing a backlog faster, for 10 ms chunks of 16 kHz audio.
+ *
+ * Every chunk is allowed to remove as much as it can, which is the worst case for speech:
+ * the similarity search runs for every chunk until the speed limit is reached.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeCompressorBenchmark {
+  private static final int CHUNK_SIZE  = (AudioFormatState.SAMPLE_RATE * 10) / 1000;
+  private static final int SIGNAL_SIZE = AudioFormatState.SAMPLE_RATE * 2;
+
+  @Param({"speech", "silence"})
+  public String signal;
+
+  private short[]        samples;
+  private short[]        output;
+  private TimeCompressor compressor;
+  private int            position;
+
+  @Setup
+  public void setup() {
+    samples    = signal.equals("speech")
+      ? AudioFormatState.createSpeechLikeSignal(SIGNAL_SIZE, 1)
+      : new short[SIGNAL_SIZE];
+    output     = new short[CHUNK_SIZE];
+    compressor = new TimeCompressor(AudioFormatState.SAMPLE_RATE);
+    position   = 0;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CHUNK_SIZE)
+  public int process() {
+    int maxInput = compressor.getMaxInputCount(CHUNK_SIZE);
+
+    if ((position + maxInput) > SIGNAL_SIZE)
+      position = 0;
+
+    position += compressor.process(samples, position, maxInput, output, 0, CHUNK_SIZE, maxInput);
+    return position;
+  }
+}
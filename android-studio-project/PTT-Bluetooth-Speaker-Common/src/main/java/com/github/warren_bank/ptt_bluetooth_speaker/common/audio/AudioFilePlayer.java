@@ -0,0 +1,145 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plays a list of audio files, one after another, as a stream of 16-bit mono samples.
+ *
+ * Any thread can start or stop a playlist.
+ * The capture thread pulls the samples with {@link #read},
+ * and picks up a new request at the start of its next frame.
+ * A frame that spans the end of one file is filled from the start of the next, so the files join without a gap.
+ * A file that can't be opened is skipped, and counted.
+ */
+public class AudioFilePlayer {
+  private final int                     sampleRate;
+  private final int                     maxReadCount;
+  private final int                     rawSampleRate;
+  private final AtomicReference<File[]> request;  // a new playlist, or an empty one to stop
+
+  // only used by the capture thread
+  private File[]                        playlist;
+  private int                           index;     // of the next file to open
+  private AudioFileSource               current;
+
+  private volatile boolean              active;
+  private volatile String               currentName;
+
+  // counters
+  private volatile long                 playedFiles;
+  private volatile long                 failedFiles;
+
+  /**
+   * @param maxReadCount   the most samples that will be asked of one call to {@link #read}
+   * @param rawSampleRate  the rate of a file that has no header
+   */
+  public AudioFilePlayer(int sampleRate, int maxReadCount, int rawSampleRate) {
+    this.sampleRate    = sampleRate;
+    this.maxReadCount  = maxReadCount;
+    this.rawSampleRate = rawSampleRate;
+    this.request       = new AtomicReference<File[]>(null);
+    this.playlist      = new File[0];
+    this.index         = 0;
+    this.current       = null;
+    this.active        = false;
+    this.currentName   = null;
+  }
+
+  /**
+   * Replace whatever is playing with these files, in order.
+   */
+  public void play(File[] files) {
+    request.set(files.clone());
+  }
+
+  public void stop() {
+    request.set(new File[0]);
+  }
+
+  /**
+   * @return whether a playlist is playing, or has been asked to start
+   */
+  public boolean isActive() {
+    File[] pending = request.get();
+
+    return (pending != null) ? (pending.length > 0) : active;
+  }
+
+  /**
+   * @return the name of the file that is playing, or null
+   */
+  public String getCurrentName() {
+    return currentName;
+  }
+
+  // -------------------------------------------------------------------------
+  // capture thread
+
+  /**
+   * @return the number of samples written to {@code out},
+   *         which is less than {@code count} only when the playlist has ended or was stopped
+   */
+  public int read(short[] out, int offset, int count) {
+    File[] pending = request.getAndSet(null);
+    if (pending != null) {
+      current  = null;
+      playlist = pending;
+      index    = 0;
+      active   = (pending.length > 0);
+    }
+
+    int written = 0;
+
+    while (written < count) {
+      if ((current == null) && !openNext())
+        break;
+
+      written += current.read(out, offset + written, count - written);
+
+      if (written < count) {
+        current = null;
+        playedFiles++;
+      }
+    }
+
+    if (written < count) {
+      active      = false;
+      currentName = null;
+    }
+    return written;
+  }
+
+  /**
+   * @return false when the playlist has ended
+   */
+  private boolean openNext() {
+    while (index < playlist.length) {
+      File file = playlist[index++];
+
+      try {
+        current     = new AudioFileSource(file, sampleRate, maxReadCount, rawSampleRate);
+        currentName = file.getName();
+        return true;
+      }
+      catch(Exception e) {
+        failedFiles++;
+      }
+    }
+    return false;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  public long getPlayedFileCount() {
+    return playedFiles;
+  }
+
+  /**
+   * @return the number of files that were skipped, because they couldn't be read
+   */
+  public long getFailedFileCount() {
+    return failedFiles;
+  }
+}
@@ -0,0 +1,249 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a WAV file, or a file of raw 16-bit little-endian mono PCM, as 16-bit mono at a given rate.
+ *
+ * <ul>
+ *   <li>the file is memory-mapped, read-only, so samples are decoded straight from the page cache,
+ *       and no file descriptor is held after it has been opened</li>
+ *   <li>WAV: PCM of 8, 16, 24 or 32 bits, or 32-bit float, with any number of channels, which are averaged</li>
+ *   <li>audio at a different rate is converted by a {@link Resampler}</li>
+ * </ul>
+ *
+ * Nothing is allocated after construction.
+ * Must only be used by one thread.
+ */
+public class AudioFileSource {
+  public static final int DEFAULT_RAW_SAMPLE_RATE = 16000;
+
+  private static final int FORMAT_PCM        = 1;
+  private static final int FORMAT_FLOAT      = 3;
+  private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+  private final File             file;
+  private final ByteBuffer       data;
+  private final ShortBuffer      mono16;      // a view of data, when it is already 16-bit mono
+  private final int              sampleRate;
+  private final int              channels;
+  private final int              bitsPerSample;
+  private final boolean          isFloat;
+  private final int              frameBytes;
+  private final int              frameCount;
+  private final Resampler        resampler;   // null when the rates are the same
+  private final short[]          decoded;     // input of the resampler
+
+  private int                    position;    // in frames
+  private int                    tailRemaining;  // zeros to push through the resampler after the end of the file
+
+  /**
+   * @param outputRate       the rate at which samples are read
+   * @param maxReadCount     the most samples that will be asked of one call to {@link #read}
+   * @param rawSampleRate    the rate of a file that has no header, which is any file that isn't named *.wav
+   * @throws IOException     when the file can't be read, or isn't in a supported format
+   */
+  public AudioFileSource(File file, int outputRate, int maxReadCount, int rawSampleRate) throws IOException {
+    MappedByteBuffer buffer;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      long length = raf.length();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("file too large: " + file.getName());
+
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    finally {
+      // the mapping stays valid after the file is closed
+      raf.close();
+    }
+
+    this.file = file;
+
+    if (file.getName().toLowerCase().endsWith(".wav")) {
+      int format = 0;
+      int rate   = 0;
+      int count  = 0;
+      int bits   = 0;
+      int offset = -1;
+      int size   = 0;
+      int chunkSize;
+
+      if ((buffer.limit() < 12) || (buffer.getInt(0) != fourCC("RIFF")) || (buffer.getInt(8) != fourCC("WAVE")))
+        throw new IOException("not a WAV file: " + file.getName());
+
+      for (int chunk = 12; (chunk + 8) <= buffer.limit(); chunk += 8 + chunkSize + (chunkSize & 1)) {
+        chunkSize = buffer.getInt(chunk + 4);
+        if (chunkSize < 0)
+          break;
+
+        if ((buffer.getInt(chunk) == fourCC("fmt ")) && (chunkSize >= 16)) {
+          format = buffer.getShort(chunk + 8) & 0xFFFF;
+          count  = buffer.getShort(chunk + 10) & 0xFFFF;
+          rate   = buffer.getInt(chunk + 12);
+          bits   = buffer.getShort(chunk + 22) & 0xFFFF;
+
+          // the format code of WAVE_FORMAT_EXTENSIBLE is the first 2 bytes of its sub-format GUID
+          if ((format == FORMAT_EXTENSIBLE) && (chunkSize >= 26))
+            format = buffer.getShort(chunk + 32) & 0xFFFF;
+        }
+        else if (buffer.getInt(chunk) == fourCC("data")) {
+          offset = chunk + 8;
+          // a header that was never patched, by a recorder that stopped early, may claim more than there is
+          size   = Math.min(chunkSize, buffer.limit() - offset);
+          break;
+        }
+      }
+
+      boolean isSupported = (format == FORMAT_PCM)
+        ? ((bits == 8) || (bits == 16) || (bits == 24) || (bits == 32))
+        : ((format == FORMAT_FLOAT) && (bits == 32));
+
+      if (!isSupported || (rate <= 0) || (count <= 0) || (offset < 0))
+        throw new IOException("unsupported WAV format: " + file.getName() + ", format: " + format + ", bits: " + bits + ", channels: " + count + ", rate: " + rate);
+
+      buffer.position(offset);
+      buffer.limit(offset + size);
+
+      this.sampleRate    = rate;
+      this.channels      = count;
+      this.bitsPerSample = bits;
+      this.isFloat       = (format == FORMAT_FLOAT);
+    }
+    else {
+      this.sampleRate    = rawSampleRate;
+      this.channels      = 1;
+      this.bitsPerSample = 16;
+      this.isFloat       = false;
+    }
+
+    this.data       = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    this.frameBytes = channels * (bitsPerSample / 8);
+    this.frameCount = data.limit() / frameBytes;
+    this.mono16     = ((channels == 1) && (bitsPerSample == 16)) ? data.asShortBuffer() : null;
+
+    if (sampleRate != outputRate) {
+      int maxInputCount = (int) ((((long) maxReadCount * sampleRate) + outputRate - 1) / outputRate) + Resampler.TAPS + 2;
+
+      this.resampler = new Resampler(sampleRate, outputRate, maxInputCount);
+      this.decoded   = new short[maxInputCount];
+    }
+    else {
+      this.resampler = null;
+      this.decoded   = null;
+    }
+
+    this.position      = 0;
+    this.tailRemaining = (resampler != null) ? Resampler.TAPS : 0;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getChannelCount() {
+    return channels;
+  }
+
+  public long getDurationMs() {
+    return (frameCount * 1000L) / sampleRate;
+  }
+
+  /**
+   * @return the number of samples written to {@code out}, which is less than {@code count} only at the end of the file
+   */
+  public int read(short[] out, int offset, int count) {
+    if (resampler == null)
+      return decode(out, offset, count);
+
+    int written = 0;
+    int needed;
+    int length;
+    int padding;
+    int produced;
+
+    while (written < count) {
+      needed = Math.min(resampler.getInputCount(count - written), decoded.length);
+      length = decode(decoded, 0, needed);
+
+      // flush the last input samples out of the filter
+      if (length < needed) {
+        padding = Math.min(needed - length, tailRemaining);
+        for (int i = 0; i < padding; i++) {
+          decoded[length + i] = 0;
+        }
+        length        += padding;
+        tailRemaining -= padding;
+      }
+
+      produced = resampler.process(decoded, 0, length, out, offset + written, count - written);
+      written += produced;
+
+      if ((produced == 0) && (length == 0))
+        break;
+    }
+    return written;
+  }
+
+  /**
+   * Convert up to {@code count} frames to mono, at the rate of the file.
+   */
+  private int decode(short[] out, int offset, int count) {
+    int length = Math.min(count, frameCount - position);
+    int index  = position * frameBytes;
+    int step   = bitsPerSample / 8;
+    int sum;
+
+    if (mono16 != null) {
+      mono16.position(position);
+      mono16.get(out, offset, length);
+    }
+    else {
+      for (int i = 0; i < length; i++) {
+        sum = 0;
+        for (int c = 0; c < channels; c++, index += step) {
+          sum += getSample(index);
+        }
+        out[offset + i] = (short) (sum / channels);
+      }
+    }
+
+    position += length;
+    return length;
+  }
+
+  private int getSample(int index) {
+    if (isFloat)
+      return PcmUtils.toShort(data.getFloat(index) * Short.MAX_VALUE);
+
+    switch(bitsPerSample) {
+      case 8:
+        return ((data.get(index) & 0xFF) - 128) << 8;
+      case 16:
+        return data.getShort(index);
+      case 24:
+        return data.getShort(index + 1);  // the top 2 of 3 bytes
+      default:
+        return data.getShort(index + 2);  // the top 2 of 4 bytes
+    }
+  }
+
+  private static int fourCC(String id) {
+    return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+  }
+}
@@ -0,0 +1,17 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+/**
+ * Something that the playout thread can pull 16-bit mono samples from.
+ */
+public interface AudioSource {
+
+  /**
+   * Fill {@code out} with exactly {@code count} samples.
+   * Must not block, and must not allocate.
+   *
+   * @return false when the source has nothing to contribute,
+   *         in which case the contents of {@code out} are undefined
+   */
+  public boolean read(short[] out, int offset, int count);
+
+}
@@ -0,0 +1,178 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+
+/**
+ * Chooses the size of a speaker's buffer from how often it runs dry.
+ *
+ * The buffer starts small, at one burst, which is the lowest latency the device can play.
+ * <ul>
+ *   <li>when the underrun count has grown since the last update, the buffer grows by one burst</li>
+ *   <li>after {@link #SHRINK_AFTER_MS} without an underrun, and without any other change,
+ *       it shrinks by one burst, to find out whether the extra latency is still needed</li>
+ *   <li>when that shrink causes an underrun, the wait before the next one doubles,
+ *       up to {@link #MAX_SHRINK_AFTER_MS}, so a stable size is only probed now and then</li>
+ *   <li>it never grows past a ceiling, which caps the latency that it can add;
+ *       underruns at the ceiling are counted, but are left as glitches</li>
+ * </ul>
+ *
+ * Growing is fast and shrinking is slow, so one glitch costs a little latency for a while,
+ * rather than a series of glitches while the size goes back and forth.
+ *
+ * The clock is passed in, so that the decisions can be replayed.
+ * Must only be updated by one thread; the counters can be read by any thread.
+ */
+public class BufferSizeController {
+  public static final long SHRINK_AFTER_MS     = 30000;
+  public static final long MAX_SHRINK_AFTER_MS = 16 * SHRINK_AFTER_MS;
+
+  public static final int DECISION_NONE   = 0;
+  public static final int DECISION_GROW   = 1;
+  public static final int DECISION_SHRINK = 2;
+  public static final int DECISION_CAPPED = 3;  // underruns at the ceiling
+
+  private final int     burstFrames;
+  private final int     minFrames;
+  private final int     maxFrames;
+
+  private long          lastUnderrunCount;
+  private long          lastChangeMs;
+  private long          shrinkAfterMs;
+  private boolean       isStarted;
+
+  private volatile int  bufferFrames;
+  private volatile int  lastDecision;
+  private volatile long grows;
+  private volatile long shrinks;
+  private volatile long cappedUnderruns;
+
+  /**
+   * @param burstFrames  the step by which the buffer grows and shrinks
+   * @param maxFrames    the latency ceiling, which is rounded down to a whole number of bursts
+   */
+  public BufferSizeController(int burstFrames, int maxFrames) {
+    if ((burstFrames <= 0) || (maxFrames < burstFrames))
+      throw new IllegalArgumentException("frames");
+
+    this.burstFrames   = burstFrames;
+    this.minFrames     = burstFrames;
+    this.maxFrames     = (maxFrames / burstFrames) * burstFrames;
+    this.bufferFrames  = minFrames;
+    this.lastDecision  = DECISION_NONE;
+    this.shrinkAfterMs = SHRINK_AFTER_MS;
+    this.isStarted     = false;
+  }
+
+  /**
+   * The first update only sets the baseline, since the underrun count of a speaker
+   * is a total since it was created.
+   *
+   * @param underrunCount  the total number of underruns reported by the speaker
+   * @return the buffer size to use, in frames
+   */
+  public int update(long underrunCount, long nowMs) {
+    if (!isStarted) {
+      isStarted         = true;
+      lastUnderrunCount = underrunCount;
+      lastChangeMs      = nowMs;
+      return bufferFrames;
+    }
+
+    long newUnderruns = underrunCount - lastUnderrunCount;
+    lastUnderrunCount = underrunCount;
+
+    if (newUnderruns > 0) {
+      lastChangeMs = nowMs;
+
+      // the last shrink went too far
+      if (lastDecision == DECISION_SHRINK)
+        shrinkAfterMs = Math.min(MAX_SHRINK_AFTER_MS, shrinkAfterMs * 2);
+
+      if (bufferFrames < maxFrames) {
+        bufferFrames = Math.min(maxFrames, bufferFrames + burstFrames);
+        lastDecision = DECISION_GROW;
+        grows++;
+      }
+      else {
+        lastDecision = DECISION_CAPPED;
+        cappedUnderruns += newUnderruns;
+      }
+    }
+    else if ((bufferFrames > minFrames) && ((nowMs - lastChangeMs) >= shrinkAfterMs)) {
+      // the last shrink held
+      if (lastDecision == DECISION_SHRINK)
+        shrinkAfterMs = SHRINK_AFTER_MS;
+
+      lastChangeMs = nowMs;
+      bufferFrames = Math.max(minFrames, bufferFrames - burstFrames);
+      lastDecision = DECISION_SHRINK;
+      shrinks++;
+    }
+    return bufferFrames;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  public int getBufferFrames() {
+    return bufferFrames;
+  }
+
+  public int getBurstFrames() {
+    return burstFrames;
+  }
+
+  public int getMaxFrames() {
+    return maxFrames;
+  }
+
+  /**
+   * @return one of the DECISION_ constants, for the most recent change
+   */
+  public int getLastDecision() {
+    return lastDecision;
+  }
+
+  public long getGrowCount() {
+    return grows;
+  }
+
+  public long getShrinkCount() {
+    return shrinks;
+  }
+
+  /**
+   * @return the number of underruns that happened while the buffer was already at the ceiling
+   */
+  public long getCappedUnderrunCount() {
+    return cappedUnderruns;
+  }
+
+  /**
+   * Expose the decisions of this controller, for example with the prefix: "speaker.buffer."
+   */
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "frames", new Gauge() {
+      public long getValue() { return getBufferFrames(); }
+    });
+    registry.gauge(prefix + "burst_frames", new Gauge() {
+      public long getValue() { return getBurstFrames(); }
+    });
+    registry.gauge(prefix + "max_frames", new Gauge() {
+      public long getValue() { return getMaxFrames(); }
+    });
+    registry.gauge(prefix + "last_decision", new Gauge() {
+      public long getValue() { return getLastDecision(); }
+    });
+    registry.gauge(prefix + "grows", new Gauge() {
+      public long getValue() { return getGrowCount(); }
+    });
+    registry.gauge(prefix + "shrinks", new Gauge() {
+      public long getValue() { return getShrinkCount(); }
+    });
+    registry.gauge(prefix + "capped_underruns", new Gauge() {
+      public long getValue() { return getCappedUnderrunCount(); }
+    });
+  }
+}
@@ -0,0 +1,66 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 16-bit samples in a direct buffer, in native byte order.
+ *
+ * The platform's audio I/O reads and writes a direct buffer in place, from its native address.
+ * The same memory is also seen as samples, through a {@link ShortBuffer},
+ * so that audio can be produced or consumed in it without copying it to or from an array.
+ *
+ * The samples always start at index 0. A buffer is allocated once, and used by one thread at a time.
+ */
+public final class DirectPcmBuffer {
+  private final ByteBuffer  bytes;
+  private final ShortBuffer samples;
+
+  public DirectPcmBuffer(int capacity) {
+    this.bytes   = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder());
+    this.samples = bytes.asShortBuffer();
+  }
+
+  /**
+   * @return the number of samples that the buffer holds
+   */
+  public int getCapacity() {
+    return samples.capacity();
+  }
+
+  /**
+   * @return the samples, to be read or written at absolute indexes from 0
+   */
+  public ShortBuffer getSamples() {
+    return samples;
+  }
+
+  /**
+   * @return the bytes of the first {@code count} samples: from position 0, up to the limit
+   */
+  public ByteBuffer getBytes(int count) {
+    if ((count < 0) || (count > samples.capacity()))
+      throw new IllegalArgumentException("count");
+
+    bytes.clear();
+    bytes.limit(count * 2);
+    return bytes;
+  }
+
+  /**
+   * Copy {@code count} samples into the start of the buffer.
+   */
+  public void put(short[] in, int offset, int count) {
+    samples.clear();
+    samples.put(in, offset, count);
+  }
+
+  /**
+   * Copy the first {@code count} samples out of the buffer.
+   */
+  public void get(short[] out, int offset, int count) {
+    samples.clear();
+    samples.get(out, offset, count);
+  }
+}
@@ -0,0 +1,96 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Releases frames of audio that is read from storage at the rate that a microphone would capture it.
+ *
+ * Each frame is due when its last sample would have been captured,
+ * counted from {@link #reset} in samples, and converted to nanoseconds in one step.
+ * So the schedule is absolute: a late wake-up doesn't delay the frames after it,
+ * and rounding doesn't add up over an hour-long playlist.
+ *
+ * When the thread falls more than {@code maxLateMs} behind, for example after it was stalled,
+ * the schedule is moved forward rather than made up for with a burst of frames.
+ */
+public class FramePacer {
+  public static final int DEFAULT_MAX_LATE_MS = 200;
+
+  private final int  sampleRate;
+  private final long maxLateNanos;
+
+  private long       startNanos;
+  private long       samples;      // released since the start
+
+  // counters
+  private volatile long resyncs;
+
+  public FramePacer(int sampleRate, int maxLateMs) {
+    if (sampleRate <= 0)
+      throw new IllegalArgumentException("sampleRate");
+
+    this.sampleRate   = sampleRate;
+    this.maxLateNanos = maxLateMs * 1000000L;
+
+    reset();
+  }
+
+  /**
+   * Start a new schedule, from now.
+   */
+  public void reset() {
+    startNanos = nanoTime();
+    samples    = 0;
+  }
+
+  /**
+   * Wait until a frame of {@code sampleCount} samples, which follows the previous one, is due.
+   *
+   * @return the time at which it is due, in {@link System#nanoTime} units
+   */
+  public long await(int sampleCount) {
+    samples += sampleCount;
+
+    long deadline = startNanos + toNanos(samples);
+    long now      = nanoTime();
+
+    if ((now - deadline) > maxLateNanos) {
+      startNanos += (now - deadline);
+      resyncs++;
+      return now;
+    }
+
+    while ((deadline - now) > 0) {
+      parkNanos(deadline - now);
+      now = nanoTime();
+    }
+    return deadline;
+  }
+
+  /**
+   * Exact, and doesn't overflow for any realistic length of stream.
+   */
+  private long toNanos(long sampleCount) {
+    return ((sampleCount / sampleRate) * 1000000000L) + (((sampleCount % sampleRate) * 1000000000L) / sampleRate);
+  }
+
+  // -------------------------------------------------------------------------
+  // overridden by the tests, to run the schedule on a simulated clock
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  void parkNanos(long nanos) {
+    LockSupport.parkNanos(this, nanos);
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * @return the number of times that the schedule was moved forward, because the thread fell behind
+   */
+  public long getResyncCount() {
+    return resyncs;
+  }
+}
@@ -0,0 +1,61 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Conversion between 16-bit little-endian PCM bytes and samples, and of processed values to samples.
+ */
+public final class PcmUtils {
+
+  private PcmUtils() {}
+
+  /**
+   * @return the number of samples written to {@code out}
+   */
+  public static int bytesToShorts(byte[] in, int offset, int length, short[] out, int outOffset) {
+    int j = outOffset;
+
+    for (int i = offset; (i+1) < (offset + length); i+=2) {
+      out[j++] = (short) ((in[i] & 0xff) | (in[i+1] << 8));
+    }
+    return j - outOffset;
+  }
+
+  /**
+   * @return the number of bytes written to {@code out}
+   */
+  public static int shortsToBytes(short[] in, int offset, int sampleCount, byte[] out, int outOffset) {
+    int j = outOffset;
+    short sample;
+
+    for (int i = offset; i < (offset + sampleCount); i++) {
+      sample   = in[i];
+      out[j++] = (byte) sample;
+      out[j++] = (byte) (sample >> 8);
+    }
+    return j - outOffset;
+  }
+
+  /**
+   * @return the number of bytes written to {@code out}, from the first {@code sampleCount} samples of {@code in}
+   */
+  public static int shortsToBytes(ShortBuffer in, int sampleCount, byte[] out, int outOffset) {
+    int j = outOffset;
+    short sample;
+
+    for (int i = 0; i < sampleCount; i++) {
+      sample   = in.get(i);
+      out[j++] = (byte) sample;
+      out[j++] = (byte) (sample >> 8);
+    }
+    return j - outOffset;
+  }
+
+  /**
+   * @return the value rounded to the nearest sample, saturated at both ends of the range
+   */
+  public static short toShort(float value) {
+    return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+  }
+
+}
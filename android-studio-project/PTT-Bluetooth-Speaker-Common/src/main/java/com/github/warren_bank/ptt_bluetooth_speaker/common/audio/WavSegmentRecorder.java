@@ -0,0 +1,450 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Keeps a copy of the audio that is played, in a directory of WAV files,
+ * for review after an announcement has been heard.
+ *
+ * <ul>
+ *   <li>the audio thread hands each chunk to {@link #write}, which copies it into a {@link SpscFrameRing} and returns.
+ *       It never waits: when the writer has fallen {@link #QUEUE_MS} behind, the chunk is dropped and counted.</li>
+ *   <li>a writer thread copies the queued chunks into a segment file,
+ *       which is sized for {@code segmentMs} of audio when it is created, and memory-mapped,
+ *       so each chunk is one copy into the page cache, without a system call</li>
+ *   <li>the header of a new segment describes the full size, so a segment that is cut short by a crash still plays.
+ *       When a segment is closed, early or full, the sizes in its header are patched and the file is trimmed to the audio.</li>
+ *   <li>a segment is closed when it is full, and when {@link #endSegment} is called at a pause in the audio,
+ *       so each file starts at the time in its name, and there are no silent gaps within it</li>
+ *   <li>before a segment is created, the oldest segments are deleted until the new one fits within the quota</li>
+ * </ul>
+ *
+ * The audio is 16-bit mono PCM.
+ */
+public class WavSegmentRecorder {
+  public static final String FILE_PREFIX = "recording-";
+  public static final String FILE_SUFFIX = ".wav";
+
+  public static final int    QUEUE_MS        = 2000;
+  public static final int    RETRY_MS        = 5000;  // after a segment couldn't be created
+
+  private static final int   HEADER_SIZE     = 44;
+  private static final int   FLAG_END        = 1;     // a marker, rather than a chunk of audio
+  private static final long  TAKE_NANOS      = 100000000L;
+
+  private final File          dir;
+  private final int           sampleRate;
+  private final long          segmentBytes;  // of audio, not including the header
+  private final long          quotaBytes;
+  private final SpscFrameRing queue;
+  private final byte[]        inBuffer;      // only used by the audio thread
+  private final byte[]        outBuffer;     // only used by the writer thread
+  private final SimpleDateFormat nameFormat;
+
+  private Thread              thread;
+
+  // only used by the writer thread
+  private RandomAccessFile    file;
+  private MappedByteBuffer    segment;
+  private long                retryAt;
+  private String              lastName;
+  private int                 lastNameCount;
+
+  // counters
+  private volatile long       writtenFrames;
+  private volatile long       droppedFrames;  // by the audio thread
+  private volatile long       failedFrames;   // by the writer thread
+  private volatile long       segments;
+  private volatile long       evictedSegments;
+  private volatile long       errors;
+
+  /**
+   * @param maxFrameSamples  the most samples that will be passed to one call to {@link #write}
+   * @param segmentMs        the length of each file
+   * @param quotaBytes       the most that all of the files in the directory can take up together
+   */
+  public WavSegmentRecorder(File dir, int sampleRate, int maxFrameSamples, long segmentMs, long quotaBytes) {
+    if (maxFrameSamples <= 0)
+      throw new IllegalArgumentException("maxFrameSamples");
+    if (quotaBytes <= (HEADER_SIZE + (2 * maxFrameSamples)))
+      throw new IllegalArgumentException("quotaBytes");
+
+    int  frameMs  = Math.max(1, (maxFrameSamples * 1000) / sampleRate);
+    long bytes    = 2 * ((segmentMs * sampleRate) / 1000);
+
+    this.dir          = dir;
+    this.sampleRate   = sampleRate;
+    this.segmentBytes = Math.max(2, Math.min(bytes, (quotaBytes - HEADER_SIZE) & ~1L));
+    this.quotaBytes   = quotaBytes;
+    this.queue        = new SpscFrameRing(Math.max(2, QUEUE_MS / frameMs), 2 * maxFrameSamples, SpscFrameRing.OVERFLOW_DROP_NEWEST);
+    this.inBuffer     = new byte[2 * maxFrameSamples];
+    this.outBuffer    = new byte[2 * maxFrameSamples];
+    this.nameFormat   = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS'Z'", Locale.US);
+    this.thread       = null;
+
+    // in local time, the names would sort out of order when the clocks go back
+    this.nameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  public synchronized void start() {
+    if (thread != null)
+      return;
+
+    dir.mkdirs();
+
+    thread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      },
+      "WavSegmentRecorder Thread"
+    );
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Stop, after writing the chunks that are already queued, and close the current segment.
+   * No more chunks are accepted.
+   */
+  public synchronized void stop() {
+    if (thread == null)
+      return;
+
+    queue.close();
+
+    try {
+      thread.join();
+    }
+    catch(Exception e) {}
+    finally {
+      thread = null;
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // audio thread
+
+  /**
+   * Queue a chunk of audio to be written. Never blocks.
+   * Must only be called from one thread at a time.
+   *
+   * @return false when the chunk was dropped, because the writer has fallen behind or has stopped
+   */
+  public boolean write(short[] samples, int offset, int count) {
+    int length = PcmUtils.shortsToBytes(samples, offset, count, inBuffer, 0);
+
+    if (!queue.offer(inBuffer, 0, length, System.currentTimeMillis())) {
+      droppedFrames++;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Queue the first {@code count} samples of {@code samples}, for example the view of a direct buffer. Never blocks.
+   * Must only be called from one thread at a time.
+   *
+   * @return false when the chunk was dropped, because the writer has fallen behind or has stopped
+   */
+  public boolean write(ShortBuffer samples, int count) {
+    int length = PcmUtils.shortsToBytes(samples, count, inBuffer, 0);
+
+    if (!queue.offer(inBuffer, 0, length, System.currentTimeMillis())) {
+      droppedFrames++;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Close the current segment once the chunks before this call are written, so the next chunk starts a new one.
+   * Call when the audio pauses. Never blocks.
+   * Must only be called from the thread that calls {@link #write}, or after it has stopped.
+   */
+  public void endSegment() {
+    queue.offer(inBuffer, 0, 0, System.currentTimeMillis(), FLAG_END);
+  }
+
+  // -------------------------------------------------------------------------
+  // writer thread
+
+  private void drain() {
+    int length;
+
+    while (true) {
+      length = queue.take(outBuffer, 0, TAKE_NANOS);
+
+      if (length < 0) {
+        if (queue.isClosed() && (queue.size() == 0))
+          break;
+        continue;
+      }
+
+      if ((queue.getLastFlags() & FLAG_END) != 0) {
+        closeSegment();
+        continue;
+      }
+
+      if (append(outBuffer, length, queue.getLastTimestamp()))
+        writtenFrames++;
+      else
+        failedFrames++;
+    }
+
+    closeSegment();
+  }
+
+  /**
+   * @return false when there is no segment to write to
+   */
+  private boolean append(byte[] src, int length, long timestamp) {
+    int offset = 0;
+    int count;
+
+    while (offset < length) {
+      if ((segment == null) && !openSegment(timestamp))
+        return false;
+
+      count = Math.min(length - offset, segment.remaining());
+      segment.put(src, offset, count);
+      offset += count;
+
+      if (!segment.hasRemaining())
+        closeSegment();
+    }
+    return true;
+  }
+
+  private boolean openSegment(long timestamp) {
+    if (timestamp < retryAt)
+      return false;
+
+    File             newFile = getSegmentFile(timestamp);
+    RandomAccessFile raf     = null;
+
+    try {
+      evict(HEADER_SIZE + segmentBytes);
+
+      raf = new RandomAccessFile(newFile, "rw");
+      raf.setLength(HEADER_SIZE + segmentBytes);
+
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + segmentBytes);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      writeHeader(buffer, segmentBytes);
+
+      file    = raf;
+      segment = buffer;
+      segments++;
+      return true;
+    }
+    catch(Exception e) {
+      errors++;
+      retryAt = timestamp + RETRY_MS;
+
+      if (raf != null) {
+        try {
+          raf.close();
+        }
+        catch(Exception e2) {}
+      }
+      newFile.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Patch the header with the size of the audio that was written, and trim the unused end of the file.
+   */
+  private void closeSegment() {
+    if (segment == null)
+      return;
+
+    long dataBytes = segment.position() - HEADER_SIZE;
+
+    try {
+      writeHeader(segment, dataBytes);
+      segment.force();
+
+      if (dataBytes < segmentBytes)
+        file.setLength(HEADER_SIZE + dataBytes);
+    }
+    catch(Exception e) {
+      errors++;
+    }
+    finally {
+      try {
+        file.close();
+      }
+      catch(Exception e) {}
+
+      file    = null;
+      segment = null;
+    }
+  }
+
+  /**
+   * Write a canonical 44 byte header, and leave the position after it.
+   */
+  private void writeHeader(MappedByteBuffer buffer, long dataBytes) {
+    int position = Math.max(HEADER_SIZE, buffer.position());
+
+    buffer.position(0);
+    buffer.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+    buffer.putInt((int) (36 + dataBytes));
+    buffer.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+    buffer.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+    buffer.putInt(16);
+    buffer.putShort((short) 1);               // PCM
+    buffer.putShort((short) 1);               // channels
+    buffer.putInt(sampleRate);
+    buffer.putInt(sampleRate * 2);            // bytes per second
+    buffer.putShort((short) 2);               // bytes per sample frame
+    buffer.putShort((short) 16);              // bits per sample
+    buffer.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+    buffer.putInt((int) dataBytes);
+    buffer.position(position);
+  }
+
+  /**
+   * Delete the oldest segments until {@code needed} more bytes fit within the quota.
+   */
+  private void evict(long needed) {
+    File[] files = getSegmentFiles();
+    long   total = 0;
+
+    for (File f : files) {
+      total += f.length();
+    }
+
+    // the names sort by the time at which each segment was started
+    for (int i = 0; (i < files.length) && ((total + needed) > quotaBytes); i++) {
+      long length = files[i].length();
+
+      if (files[i].delete()) {
+        total -= length;
+        evictedSegments++;
+      }
+    }
+  }
+
+  /**
+   * @return the segments in the directory, oldest first
+   */
+  public File[] getSegmentFiles() {
+    File[] files = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        String name = f.getName();
+        return f.isFile() && name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+      }
+    });
+
+    if (files == null)
+      return new File[0];
+
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * Segments that start within the same millisecond are numbered "_01", "_02", ...
+   * which sort after the first one, because '_' sorts after '.'
+   *
+   * The numbers keep counting up, so a name that was freed when its segment was evicted isn't reused out of order.
+   */
+  private File getSegmentFile(long timestamp) {
+    String name = FILE_PREFIX + nameFormat.format(new Date(timestamp));
+    int    i    = name.equals(lastName) ? (lastNameCount + 1) : 0;
+    File   f;
+
+    while (true) {
+      f = (i == 0)
+        ? new File(dir, name + FILE_SUFFIX)
+        : new File(dir, name + String.format(Locale.US, "_%02d", i) + FILE_SUFFIX);
+
+      if (!f.exists())
+        break;
+      i++;
+    }
+
+    lastName      = name;
+    lastNameCount = i;
+    return f;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the number of chunks that were written to a segment
+   */
+  public long getWrittenFrameCount() {
+    return writtenFrames;
+  }
+
+  /**
+   * @return the number of chunks that were not recorded,
+   *         because the writer had fallen behind, or a segment couldn't be created
+   */
+  public long getDroppedFrameCount() {
+    return droppedFrames + failedFrames;
+  }
+
+  public long getSegmentCount() {
+    return segments;
+  }
+
+  /**
+   * @return the number of old segments that were deleted to stay within the quota
+   */
+  public long getEvictedSegmentCount() {
+    return evictedSegments;
+  }
+
+  public long getErrorCount() {
+    return errors;
+  }
+
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "frames_written", new Gauge() {
+      public long getValue() { return getWrittenFrameCount(); }
+    });
+    registry.gauge(prefix + "frames_dropped", new Gauge() {
+      public long getValue() { return getDroppedFrameCount(); }
+    });
+    registry.gauge(prefix + "queue_depth", new Gauge() {
+      public long getValue() { return queue.size(); }
+    });
+    registry.gauge(prefix + "segments", new Gauge() {
+      public long getValue() { return getSegmentCount(); }
+    });
+    registry.gauge(prefix + "segments_evicted", new Gauge() {
+      public long getValue() { return getEvictedSegmentCount(); }
+    });
+    registry.gauge(prefix + "errors", new Gauge() {
+      public long getValue() { return getErrorCount(); }
+    });
+  }
+}
@@ -0,0 +1,140 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+
+/**
+ * Keeps a {@link JitterBuffer} at its target depth while the sender's clock and the speaker's clock drift apart.
+ *
+ * Two crystals are never exactly the same: a sender whose clock runs 100 ppm fast delivers
+ * 8.6 seconds too much audio per day. Without compensation, the buffer slowly fills until it is trimmed,
+ * or slowly drains until it underruns, and either is heard as a glitch.
+ *
+ * Every chunk is pulled through a {@link Resampler} whose ratio is nudged by a PI controller:
+ * <ul>
+ *   <li>the error is the depth of the buffer above its target, averaged over about a second,
+ *       which smooths out the sawtooth of frames arriving and chunks leaving</li>
+ *   <li>the integral term converges to the drift between the clocks, which is then played out
+ *       continuously instead of in jumps</li>
+ *   <li>the ratio is limited to {@link #MAX_ADJUSTMENT}, a change of pitch far below what can be heard</li>
+ * </ul>
+ *
+ * The controller only runs while the sender's audio is played at its normal speed,
+ * so neither a gap in the stream nor a backlog that the jitter buffer is catching up on winds it up.
+ * The drift estimate is kept across gaps, since it is a property of the two clocks.
+ *
+ * Must only be used by the playout thread.
+ */
+public class DriftCompensator {
+  public static final double MAX_ADJUSTMENT = 0.005;
+
+  private static final double SMOOTHING_SECONDS = 1.0;
+  private static final double PROPORTIONAL_GAIN = 0.02;   // ratio per second of error
+  private static final double INTEGRAL_SECONDS  = 120.0;
+
+  private final JitterBuffer jitterBuffer;
+  private final Resampler    resampler;
+  private final short[]      pulled;
+  private final double       sampleRate;
+  private final long         delayNanos;
+
+  private int                lastResult;
+  private boolean            hasError;
+  private double             averageError;  // seconds
+  private volatile double    drift;         // integral term
+  private volatile double    ratio;
+
+  /**
+   * @param jitterBuffer  must accept pulls of {@link #getMaxPullSamples(int)}
+   */
+  public DriftCompensator(JitterBuffer jitterBuffer, int maxChunkSamples) {
+    int maxPullSamples = getMaxPullSamples(maxChunkSamples);
+
+    this.jitterBuffer = jitterBuffer;
+    this.resampler    = new Resampler(jitterBuffer.getSampleRate(), jitterBuffer.getSampleRate(), maxPullSamples);
+    this.pulled       = new short[maxPullSamples];
+    this.sampleRate   = jitterBuffer.getSampleRate();
+    this.delayNanos   = (Resampler.getDelaySamples() * 1000000000L) / jitterBuffer.getSampleRate();
+    this.lastResult   = JitterBuffer.PULL_SILENCE;
+    this.hasError     = false;
+    this.averageError = 0;
+    this.drift        = 0;
+    this.ratio        = 1.0;
+  }
+
+  /**
+   * @return the most samples that are pulled from the jitter buffer to fill a chunk
+   */
+  public static int getMaxPullSamples(int maxChunkSamples) {
+    return maxChunkSamples + (int) Math.ceil(maxChunkSamples * MAX_ADJUSTMENT) + 2;
+  }
+
+  /**
+   * Fill {@code out} with exactly {@code count} samples.
+   *
+   * @return the result of pulling from the jitter buffer:
+   *         {@link JitterBuffer#PULL_PLAYED}, {@link JitterBuffer#PULL_CONCEALED}, or {@link JitterBuffer#PULL_SILENCE}
+   */
+  public int pull(short[] out, int offset, int count) {
+    if ((lastResult == JitterBuffer.PULL_PLAYED) && !jitterBuffer.isCatchingUp()) {
+      updateRatio(jitterBuffer.getDepthSamples() - jitterBuffer.getTargetDepthSamples(), count);
+    }
+    else {
+      hasError = false;
+    }
+
+    int needed = resampler.getInputCount(count);
+
+    if (needed > 0)
+      lastResult = jitterBuffer.pull(pulled, 0, needed);
+
+    resampler.process(pulled, 0, needed, out, offset, count);
+    return lastResult;
+  }
+
+  /**
+   * @return timestamp in the sender's clock of the first sample returned by the last call to {@link #pull}
+   *         that played the sender's audio
+   */
+  public long getLastPulledSenderTime() {
+    return jitterBuffer.getLastPulledSenderTime() - delayNanos;
+  }
+
+  private void updateRatio(int errorSamples, int count) {
+    double elapsed = count / sampleRate;
+    double error   = errorSamples / sampleRate;
+
+    if (hasError) {
+      averageError += (error - averageError) * Math.min(1.0, elapsed / SMOOTHING_SECONDS);
+    }
+    else {
+      averageError = error;
+      hasError     = true;
+    }
+
+    drift = clamp(drift + ((PROPORTIONAL_GAIN / INTEGRAL_SECONDS) * averageError * elapsed));
+    ratio = 1.0 + clamp(drift + (PROPORTIONAL_GAIN * averageError));
+
+    resampler.setRatio(ratio);
+  }
+
+  private static double clamp(double adjustment) {
+    return Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, adjustment));
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return how much faster the sender's clock runs than the speaker's, in parts per million
+   */
+  public double getDriftPpm() {
+    return drift * 1000000;
+  }
+
+  /**
+   * @return the current ratio of samples consumed to samples played, above 1.0 to drain the buffer
+   */
+  public double getRatio() {
+    return ratio;
+  }
+}
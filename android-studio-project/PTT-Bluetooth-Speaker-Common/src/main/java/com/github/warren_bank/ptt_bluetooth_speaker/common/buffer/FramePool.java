@@ -0,0 +1,94 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+/**
+ * A fixed set of reference counted frames, so that an encoded frame is written once
+ * and then passed by reference through every queue between the encoder and the transports.
+ *
+ * All storage is allocated by the constructor.
+ * {@link #acquire} must only be called by one thread, and never blocks:
+ * it scans round-robin for a frame whose last reference was released,
+ * which is usually the next one, because frames are released in about the order they were acquired.
+ *
+ * The pool should hold at least as many frames as all of the queues in the pipeline, plus one per thread.
+ * Then it only runs out when a frame is leaked.
+ */
+public class FramePool {
+  private final PooledFrame[] frames;
+  private final int           maxFrameSize;
+  private int                 cursor;  // only used by the thread that acquires
+
+  // counters
+  private volatile long       acquiredFrames;
+  private volatile long       exhaustedCount;
+
+  public FramePool(int capacity, int maxFrameSize) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity");
+    if (maxFrameSize <= 0)
+      throw new IllegalArgumentException("maxFrameSize");
+
+    this.frames       = new PooledFrame[capacity];
+    this.maxFrameSize = maxFrameSize;
+    this.cursor       = 0;
+
+    for (int i = 0; i < capacity; i++) {
+      frames[i] = new PooledFrame(maxFrameSize);
+    }
+  }
+
+  /**
+   * @return a frame that holds one reference, owned by the caller,
+   *         or null when every frame is in use
+   */
+  public PooledFrame acquire() {
+    PooledFrame frame;
+
+    for (int i = 0; i < frames.length; i++) {
+      frame  = frames[cursor];
+      cursor = (cursor + 1) % frames.length;
+
+      if (frame.tryAcquire()) {
+        acquiredFrames++;
+        return frame;
+      }
+    }
+
+    exhaustedCount++;
+    return null;
+  }
+
+  public int getCapacity() {
+    return frames.length;
+  }
+
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the number of frames that are held by at least one reference
+   */
+  public int getInUseCount() {
+    int count = 0;
+
+    for (int i = 0; i < frames.length; i++) {
+      if (frames[i].isInUse())
+        count++;
+    }
+    return count;
+  }
+
+  public long getAcquiredFrameCount() {
+    return acquiredFrames;
+  }
+
+  /**
+   * @return the number of times that {@link #acquire} found every frame in use
+   */
+  public long getExhaustedCount() {
+    return exhaustedCount;
+  }
+}
@@ -0,0 +1,395 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.TimeCompressor;
+
+/**
+ * Absorbs the irregular arrival of frames from the network,
+ * so that the playout thread can consume audio at a steady rate.
+ *
+ * Decoded samples are pushed, and pulled in fixed size chunks, by the thread that writes to the AudioTrack.
+ * It must be the only thread that calls {@link #push}, {@link #pull} and {@link #reset},
+ * so that it never waits on a lock; the counters can be read from any thread.
+ * All storage is allocated by the constructor.
+ *
+ * <ul>
+ *   <li>target depth:
+ *       adapts to the interarrival jitter of the frames (RFC 3550, section 6.4.1),
+ *       bounded by a configurable minimum and maximum</li>
+ *   <li>underrun:
+ *       the last chunk is repeated with a decaying gain,
+ *       then silence is played until the target depth has been rebuilt</li>
+ *   <li>backlog:
+ *       when the depth exceeds the target by more than the allowed slack,
+ *       for example after a reconnect, the audio is played faster by a {@link TimeCompressor}
+ *       until the depth is back to the target, so latency can't accumulate over a long session</li>
+ *   <li>overflow:
+ *       when the backlog is more than {@link #MAX_CATCH_UP_MS} past the slack,
+ *       the oldest samples are discarded</li>
+ * </ul>
+ *
+ * Time is passed in by the caller (nanoseconds),
+ * so the behavior can be simulated with a synthetic schedule.
+ */
+public class JitterBuffer {
+  public static final int PULL_PLAYED    = 0;
+  public static final int PULL_CONCEALED = 1;
+  public static final int PULL_SILENCE   = 2;
+
+  public static final int MAX_CATCH_UP_MS = 2000;
+
+  private static final int   MAX_CONCEALED_CHUNKS = 4;
+  private static final float CONCEALMENT_DECAY    = 0.5f;
+  private static final int   CROSSFADE_SAMPLES    = 64;
+
+  private final int     sampleRate;
+  private final short[] ring;
+  private final short[] lastChunk;
+  private final int     minDepthSamples;
+  private final int     maxDepthSamples;
+  private final int     slackSamples;
+  private final int     catchUpSamples;
+  private final TimeCompressor compressor;
+  private final short[] backlog;  // a copy of the start of the ring, for the compressor
+
+  private int              readIndex;
+  private volatile int     size;
+
+  private boolean          isBuffering;
+  private volatile boolean isCatchingUp;
+  private int              concealedChunks;
+  private float            concealmentGain;
+  private int              lastChunkLength;
+  private short            lastSample;
+  private boolean          shouldCrossfade;
+
+  private boolean          hasArrival;
+  private long             lastArrivalTime;
+  private long             lastSenderTime;
+  private int              lastPushCount;
+  private long             lastPulledSenderTime;
+  private volatile double  jitterNanos;
+  private volatile int     targetDepthSamples;
+
+  // volatile, so that they can be read from any thread
+  private volatile long    underrunCount;
+  private volatile long    overflowCount;
+  private volatile long    trimmedSamples;
+  private volatile long    droppedSamples;
+  private volatile long    compressedSamples;
+
+  /**
+   * @param sampleRate  in Hz
+   * @param capacityMs  size of the ring
+   * @param minDepthMs  lower bound for the target depth
+   * @param maxDepthMs  upper bound for the target depth
+   * @param slackMs     depth in excess of the target that is tolerated before samples are discarded
+   * @param maxChunkSamples  largest count that will be passed to {@link #pull}
+   */
+  public JitterBuffer(int sampleRate, int capacityMs, int minDepthMs, int maxDepthMs, int slackMs, int maxChunkSamples) {
+    if ((minDepthMs < 0) || (maxDepthMs < minDepthMs) || ((maxDepthMs + slackMs) > capacityMs))
+      throw new IllegalArgumentException("depth");
+
+    this.sampleRate      = sampleRate;
+    this.ring            = new short[msToSamples(sampleRate, capacityMs)];
+    this.lastChunk       = new short[maxChunkSamples];
+    this.minDepthSamples = msToSamples(sampleRate, minDepthMs);
+    this.maxDepthSamples = msToSamples(sampleRate, maxDepthMs);
+    this.slackSamples    = msToSamples(sampleRate, slackMs);
+    this.catchUpSamples  = msToSamples(sampleRate, MAX_CATCH_UP_MS);
+    this.compressor      = new TimeCompressor(sampleRate);
+    this.backlog         = new short[compressor.getMaxInputCount(maxChunkSamples)];
+
+    reset();
+  }
+
+  public void reset() {
+    readIndex          = 0;
+    size               = 0;
+    isBuffering        = true;
+    isCatchingUp       = false;
+    concealedChunks    = 0;
+    concealmentGain    = 1.0f;
+    lastChunkLength    = 0;
+    lastSample         = 0;
+    shouldCrossfade    = false;
+    hasArrival         = false;
+    lastArrivalTime    = 0;
+    lastSenderTime     = 0;
+    lastPushCount      = 0;
+    lastPulledSenderTime = 0;
+    jitterNanos        = 0;
+    targetDepthSamples = minDepthSamples;
+    underrunCount      = 0;
+    overflowCount      = 0;
+    trimmedSamples     = 0;
+    droppedSamples     = 0;
+    compressedSamples  = 0;
+    compressor.reset();
+  }
+
+  /**
+   * Add the samples of one frame.
+   *
+   * @param senderTime   timestamp of the frame, in the sender's clock
+   * @param arrivalTime  time at which the frame was received, in the local clock
+   */
+  public void push(short[] samples, int offset, int count, long senderTime, long arrivalTime) {
+    updateJitter(senderTime, arrivalTime, count);
+
+    if (count > ring.length) {
+      droppedSamples += count - ring.length;
+      offset += count - ring.length;
+      count   = ring.length;
+    }
+
+    // the ring is full: make room by discarding the oldest samples, and smooth over the gap they leave
+    int overflow = (size + count) - ring.length;
+    if (overflow > 0) {
+      discard(overflow);
+      droppedSamples += overflow;
+      overflowCount++;
+      shouldCrossfade = true;
+    }
+
+    int writeIndex = (readIndex + size) % ring.length;
+    int firstPart  = Math.min(count, ring.length - writeIndex);
+
+    System.arraycopy(samples, offset, ring, writeIndex, firstPart);
+    if (firstPart < count)
+      System.arraycopy(samples, offset + firstPart, ring, 0, count - firstPart);
+
+    size += count;
+    lastPushCount = count;
+  }
+
+  /**
+   * Fill {@code out} with exactly {@code count} samples.
+   *
+   * @return one of: {@link #PULL_PLAYED}, {@link #PULL_CONCEALED}, {@link #PULL_SILENCE}
+   */
+  public int pull(short[] out, int offset, int count) {
+    if (count > lastChunk.length)
+      throw new IllegalArgumentException("count");
+
+    if (isBuffering) {
+      if (size < Math.max(targetDepthSamples, count))
+        return conceal(out, offset, count);
+
+      isBuffering = false;
+    }
+
+    int excess = size - targetDepthSamples - count;
+
+    // latency has accumulated past what can be caught up: skip ahead to the target depth
+    if (excess > (slackSamples + catchUpSamples)) {
+      discard(excess);
+      trimmedSamples += excess;
+      shouldCrossfade = true;
+      excess = 0;
+    }
+
+    // latency has accumulated: play faster until it is back to the target depth
+    if (excess > slackSamples) {
+      isCatchingUp = true;
+    }
+    else if (excess <= 0) {
+      if (isCatchingUp)
+        compressor.reset();
+      isCatchingUp = false;
+    }
+
+    if (size < count) {
+      underrunCount++;
+      isBuffering = true;
+      return conceal(out, offset, count);
+    }
+
+    // frames are contiguous in the sender's clock, so count back from the newest one
+    lastPulledSenderTime = lastSenderTime - (((long) (size - lastPushCount) * 1000000000L) / sampleRate);
+
+    if (isCatchingUp)
+      readFaster(out, offset, count, excess);
+    else
+      read(out, offset, count);
+
+    if (shouldCrossfade) {
+      crossfade(out, offset, count);
+      shouldCrossfade = false;
+    }
+
+    System.arraycopy(out, offset, lastChunk, 0, count);
+    lastChunkLength  = count;
+    lastSample       = out[offset + count - 1];
+    concealedChunks  = 0;
+    concealmentGain  = 1.0f;
+    return PULL_PLAYED;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @return timestamp in the sender's clock of the first sample returned by the last call to {@link #pull}
+   *         that returned {@link #PULL_PLAYED}
+   */
+  public long getLastPulledSenderTime() {
+    return lastPulledSenderTime;
+  }
+
+  public int getDepthSamples() {
+    return size;
+  }
+
+  public int getDepthMs() {
+    return samplesToMs(size);
+  }
+
+  public int getTargetDepthSamples() {
+    return targetDepthSamples;
+  }
+
+  public int getTargetDepthMs() {
+    return samplesToMs(targetDepthSamples);
+  }
+
+  public double getJitterMs() {
+    return jitterNanos / 1000000.0d;
+  }
+
+  public long getUnderrunCount() {
+    return underrunCount;
+  }
+
+  public long getOverflowCount() {
+    return overflowCount;
+  }
+
+  public long getTrimmedSamples() {
+    return trimmedSamples;
+  }
+
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
+
+  /**
+   * @return the number of samples that were skipped by playing a backlog faster
+   */
+  public long getCompressedSamples() {
+    return compressedSamples;
+  }
+
+  public boolean isCatchingUp() {
+    return isCatchingUp;
+  }
+
+  // -------------------------------------------------------------------------
+  // internal
+
+  private void updateJitter(long senderTime, long arrivalTime, int count) {
+    if (hasArrival) {
+      long transitDelta = (arrivalTime - lastArrivalTime) - (senderTime - lastSenderTime);
+      jitterNanos += (Math.abs(transitDelta) - jitterNanos) / 16.0d;
+    }
+    hasArrival      = true;
+    lastArrivalTime = arrivalTime;
+    lastSenderTime  = senderTime;
+
+    // enough to cover one frame, plus a margin of several times the mean deviation
+    long targetNanos = ((count * 1000000000L) / sampleRate) + (long) (jitterNanos * 4);
+    int  target      = (int) ((targetNanos * sampleRate) / 1000000000L);
+
+    targetDepthSamples = Math.max(minDepthSamples, Math.min(maxDepthSamples, target));
+  }
+
+  private void read(short[] out, int offset, int count) {
+    int firstPart = Math.min(count, ring.length - readIndex);
+
+    System.arraycopy(ring, readIndex, out, offset, firstPart);
+    if (firstPart < count)
+      System.arraycopy(ring, 0, out, offset + firstPart, count - firstPart);
+
+    discard(count);
+  }
+
+  /**
+   * Read {@code count} samples, and discard up to {@code maxRemove} more where that can't be heard.
+   */
+  private void readFaster(short[] out, int offset, int count, int maxRemove) {
+    int available = Math.min(size, backlog.length);
+    int firstPart = Math.min(available, ring.length - readIndex);
+
+    System.arraycopy(ring, readIndex, backlog, 0, firstPart);
+    if (firstPart < available)
+      System.arraycopy(ring, 0, backlog, firstPart, available - firstPart);
+
+    int consumed = compressor.process(backlog, 0, available, out, offset, count, maxRemove);
+
+    discard(consumed);
+    compressedSamples += consumed - count;
+  }
+
+  private void discard(int count) {
+    readIndex = (readIndex + count) % ring.length;
+    size     -= count;
+  }
+
+  /**
+   * Repeat the last chunk with a gain that ramps down,
+   * until it has faded out completely.
+   */
+  private int conceal(short[] out, int offset, int count) {
+    if ((lastChunkLength == 0) || (concealedChunks >= MAX_CONCEALED_CHUNKS)) {
+      fill(out, offset, count, (short) 0);
+      lastSample      = 0;
+      shouldCrossfade = false;
+      return PULL_SILENCE;
+    }
+
+    float startGain = concealmentGain;
+    float endGain   = (concealedChunks == (MAX_CONCEALED_CHUNKS - 1))
+      ? 0.0f
+      : startGain * CONCEALMENT_DECAY;
+    float step      = (endGain - startGain) / count;
+    float gain      = startGain;
+
+    for (int i = 0; i < count; i++) {
+      out[offset + i] = (short) (lastChunk[i % lastChunkLength] * gain);
+      gain += step;
+    }
+
+    concealedChunks++;
+    concealmentGain = endGain;
+    lastSample      = out[offset + count - 1];
+    shouldCrossfade = true;
+    return PULL_CONCEALED;
+  }
+
+  /**
+   * Smooth the discontinuity between the last sample played and the start of {@code out}.
+   */
+  private void crossfade(short[] out, int offset, int count) {
+    int n = Math.min(CROSSFADE_SAMPLES, count);
+    float weight;
+
+    for (int i = 0; i < n; i++) {
+      weight = (float) (i + 1) / (n + 1);
+      out[offset + i] = (short) ((lastSample * (1.0f - weight)) + (out[offset + i] * weight));
+    }
+  }
+
+  private static void fill(short[] out, int offset, int count, short value) {
+    for (int i = offset; i < (offset + count); i++) {
+      out[i] = value;
+    }
+  }
+
+  private int samplesToMs(int samples) {
+    return (int) ((samples * 1000L) / sampleRate);
+  }
+
+  private static int msToSamples(int sampleRate, int ms) {
+    return (int) (((long) sampleRate * ms) / 1000L);
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded frame, borrowed from a {@link FramePool}, that several queues can hold at the same time.
+ *
+ * The thread that acquired the frame fills it, then shares it by handing out references.
+ * Each holder calls {@link #release} once it is done,
+ * and the frame goes back to the pool when the last reference is released.
+ * A frame must not be written after it has been shared.
+ */
+public final class PooledFrame {
+  private final byte[]        data;
+  private final AtomicInteger refCount;
+
+  private int                 length;
+  private int                 flags;
+  private long                timestamp;
+
+  PooledFrame(int maxFrameSize) {
+    this.data     = new byte[maxFrameSize];
+    this.refCount = new AtomicInteger(0);
+  }
+
+  /**
+   * @return the buffer in which the payload is written, starting at 0
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Describe the payload that was written to {@link #getData()}.
+   */
+  public void set(int length, long timestamp, int flags) {
+    if ((length < 0) || (length > data.length))
+      throw new IllegalArgumentException("length");
+
+    this.length    = length;
+    this.timestamp = timestamp;
+    this.flags     = flags;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  // -------------------------------------------------------------------------
+  // references
+
+  /**
+   * Add a reference, for another holder. The caller must already hold one.
+   */
+  public void retain() {
+    if (refCount.getAndIncrement() <= 0)
+      throw new IllegalStateException("frame is not in use");
+  }
+
+  /**
+   * Drop a reference. After the last one, the frame may be reused at any time.
+   */
+  public void release() {
+    if (refCount.decrementAndGet() < 0)
+      throw new IllegalStateException("frame was released too many times");
+  }
+
+  /**
+   * @return false when the frame is still in use
+   */
+  boolean tryAcquire() {
+    return refCount.compareAndSet(0, 1);
+  }
+
+  boolean isInUse() {
+    return refCount.get() > 0;
+  }
+}
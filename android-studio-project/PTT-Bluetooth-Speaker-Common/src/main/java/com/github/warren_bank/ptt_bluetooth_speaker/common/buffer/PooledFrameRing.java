@@ -0,0 +1,240 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of {@link PooledFrame} references,
+ * shared by exactly one producer thread and one consumer thread.
+ *
+ * Like {@link SpscFrameRing}, but the frames are passed by reference instead of being copied.
+ * {@link #offer} takes over one reference from the producer, and {@link #take} hands it to the consumer.
+ * A frame that the ring discards, because of the overflow policy or because it was closed,
+ * is released by the ring.
+ *
+ * To drop the oldest frame, the producer advances the read index with a CAS.
+ * The consumer advances it with a CAS too, after reading the reference,
+ * and only the side that wins the CAS owns the frame.
+ */
+public class PooledFrameRing {
+  private static final long PARK_NANOS = 10000000L;  // 10 ms, bounds the wait for a missed unpark
+
+  private final int           capacity;
+  private final int           overflowPolicy;
+  private final PooledFrame[] frames;
+
+  // monotonically increasing, the slot is (index % capacity)
+  private final AtomicLong    head;  // next frame to take
+  private final AtomicLong    tail;  // next frame to offer
+
+  private volatile Thread     waitingProducer;
+  private volatile Thread     waitingConsumer;
+  private volatile boolean    closed;
+
+  // written only by the producer
+  private volatile long       offeredFrames;
+  private volatile long       overrunCount;
+  private volatile int        highWaterMark;
+
+  /**
+   * @param overflowPolicy  one of the policies of {@link SpscFrameRing}
+   */
+  public PooledFrameRing(int capacity, int overflowPolicy) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity");
+    if ((overflowPolicy < SpscFrameRing.OVERFLOW_DROP_OLDEST) || (overflowPolicy > SpscFrameRing.OVERFLOW_BLOCK))
+      throw new IllegalArgumentException("overflowPolicy");
+
+    this.capacity       = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.frames         = new PooledFrame[capacity];
+    this.head           = new AtomicLong(0);
+    this.tail           = new AtomicLong(0);
+    this.closed         = false;
+  }
+
+  // -------------------------------------------------------------------------
+  // producer
+
+  /**
+   * Queue one reference to a frame. The caller gives up that reference, whether or not the frame is queued.
+   *
+   * @return false when the frame was not queued:
+   *         the ring is full and the policy is {@link SpscFrameRing#OVERFLOW_DROP_NEWEST},
+   *         or the ring has been closed
+   */
+  public boolean offer(PooledFrame frame) {
+    if (closed) {
+      frame.release();
+      return false;
+    }
+
+    long t = tail.get();
+    long h = head.get();
+
+    if ((t - h) >= capacity) {
+      overrunCount++;
+
+      switch(overflowPolicy) {
+        case SpscFrameRing.OVERFLOW_DROP_OLDEST:
+          // fails only when the consumer has just taken this frame, which also makes room
+          if (head.compareAndSet(h, h + 1))
+            frames[(int) (h % capacity)].release();
+          break;
+        case SpscFrameRing.OVERFLOW_DROP_NEWEST:
+          frame.release();
+          return false;
+        case SpscFrameRing.OVERFLOW_BLOCK:
+          waitingProducer = Thread.currentThread();
+          while (((t - head.get()) >= capacity) && !closed) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+          }
+          waitingProducer = null;
+
+          if (closed) {
+            frame.release();
+            return false;
+          }
+          break;
+      }
+    }
+
+    frames[(int) (t % capacity)] = frame;
+
+    // publish
+    tail.set(t + 1);
+    offeredFrames++;
+
+    int size = (int) (t + 1 - head.get());
+    if (size > highWaterMark)
+      highWaterMark = size;
+
+    Thread consumer = waitingConsumer;
+    if (consumer != null)
+      LockSupport.unpark(consumer);
+
+    return true;
+  }
+
+  // -------------------------------------------------------------------------
+  // consumer
+
+  /**
+   * Take the oldest frame out of the ring,
+   * waiting up to the given timeout for one to arrive.
+   * The caller must release the frame when it is done with it.
+   *
+   * @param timeoutNanos  0 to return immediately when the ring is empty, or negative to wait indefinitely
+   * @return null when no frame was available or the ring was closed
+   */
+  public PooledFrame take(long timeoutNanos) {
+    long deadline = (timeoutNanos > 0) ? (System.nanoTime() + timeoutNanos) : 0;
+
+    while (true) {
+      long h = head.get();
+
+      if (h == tail.get()) {
+        if (closed || (timeoutNanos == 0))
+          return null;
+
+        long parkNanos = PARK_NANOS;
+        if (timeoutNanos > 0) {
+          parkNanos = Math.min(parkNanos, deadline - System.nanoTime());
+          if (parkNanos <= 0)
+            return null;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        if ((head.get() == tail.get()) && !closed)
+          LockSupport.parkNanos(this, parkNanos);
+        waitingConsumer = null;
+        continue;
+      }
+
+      PooledFrame frame = frames[(int) (h % capacity)];
+
+      // the producer dropped this frame, and released it
+      if (!head.compareAndSet(h, h + 1))
+        continue;
+
+      Thread producer = waitingProducer;
+      if (producer != null)
+        LockSupport.unpark(producer);
+
+      return frame;
+    }
+  }
+
+  /**
+   * Release all queued frames. Must only be called by the consumer.
+   */
+  public void clear() {
+    PooledFrame frame;
+
+    while ((frame = take(0)) != null) {
+      frame.release();
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // either side
+
+  /**
+   * Release both threads. Frames that are still queued can be taken, but no more are accepted.
+   */
+  public void close() {
+    closed = true;
+
+    Thread thread;
+
+    thread = waitingProducer;
+    if (thread != null)
+      LockSupport.unpark(thread);
+
+    thread = waitingConsumer;
+    if (thread != null)
+      LockSupport.unpark(thread);
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @return the number of frames that are waiting to be taken
+   */
+  public int size() {
+    long h = head.get();
+    long t = tail.get();
+    long size = t - h;
+
+    return (int) Math.max(0, Math.min(size, capacity));
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public long getOfferedFrameCount() {
+    return offeredFrames;
+  }
+
+  /**
+   * @return the number of frames that found the ring full,
+   *         whether a frame was dropped or the producer had to wait
+   */
+  public long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /**
+   * @return the largest number of frames that have been queued at the same time
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+}
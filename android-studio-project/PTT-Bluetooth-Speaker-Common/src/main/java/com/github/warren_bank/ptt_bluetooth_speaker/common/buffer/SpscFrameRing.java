@@ -0,0 +1,320 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of variable length frames,
+ * shared by exactly one producer thread and one consumer thread.
+ *
+ * All storage is allocated by the constructor.
+ * Frames are copied in by {@link #offer} and copied out by {@link #take},
+ * and neither side takes a lock.
+ * A thread that has to wait parks, and is unparked by the other side.
+ *
+ * When the ring is full, the overflow policy decides what happens to a new frame:
+ * <ul>
+ *   <li>{@link #OVERFLOW_DROP_OLDEST}: the oldest queued frame is discarded to make room</li>
+ *   <li>{@link #OVERFLOW_DROP_NEWEST}: the new frame is discarded</li>
+ *   <li>{@link #OVERFLOW_BLOCK}: the producer waits until the consumer makes room</li>
+ * </ul>
+ *
+ * To drop the oldest frame, the producer advances the read index with a CAS.
+ * The consumer advances it with a CAS too, after copying the frame out,
+ * and discards its copy if the producer got there first.
+ */
+public class SpscFrameRing {
+  public static final int OVERFLOW_DROP_OLDEST = 0;
+  public static final int OVERFLOW_DROP_NEWEST = 1;
+  public static final int OVERFLOW_BLOCK       = 2;
+
+  private static final long PARK_NANOS = 10000000L;  // 10 ms, bounds the wait for a missed unpark
+
+  private final int        capacity;
+  private final int        maxFrameSize;
+  private final int        overflowPolicy;
+  private final byte[][]   frames;
+  private final int[]      lengths;
+  private final int[]      flags;
+  private final long[]     timestamps;
+
+  // monotonically increasing, the slot is (index % capacity)
+  private final AtomicLong head;  // next frame to take
+  private final AtomicLong tail;  // next frame to offer
+
+  private volatile Thread  waitingProducer;
+  private volatile Thread  waitingConsumer;
+  private volatile boolean closed;
+
+  // written only by the producer
+  private volatile long    offeredFrames;
+  private volatile long    overrunCount;
+  private volatile int     highWaterMark;
+
+  // written only by the consumer
+  private long             lastTimestamp;
+  private int              lastFlags;
+
+  public SpscFrameRing(int capacity, int maxFrameSize, int overflowPolicy) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity");
+    if (maxFrameSize <= 0)
+      throw new IllegalArgumentException("maxFrameSize");
+    if ((overflowPolicy < OVERFLOW_DROP_OLDEST) || (overflowPolicy > OVERFLOW_BLOCK))
+      throw new IllegalArgumentException("overflowPolicy");
+
+    this.capacity       = capacity;
+    this.maxFrameSize   = maxFrameSize;
+    this.overflowPolicy = overflowPolicy;
+    this.frames         = new byte[capacity][maxFrameSize];
+    this.lengths        = new int[capacity];
+    this.flags          = new int[capacity];
+    this.timestamps     = new long[capacity];
+    this.head           = new AtomicLong(0);
+    this.tail           = new AtomicLong(0);
+    this.closed         = false;
+  }
+
+  /**
+   * @param name  one of: "drop_oldest", "drop_newest", "block"
+   * @return the matching overflow policy, or -1 when the name is not recognized
+   */
+  public static int getOverflowPolicy(String name) {
+    if (name == null) return -1;
+
+    name = name.trim().toLowerCase();
+
+    if (name.equals("drop_oldest")) return OVERFLOW_DROP_OLDEST;
+    if (name.equals("drop_newest")) return OVERFLOW_DROP_NEWEST;
+    if (name.equals("block"))       return OVERFLOW_BLOCK;
+    return -1;
+  }
+
+  // -------------------------------------------------------------------------
+  // producer
+
+  /**
+   * Copy one frame into the ring.
+   *
+   * @return false when the frame was not queued:
+   *         the ring is full and the policy is {@link #OVERFLOW_DROP_NEWEST},
+   *         or the ring has been closed
+   */
+  public boolean offer(byte[] src, int offset, int length, long timestamp) {
+    return offer(src, offset, length, timestamp, 0);
+  }
+
+  /**
+   * @param frameFlags  passed through to the consumer, see {@link #getLastFlags()}
+   */
+  public boolean offer(byte[] src, int offset, int length, long timestamp, int frameFlags) {
+    if ((length < 0) || (length > maxFrameSize))
+      throw new IllegalArgumentException("length");
+
+    if (closed)
+      return false;
+
+    long t = tail.get();
+    long h = head.get();
+
+    if ((t - h) >= capacity) {
+      overrunCount++;
+
+      switch(overflowPolicy) {
+        case OVERFLOW_DROP_OLDEST:
+          // fails only when the consumer has just taken this frame, which also makes room
+          head.compareAndSet(h, h + 1);
+          break;
+        case OVERFLOW_DROP_NEWEST:
+          return false;
+        case OVERFLOW_BLOCK:
+          waitingProducer = Thread.currentThread();
+          while (((t - head.get()) >= capacity) && !closed) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+          }
+          waitingProducer = null;
+
+          if (closed)
+            return false;
+          break;
+      }
+    }
+
+    int slot = (int) (t % capacity);
+    System.arraycopy(src, offset, frames[slot], 0, length);
+    lengths[slot]    = length;
+    flags[slot]      = frameFlags;
+    timestamps[slot] = timestamp;
+
+    // publish
+    tail.set(t + 1);
+    offeredFrames++;
+
+    int size = (int) (t + 1 - head.get());
+    if (size > highWaterMark)
+      highWaterMark = size;
+
+    Thread consumer = waitingConsumer;
+    if (consumer != null)
+      LockSupport.unpark(consumer);
+
+    return true;
+  }
+
+  // -------------------------------------------------------------------------
+  // consumer
+
+  /**
+   * Copy the oldest frame out of the ring,
+   * waiting up to the given timeout for one to arrive.
+   *
+   * @param timeoutNanos  0 to return immediately when the ring is empty, or negative to wait indefinitely
+   * @return the length of the frame, or -1 when no frame was available or the ring was closed
+   * @see #getLastTimestamp()
+   */
+  public int take(byte[] dst, int offset, long timeoutNanos) {
+    long deadline = (timeoutNanos > 0) ? (System.nanoTime() + timeoutNanos) : 0;
+
+    while (true) {
+      long h = head.get();
+
+      if (h == tail.get()) {
+        if (closed || (timeoutNanos == 0))
+          return -1;
+
+        long parkNanos = PARK_NANOS;
+        if (timeoutNanos > 0) {
+          parkNanos = Math.min(parkNanos, deadline - System.nanoTime());
+          if (parkNanos <= 0)
+            return -1;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        if ((head.get() == tail.get()) && !closed)
+          LockSupport.parkNanos(this, parkNanos);
+        waitingConsumer = null;
+        continue;
+      }
+
+      int  slot       = (int) (h % capacity);
+      int  length     = lengths[slot];
+      int  frameFlags = flags[slot];
+      long timestamp  = timestamps[slot];
+
+      if ((length < 0) || (length > maxFrameSize))
+        continue;
+
+      System.arraycopy(frames[slot], 0, dst, offset, length);
+
+      // the producer dropped this frame while it was being copied, and may have overwritten it
+      if (!head.compareAndSet(h, h + 1))
+        continue;
+
+      lastTimestamp = timestamp;
+      lastFlags     = frameFlags;
+
+      Thread producer = waitingProducer;
+      if (producer != null)
+        LockSupport.unpark(producer);
+
+      return length;
+    }
+  }
+
+  /**
+   * @return the timestamp of the frame most recently returned by {@link #take}
+   */
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  /**
+   * @return the flags of the frame most recently returned by {@link #take}
+   */
+  public int getLastFlags() {
+    return lastFlags;
+  }
+
+  // -------------------------------------------------------------------------
+  // either side
+
+  /**
+   * Release both threads. Frames that are still queued can be taken, but no more are accepted.
+   */
+  public void close() {
+    closed = true;
+
+    Thread thread;
+
+    thread = waitingProducer;
+    if (thread != null)
+      LockSupport.unpark(thread);
+
+    thread = waitingConsumer;
+    if (thread != null)
+      LockSupport.unpark(thread);
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Discard all queued frames. Must only be called by the consumer.
+   */
+  public void clear() {
+    long h = head.get();
+    long t = tail.get();
+
+    while ((h != t) && !head.compareAndSet(h, t)) {
+      h = head.get();
+      t = tail.get();
+    }
+
+    Thread producer = waitingProducer;
+    if (producer != null)
+      LockSupport.unpark(producer);
+  }
+
+  /**
+   * @return the number of frames that are waiting to be taken
+   */
+  public int size() {
+    long h = head.get();
+    long t = tail.get();
+    long size = t - h;
+
+    return (int) Math.max(0, Math.min(size, capacity));
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  public int getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public long getOfferedFrameCount() {
+    return offeredFrames;
+  }
+
+  /**
+   * @return the number of frames that found the ring full,
+   *         whether a frame was dropped or the producer had to wait
+   */
+  public long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /**
+   * @return the largest number of frames that have been queued at the same time
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+}
@@ -0,0 +1,103 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+/**
+ * G.711 A-law: 8 bits per sample (2:1).
+ *
+ * Based on the public domain reference implementation: g711.c by Sun Microsystems
+ */
+public class ALawCodec implements AudioCodec {
+
+  private static final int[]   SEG_END      = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+  private static final short[] DECODE_TABLE = new short[256];
+
+  static {
+    int a, t, seg;
+
+    for (int i = 0; i < 256; i++) {
+      a   = i ^ 0x55;
+      t   = (a & 0x0f) << 4;
+      seg = (a & 0x70) >> 4;
+
+      switch(seg) {
+        case 0 :
+          t += 8;
+          break;
+        case 1 :
+          t += 0x108;
+          break;
+        default :
+          t += 0x108;
+          t <<= seg - 1;
+          break;
+      }
+
+      DECODE_TABLE[i] = (short) (((a & 0x80) != 0) ? t : -t);
+    }
+  }
+
+  @Override
+  public int getId() {
+    return AudioCodecs.ALAW;
+  }
+
+  @Override
+  public String getName() {
+    return "alaw";
+  }
+
+  @Override
+  public int getMaxEncodedSize(int sampleCount) {
+    return sampleCount;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int byteCount) {
+    return byteCount;
+  }
+
+  @Override
+  public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+    for (int i = 0; i < sampleCount; i++) {
+      out[outOffset + i] = encodeSample(pcm[offset + i]);
+    }
+    return sampleCount;
+  }
+
+  @Override
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+    for (int i = 0; i < length; i++) {
+      pcm[pcmOffset + i] = DECODE_TABLE[in[offset + i] & 0xff];
+    }
+    return length;
+  }
+
+  @Override
+  public void reset() {}
+
+  private static byte encodeSample(short sample) {
+    int value = sample >> 3;
+    int mask, seg, aval;
+
+    if (value >= 0) {
+      mask  = 0xd5;
+    }
+    else {
+      mask  = 0x55;
+      value = -value - 1;
+    }
+
+    for (seg = 0; seg < 8; seg++) {
+      if (value <= SEG_END[seg]) break;
+    }
+    if (seg >= 8)
+      return (byte) (0x7f ^ mask);
+
+    aval = seg << 4;
+    aval |= (seg < 2)
+      ? ((value >> 1)   & 0x0f)
+      : ((value >> seg) & 0x0f);
+
+    return (byte) (aval ^ mask);
+  }
+
+}
@@ -0,0 +1,49 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+/**
+ * Converts 16-bit mono PCM samples to and from the bytes that are sent through the socket.
+ *
+ * Implementations keep all of their working state in fields that are allocated once,
+ * so that {@link #encode} and {@link #decode} can be called for every frame
+ * on the audio threads without creating garbage.
+ *
+ * Each call to {@link #encode} produces the payload of one frame,
+ * which can be decoded on its own: a frame that is lost or dropped
+ * does not corrupt the frames that follow it.
+ *
+ * An instance is owned by a single connection,
+ * and must be {@link #reset()} whenever a new stream begins.
+ */
+public interface AudioCodec {
+
+  /**
+   * @return the identifier that is sent to the receiver in the config frame
+   */
+  public int getId();
+
+  public String getName();
+
+  /**
+   * @return the largest number of bytes that {@link #encode} can produce for the given number of samples
+   */
+  public int getMaxEncodedSize(int sampleCount);
+
+  /**
+   * @return the largest number of samples that {@link #decode} can produce for the given number of bytes
+   */
+  public int getMaxDecodedSize(int byteCount);
+
+  /**
+   * @return the number of bytes written to {@code out}
+   */
+  public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset);
+
+  /**
+   * @param in the payload of exactly one frame produced by {@link #encode}
+   * @return the number of samples written to {@code pcm}
+   */
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset);
+
+  public void reset();
+
+}
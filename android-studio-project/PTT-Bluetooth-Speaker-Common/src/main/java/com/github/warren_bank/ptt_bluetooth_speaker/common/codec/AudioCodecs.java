@@ -0,0 +1,59 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+/**
+ * Registry of the codecs that both apps understand.
+ *
+ * The numeric ids are part of the wire format and must never be reassigned.
+ * See: {@link com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat#FLAG_CONFIG}
+ */
+public final class AudioCodecs {
+  public static final int PCM       = 0;
+  public static final int IMA_ADPCM = 1;
+  public static final int MULAW     = 2;
+  public static final int ALAW      = 3;
+
+  /**
+   * Upper bound of the samples decoded from each byte of payload, by any codec.
+   */
+  public static final int MAX_SAMPLES_PER_BYTE = 2;
+
+  private AudioCodecs() {}
+
+  /**
+   * @return a new codec instance, or null when the id is not recognized
+   */
+  public static AudioCodec create(int id) {
+    switch(id) {
+      case PCM :
+        return new PcmCodec();
+      case IMA_ADPCM :
+        return new ImaAdpcmCodec();
+      case MULAW :
+        return new MuLawCodec();
+      case ALAW :
+        return new ALawCodec();
+      default :
+        return null;
+    }
+  }
+
+  /**
+   * @return a new codec instance, or null when the name is not recognized
+   */
+  public static AudioCodec create(String name) {
+    if (name == null) return null;
+
+    name = name.trim().toLowerCase();
+
+    if (name.equals("pcm"))
+      return create(PCM);
+    if (name.equals("ima_adpcm") || name.equals("adpcm"))
+      return create(IMA_ADPCM);
+    if (name.equals("mulaw") || name.equals("ulaw"))
+      return create(MULAW);
+    if (name.equals("alaw"))
+      return create(ALAW);
+
+    return null;
+  }
+}
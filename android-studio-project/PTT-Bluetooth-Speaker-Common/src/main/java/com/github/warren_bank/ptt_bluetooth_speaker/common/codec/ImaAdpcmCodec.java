@@ -0,0 +1,187 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+/**
+ * IMA/DVI ADPCM: 4 bits per sample (4:1).
+ *
+ * Each frame begins with a 4-byte block header,
+ * which holds the predictor state at the start of the frame:
+ * <pre>
+ *   [0..1] predictor (little-endian)
+ *   [2]    step index
+ *   [3]    1 when the high nibble of the last byte is padding, otherwise 0
+ * </pre>
+ * followed by two samples per byte, low nibble first.
+ *
+ * The encoder carries its state over from one frame to the next,
+ * but the decoder restarts from the block header of every frame.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+
+  private static final int HEADER_SIZE = 4;
+
+  private static final int[] INDEX_TABLE = {
+    -1, -1, -1, -1, 2, 4, 6, 8,
+    -1, -1, -1, -1, 2, 4, 6, 8
+  };
+
+  private static final int[] STEP_TABLE = {
+        7,     8,     9,    10,    11,    12,    13,    14,    16,    17,
+       19,    21,    23,    25,    28,    31,    34,    37,    41,    45,
+       50,    55,    60,    66,    73,    80,    88,    97,   107,   118,
+      130,   143,   157,   173,   190,   209,   230,   253,   279,   307,
+      337,   371,   408,   449,   494,   544,   598,   658,   724,   796,
+      876,   963,  1060,  1166,  1282,  1411,  1552,  1707,  1878,  2066,
+     2272,  2499,  2749,  3024,  3327,  3660,  4026,  4428,  4871,  5358,
+     5894,  6484,  7132,  7845,  8630,  9493, 10442, 11487, 12635, 13899,
+    15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+  };
+
+  private int encPredictor;
+  private int encIndex;
+
+  private int decPredictor;
+  private int decIndex;
+
+  public ImaAdpcmCodec() {
+    reset();
+  }
+
+  @Override
+  public int getId() {
+    return AudioCodecs.IMA_ADPCM;
+  }
+
+  @Override
+  public String getName() {
+    return "ima_adpcm";
+  }
+
+  @Override
+  public int getMaxEncodedSize(int sampleCount) {
+    return HEADER_SIZE + ((sampleCount + 1) / 2);
+  }
+
+  @Override
+  public int getMaxDecodedSize(int byteCount) {
+    return Math.max(0, (byteCount - HEADER_SIZE) * 2);
+  }
+
+  @Override
+  public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+    int predictor = encPredictor;
+    int index     = encIndex;
+    int j         = outOffset;
+    int step, diff, delta, code;
+
+    out[j++] = (byte) predictor;
+    out[j++] = (byte) (predictor >> 8);
+    out[j++] = (byte) index;
+    out[j++] = (byte) (sampleCount & 1);
+
+    for (int i = 0; i < sampleCount; i++) {
+      step  = STEP_TABLE[index];
+      diff  = pcm[offset + i] - predictor;
+      code  = 0;
+
+      if (diff < 0) {
+        code = 8;
+        diff = -diff;
+      }
+
+      delta = step >> 3;
+      if (diff >= step) {
+        code  |= 4;
+        diff  -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        code  |= 2;
+        diff  -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        code  |= 1;
+        delta += step;
+      }
+
+      predictor = ((code & 8) != 0) ? (predictor - delta) : (predictor + delta);
+      predictor = clamp(predictor);
+      index     = clampIndex(index + INDEX_TABLE[code]);
+
+      if ((i & 1) == 0)
+        out[j] = (byte) code;
+      else
+        out[j++] |= (byte) (code << 4);
+    }
+    if ((sampleCount & 1) != 0)
+      j++;
+
+    encPredictor = predictor;
+    encIndex     = index;
+    return j - outOffset;
+  }
+
+  @Override
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+    if (length < HEADER_SIZE)
+      return 0;
+
+    int end = offset + length;
+    int j   = pcmOffset;
+    int b;
+
+    decPredictor = (short) ((in[offset] & 0xff) | (in[offset + 1] << 8));
+    decIndex     = clampIndex(in[offset + 2] & 0xff);
+
+    boolean isPadded = (in[offset + 3] != 0);
+
+    for (int i = offset + HEADER_SIZE; i < end; i++) {
+      b        = in[i];
+      pcm[j++] = decodeNibble(b & 0x0f);
+
+      if (isPadded && (i == (end - 1)))
+        break;
+
+      pcm[j++] = decodeNibble((b >> 4) & 0x0f);
+    }
+    return j - pcmOffset;
+  }
+
+  private short decodeNibble(int code) {
+    int step  = STEP_TABLE[decIndex];
+    int delta = step >> 3;
+
+    if ((code & 4) != 0) delta += step;
+    if ((code & 2) != 0) delta += step >> 1;
+    if ((code & 1) != 0) delta += step >> 2;
+
+    decPredictor = ((code & 8) != 0) ? (decPredictor - delta) : (decPredictor + delta);
+    decPredictor = clamp(decPredictor);
+    decIndex     = clampIndex(decIndex + INDEX_TABLE[code]);
+
+    return (short) decPredictor;
+  }
+
+  @Override
+  public void reset() {
+    encPredictor = 0;
+    encIndex     = 0;
+    decPredictor = 0;
+    decIndex     = 0;
+  }
+
+  private static int clamp(int value) {
+    if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+    if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+    return value;
+  }
+
+  private static int clampIndex(int index) {
+    if (index < 0)  return 0;
+    if (index > 88) return 88;
+    return index;
+  }
+
+}
@@ -0,0 +1,90 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+/**
+ * G.711 mu-law: 8 bits per sample (2:1).
+ *
+ * Based on the public domain reference implementation: g711.c by Sun Microsystems
+ */
+public class MuLawCodec implements AudioCodec {
+
+  private static final int     BIAS         = 0x84;
+  private static final int     CLIP         = 8159;
+  private static final int[]   SEG_END      = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+  private static final short[] DECODE_TABLE = new short[256];
+
+  static {
+    int u, t;
+
+    for (int i = 0; i < 256; i++) {
+      u = ~i;
+      t = ((u & 0x0f) << 3) + BIAS;
+      t <<= (u & 0x70) >> 4;
+
+      DECODE_TABLE[i] = (short) (((u & 0x80) != 0) ? (BIAS - t) : (t - BIAS));
+    }
+  }
+
+  @Override
+  public int getId() {
+    return AudioCodecs.MULAW;
+  }
+
+  @Override
+  public String getName() {
+    return "mulaw";
+  }
+
+  @Override
+  public int getMaxEncodedSize(int sampleCount) {
+    return sampleCount;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int byteCount) {
+    return byteCount;
+  }
+
+  @Override
+  public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+    for (int i = 0; i < sampleCount; i++) {
+      out[outOffset + i] = encodeSample(pcm[offset + i]);
+    }
+    return sampleCount;
+  }
+
+  @Override
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+    for (int i = 0; i < length; i++) {
+      pcm[pcmOffset + i] = DECODE_TABLE[in[offset + i] & 0xff];
+    }
+    return length;
+  }
+
+  @Override
+  public void reset() {}
+
+  private static byte encodeSample(short sample) {
+    int value = sample >> 2;
+    int mask, seg;
+
+    if (value < 0) {
+      value = -value;
+      mask  = 0x7f;
+    }
+    else {
+      mask  = 0xff;
+    }
+
+    if (value > CLIP) value = CLIP;
+    value += (BIAS >> 2);
+
+    for (seg = 0; seg < 8; seg++) {
+      if (value <= SEG_END[seg]) break;
+    }
+    if (seg >= 8)
+      return (byte) (0x7f ^ mask);
+
+    return (byte) (((seg << 4) | ((value >> (seg + 1)) & 0x0f)) ^ mask);
+  }
+
+}
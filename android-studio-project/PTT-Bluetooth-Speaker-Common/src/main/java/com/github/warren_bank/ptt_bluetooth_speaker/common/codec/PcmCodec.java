@@ -0,0 +1,43 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+/**
+ * Passthrough: 16-bit little-endian PCM, which is what was sent before codecs were added.
+ */
+public class PcmCodec implements AudioCodec {
+
+  @Override
+  public int getId() {
+    return AudioCodecs.PCM;
+  }
+
+  @Override
+  public String getName() {
+    return "pcm";
+  }
+
+  @Override
+  public int getMaxEncodedSize(int sampleCount) {
+    return sampleCount * 2;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int byteCount) {
+    return byteCount / 2;
+  }
+
+  @Override
+  public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+    return PcmUtils.shortsToBytes(pcm, offset, sampleCount, out, outOffset);
+  }
+
+  @Override
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+    return PcmUtils.bytesToShorts(in, offset, length, pcm, pcmOffset);
+  }
+
+  @Override
+  public void reset() {}
+
+}
@@ -0,0 +1,165 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioSource;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Sums several sources into a single stream.
+ *
+ * The mixer has a fixed number of channels, and each source is assigned to a free one.
+ * Every channel has its own gain and mute; both can be changed from any thread.
+ * The sum is accumulated in 32 bits and saturated once, at the end.
+ *
+ * {@link #mix} is called by the playout thread; it doesn't allocate or block.
+ * Sources can be added and removed by other threads while it runs.
+ */
+public class AudioMixer {
+  public static final float MAX_GAIN = 2.0f;
+
+  private static final int  UNITY_Q15 = 1 << 15;
+
+  private static final class Channel {
+    volatile AudioSource source;
+    volatile int         gainQ15;
+    volatile boolean     muted;
+  }
+
+  private final Channel[] channels;
+  private final short[]   scratch;
+  private final int[]     accumulator;
+
+  public AudioMixer(int channelCount, int maxChunkSamples) {
+    this.channels    = new Channel[channelCount];
+    this.scratch     = new short[maxChunkSamples];
+    this.accumulator = new int[maxChunkSamples];
+
+    for (int i = 0; i < channelCount; i++) {
+      channels[i] = new Channel();
+    }
+  }
+
+  public int getChannelCount() {
+    return channels.length;
+  }
+
+  /**
+   * @return the channel assigned to the source, or -1 when all channels are in use
+   */
+  public synchronized int addSource(AudioSource source) {
+    for (int i = 0; i < channels.length; i++) {
+      Channel channel = channels[i];
+
+      if (channel.source == null) {
+        channel.gainQ15 = UNITY_Q15;
+        channel.muted   = false;
+        channel.source  = source;
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public synchronized void removeSource(AudioSource source) {
+    for (int i = 0; i < channels.length; i++) {
+      if (channels[i].source == source)
+        channels[i].source = null;
+    }
+  }
+
+  public synchronized int getSourceCount() {
+    int count = 0;
+
+    for (int i = 0; i < channels.length; i++) {
+      if (channels[i].source != null)
+        count++;
+    }
+    return count;
+  }
+
+  public void setGain(int channel, float gain) {
+    if (gain < 0.0f)     gain = 0.0f;
+    if (gain > MAX_GAIN) gain = MAX_GAIN;
+
+    channels[channel].gainQ15 = Math.round(gain * UNITY_Q15);
+  }
+
+  public void setMuted(int channel, boolean muted) {
+    channels[channel].muted = muted;
+  }
+
+  /**
+   * Fill {@code out} with exactly {@code count} samples.
+   *
+   * Muted sources are still read, so that their buffers keep draining.
+   *
+   * @return the number of sources that contributed audio
+   */
+  public int mix(short[] out, int offset, int count) {
+    int contributed = accumulate(count);
+
+    for (int i = 0; i < count; i++) {
+      out[offset + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[i]));
+    }
+    return contributed;
+  }
+
+  /**
+   * Fill the first {@code count} samples of {@code out}, for example the view of a direct buffer
+   * that is written to the speaker, so that the mix doesn't have to be copied there.
+   *
+   * @return the number of sources that contributed audio
+   */
+  public int mix(ShortBuffer out, int count) {
+    if (count > out.capacity())
+      throw new IllegalArgumentException("count");
+
+    int contributed = accumulate(count);
+
+    for (int i = 0; i < count; i++) {
+      out.put(i, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[i])));
+    }
+    return contributed;
+  }
+
+  /**
+   * Sum the first {@code count} samples of every source into the accumulator.
+   */
+  private int accumulate(int count) {
+    if (count > scratch.length)
+      throw new IllegalArgumentException("count");
+
+    int contributed = 0;
+
+    for (int i = 0; i < count; i++) {
+      accumulator[i] = 0;
+    }
+
+    for (int c = 0; c < channels.length; c++) {
+      Channel     channel = channels[c];
+      AudioSource source  = channel.source;
+
+      if (source == null)
+        continue;
+      if (!source.read(scratch, 0, count))
+        continue;
+      if (channel.muted)
+        continue;
+
+      int gainQ15 = channel.gainQ15;
+
+      if (gainQ15 == UNITY_Q15) {
+        for (int i = 0; i < count; i++) {
+          accumulator[i] += scratch[i];
+        }
+      }
+      else {
+        for (int i = 0; i < count; i++) {
+          accumulator[i] += (scratch[i] * gainQ15) >> 15;
+        }
+      }
+      contributed++;
+    }
+    return contributed;
+  }
+}
@@ -0,0 +1,21 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+/**
+ * One stage of processing that is applied to 16-bit mono audio, in place.
+ *
+ * Implementations keep all of their working state in fields that are allocated once,
+ * so that {@link #process} can be called for every frame on the audio thread without creating garbage.
+ * Frames may be of any length, and a stage must sound the same however the audio is split into frames.
+ *
+ * See: {@link AudioProcessorChain}
+ */
+public interface AudioProcessor {
+
+  public void process(short[] samples, int offset, int count);
+
+  /**
+   * Forget the audio seen so far, for example when a new stream begins.
+   */
+  public void reset();
+
+}
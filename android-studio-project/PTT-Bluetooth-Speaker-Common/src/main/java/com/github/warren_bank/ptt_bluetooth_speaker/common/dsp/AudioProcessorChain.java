@@ -0,0 +1,115 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a list of {@link AudioProcessor} stages, in order, on each frame.
+ *
+ * The list can be changed at any time, from any thread, without stopping the stream:
+ * <ul>
+ *   <li>{@link #configure} builds the new list off the audio thread,
+ *       and the audio thread picks it up at the start of its next frame</li>
+ *   <li>a stage that is named by the same spec in the old and the new list is kept, with its state,
+ *       so reordering the stages doesn't reset a filter or the gain of the AGC</li>
+ * </ul>
+ *
+ * {@link #process} must only be called from the audio thread, and doesn't allocate.
+ */
+public class AudioProcessorChain implements AudioProcessor {
+
+  // replaced as a whole, never modified
+  private volatile AudioProcessor[] stages;
+
+  // only used while configuring
+  private String[] specs;
+  private int      sampleRate;
+
+  public AudioProcessorChain() {
+    this.stages     = new AudioProcessor[0];
+    this.specs      = new String[0];
+    this.sampleRate = 0;
+  }
+
+  /**
+   * @param specs  in the order in which the stages are run; see {@link AudioProcessors}
+   * @return the specs that were not recognized, and were left out
+   */
+  public synchronized List<String> configure(String[] specs, int sampleRate) {
+    AudioProcessor[]     oldStages = stages;
+    boolean[]            reused    = new boolean[oldStages.length];
+    List<AudioProcessor> newStages = new ArrayList<AudioProcessor>();
+    List<String>         newSpecs  = new ArrayList<String>();
+    List<String>         unknown   = new ArrayList<String>();
+    AudioProcessor       stage;
+
+    for (String spec : specs) {
+      stage = null;
+
+      // the stages of the old list were made for its sample rate
+      if (sampleRate == this.sampleRate) {
+        for (int i = 0; i < oldStages.length; i++) {
+          if (!reused[i] && this.specs[i].equals(spec)) {
+            reused[i] = true;
+            stage     = oldStages[i];
+            break;
+          }
+        }
+      }
+
+      if (stage == null)
+        stage = AudioProcessors.create(spec, sampleRate);
+
+      if (stage == null) {
+        unknown.add(spec);
+        continue;
+      }
+
+      newStages.add(stage);
+      newSpecs.add(spec);
+    }
+
+    this.specs      = newSpecs.toArray(new String[newSpecs.size()]);
+    this.sampleRate = sampleRate;
+    this.stages     = newStages.toArray(new AudioProcessor[newStages.size()]);
+
+    return unknown;
+  }
+
+  /**
+   * @return the first stage of the given class, or null
+   */
+  public <T extends AudioProcessor> T find(Class<T> type) {
+    for (AudioProcessor stage : stages) {
+      if (type.isInstance(stage))
+        return type.cast(stage);
+    }
+    return null;
+  }
+
+  /**
+   * @return the specs of the current stages, in order
+   */
+  public synchronized String[] getSpecs() {
+    return specs.clone();
+  }
+
+  public void process(short[] samples, int offset, int count) {
+    AudioProcessor[] current = stages;
+
+    for (int i = 0; i < current.length; i++) {
+      current[i].process(samples, offset, count);
+    }
+  }
+
+  /**
+   * Must only be called from the audio thread, or while it isn't running.
+   */
+  public void reset() {
+    AudioProcessor[] current = stages;
+
+    for (int i = 0; i < current.length; i++) {
+      current[i].reset();
+    }
+  }
+}
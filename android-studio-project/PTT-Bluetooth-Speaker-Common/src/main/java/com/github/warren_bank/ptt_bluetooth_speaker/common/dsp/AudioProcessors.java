@@ -0,0 +1,64 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+/**
+ * Registry of the stages that can be named in the configuration of an {@link AudioProcessorChain}.
+ *
+ * A stage is named by a spec: its name, optionally followed by parameters separated by colons.
+ * <ul>
+ *   <li>{@code dc_blocker[:cutoff Hz]}</li>
+ *   <li>{@code high_pass[:frequency Hz[:Q]]}</li>
+ *   <li>{@code low_shelf[:frequency Hz[:gain dB]]}</li>
+ *   <li>{@code feedback_suppressor[:backoff]}</li>
+ *   <li>{@code noise_gate[:threshold dBFS]}</li>
+ *   <li>{@code agc[:target dBFS]}</li>
+ * </ul>
+ * For example: {@code high_pass:120}
+ */
+public final class AudioProcessors {
+  public static final String DC_BLOCKER          = "dc_blocker";
+  public static final String HIGH_PASS           = "high_pass";
+  public static final String LOW_SHELF           = "low_shelf";
+  public static final String FEEDBACK_SUPPRESSOR = "feedback_suppressor";
+  public static final String NOISE_GATE          = "noise_gate";
+  public static final String AGC                 = "agc";
+
+  private static final String BACKOFF = "backoff";
+
+  private static final float DEFAULT_AGC_TARGET_DBFS = -18.0f;
+
+  private AudioProcessors() {}
+
+  /**
+   * @return a new stage, or null when the spec is not recognized
+   */
+  public static AudioProcessor create(String spec, int sampleRate) {
+    if (spec == null) return null;
+
+    String[] parts = spec.trim().toLowerCase().split(":");
+    String name    = parts[0];
+
+    try {
+      if (name.equals(DC_BLOCKER))
+        return new DcBlocker(sampleRate, getParameter(parts, 1, DcBlocker.DEFAULT_CUTOFF_HZ));
+      if (name.equals(HIGH_PASS))
+        return BiquadFilter.highPass(sampleRate, getParameter(parts, 1, BiquadFilter.DEFAULT_HIGH_PASS_HZ), getParameter(parts, 2, BiquadFilter.BUTTERWORTH_Q));
+      if (name.equals(LOW_SHELF))
+        return BiquadFilter.lowShelf(sampleRate, getParameter(parts, 1, BiquadFilter.DEFAULT_LOW_SHELF_HZ), getParameter(parts, 2, BiquadFilter.DEFAULT_LOW_SHELF_DB));
+      if (name.equals(FEEDBACK_SUPPRESSOR))
+        return new FeedbackSuppressor(sampleRate, (parts.length > 1) && parts[1].trim().equals(BACKOFF));
+      if (name.equals(NOISE_GATE))
+        return new NoiseGate(sampleRate, getParameter(parts, 1, NoiseGate.DEFAULT_THRESHOLD_DBFS));
+      if (name.equals(AGC))
+        return new AutomaticGainControl(sampleRate, getParameter(parts, 1, DEFAULT_AGC_TARGET_DBFS));
+    }
+    catch(Exception e) {}
+
+    return null;
+  }
+
+  private static float getParameter(String[] parts, int index, float defaultValue) {
+    return ((index < parts.length) && (parts[index].trim().length() > 0))
+      ? Float.parseFloat(parts[index].trim())
+      : defaultValue;
+  }
+}
@@ -0,0 +1,297 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Brings 16-bit mono speech to a target loudness, and keeps its peaks below a hard ceiling.
+ *
+ * <ul>
+ *   <li>level:
+ *       the RMS of each 10 ms block is followed by an envelope that rises quickly ({@link #ATTACK_MS})
+ *       and falls slowly ({@link #RELEASE_MS}), so the gain follows the talker rather than each syllable</li>
+ *   <li>gain:
+ *       moves toward the target level minus the envelope, within {@link #MIN_GAIN_DB} and {@link #MAX_GAIN_DB},
+ *       by no more than {@link #MAX_RISE_DB_PER_SECOND} or {@link #MAX_FALL_DB_PER_SECOND},
+ *       and ramps linearly across the block that follows.
+ *       Below {@link #NOISE_FLOOR_DBFS} the gain is held, so background noise isn't pumped up between words.</li>
+ *   <li>limiter:
+ *       the audio is delayed by {@link #LOOKAHEAD_MS}, so the gain can be brought down smoothly
+ *       before a peak arrives instead of clipping it; it recovers over {@link #LIMITER_RELEASE_MS}</li>
+ * </ul>
+ *
+ * {@link #setTargetLevel(float)} can be called from any thread;
+ * {@link #process} must only be called from the audio thread.
+ * Nothing is allocated after construction.
+ */
+public class AutomaticGainControl implements AudioProcessor {
+  public static final float MIN_TARGET_DBFS        = -36.0f;
+  public static final float MAX_TARGET_DBFS        = -6.0f;
+  public static final float CEILING_DBFS           = -1.0f;
+
+  public static final float MIN_GAIN_DB            = -12.0f;
+  public static final float MAX_GAIN_DB            = 24.0f;
+  public static final float MAX_RISE_DB_PER_SECOND = 10.0f;
+  public static final float MAX_FALL_DB_PER_SECOND = 40.0f;
+  public static final float NOISE_FLOOR_DBFS       = -50.0f;
+
+  public static final int   BLOCK_MS               = 10;
+  public static final int   ATTACK_MS              = 20;
+  public static final int   RELEASE_MS             = 400;
+  public static final int   LOOKAHEAD_MS           = 3;
+  public static final int   LIMITER_RELEASE_MS     = 50;
+
+  private static final int  UNITY_Q15              = 1 << 15;
+
+  private final int     blockSize;
+  private final float   attack;          // per block
+  private final float   release;         // per block
+  private final float   maxRiseDb;       // per block
+  private final float   maxFallDb;       // per block
+  private final float   noiseFloorPower;
+  private final int     ceiling;
+
+  // limiter
+  private final int     lookahead;       // length of the delay line, one more than the delay
+  private final int[]   delay;           // gained samples, which may exceed 16 bits
+  private final int[]   required;        // Q15 gain that each sample in the delay line needs
+  private final int[]   minIndex;        // monotonic queue of positions in "required", for the sliding minimum
+  private final int[]   held;            // sliding minimum of "required", for the moving average
+  private final float   limiterRelease;  // per sample
+  private int           position;
+  private int           minHead;
+  private int           minTail;
+  private int           heldSum;
+  private float         limiterGain;
+
+  // written by the UI thread, read once per block by the audio thread
+  private volatile float targetDb;
+
+  // owned by the audio thread
+  private float         blockPower;      // sum of squares, so far in the current block
+  private int           blockFill;
+  private float         envelopePower;
+  private volatile float gainDb;
+  private float         gain;            // ramped one step per sample
+  private float         gainStep;
+
+  // counters
+  private volatile long limitedSamples;
+  private volatile float levelDb;
+
+  public AutomaticGainControl(int sampleRate, float targetDbfs) {
+    float blocksPerSecond = 1000.0f / BLOCK_MS;
+
+    this.blockSize       = Math.max(1, (sampleRate * BLOCK_MS) / 1000);
+    this.attack          = 1.0f - (float) Math.exp(-(double) BLOCK_MS / ATTACK_MS);
+    this.release         = 1.0f - (float) Math.exp(-(double) BLOCK_MS / RELEASE_MS);
+    this.maxRiseDb       = MAX_RISE_DB_PER_SECOND / blocksPerSecond;
+    this.maxFallDb       = MAX_FALL_DB_PER_SECOND / blocksPerSecond;
+    this.noiseFloorPower = dbToPower(NOISE_FLOOR_DBFS);
+    this.ceiling         = (int) (Short.MAX_VALUE * dbToAmplitude(CEILING_DBFS));
+
+    this.lookahead       = ((sampleRate * LOOKAHEAD_MS) / 1000) + 1;
+    this.delay           = new int[lookahead];
+    this.required        = new int[lookahead];
+    this.minIndex        = new int[lookahead];
+    this.held            = new int[lookahead];
+    this.limiterRelease  = 1.0f - (float) Math.exp(-1000.0 / ((double) sampleRate * LIMITER_RELEASE_MS));
+
+    setTargetLevel(targetDbfs);
+    reset();
+  }
+
+  /**
+   * Start over, for example when the microphone is reopened.
+   */
+  public void reset() {
+    Arrays.fill(delay, 0);
+    Arrays.fill(required, UNITY_Q15);
+    Arrays.fill(held, UNITY_Q15);
+
+    position       = 0;
+    minHead        = 0;
+    minTail        = 0;
+    heldSum        = UNITY_Q15 * lookahead;
+    limiterGain    = 1.0f;
+    blockPower     = 0;
+    blockFill      = 0;
+    envelopePower  = 0;
+    gainDb         = 0;
+    gain           = 1.0f;
+    gainStep       = 0;
+    levelDb        = -96.0f;
+  }
+
+  /**
+   * @param targetDbfs  RMS level of speech after the gain, clamped to {@link #MIN_TARGET_DBFS} .. {@link #MAX_TARGET_DBFS}
+   */
+  public void setTargetLevel(float targetDbfs) {
+    targetDb = Math.max(MIN_TARGET_DBFS, Math.min(MAX_TARGET_DBFS, targetDbfs));
+  }
+
+  public float getTargetLevel() {
+    return targetDb;
+  }
+
+  /**
+   * @return the number of samples by which the output is delayed
+   */
+  public int getDelaySamples() {
+    return lookahead - 1;
+  }
+
+  /**
+   * Process samples in place.
+   * The level is measured in blocks of {@link #BLOCK_MS} that run on from one call to the next,
+   * so frames of any length give the same result.
+   */
+  public void process(short[] samples, int offset, int count) {
+    int length;
+
+    for (int start = offset; start < (offset + count); start += length) {
+      length = Math.min(blockSize - blockFill, (offset + count) - start);
+
+      blockPower += sumOfSquares(samples, start, length);
+      blockFill  += length;
+
+      limit(samples, start, length);
+
+      if (blockFill == blockSize) {
+        updateGain(blockPower / ((float) Short.MAX_VALUE * Short.MAX_VALUE * blockSize));
+        blockPower = 0;
+        blockFill  = 0;
+      }
+    }
+  }
+
+  /**
+   * Choose the gain at the end of the next block, from the power of the block that just ended.
+   */
+  private void updateGain(float power) {
+    if (power > noiseFloorPower) {
+      envelopePower += (power - envelopePower) * ((power > envelopePower) ? attack : release);
+      levelDb        = powerToDb(envelopePower);
+
+      float desiredDb = Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, targetDb - levelDb));
+
+      gainDb = (desiredDb > gainDb)
+        ? Math.min(desiredDb, gainDb + maxRiseDb)
+        : Math.max(desiredDb, gainDb - maxFallDb);
+    }
+
+    gainStep = (dbToAmplitude(gainDb) - gain) / blockSize;
+  }
+
+  /**
+   * Apply the gain, ramped by {@link #gainStep}, then the look-ahead limiter.
+   *
+   * The limiter needs gain r[n] = ceiling / |x[n]| for every sample x[n] that would exceed the ceiling.
+   * The minimum of r over the delay line, averaged over the same length,
+   * falls smoothly and reaches r[n] by the time x[n] is the oldest sample in the delay line.
+   */
+  private void limit(short[] samples, int offset, int count) {
+    float g       = gain;
+    int   limited = 0;
+    int   x;
+    int   magnitude;
+    int   minimum;
+    int   y;
+    float average;
+
+    for (int i = offset; i < (offset + count); i++) {
+      g += gainStep;
+      x  = Math.round(samples[i] * g);
+
+      // delay line: the new sample goes in, and the oldest one comes out
+      delay[position] = x;
+      y = delay[(position + 1) % lookahead];
+
+      magnitude = Math.abs(x);
+      required[position] = (magnitude > ceiling)
+        ? (int) (((long) ceiling * UNITY_Q15) / magnitude)
+        : UNITY_Q15;
+
+      // sliding minimum: drop positions that have left the window, and those that can no longer be the minimum
+      if ((minHead != minTail) && (minIndex[minHead % lookahead] == position))
+        minHead++;
+      while ((minHead != minTail) && (required[minIndex[(minTail - 1) % lookahead]] >= required[position]))
+        minTail--;
+      minIndex[minTail % lookahead] = position;
+      minTail++;
+      minimum = required[minIndex[minHead % lookahead]];
+
+      // moving average of the sliding minimum
+      heldSum += minimum - held[position];
+      held[position] = minimum;
+
+      average = (float) heldSum / (UNITY_Q15 * lookahead);
+
+      limiterGain = (average < limiterGain)
+        ? average
+        : limiterGain + ((average - limiterGain) * limiterRelease);
+
+      if (limiterGain < 1.0f) {
+        y = Math.round(y * limiterGain);
+        limited++;
+      }
+
+      samples[i] = (short) Math.max(-ceiling, Math.min(ceiling, y));
+
+      position = (position + 1) % lookahead;
+    }
+
+    // keep the queue's counters small; both are always within one window of each other
+    if (minHead >= lookahead) {
+      minHead -= lookahead;
+      minTail -= lookahead;
+    }
+
+    gain            = g;
+    limitedSamples += limited;
+  }
+
+  private static float sumOfSquares(short[] samples, int offset, int count) {
+    float sum = 0;
+
+    for (int i = offset; i < (offset + count); i++) {
+      sum += (float) samples[i] * samples[i];
+    }
+    return sum;
+  }
+
+  private static float dbToPower(float db) {
+    return (float) Math.pow(10, db / 10);
+  }
+
+  private static float dbToAmplitude(float db) {
+    return (float) Math.pow(10, db / 20);
+  }
+
+  private static float powerToDb(float power) {
+    return (power > 0) ? (float) (10 * Math.log10(power)) : -96.0f;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the gain applied before the limiter, in dB
+   */
+  public float getGainDb() {
+    return gainDb;
+  }
+
+  /**
+   * @return the level of the speech before the gain, in dBFS
+   */
+  public float getLevelDb() {
+    return levelDb;
+  }
+
+  /**
+   * @return the number of samples that the limiter turned down
+   */
+  public long getLimitedSampleCount() {
+    return limitedSamples;
+  }
+}
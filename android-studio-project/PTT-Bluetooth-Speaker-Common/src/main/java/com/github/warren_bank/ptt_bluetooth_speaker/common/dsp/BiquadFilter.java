@@ -0,0 +1,134 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+/**
+ * A second-order IIR filter, in transposed direct form II.
+ *
+ * The coefficients of each shape are from the "Audio EQ Cookbook" by Robert Bristow-Johnson,
+ * normalized so that a0 = 1.
+ */
+public class BiquadFilter implements AudioProcessor {
+  public static final float DEFAULT_HIGH_PASS_HZ  = 100.0f;
+  public static final float DEFAULT_LOW_SHELF_HZ  = 150.0f;
+  public static final float DEFAULT_LOW_SHELF_DB  = -6.0f;
+  public static final float BUTTERWORTH_Q         = 0.7071f;
+
+  private float b0;
+  private float b1;
+  private float b2;
+  private float a1;
+  private float a2;
+
+  private float z1;
+  private float z2;
+
+  public BiquadFilter(float b0, float b1, float b2, float a1, float a2) {
+    setCoefficients(b0, b1, b2, a1, a2);
+    reset();
+  }
+
+  /**
+   * Attenuates frequencies below {@code frequency} by 12 dB per octave.
+   */
+  public static BiquadFilter highPass(int sampleRate, float frequency, float q) {
+    double w     = (2 * Math.PI * frequency) / sampleRate;
+    double cos   = Math.cos(w);
+    double alpha = Math.sin(w) / (2 * q);
+    double a0    = 1 + alpha;
+
+    return new BiquadFilter(
+      (float) (((1 + cos) / 2) / a0),
+      (float) (-(1 + cos) / a0),
+      (float) (((1 + cos) / 2) / a0),
+      (float) ((-2 * cos) / a0),
+      (float) ((1 - alpha) / a0)
+    );
+  }
+
+  /**
+   * Changes the level of frequencies below {@code frequency} by {@code gainDb}, with a shelf slope of 1.
+   */
+  public static BiquadFilter lowShelf(int sampleRate, float frequency, float gainDb) {
+    double a     = Math.pow(10, gainDb / 40);
+    double w     = (2 * Math.PI * frequency) / sampleRate;
+    double cos   = Math.cos(w);
+    double alpha = (Math.sin(w) / 2) * Math.sqrt(2);
+    double root  = 2 * Math.sqrt(a) * alpha;
+    double a0    = (a + 1) + ((a - 1) * cos) + root;
+
+    return new BiquadFilter(
+      (float) ((a * ((a + 1) - ((a - 1) * cos) + root)) / a0),
+      (float) ((2 * a * ((a - 1) - ((a + 1) * cos))) / a0),
+      (float) ((a * ((a + 1) - ((a - 1) * cos) - root)) / a0),
+      (float) ((-2 * ((a - 1) + ((a + 1) * cos))) / a0),
+      (float) (((a + 1) + ((a - 1) * cos) - root) / a0)
+    );
+  }
+
+  /**
+   * Changes the level of a band around {@code frequency} by {@code gainDb}; a narrow cut is a notch of limited depth.
+   */
+  public static BiquadFilter peaking(int sampleRate, float frequency, float q, float gainDb) {
+    BiquadFilter filter = new BiquadFilter(1, 0, 0, 0, 0);
+
+    filter.setPeaking(sampleRate, frequency, q, gainDb);
+    return filter;
+  }
+
+  /**
+   * Retune as a peaking filter, without allocating.
+   * Must only be called from the thread that calls {@link #process}.
+   */
+  public void setPeaking(int sampleRate, float frequency, float q, float gainDb) {
+    double a     = Math.pow(10, gainDb / 40);
+    double w     = (2 * Math.PI * frequency) / sampleRate;
+    double cos   = Math.cos(w);
+    double alpha = Math.sin(w) / (2 * q);
+    double a0    = 1 + (alpha / a);
+
+    setCoefficients(
+      (float) ((1 + (alpha * a)) / a0),
+      (float) ((-2 * cos) / a0),
+      (float) ((1 - (alpha * a)) / a0),
+      (float) ((-2 * cos) / a0),
+      (float) ((1 - (alpha / a)) / a0)
+    );
+  }
+
+  /**
+   * Must only be called from the thread that calls {@link #process}.
+   * The state is kept, so the response changes without a click.
+   */
+  public void setCoefficients(float b0, float b1, float b2, float a1, float a2) {
+    this.b0 = b0;
+    this.b1 = b1;
+    this.b2 = b2;
+    this.a1 = a1;
+    this.a2 = a2;
+  }
+
+  public void reset() {
+    z1 = 0;
+    z2 = 0;
+  }
+
+  public void process(short[] samples, int offset, int count) {
+    float s1 = z1;
+    float s2 = z2;
+    float x;
+    float y;
+
+    for (int i = offset; i < (offset + count); i++) {
+      x  = samples[i];
+      y  = (b0 * x) + s1;
+      s1 = ((b1 * x) - (a1 * y)) + s2;
+      s2 = (b2 * x) - (a2 * y);
+
+      samples[i] = PcmUtils.toShort(y);
+    }
+
+    z1 = s1;
+    z2 = s2;
+  }
+}
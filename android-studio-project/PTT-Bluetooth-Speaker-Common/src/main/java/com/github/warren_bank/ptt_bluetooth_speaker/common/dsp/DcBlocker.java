@@ -0,0 +1,46 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+/**
+ * Removes the DC offset that many microphones add, which wastes headroom and bits.
+ *
+ * y[n] = x[n] - x[n-1] + r * y[n-1]: a zero at DC, and a pole just inside it,
+ * so that only frequencies below the cutoff are attenuated.
+ */
+public class DcBlocker implements AudioProcessor {
+  public static final float DEFAULT_CUTOFF_HZ = 10.0f;
+
+  private final float r;
+
+  private float lastInput;
+  private float lastOutput;
+
+  public DcBlocker(int sampleRate, float cutoffHz) {
+    this.r = (float) Math.exp((-2 * Math.PI * cutoffHz) / sampleRate);
+
+    reset();
+  }
+
+  public void reset() {
+    lastInput  = 0;
+    lastOutput = 0;
+  }
+
+  public void process(short[] samples, int offset, int count) {
+    float x1 = lastInput;
+    float y1 = lastOutput;
+    float x;
+
+    for (int i = offset; i < (offset + count); i++) {
+      x  = samples[i];
+      y1 = (x - x1) + (r * y1);
+      x1 = x;
+
+      samples[i] = PcmUtils.toShort(y1);
+    }
+
+    lastInput  = x1;
+    lastOutput = y1;
+  }
+}
@@ -0,0 +1,437 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+/**
+ * Finds the howl of acoustic feedback, between a microphone and a speaker that can hear each other,
+ * and cuts it with narrow notch filters.
+ *
+ * <ul>
+ *   <li>analysis:
+ *       a bank of Goertzel filters, {@link #BIN_SPACING_HZ} apart from {@link #MIN_FREQUENCY_HZ} to {@link #MAX_FREQUENCY_HZ},
+ *       is updated by every sample, and read at the end of each block of about 32 ms.
+ *       Only the bins of interest are computed, and no transform is re-run over past audio.</li>
+ *   <li>detection:
+ *       feedback is a single frequency that stands far above the rest of the spectrum, and stays or grows.
+ *       A bin is a candidate when it is a local peak, above {@link #MIN_PEAK_DBFS},
+ *       {@link #MIN_PEAK_TO_AVERAGE_DB} above the average of all bins,
+ *       and {@link #MIN_PEAK_TO_HARMONIC_DB} above its octaves, up and down, so the harmonics of a voice are passed over.
+ *       It is a howl when it has been a candidate (or its neighbor has) for {@link #GROWTH_BLOCKS} blocks in a row
+ *       and grew by {@link #MIN_GROWTH_DB} over them, or for twice as long whether or not it grew.
+ *       The pitch of speech moves too much for its harmonics to last that long in one bin.</li>
+ *   <li>suppression:
+ *       a peaking filter of {@link #NOTCH_Q} is placed at the interpolated frequency of the peak,
+ *       {@link #NOTCH_DEPTH_DB} deep, and is deepened by the same again each time the howl is found again.
+ *       Up to {@link #MAX_NOTCHES} are kept, until the stream is reset; when they are all in use, the oldest is retuned.</li>
+ *   <li>gain back-off (optional):
+ *       each howl also turns the stage down by {@link #BACKOFF_DB}, up to {@link #MAX_BACKOFF_DB},
+ *       which breaks the loop while the notch takes hold, and recovers at {@link #BACKOFF_RECOVERY_DB_PER_SECOND}</li>
+ * </ul>
+ *
+ * The analysis runs on the output, after the notches,
+ * so a howl that a notch didn't stop is found again, and the notch is deepened.
+ * Nothing is allocated after construction.
+ */
+public class FeedbackSuppressor implements AudioProcessor {
+  public static final float MIN_FREQUENCY_HZ                = 150.0f;
+  public static final float MAX_FREQUENCY_HZ                = 5000.0f;
+  public static final float BIN_SPACING_HZ                  = 31.25f;  // 512 samples per block at 16 kHz
+
+  public static final float MIN_PEAK_DBFS                   = -50.0f;
+  public static final float MIN_PEAK_TO_AVERAGE_DB          = 15.0f;
+  public static final float MIN_PEAK_TO_HARMONIC_DB         = 20.0f;
+  public static final float MIN_GROWTH_DB                   = 2.0f;
+  public static final int   GROWTH_BLOCKS                   = 5;
+
+  public static final int   MAX_NOTCHES                     = 8;
+  public static final float NOTCH_Q                         = 15.0f;
+  public static final float NOTCH_DEPTH_DB                  = 12.0f;
+  public static final float MAX_NOTCH_DEPTH_DB              = 30.0f;
+
+  public static final float BACKOFF_DB                      = 6.0f;
+  public static final float MAX_BACKOFF_DB                  = 12.0f;
+  public static final float BACKOFF_RECOVERY_DB_PER_SECOND  = 1.5f;
+
+  private final int            sampleRate;
+  private final int            blockSize;
+  private final int            firstBin;
+  private final int            binCount;
+  private final float[]        coefficients;  // 2 cos(w) of each bin
+  private final float[]        s1;
+  private final float[]        s2;
+  private final float[]        powerDb;
+  private final int[]          streak;        // blocks in a row that each bin has been a candidate
+  private final int[]          lastStreak;
+  private final float[]        streakStartDb;
+  private final float[]        lastStreakStartDb;
+  private final float          fullScalePower;
+  private final boolean        isBackoffEnabled;
+  private final float          recoveryPerBlockDb;
+
+  private final BiquadFilter[] notches;
+  private final float[]        notchFrequencies;  // 0 when unused
+  private final float[]        notchDepths;       // dB
+  private final long[]         notchAges;         // block at which each notch was placed
+
+  private int                  blockFill;
+  private long                 blockCount;
+  private float                backoffDb;
+  private float                gain;              // ramped one step per sample
+  private float                gainStep;
+
+  // counters
+  private volatile long        howls;
+  private volatile int         activeNotches;
+
+  public FeedbackSuppressor(int sampleRate, boolean backoff) {
+    int lastBin;
+
+    this.sampleRate         = sampleRate;
+    this.blockSize          = Math.round(sampleRate / BIN_SPACING_HZ);
+    this.firstBin           = Math.max(1, (int) Math.ceil((MIN_FREQUENCY_HZ * blockSize) / sampleRate));
+    lastBin                 = Math.min((blockSize / 2) - 2, (int) Math.floor((Math.min(MAX_FREQUENCY_HZ, sampleRate * 0.45f) * blockSize) / sampleRate));
+    this.binCount           = Math.max(3, lastBin - firstBin + 1);
+    this.coefficients       = new float[binCount];
+    this.s1                 = new float[binCount];
+    this.s2                 = new float[binCount];
+    this.powerDb            = new float[binCount];
+    this.streak             = new int[binCount];
+    this.lastStreak         = new int[binCount];
+    this.streakStartDb      = new float[binCount];
+    this.lastStreakStartDb  = new float[binCount];
+    this.fullScalePower     = ((float) Short.MAX_VALUE * blockSize / 2) * ((float) Short.MAX_VALUE * blockSize / 2);
+    this.isBackoffEnabled   = backoff;
+    this.recoveryPerBlockDb = (BACKOFF_RECOVERY_DB_PER_SECOND * blockSize) / sampleRate;
+
+    this.notches            = new BiquadFilter[MAX_NOTCHES];
+    this.notchFrequencies   = new float[MAX_NOTCHES];
+    this.notchDepths        = new float[MAX_NOTCHES];
+    this.notchAges          = new long[MAX_NOTCHES];
+
+    for (int i = 0; i < binCount; i++) {
+      coefficients[i] = (float) (2 * Math.cos((2 * Math.PI * (firstBin + i)) / blockSize));
+    }
+    for (int i = 0; i < MAX_NOTCHES; i++) {
+      notches[i] = new BiquadFilter(1, 0, 0, 0, 0);
+    }
+
+    reset();
+  }
+
+  public void reset() {
+    for (int i = 0; i < binCount; i++) {
+      s1[i]         = 0;
+      s2[i]         = 0;
+      streak[i]     = 0;
+      lastStreak[i] = 0;
+    }
+    for (int i = 0; i < MAX_NOTCHES; i++) {
+      notches[i].setCoefficients(1, 0, 0, 0, 0);
+      notches[i].reset();
+      notchFrequencies[i] = 0;
+      notchDepths[i]      = 0;
+    }
+
+    blockFill     = 0;
+    blockCount    = 0;
+    backoffDb     = 0;
+    gain          = 1.0f;
+    gainStep      = 0;
+    activeNotches = 0;
+  }
+
+  public void process(short[] samples, int offset, int count) {
+    int length;
+
+    for (int start = offset; start < (offset + count); start += length) {
+      length = Math.min(blockSize - blockFill, (offset + count) - start);
+
+      for (int i = 0; i < MAX_NOTCHES; i++) {
+        if (notchFrequencies[i] > 0)
+          notches[i].process(samples, start, length);
+      }
+
+      if ((gain != 1.0f) || (gainStep != 0))
+        applyGain(samples, start, length);
+
+      analyze(samples, start, length);
+      blockFill += length;
+
+      if (blockFill == blockSize) {
+        endBlock();
+        blockFill = 0;
+      }
+    }
+  }
+
+  private void applyGain(short[] samples, int offset, int count) {
+    float g = gain;
+
+    for (int i = offset; i < (offset + count); i++) {
+      g         += gainStep;
+      samples[i] = PcmUtils.toShort(samples[i] * g);
+    }
+    gain = g;
+  }
+
+  /**
+   * One step of the Goertzel recurrence for every bin: s = x + 2 cos(w) s1 - s2
+   *
+   * Bins are updated two at a time, since each recurrence waits on its previous step,
+   * and two independent ones keep the CPU busy while it does.
+   */
+  private void analyze(short[] samples, int offset, int count) {
+    float c0, c1;
+    float a0, a1;
+    float b0, b1;
+    float y0, y1;
+    float x;
+    int   k;
+
+    for (k = 0; k < (binCount - 1); k += 2) {
+      c0 = coefficients[k];
+      c1 = coefficients[k + 1];
+      a0 = s1[k];
+      a1 = s1[k + 1];
+      b0 = s2[k];
+      b1 = s2[k + 1];
+
+      for (int i = offset; i < (offset + count); i++) {
+        x  = samples[i];
+        y0 = x + (c0 * a0) - b0;
+        y1 = x + (c1 * a1) - b1;
+        b0 = a0;
+        b1 = a1;
+        a0 = y0;
+        a1 = y1;
+      }
+
+      s1[k]     = a0;
+      s1[k + 1] = a1;
+      s2[k]     = b0;
+      s2[k + 1] = b1;
+    }
+
+    if (k < binCount) {
+      c0 = coefficients[k];
+      a0 = s1[k];
+      b0 = s2[k];
+
+      for (int i = offset; i < (offset + count); i++) {
+        y0 = samples[i] + (c0 * a0) - b0;
+        b0 = a0;
+        a0 = y0;
+      }
+
+      s1[k] = a0;
+      s2[k] = b0;
+    }
+  }
+
+  private void endBlock() {
+    float sum = 0;
+    float power;
+
+    blockCount++;
+
+    for (int k = 0; k < binCount; k++) {
+      power      = (s1[k] * s1[k]) + (s2[k] * s2[k]) - (coefficients[k] * s1[k] * s2[k]);
+      powerDb[k] = 10 * (float) Math.log10(Math.max(power, 1.0f) / fullScalePower);
+      sum       += power;
+
+      s1[k] = 0;
+      s2[k] = 0;
+    }
+
+    float averageDb = 10 * (float) Math.log10(Math.max(sum / binCount, 1.0f) / fullScalePower);
+    int   howlBin   = -1;
+    float howlDb    = MIN_PEAK_DBFS;
+
+    // a candidate continues the streak of its own bin or of a neighbor, since a howl may sit between two bins
+    System.arraycopy(streak,        0, lastStreak,        0, binCount);
+    System.arraycopy(streakStartDb, 0, lastStreakStartDb, 0, binCount);
+
+    for (int k = 0; k < binCount; k++) {
+      if (!isCandidate(k, averageDb)) {
+        streak[k] = 0;
+        continue;
+      }
+
+      int from = k;
+      if ((k > 0) && (lastStreak[k - 1] > lastStreak[from]))
+        from = k - 1;
+      if ((k < (binCount - 1)) && (lastStreak[k + 1] > lastStreak[from]))
+        from = k + 1;
+
+      streak[k]        = lastStreak[from] + 1;
+      streakStartDb[k] = (lastStreak[from] > 0) ? lastStreakStartDb[from] : powerDb[k];
+
+      boolean isHowl = (streak[k] >= (2 * GROWTH_BLOCKS))
+        || ((streak[k] >= GROWTH_BLOCKS) && ((powerDb[k] - streakStartDb[k]) >= MIN_GROWTH_DB));
+
+      if (isHowl && (powerDb[k] > howlDb)) {
+        howlBin = k;
+        howlDb  = powerDb[k];
+      }
+    }
+
+    // one howl per block: the loudest
+    if (howlBin >= 0) {
+      suppress(howlBin);
+
+      // start over, so the new notch is given time to take hold before it is deepened
+      for (int k = 0; k < binCount; k++) {
+        streak[k] = 0;
+      }
+    }
+
+    recover();
+  }
+
+  private boolean isCandidate(int k, float averageDb) {
+    float p = powerDb[k];
+
+    return (p > MIN_PEAK_DBFS)
+      && ((p - averageDb) >= MIN_PEAK_TO_AVERAGE_DB)
+      && ((k == 0)              || (p >= powerDb[k - 1]))
+      && ((k == (binCount - 1)) || (p >= powerDb[k + 1]))
+      && ((p - getHarmonicDb(2 * (firstBin + k))) >= MIN_PEAK_TO_HARMONIC_DB)
+      && ((p - getHarmonicDb((firstBin + k) / 2)) >= MIN_PEAK_TO_HARMONIC_DB);
+  }
+
+  /**
+   * @return the loudest of the bins around the absolute bin {@code bin}, or the floor when they aren't analyzed
+   */
+  private float getHarmonicDb(int bin) {
+    float db = -200.0f;
+
+    for (int k = (bin - firstBin - 1); k <= (bin - firstBin + 1); k++) {
+      if ((k >= 0) && (k < binCount))
+        db = Math.max(db, powerDb[k]);
+    }
+    return db;
+  }
+
+  private void suppress(int k) {
+    float frequency = getPeakFrequency(k);
+    int   notch     = -1;
+
+    howls++;
+
+    // the same howl again: deepen its notch
+    for (int i = 0; i < MAX_NOTCHES; i++) {
+      if ((notchFrequencies[i] > 0) && (Math.abs(notchFrequencies[i] - frequency) < (1.5f * BIN_SPACING_HZ))) {
+        notch = i;
+        break;
+      }
+    }
+
+    if (notch >= 0) {
+      notchDepths[notch] = Math.min(MAX_NOTCH_DEPTH_DB, notchDepths[notch] + NOTCH_DEPTH_DB);
+    }
+    else {
+      notch = getFreeNotch();
+      notchFrequencies[notch] = frequency;
+      notchDepths[notch]      = NOTCH_DEPTH_DB;
+    }
+
+    notchAges[notch] = blockCount;
+    notches[notch].setPeaking(sampleRate, notchFrequencies[notch], NOTCH_Q, -notchDepths[notch]);
+
+    int active = 0;
+    for (int i = 0; i < MAX_NOTCHES; i++) {
+      if (notchFrequencies[i] > 0)
+        active++;
+    }
+    activeNotches = active;
+
+    if (isBackoffEnabled)
+      backoffDb = Math.min(MAX_BACKOFF_DB, backoffDb + BACKOFF_DB);
+  }
+
+  /**
+   * @return an unused notch, or else the one that was placed or deepened longest ago
+   */
+  private int getFreeNotch() {
+    int oldest = 0;
+
+    for (int i = 0; i < MAX_NOTCHES; i++) {
+      if (notchFrequencies[i] == 0)
+        return i;
+      if (notchAges[i] < notchAges[oldest])
+        oldest = i;
+    }
+
+    notches[oldest].reset();
+    return oldest;
+  }
+
+  /**
+   * @return the frequency of the peak at bin k, refined by fitting a parabola through it and its neighbors
+   */
+  private float getPeakFrequency(int k) {
+    float delta = 0;
+
+    if ((k > 0) && (k < (binCount - 1))) {
+      float a = powerDb[k - 1];
+      float b = powerDb[k];
+      float c = powerDb[k + 1];
+      float d = a - (2 * b) + c;
+
+      if (d < 0)
+        delta = Math.max(-0.5f, Math.min(0.5f, (0.5f * (a - c)) / d));
+    }
+
+    return ((firstBin + k + delta) * sampleRate) / blockSize;
+  }
+
+  /**
+   * Ramp the gain across the next block toward the back-off, which recovers a little every block.
+   */
+  private void recover() {
+    if (backoffDb > 0)
+      backoffDb = Math.max(0, backoffDb - recoveryPerBlockDb);
+
+    float target = (backoffDb > 0) ? (float) Math.pow(10, -backoffDb / 20) : 1.0f;
+
+    if (Math.abs(target - gain) < 0.0001f) {
+      gain     = target;
+      gainStep = 0;
+    }
+    else {
+      gainStep = (target - gain) / blockSize;
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the number of times that a howl was found
+   */
+  public long getHowlCount() {
+    return howls;
+  }
+
+  public int getActiveNotchCount() {
+    return activeNotches;
+  }
+
+  /**
+   * Must only be called from the audio thread.
+   *
+   * @return the frequency of each notch, 0 when unused
+   */
+  public float getNotchFrequency(int index) {
+    return notchFrequencies[index];
+  }
+
+  /**
+   * Must only be called from the audio thread.
+   *
+   * @return the depth of each notch, in dB
+   */
+  public float getNotchDepth(int index) {
+    return notchDepths[index];
+  }
+}
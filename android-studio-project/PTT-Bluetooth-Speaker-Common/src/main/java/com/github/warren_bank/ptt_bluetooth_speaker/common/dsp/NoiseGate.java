@@ -0,0 +1,102 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+
+/**
+ * Turns down the background between words.
+ *
+ * <ul>
+ *   <li>the peak level is followed by an envelope that decays over {@link #ENVELOPE_RELEASE_MS}</li>
+ *   <li>the gate opens as soon as the envelope rises above the threshold,
+ *       and closes once it has stayed {@link #HYSTERESIS_DB} below it for {@link #HOLD_MS},
+ *       so it doesn't chatter on a level close to the threshold, or cut off the end of a word</li>
+ *   <li>a closed gate attenuates by {@link #FLOOR_DB} rather than muting,
+ *       and the gain moves smoothly: it opens over {@link #OPEN_MS} and closes over {@link #CLOSE_MS}</li>
+ * </ul>
+ */
+public class NoiseGate implements AudioProcessor {
+  public static final float DEFAULT_THRESHOLD_DBFS = -50.0f;
+
+  public static final float HYSTERESIS_DB       = 6.0f;
+  public static final float FLOOR_DB            = -30.0f;
+  public static final int   HOLD_MS             = 150;
+  public static final int   OPEN_MS             = 1;
+  public static final int   CLOSE_MS            = 50;
+  public static final int   ENVELOPE_RELEASE_MS = 10;
+
+  private final float openLevel;
+  private final float closeLevel;
+  private final int   holdSamples;
+  private final float floor;
+  private final float openCoefficient;
+  private final float closeCoefficient;
+  private final float envelopeDecay;
+
+  private float       envelope;
+  private float       gain;
+  private int         holdRemaining;
+  private boolean     isOpen;
+
+  public NoiseGate(int sampleRate, float thresholdDbfs) {
+    this.openLevel        = Short.MAX_VALUE * dbToAmplitude(thresholdDbfs);
+    this.closeLevel       = Short.MAX_VALUE * dbToAmplitude(thresholdDbfs - HYSTERESIS_DB);
+    this.holdSamples      = (sampleRate * HOLD_MS) / 1000;
+    this.floor            = dbToAmplitude(FLOOR_DB);
+    this.openCoefficient  = coefficient(sampleRate, OPEN_MS);
+    this.closeCoefficient = coefficient(sampleRate, CLOSE_MS);
+    this.envelopeDecay    = 1.0f - coefficient(sampleRate, ENVELOPE_RELEASE_MS);
+
+    reset();
+  }
+
+  public void reset() {
+    envelope      = 0;
+    gain          = floor;
+    holdRemaining = 0;
+    isOpen        = false;
+  }
+
+  public void process(short[] samples, int offset, int count) {
+    float magnitude;
+
+    for (int i = offset; i < (offset + count); i++) {
+      magnitude = Math.abs((float) samples[i]);
+      envelope  = Math.max(magnitude, envelope * envelopeDecay);
+
+      if (envelope > openLevel) {
+        isOpen        = true;
+        holdRemaining = holdSamples;
+      }
+      else if (isOpen && (envelope < closeLevel)) {
+        if (holdRemaining > 0)
+          holdRemaining--;
+        else
+          isOpen = false;
+      }
+
+      gain = isOpen
+        ? gain + ((1.0f - gain) * openCoefficient)
+        : gain + ((floor - gain) * closeCoefficient);
+
+      samples[i] = PcmUtils.toShort(samples[i] * gain);
+    }
+  }
+
+  /**
+   * @return whether the gate is letting the audio through
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * @return the fraction of the distance to a target that is covered in one sample, to cover 63% in {@code ms}
+   */
+  private static float coefficient(int sampleRate, int ms) {
+    return 1.0f - (float) Math.exp(-1000.0 / ((double) sampleRate * ms));
+  }
+
+  private static float dbToAmplitude(float db) {
+    return (float) Math.pow(10, db / 20);
+  }
+}
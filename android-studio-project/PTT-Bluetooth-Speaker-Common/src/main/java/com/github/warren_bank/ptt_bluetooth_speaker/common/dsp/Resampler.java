@@ -0,0 +1,265 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for 16-bit mono audio, between any two rates.
+ *
+ * <ul>
+ *   <li>windowed-sinc interpolation: Kaiser window, {@link #TAPS} input samples per output sample</li>
+ *   <li>the filter is precomputed as a table of {@link #PHASES} polyphase rows,
+ *       and an output sample between two rows is interpolated linearly between them</li>
+ *   <li>the cutoff follows the lower of the two rates,
+ *       so the same table also works to reduce the sample rate</li>
+ *   <li>the position in the input is kept in 32.32 fixed point,
+ *       so the ratio doesn't need to be a fraction of small integers, like 16000 to 44100,
+ *       and it can be nudged while streaming, to follow a clock that drifts</li>
+ *   <li>the last {@link #TAPS} input samples are kept between calls,
+ *       so consecutive chunks of a stream join without a seam;
+ *       this delays the output by {@link #getDelaySamples()} input samples</li>
+ * </ul>
+ *
+ * Input can be pushed, with {@link #process(short[], int, int, short[], int)},
+ * or pulled, by asking {@link #getInputCount} how much input makes a given number of output samples.
+ *
+ * Nothing is allocated after construction.
+ * Must only be used by one thread.
+ */
+public class Resampler {
+  public static final int TAPS   = 32;
+  public static final int PHASES = 256;
+
+  private static final int    HALF_TAPS   = TAPS / 2;
+  private static final int    PHASE_SHIFT = 32 - 8;   // PHASES == 1 << 8
+  private static final long   FRACTION    = 1L << 32;
+  private static final double ROLLOFF     = 0.90;     // cutoff, as a fraction of the lower Nyquist frequency
+  private static final double KAISER_BETA = 8.0;
+
+  private final int     inputRate;
+  private final int     outputRate;
+  private final long    nominalStepQ32;  // input samples per output sample
+  private final float[] coefficients;    // (PHASES + 1) rows of TAPS
+  private final float[] history;         // input samples, oldest first
+
+  private long          stepQ32;
+  private int           historyCount;
+  private long          positionQ32;     // of the next output sample, relative to history[HALF_TAPS - 1]
+
+  /**
+   * @param maxInputCount  the number of input samples that is usually passed to {@link #process},
+   *                       larger chunks are processed in pieces of this size
+   */
+  public Resampler(int inputRate, int outputRate, int maxInputCount) {
+    if ((inputRate <= 0) || (outputRate <= 0) || (maxInputCount <= 0))
+      throw new IllegalArgumentException("rate");
+
+    this.inputRate      = inputRate;
+    this.outputRate     = outputRate;
+    this.nominalStepQ32 = (((long) inputRate) << 32) / outputRate;
+    this.stepQ32        = nominalStepQ32;
+    this.coefficients   = createCoefficients(Math.min(1.0, (double) outputRate / inputRate));
+    this.history        = new float[TAPS + maxInputCount];
+    reset();
+  }
+
+  public int getInputRate() {
+    return inputRate;
+  }
+
+  public int getOutputRate() {
+    return outputRate;
+  }
+
+  /**
+   * @return the delay of the filter, in input samples
+   */
+  public static int getDelaySamples() {
+    return HALF_TAPS;
+  }
+
+  /**
+   * Consume the input a little faster or slower than the nominal rates.
+   *
+   * @param ratio  1.0 for the nominal rates, above 1.0 to consume more input per output sample
+   */
+  public void setRatio(double ratio) {
+    stepQ32 = Math.round(nominalStepQ32 * ratio);
+  }
+
+  /**
+   * @return the most output samples that {@link #process} can produce from a number of input samples, at the current ratio
+   */
+  public int getMaxOutputCount(int inputCount) {
+    return (int) ((((long) inputCount) * FRACTION) / stepQ32) + 2;
+  }
+
+  /**
+   * Forget the input that was kept from the previous call, for example before a new stream starts.
+   * The output starts with the filter delay in silence.
+   */
+  public void reset() {
+    Arrays.fill(history, 0.0f);
+    historyCount = TAPS - 1;
+    positionQ32  = 0;
+  }
+
+  /**
+   * @return the number of input samples to pass to {@link #process(short[], int, int, short[], int, int)}
+   *         to produce exactly {@code outputCount} samples, at the current ratio
+   */
+  public int getInputCount(int outputCount) {
+    if (outputCount <= 0)
+      return 0;
+
+    long lastPositionQ32 = positionQ32 + ((outputCount - 1) * stepQ32);
+
+    return Math.max(0, ((int) (lastPositionQ32 >>> 32)) + TAPS - historyCount);
+  }
+
+  /**
+   * @param out  must have room for {@link #getMaxOutputCount(int)} samples
+   * @return the number of samples written to {@code out}
+   */
+  public int process(short[] in, int offset, int count, short[] out, int outOffset) {
+    return process(in, offset, count, out, outOffset, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Input that isn't needed for the first {@code maxOutputCount} samples is kept for the next call.
+   *
+   * @return the number of samples written to {@code out}
+   */
+  public int process(short[] in, int offset, int count, short[] out, int outOffset, int maxOutputCount) {
+    int written = 0;
+    int length;
+
+    if (count == 0)
+      written += drain(out, outOffset, maxOutputCount);
+
+    while (count > 0) {
+      length = Math.min(count, history.length - historyCount);
+
+      for (int i = 0; i < length; i++) {
+        history[historyCount + i] = in[offset + i];
+      }
+      historyCount += length;
+      offset       += length;
+      count        -= length;
+
+      written += drain(out, outOffset + written, maxOutputCount - written);
+    }
+    return written;
+  }
+
+  /**
+   * Produce every output sample whose filter taps are all in the history,
+   * then move the taps that are still needed to the start of the history.
+   */
+  private int drain(short[] out, int outOffset, int maxCount) {
+    final float[] h = coefficients;
+    final float[] x = history;
+    int   written = 0;
+    int   base;
+    int   phase;
+    int   row0;
+    int   row1;
+    float weight;
+    float sum0;
+    float sum1;
+    float value;
+
+    // the first tap of the output at position p is history[(p >> 32)]
+    while ((written < maxCount) && ((((int) (positionQ32 >>> 32)) + TAPS) <= historyCount)) {
+      base   = (int) (positionQ32 >>> 32);
+      phase  = (int) ((positionQ32 & 0xffffffffL) >>> PHASE_SHIFT);
+      weight = (float) ((positionQ32 & ((1L << PHASE_SHIFT) - 1)) * (1.0 / (1L << PHASE_SHIFT)));
+      row0   = phase * TAPS;
+      row1   = row0 + TAPS;
+      sum0   = 0.0f;
+      sum1   = 0.0f;
+
+      for (int j = 0; j < TAPS; j++) {
+        sum0 += x[base + j] * h[row0 + j];
+        sum1 += x[base + j] * h[row1 + j];
+      }
+
+      value = sum0 + (weight * (sum1 - sum0));
+      out[outOffset + written++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+
+      positionQ32 += stepQ32;
+    }
+
+    base = (int) (positionQ32 >>> 32);
+    if (base > 0) {
+      System.arraycopy(x, base, x, 0, historyCount - base);
+      historyCount -= base;
+      positionQ32  -= ((long) base) << 32;
+    }
+    return written;
+  }
+
+  // -------------------------------------------------------------------------
+  // filter table
+
+  /**
+   * Row {@code p} holds the taps for an output sample that is {@code p / PHASES} of an input sample
+   * past history[HALF_TAPS - 1]. Row {@link #PHASES} is the same as row 0, one input sample later,
+   * so the interpolation between rows never needs to wrap.
+   *
+   * @param scale  the ratio of the output rate to the input rate, when it is below 1
+   */
+  private static float[] createCoefficients(double scale) {
+    float[] table  = new float[(PHASES + 1) * TAPS];
+    double  cutoff = 0.5 * ROLLOFF * scale;  // in cycles per input sample
+    double  i0Beta = besselI0(KAISER_BETA);
+    double[] row   = new double[TAPS];
+    double  distance;
+    double  sum;
+
+    for (int p = 0; p <= PHASES; p++) {
+      sum = 0;
+
+      for (int j = 0; j < TAPS; j++) {
+        // from the output sample to tap j, in input samples
+        distance = ((HALF_TAPS - 1) - j) + ((double) p / PHASES);
+        row[j]   = sinc(2 * cutoff * distance) * kaiser(distance / HALF_TAPS, i0Beta);
+        sum     += row[j];
+      }
+
+      // unity gain at DC, in every row
+      for (int j = 0; j < TAPS; j++) {
+        table[(p * TAPS) + j] = (float) (row[j] / sum);
+      }
+    }
+    return table;
+  }
+
+  private static double sinc(double x) {
+    return (x == 0)
+      ? 1.0
+      : Math.sin(Math.PI * x) / (Math.PI * x);
+  }
+
+  /**
+   * @param x  from -1 to 1 across the window
+   */
+  private static double kaiser(double x, double i0Beta) {
+    return (Math.abs(x) >= 1.0)
+      ? 0.0
+      : besselI0(KAISER_BETA * Math.sqrt(1.0 - (x * x))) / i0Beta;
+  }
+
+  private static double besselI0(double x) {
+    double sum  = 1.0;
+    double term = 1.0;
+    double half = x / 2;
+
+    for (int k = 1; k < 50; k++) {
+      term *= (half / k) * (half / k);
+      sum  += term;
+      if (term < (sum * 1e-12))
+        break;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,193 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+/**
+ * Plays 16-bit mono audio faster without changing its pitch, by cutting out samples where the cut can't be heard.
+ *
+ * <ul>
+ *   <li>speech: whole pitch periods are removed.
+ *       The period is found by searching for the offset at which the waveform best repeats itself
+ *       (the similarity search of WSOLA), and the two sides of the cut are crossfaded.
+ *       On average no more than {@link #MAX_SPEECH_SPEED} is reached,
+ *       and nothing is removed where the waveform doesn't repeat well enough, for example at a consonant.</li>
+ *   <li>silence: up to one chunk is removed per chunk played, so quiet stretches play up to twice as fast,
+ *       and most of a backlog is usually drained between words.</li>
+ * </ul>
+ *
+ * Each call produces exactly one chunk, and starts where the previous one ended,
+ * so consecutive chunks join without a seam.
+ *
+ * Nothing is allocated after construction.
+ * Must only be used by one thread.
+ */
+public class TimeCompressor {
+  public static final float MAX_SPEECH_SPEED = 1.25f;
+
+  private static final int   MIN_PERIOD_HZ   = 400;   // shortest pitch period: 2.5 ms
+  private static final int   MAX_PERIOD_HZ   = 65;    // longest pitch period: about 15 ms
+  private static final int   SEARCH_RATE     = 8000;  // the coarse search skips samples above this rate
+  private static final float MIN_CORRELATION = 0.85f;
+  private static final float SILENCE_RMS     = 400f;  // about -38 dBFS
+
+  private final int minPeriod;
+  private final int maxPeriod;
+  private final int searchStep;
+
+  private float     credit;   // speech samples that may be removed, to reach the speed limit on average
+  private long      removedSpeech;
+  private long      removedSilence;
+
+  public TimeCompressor(int sampleRate) {
+    this.minPeriod  = sampleRate / MIN_PERIOD_HZ;
+    this.maxPeriod  = sampleRate / MAX_PERIOD_HZ;
+    this.searchStep = Math.max(1, sampleRate / SEARCH_RATE);
+    this.credit     = 0;
+  }
+
+  /**
+   * @return the number of input samples that {@link #process} may need to produce a chunk
+   */
+  public int getMaxInputCount(int count) {
+    return count + Math.max(count, maxPeriod);
+  }
+
+  /**
+   * Start over, for example when the backlog has been drained.
+   */
+  public void reset() {
+    credit = 0;
+  }
+
+  /**
+   * Fill {@code out} with exactly {@code count} samples, from the start of {@code in}.
+   *
+   * @param available  the number of samples in {@code in}, at least {@code count}
+   * @param maxRemove  the most samples that may be removed
+   * @return the number of input samples consumed: {@code count}, plus the number removed
+   */
+  public int process(short[] in, int offset, int available, short[] out, int outOffset, int count, int maxRemove) {
+    int limit  = Math.min(maxRemove, available - count);
+    int remove = 0;
+
+    if (limit > 0) {
+      if (isSilent(in, offset, Math.min(available, count + maxPeriod))) {
+        remove = Math.min(limit, count);
+        removedSilence += remove;
+      }
+      else {
+        credit = Math.min(credit + (count * (MAX_SPEECH_SPEED - 1.0f)), 2 * maxPeriod);
+        limit  = Math.min(limit, Math.min(maxPeriod, (int) credit));
+
+        if (limit >= minPeriod) {
+          remove = findPeriod(in, offset, count, limit);
+          credit        -= remove;
+          removedSpeech += remove;
+        }
+      }
+    }
+
+    if (remove == 0) {
+      System.arraycopy(in, offset, out, outOffset, count);
+      return count;
+    }
+
+    splice(in, offset, remove, out, outOffset, count);
+    return count + remove;
+  }
+
+  /**
+   * out = in[0..count), with in[0..remove) cut out: the start of the chunk fades
+   * from the samples that would have been played into the samples after the cut.
+   */
+  private static void splice(short[] in, int offset, int remove, short[] out, int outOffset, int count) {
+    float weight;
+
+    for (int i = 0; i < count; i++) {
+      weight = (float) (i + 1) / (count + 1);
+      out[outOffset + i] = (short) ((in[offset + i] * (1.0f - weight)) + (in[offset + remove + i] * weight));
+    }
+  }
+
+  /**
+   * @return the offset, up to {@code limit}, at which {@code in} best repeats the chunk at its start,
+   *         or 0 when it doesn't repeat closely enough
+   */
+  private int findPeriod(short[] in, int offset, int count, int limit) {
+    int   bestPeriod      = 0;
+    float bestCorrelation = -1.0f;
+    float correlation;
+
+    // coarse search, then refine around the best match
+    for (int period = minPeriod; period <= limit; period += searchStep) {
+      correlation = correlate(in, offset, period, count, searchStep);
+      if (correlation > bestCorrelation) {
+        bestCorrelation = correlation;
+        bestPeriod      = period;
+      }
+    }
+
+    if (searchStep > 1) {
+      int from = Math.max(minPeriod, bestPeriod - searchStep + 1);
+      int to   = Math.min(limit,     bestPeriod + searchStep - 1);
+
+      bestCorrelation = -1.0f;
+      for (int period = from; period <= to; period++) {
+        correlation = correlate(in, offset, period, count, 1);
+        if (correlation > bestCorrelation) {
+          bestCorrelation = correlation;
+          bestPeriod      = period;
+        }
+      }
+    }
+
+    return (bestCorrelation >= MIN_CORRELATION) ? bestPeriod : 0;
+  }
+
+  /**
+   * @return the normalized cross-correlation of in[0..count) and in[period..period+count)
+   */
+  private static float correlate(short[] in, int offset, int period, int count, int step) {
+    float sum           = 0;
+    float energy        = 0;
+    float energyShifted = 0;
+    float a;
+    float b;
+
+    for (int i = 0; i < count; i += step) {
+      a = in[offset + i];
+      b = in[offset + period + i];
+      sum           += a * b;
+      energy        += a * a;
+      energyShifted += b * b;
+    }
+
+    return ((energy > 0) && (energyShifted > 0))
+      ? sum / (float) Math.sqrt((double) energy * energyShifted)
+      : 0.0f;
+  }
+
+  private static boolean isSilent(short[] in, int offset, int count) {
+    float energy = 0;
+
+    for (int i = offset; i < (offset + count); i++) {
+      energy += (float) in[i] * in[i];
+    }
+    return energy < (SILENCE_RMS * SILENCE_RMS * count);
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the number of samples of speech that were removed
+   */
+  public long getRemovedSpeechSamples() {
+    return removedSpeech;
+  }
+
+  /**
+   * @return the number of samples of silence that were removed
+   */
+  public long getRemovedSilenceSamples() {
+    return removedSilence;
+  }
+}
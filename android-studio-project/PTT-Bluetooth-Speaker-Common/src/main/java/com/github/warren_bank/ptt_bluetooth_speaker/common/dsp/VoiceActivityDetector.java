@@ -0,0 +1,183 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+/**
+ * Decides, frame by frame, whether 16-bit audio contains speech.
+ *
+ * <ul>
+ *   <li>energy:
+ *       a frame is voiced when its level exceeds the tracked noise floor by a threshold.
+ *       The floor follows quiet frames down quickly, and rises slowly on frames that aren't voiced.
+ *       It also rises, on any frame, towards the quietest frame of the last few seconds (minimum statistics),
+ *       so that a steady background that is louder than the threshold is learned within seconds.
+ *       Speech dips between syllables, so however long someone talks, that minimum stays near the background,
+ *       and the floor doesn't learn the speech itself.</li>
+ *   <li>zero-crossing rate:
+ *       unvoiced consonants (s, f, sh) are quiet but cross zero often,
+ *       so a frame with a high crossing rate only needs half of the threshold.</li>
+ *   <li>hangover:
+ *       once speech stops, frames are still reported as speech for a while,
+ *       so the quiet ends of words and short pauses aren't cut.</li>
+ * </ul>
+ *
+ * Pre-roll, which keeps the start of a word, is the job of the caller,
+ * because it needs to delay frames rather than just classify them.
+ */
+public class VoiceActivityDetector {
+  public static final float DEFAULT_THRESHOLD_DB = 9.0f;
+  public static final int   DEFAULT_HANGOVER_MS  = 300;
+
+  private static final float MIN_SPEECH_DB     = -60.0f;  // relative to full scale
+  private static final float INITIAL_FLOOR_DB  = -50.0f;
+  private static final float FLOOR_FALL        = 0.3f;    // fraction of the distance per frame
+  private static final float FLOOR_RISE_DB_SEC = 1.0f;
+  private static final float MIN_RISE_DB_SEC   = 10.0f;   // towards the minimum of the window
+  private static final int   MIN_WINDOW_MS     = 4000;
+  private static final int   MIN_SUBWINDOWS    = 4;
+  private static final float HIGH_ZCR          = 0.25f;   // crossings per sample
+  private static final double FULL_SCALE_SQ    = 32768.0 * 32768.0;
+
+  private final int     sampleRate;
+  private final float   thresholdDb;
+  private final int     hangoverSamples;
+  private final int     subwindowSamples;
+  private final float[] subwindowMins;  // quietest frame of each of the last sub-windows, oldest overwritten first
+
+  private float   noiseFloorDb;
+  private float   levelDb;
+  private float   zeroCrossingRate;
+  private int     hangoverRemaining;
+  private boolean isSpeech;
+  private float   currentMin;  // quietest frame of the sub-window in progress
+  private int     subwindowRemaining;
+  private int     subwindowIndex;
+
+  public VoiceActivityDetector(int sampleRate) {
+    this(sampleRate, DEFAULT_THRESHOLD_DB, DEFAULT_HANGOVER_MS);
+  }
+
+  /**
+   * @param thresholdDb  level above the noise floor that is classified as speech
+   * @param hangoverMs   time that speech continues to be reported after the level drops
+   */
+  public VoiceActivityDetector(int sampleRate, float thresholdDb, int hangoverMs) {
+    this.sampleRate      = sampleRate;
+    this.thresholdDb     = thresholdDb;
+    this.hangoverSamples  = (int) (((long) sampleRate * hangoverMs) / 1000);
+    this.subwindowSamples = (int) (((long) sampleRate * MIN_WINDOW_MS) / (1000 * MIN_SUBWINDOWS));
+    this.subwindowMins    = new float[MIN_SUBWINDOWS];
+    reset();
+  }
+
+  public void reset() {
+    noiseFloorDb      = INITIAL_FLOOR_DB;
+    levelDb           = MIN_SPEECH_DB;
+    zeroCrossingRate  = 0;
+    hangoverRemaining = 0;
+    isSpeech          = false;
+
+    // the floor doesn't rise towards the minimum until a whole window has been seen
+    for (int i = 0; i < subwindowMins.length; i++) {
+      subwindowMins[i] = -120.0f;
+    }
+    currentMin         = Float.MAX_VALUE;
+    subwindowRemaining = subwindowSamples;
+    subwindowIndex     = 0;
+  }
+
+  /**
+   * Classify one frame. The samples are not modified.
+   *
+   * @return true when the frame should be treated as speech, including hangover
+   */
+  public boolean process(short[] samples, int offset, int count) {
+    if (count <= 0)
+      return isSpeech;
+
+    long  sumSquares = 0;
+    int   crossings  = 0;
+    int   previous   = samples[offset];
+    int   value;
+
+    for (int i = offset; i < offset + count; i++) {
+      value = samples[i];
+      sumSquares += value * value;
+
+      if ((value ^ previous) < 0)
+        crossings++;
+      previous = value;
+    }
+
+    double meanSquare = (double) sumSquares / count;
+    levelDb           = (meanSquare > 0) ? (float) (10 * Math.log10(meanSquare / FULL_SCALE_SQ)) : -120.0f;
+    zeroCrossingRate  = (float) crossings / count;
+
+    float threshold = (zeroCrossingRate >= HIGH_ZCR) ? (thresholdDb / 2) : thresholdDb;
+    boolean voiced  = (levelDb > MIN_SPEECH_DB) && (levelDb > (noiseFloorDb + threshold));
+
+    float windowMin = updateWindowMin(count);
+
+    // track the noise floor
+    if (levelDb < noiseFloorDb)
+      noiseFloorDb += (levelDb - noiseFloorDb) * FLOOR_FALL;
+    else if (!voiced)
+      noiseFloorDb += (FLOOR_RISE_DB_SEC * count) / sampleRate;
+
+    if (windowMin > noiseFloorDb)
+      noiseFloorDb = Math.min(windowMin, noiseFloorDb + ((MIN_RISE_DB_SEC * count) / sampleRate));
+
+    if (voiced) {
+      hangoverRemaining = hangoverSamples;
+      isSpeech = true;
+    }
+    else if (hangoverRemaining > 0) {
+      hangoverRemaining -= count;
+      isSpeech = true;
+    }
+    else {
+      isSpeech = false;
+    }
+    return isSpeech;
+  }
+
+  /**
+   * Add the level of the current frame to the window.
+   *
+   * @return the level of the quietest frame in the window
+   */
+  private float updateWindowMin(int count) {
+    currentMin          = Math.min(currentMin, levelDb);
+    subwindowRemaining -= count;
+
+    if (subwindowRemaining <= 0) {
+      subwindowMins[subwindowIndex] = currentMin;
+      subwindowIndex      = (subwindowIndex + 1) % subwindowMins.length;
+      subwindowRemaining += subwindowSamples;
+      currentMin          = Float.MAX_VALUE;
+    }
+
+    float windowMin = currentMin;
+    for (int i = 0; i < subwindowMins.length; i++) {
+      windowMin = Math.min(windowMin, subwindowMins[i]);
+    }
+    return windowMin;
+  }
+
+  public boolean isSpeech() {
+    return isSpeech;
+  }
+
+  /**
+   * @return level of the most recent frame, in dB relative to full scale
+   */
+  public float getLevelDb() {
+    return levelDb;
+  }
+
+  public float getNoiseFloorDb() {
+    return noiseFloorDb;
+  }
+
+  public float getZeroCrossingRate() {
+    return zeroCrossingRate;
+  }
+}
@@ -0,0 +1,27 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count, which any thread can add to without a lock.
+ */
+public class Counter implements Gauge {
+  private final AtomicLong value;
+
+  public Counter() {
+    value = new AtomicLong(0);
+  }
+
+  public void increment() {
+    value.incrementAndGet();
+  }
+
+  public void add(long delta) {
+    value.addAndGet(delta);
+  }
+
+  @Override
+  public long getValue() {
+    return value.get();
+  }
+}
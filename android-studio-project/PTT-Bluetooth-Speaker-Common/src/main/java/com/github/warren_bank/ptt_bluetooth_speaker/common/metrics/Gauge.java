@@ -0,0 +1,11 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+/**
+ * A value that is read only when a snapshot of the metrics is taken.
+ *
+ * Most metrics are already counted by the component that they describe,
+ * so a gauge that reads them costs nothing on the audio threads.
+ */
+public interface Gauge {
+  long getValue();
+}
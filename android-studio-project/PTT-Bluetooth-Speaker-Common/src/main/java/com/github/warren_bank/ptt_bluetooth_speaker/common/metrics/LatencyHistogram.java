@@ -0,0 +1,173 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+import java.util.Locale;
+
+/**
+ * Histogram of latencies, in microseconds, with a fixed amount of memory.
+ *
+ * Buckets are logarithmic: each power of two is split into 8 linear sub-buckets,
+ * so any value is reported within 12.5% of its true value,
+ * from 1 microsecond to more than a day.
+ *
+ * {@link #record} and {@link #reset} must only be called by one thread, and never allocate.
+ * Other threads can read percentiles at any time;
+ * a read that races with a write can be off by that one sample.
+ * To start over from another thread, replace the histogram with a new one instead.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT    = 40;  // 2^40 us = 12.7 days
+  private static final int BUCKET_COUNT    = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final long[]   counts;
+  private volatile long  count;
+  private volatile long  sum;
+  private volatile long  min;
+  private volatile long  max;
+
+  public LatencyHistogram() {
+    counts = new long[BUCKET_COUNT];
+    reset();
+  }
+
+  /**
+   * Must only be called by the thread that records.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = 0;
+    }
+    count = 0;
+    sum   = 0;
+    min   = Long.MAX_VALUE;
+    max   = 0;
+  }
+
+  /**
+   * @param micros  negative values are recorded as 0
+   */
+  public void record(long micros) {
+    if (micros < 0)
+      micros = 0;
+
+    counts[getBucketIndex(micros)]++;
+    sum += micros;
+    if (micros < min) min = micros;
+    if (micros > max) max = micros;
+    count++;
+  }
+
+  public void recordNanos(long nanos) {
+    record(nanos / 1000);
+  }
+
+  // -------------------------------------------------------------------------
+  // buckets
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift    = exponent - SUB_BUCKET_BITS;
+    int index    = ((shift + 1) * SUB_BUCKETS) + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+
+    return Math.min(index, BUCKET_COUNT - 1);
+  }
+
+  static long getBucketLowerBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+
+    int shift = (index / SUB_BUCKETS) - 1;
+    int sub   = index % SUB_BUCKETS;
+
+    return (long) (SUB_BUCKETS + sub) << shift;
+  }
+
+  static long getBucketUpperBound(int index) {
+    return (index < SUB_BUCKETS)
+      ? index
+      : getBucketLowerBound(index + 1) - 1;
+  }
+
+  // -------------------------------------------------------------------------
+  // statistics
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getMin() {
+    return (count > 0) ? min : 0;
+  }
+
+  public long getMean() {
+    long n = count;
+    return (n > 0) ? (sum / n) : 0;
+  }
+
+  /**
+   * @param percentile  from 0 to 100
+   * @return the upper bound of the bucket that contains the percentile, in microseconds
+   */
+  public long getPercentile(double percentile) {
+    long n = count;
+    if (n == 0)
+      return 0;
+
+    long target = (long) Math.ceil((percentile / 100.0d) * n);
+    if (target < 1) target = 1;
+
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+
+      if (cumulative >= target)
+        return Math.min(getBucketUpperBound(i), max);
+    }
+    return max;
+  }
+
+  /**
+   * @return for example: "p50 82.0 ms, p95 95.2 ms, p99 110.5 ms, max 143.0 ms (n=6000)"
+   */
+  public String getSummary() {
+    return String.format(
+      Locale.US,
+      "p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms (n=%d)",
+      getPercentile(50) / 1000.0d,
+      getPercentile(95) / 1000.0d,
+      getPercentile(99) / 1000.0d,
+      getMax()          / 1000.0d,
+      getCount()
+    );
+  }
+
+  /**
+   * One line per non-empty bucket: lower bound, upper bound, count.
+   * Bounds are in microseconds.
+   */
+  public String getBuckets() {
+    StringBuilder sb = new StringBuilder();
+    long n;
+
+    for (int i = 0; i < counts.length; i++) {
+      n = counts[i];
+      if (n == 0) continue;
+
+      sb.append(getBucketLowerBound(i));
+      sb.append('\t');
+      sb.append(getBucketUpperBound(i));
+      sb.append('\t');
+      sb.append(n);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
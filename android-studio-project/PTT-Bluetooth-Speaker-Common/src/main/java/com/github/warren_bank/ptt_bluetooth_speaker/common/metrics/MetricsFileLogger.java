@@ -0,0 +1,126 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Appends a one line snapshot of a {@link MetricsRegistry} to a file at a fixed interval,
+ * so there is a record to look at after a glitch in the field.
+ *
+ * When the file grows past its size limit it is rotated:
+ * "metrics.log" becomes "metrics.log.1", "metrics.log.1" becomes "metrics.log.2", and so on,
+ * and the oldest file is deleted.
+ */
+public class MetricsFileLogger {
+  private final MetricsRegistry registry;
+  private final File            file;
+  private final long            maxFileSize;
+  private final int             maxFileCount;
+  private final long            intervalMs;
+
+  private Thread                thread;
+  private volatile boolean      isRunning;
+
+  /**
+   * @param maxFileSize   in bytes, at which the file is rotated
+   * @param maxFileCount  total number of files to keep, including the current one
+   */
+  public MetricsFileLogger(MetricsRegistry registry, File file, long maxFileSize, int maxFileCount, long intervalMs) {
+    if (maxFileCount < 1)
+      throw new IllegalArgumentException("maxFileCount");
+
+    this.registry     = registry;
+    this.file         = file;
+    this.maxFileSize  = maxFileSize;
+    this.maxFileCount = maxFileCount;
+    this.intervalMs   = intervalMs;
+    this.thread       = null;
+    this.isRunning    = false;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public synchronized void start() {
+    if (thread != null)
+      return;
+
+    isRunning = true;
+    thread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          while (isRunning) {
+            try {
+              Thread.sleep(intervalMs);
+            }
+            catch(InterruptedException e) {
+              break;
+            }
+            writeSnapshot();
+          }
+        }
+      },
+      "MetricsFileLogger Thread"
+    );
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Stop, after writing one last snapshot.
+   */
+  public synchronized void stop() {
+    if (thread == null)
+      return;
+
+    isRunning = false;
+    thread.interrupt();
+    thread = null;
+
+    writeSnapshot();
+  }
+
+  public synchronized void writeSnapshot() {
+    String line = System.currentTimeMillis() + " " + registry.snapshotLine() + "\n";
+    FileOutputStream out = null;
+
+    try {
+      if (file.length() >= maxFileSize)
+        rotate();
+
+      out = new FileOutputStream(file, /* append= */ true);
+      out.write(line.getBytes("UTF-8"));
+    }
+    catch(Exception e) {}
+    finally {
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch(Exception e) {}
+      }
+    }
+  }
+
+  private void rotate() {
+    File oldest = getRotatedFile(maxFileCount - 1);
+    if (oldest.exists())
+      oldest.delete();
+
+    for (int i = maxFileCount - 2; i >= 0; i--) {
+      File from = getRotatedFile(i);
+
+      if (from.exists())
+        from.renameTo(getRotatedFile(i + 1));
+    }
+  }
+
+  private File getRotatedFile(int index) {
+    return (index == 0)
+      ? file
+      : new File(file.getPath() + "." + index);
+  }
+}
@@ -0,0 +1,119 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named counters and gauges of one process.
+ *
+ * Registration is rare, and synchronized.
+ * Recording happens on the threads that do the work:
+ * a {@link Counter} is a single atomic add, and a {@link Gauge} isn't touched at all
+ * until a snapshot is taken, on whichever thread asks for it.
+ *
+ * Names are dotted, lower case, and sorted in the order that they are registered,
+ * for example: "link.0.frames_sent".
+ */
+public class MetricsRegistry {
+  private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+  private final Map<String, Gauge> metrics;
+
+  public MetricsRegistry() {
+    metrics = new LinkedHashMap<String, Gauge>();
+  }
+
+  /**
+   * @return the registry shared by everything in this process
+   */
+  public static MetricsRegistry getDefault() {
+    return defaultRegistry;
+  }
+
+  /**
+   * @return the counter registered with this name, which is created when it doesn't exist yet
+   */
+  public synchronized Counter counter(String name) {
+    Gauge metric = metrics.get(name);
+
+    if (metric instanceof Counter)
+      return (Counter) metric;
+
+    Counter counter = new Counter();
+    metrics.put(name, counter);
+    return counter;
+  }
+
+  /**
+   * Register a gauge, replacing any metric with the same name.
+   */
+  public synchronized void gauge(String name, Gauge gauge) {
+    metrics.put(name, gauge);
+  }
+
+  public synchronized void remove(String name) {
+    metrics.remove(name);
+  }
+
+  /**
+   * Remove every metric whose name starts with the prefix,
+   * for example all the metrics of one connection.
+   */
+  public synchronized void removeAll(String prefix) {
+    Iterator<String> names = metrics.keySet().iterator();
+
+    while (names.hasNext()) {
+      if (names.next().startsWith(prefix))
+        names.remove();
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // snapshots
+
+  /**
+   * @return names and current values, in order of registration
+   */
+  public List<String[]> snapshot() {
+    List<Map.Entry<String, Gauge>> entries;
+
+    synchronized(this) {
+      entries = new ArrayList<Map.Entry<String, Gauge>>(metrics.entrySet());
+    }
+
+    // gauges are read outside of the lock, because they may take locks of their own
+    List<String[]> values = new ArrayList<String[]>(entries.size());
+    for (Map.Entry<String, Gauge> entry : entries) {
+      long value;
+
+      try {
+        value = entry.getValue().getValue();
+      }
+      catch(Exception e) {
+        continue;
+      }
+      values.add(new String[] {entry.getKey(), Long.toString(value)});
+    }
+    return values;
+  }
+
+  /**
+   * @return one line: "name=value name=value ..."
+   */
+  public String snapshotLine() {
+    StringBuilder sb = new StringBuilder();
+
+    for (String[] metric : snapshot()) {
+      if (sb.length() > 0)
+        sb.append(' ');
+
+      sb.append(metric[0]);
+      sb.append('=');
+      sb.append(metric[1]);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,53 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+/**
+ * A parsed frame.
+ *
+ * Instances are reused: the payload is not copied,
+ * and only remains valid until the {@link FrameParser} that filled it reads more data.
+ */
+public class Frame {
+  private int    flags;
+  private int    sequence;
+  private long   timestamp;
+  private byte[] payload;
+  private int    payloadOffset;
+  private int    payloadLength;
+
+  void set(int flags, int sequence, long timestamp, byte[] payload, int payloadOffset, int payloadLength) {
+    this.flags         = flags;
+    this.sequence      = sequence;
+    this.timestamp     = timestamp;
+    this.payload       = payload;
+    this.payloadOffset = payloadOffset;
+    this.payloadLength = payloadLength;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public boolean hasFlag(int flag) {
+    return (flags & flag) != 0;
+  }
+
+  public int getSequence() {
+    return sequence;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  public int getPayloadOffset() {
+    return payloadOffset;
+  }
+
+  public int getPayloadLength() {
+    return payloadLength;
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+/**
+ * Layout of the frames that are sent from the sender to the receiver.
+ * The same layout is used for the few frames sent in the other direction,
+ * such as {@link #FLAG_PING}.
+ *
+ * <pre>
+ * offset  size  field
+ * ------  ----  -----------------------------------------------------
+ *      0     2  magic: 'P', 'T'
+ *      2     1  version
+ *      3     1  flags
+ *      4     2  payload length, in bytes
+ *      6     4  sequence number
+ *     10     8  timestamp: System.nanoTime() of the sender at capture
+ *     18     n  payload
+ * </pre>
+ *
+ * All multi-byte fields are big-endian.
+ */
+public final class FrameFormat {
+  public static final int MAGIC            = 0x5054;
+  public static final int VERSION          = 1;
+  public static final int HEADER_SIZE      = 18;
+  public static final int MAX_PAYLOAD_SIZE = 16384;
+  public static final int MAX_FRAME_SIZE   = HEADER_SIZE + MAX_PAYLOAD_SIZE;
+
+  /**
+   * The payload describes the stream that follows,
+   * rather than containing audio.
+   *
+   * Sent by the sender when it connects:
+   *   payload[0]   = codec id
+   *   payload[1]   = number of formats
+   *   payload[2..] = the {@link StreamFormat formats} that it can capture
+   *
+   * Sent by the receiver in reply:
+   *   payload[0..4] = the format that it chose, or {@link StreamFormat#NONE}
+   */
+  public static final int FLAG_CONFIG      = 0x01;
+
+  /**
+   * The sender is suppressing silence.
+   * The receiver fills the gap locally, rather than receiving audio.
+   *
+   * payload[0..1] = number of samples to fill
+   */
+  public static final int FLAG_SILENCE     = 0x02;
+  public static final int SILENCE_PAYLOAD_SIZE = 2;
+
+  /**
+   * Sent by the receiver to measure the offset between the clocks of both devices.
+   *
+   * payload[0..7] = t1: System.nanoTime() of the receiver when sent
+   */
+  public static final int FLAG_PING        = 0x04;
+  public static final int PING_PAYLOAD_SIZE = 8;
+
+  /**
+   * Sent by the sender in reply to {@link #FLAG_PING}.
+   *
+   * payload[0..7]   = t1: copied from the ping
+   * payload[8..15]  = t2: System.nanoTime() of the sender when the ping was received
+   * payload[16..23] = t3: System.nanoTime() of the sender when the pong was sent
+   */
+  public static final int FLAG_PONG        = 0x08;
+  public static final int PONG_PAYLOAD_SIZE = 24;
+
+  private FrameFormat() {}
+
+  public static void writeHeader(byte[] buffer, int offset, int flags, int payloadLength, int sequence, long timestamp) {
+    buffer[offset]     = (byte) (MAGIC >> 8);
+    buffer[offset + 1] = (byte) MAGIC;
+    buffer[offset + 2] = (byte) VERSION;
+    buffer[offset + 3] = (byte) flags;
+    buffer[offset + 4] = (byte) (payloadLength >> 8);
+    buffer[offset + 5] = (byte) payloadLength;
+    writeInt(buffer,  offset + 6,  sequence);
+    writeLong(buffer, offset + 10, timestamp);
+  }
+
+  public static int readUnsignedShort(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+  }
+
+  public static void writeUnsignedShort(byte[] buffer, int offset, int value) {
+    buffer[offset]     = (byte) (value >> 8);
+    buffer[offset + 1] = (byte) value;
+  }
+
+  public static int readInt(byte[] buffer, int offset) {
+    return ((buffer[offset]     & 0xff) << 24)
+         | ((buffer[offset + 1] & 0xff) << 16)
+         | ((buffer[offset + 2] & 0xff) <<  8)
+         |  (buffer[offset + 3] & 0xff);
+  }
+
+  public static long readLong(byte[] buffer, int offset) {
+    return ((long) readInt(buffer, offset) << 32) | (readInt(buffer, offset + 4) & 0xffffffffL);
+  }
+
+  public static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset]     = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >>  8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  public static void writeLong(byte[] buffer, int offset, long value) {
+    writeInt(buffer, offset,     (int) (value >> 32));
+    writeInt(buffer, offset + 4, (int) value);
+  }
+}
@@ -0,0 +1,149 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental parser for the frames read from an InputStream.
+ *
+ * A socket read can return any number of bytes:
+ * part of a header, several frames at once, or a frame split in two.
+ * Bytes are accumulated in a single buffer that is allocated once,
+ * and complete frames are returned without copying their payload.
+ *
+ * Usage:
+ * <pre>
+ *   while (parser.readFrom(in) >= 0) {
+ *     while (parser.next(frame)) {
+ *       ...
+ *     }
+ *   }
+ * </pre>
+ */
+public class FrameParser {
+  private final byte[] buffer;
+  private int          start;   // index of the first unparsed byte
+  private int          end;     // index after the last byte read
+  private long         resyncCount;
+  private long         lostFrameCount;
+  private boolean      hasSequence;
+  private int          nextSequence;
+
+  public FrameParser() {
+    this(FrameFormat.MAX_FRAME_SIZE * 2);
+  }
+
+  public FrameParser(int capacity) {
+    if (capacity < FrameFormat.MAX_FRAME_SIZE)
+      throw new IllegalArgumentException("capacity");
+
+    this.buffer = new byte[capacity];
+    reset();
+  }
+
+  public void reset() {
+    start          = 0;
+    end            = 0;
+    resyncCount    = 0;
+    lostFrameCount = 0;
+    hasSequence    = false;
+    nextSequence   = 0;
+  }
+
+  /**
+   * Perform a single blocking read.
+   *
+   * Any frames returned by a previous call to {@link #next(Frame)} are invalidated.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  public int readFrom(InputStream in) throws IOException {
+    compact();
+
+    int bytesRead = in.read(buffer, end, buffer.length - end);
+    if (bytesRead > 0)
+      end += bytesRead;
+
+    return bytesRead;
+  }
+
+  /**
+   * Feed bytes that were obtained by some other means.
+   *
+   * @return the number of bytes accepted, which is less than {@code length} when the buffer is full
+   */
+  public int write(byte[] data, int offset, int length) {
+    compact();
+
+    int count = Math.min(length, buffer.length - end);
+    System.arraycopy(data, offset, buffer, end, count);
+    end += count;
+    return count;
+  }
+
+  /**
+   * @return true when a complete frame was found, and its fields were copied to {@code frame}
+   */
+  public boolean next(Frame frame) {
+    while ((end - start) >= FrameFormat.HEADER_SIZE) {
+      if (!isValidHeader(start)) {
+        // lost alignment with the stream: skip one byte and look for the next header
+        start++;
+        resyncCount++;
+        continue;
+      }
+
+      int payloadLength = FrameFormat.readUnsignedShort(buffer, start + 4);
+      int frameLength   = FrameFormat.HEADER_SIZE + payloadLength;
+
+      if ((end - start) < frameLength)
+        return false;
+
+      int  flags     = buffer[start + 3] & 0xff;
+      int  sequence  = FrameFormat.readInt(buffer,  start + 6);
+      long timestamp = FrameFormat.readLong(buffer, start + 10);
+
+      frame.set(flags, sequence, timestamp, buffer, start + FrameFormat.HEADER_SIZE, payloadLength);
+      start += frameLength;
+
+      if (hasSequence && ((sequence - nextSequence) > 0))
+        lostFrameCount += sequence - nextSequence;
+      hasSequence  = true;
+      nextSequence = sequence + 1;
+
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of bytes that were skipped while searching for a valid header
+   */
+  public long getResyncCount() {
+    return resyncCount;
+  }
+
+  /**
+   * @return the number of frames that are missing from the sequence
+   */
+  public long getLostFrameCount() {
+    return lostFrameCount;
+  }
+
+  private boolean isValidHeader(int offset) {
+    return (FrameFormat.readUnsignedShort(buffer, offset) == FrameFormat.MAGIC)
+        && ((buffer[offset + 2] & 0xff) == FrameFormat.VERSION)
+        && (FrameFormat.readUnsignedShort(buffer, offset + 4) <= FrameFormat.MAX_PAYLOAD_SIZE);
+  }
+
+  private void compact() {
+    if (start == 0)
+      return;
+
+    if (start < end)
+      System.arraycopy(buffer, start, buffer, 0, end - start);
+
+    end  -= start;
+    start = 0;
+  }
+}
@@ -0,0 +1,72 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to an OutputStream.
+ *
+ * The payload can be produced directly in {@link #getBuffer()},
+ * starting at {@link FrameFormat#HEADER_SIZE},
+ * so that each frame is sent with a single write and without copying.
+ */
+public class FrameWriter {
+  private final OutputStream out;
+  private final byte[]       buffer;
+  private int                sequence;
+
+  public FrameWriter(OutputStream out) {
+    this(out, FrameFormat.MAX_PAYLOAD_SIZE);
+  }
+
+  public FrameWriter(OutputStream out, int maxPayloadSize) {
+    if ((maxPayloadSize <= 0) || (maxPayloadSize > FrameFormat.MAX_PAYLOAD_SIZE))
+      throw new IllegalArgumentException("maxPayloadSize");
+
+    this.out      = out;
+    this.buffer   = new byte[FrameFormat.HEADER_SIZE + maxPayloadSize];
+    this.sequence = 0;
+  }
+
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getMaxPayloadSize() {
+    return buffer.length - FrameFormat.HEADER_SIZE;
+  }
+
+  /**
+   * @return the sequence number that will be assigned to the next frame
+   */
+  public int getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Send a frame whose payload has already been written to {@link #getBuffer()}.
+   */
+  public void write(int flags, long timestamp, int payloadLength) throws IOException {
+    if ((payloadLength < 0) || (payloadLength > getMaxPayloadSize()))
+      throw new IllegalArgumentException("payloadLength");
+
+    FrameFormat.writeHeader(buffer, 0, flags, payloadLength, sequence, timestamp);
+    out.write(buffer, 0, FrameFormat.HEADER_SIZE + payloadLength);
+    sequence++;
+  }
+
+  /**
+   * Send a frame after copying its payload into {@link #getBuffer()}.
+   */
+  public void write(int flags, long timestamp, byte[] payload, int offset, int length) throws IOException {
+    if ((length < 0) || (length > getMaxPayloadSize()))
+      throw new IllegalArgumentException("length");
+
+    System.arraycopy(payload, offset, buffer, FrameFormat.HEADER_SIZE, length);
+    write(flags, timestamp, length);
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+}
@@ -0,0 +1,147 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+/**
+ * Sample rate and channel count of the PCM16 audio that is captured, sent and played.
+ * How that audio is compressed on the wire is negotiated separately, by codec id.
+ *
+ * Formats are exchanged in {@link FrameFormat#FLAG_CONFIG} frames:
+ * the sender offers the formats it can capture, in order of preference,
+ * and the receiver answers with the one it will play, or with {@link #NONE}.
+ *
+ * <pre>
+ * offset  size  field
+ * ------  ----  -----------------------------------------------------
+ *      0     4  sample rate, in Hz
+ *      4     1  channel count
+ * </pre>
+ */
+public final class StreamFormat {
+  public static final int SIZE = 5;
+
+  /**
+   * The format of a sender that doesn't offer any, from before formats were negotiated.
+   */
+  public static final StreamFormat LEGACY = new StreamFormat(16000, 1);
+
+  /**
+   * The answer of a receiver that can't play any of the offered formats.
+   */
+  public static final StreamFormat NONE = new StreamFormat(0, 0);
+
+  private final int sampleRate;
+  private final int channelCount;
+
+  public StreamFormat(int sampleRate, int channelCount) {
+    this.sampleRate   = sampleRate;
+    this.channelCount = channelCount;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  public boolean isNone() {
+    return (sampleRate <= 0) || (channelCount <= 0);
+  }
+
+  /**
+   * @return the number of samples of one channel in a duration
+   */
+  public int getSampleCount(int durationMs) {
+    return (int) (((long) sampleRate * durationMs) / 1000);
+  }
+
+  // -------------------------------------------------------------------------
+  // serialization
+
+  public void write(byte[] buffer, int offset) {
+    FrameFormat.writeInt(buffer, offset, sampleRate);
+    buffer[offset + 4] = (byte) channelCount;
+  }
+
+  public static StreamFormat read(byte[] buffer, int offset) {
+    return new StreamFormat(FrameFormat.readInt(buffer, offset), buffer[offset + 4] & 0xff);
+  }
+
+  /**
+   * Write the payload of the {@link FrameFormat#FLAG_CONFIG} frame that a sender opens a stream with.
+   *
+   * <pre>
+   *   payload[0]    = codec id
+   *   payload[1]    = number of formats
+   *   payload[2..]  = formats, in order of preference
+   * </pre>
+   *
+   * @return the payload length
+   */
+  public static int writeOffer(byte[] buffer, int offset, int codecId, StreamFormat[] formats) {
+    buffer[offset]     = (byte) codecId;
+    buffer[offset + 1] = (byte) formats.length;
+
+    for (int i = 0; i < formats.length; i++) {
+      formats[i].write(buffer, offset + 2 + (i * SIZE));
+    }
+    return getOfferSize(formats.length);
+  }
+
+  public static int getOfferSize(int formatCount) {
+    return 2 + (formatCount * SIZE);
+  }
+
+  /**
+   * @return the formats of an offer, or {@link #LEGACY} when the payload only contains a codec id
+   */
+  public static StreamFormat[] readOffer(byte[] buffer, int offset, int length) {
+    if (length < 2)
+      return new StreamFormat[] {LEGACY};
+
+    int count = Math.min(buffer[offset + 1] & 0xff, (length - 2) / SIZE);
+    StreamFormat[] formats = new StreamFormat[count];
+
+    for (int i = 0; i < count; i++) {
+      formats[i] = read(buffer, offset + 2 + (i * SIZE));
+    }
+    return formats;
+  }
+
+  /**
+   * @param playable  formats that the receiver can play, in order of preference
+   * @return the first playable format that was offered, or {@link #NONE}
+   */
+  public static StreamFormat select(StreamFormat[] offered, StreamFormat[] playable) {
+    for (StreamFormat candidate : playable) {
+      for (StreamFormat format : offered) {
+        if (candidate.equals(format))
+          return candidate;
+      }
+    }
+    return NONE;
+  }
+
+  // -------------------------------------------------------------------------
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof StreamFormat))
+      return false;
+
+    StreamFormat format = (StreamFormat) other;
+    return (sampleRate == format.sampleRate) && (channelCount == format.channelCount);
+  }
+
+  @Override
+  public int hashCode() {
+    return (sampleRate * 31) + channelCount;
+  }
+
+  @Override
+  public String toString() {
+    return isNone()
+      ? "none"
+      : (sampleRate + " Hz, " + ((channelCount == 1) ? "mono" : (channelCount + " channels")));
+  }
+}
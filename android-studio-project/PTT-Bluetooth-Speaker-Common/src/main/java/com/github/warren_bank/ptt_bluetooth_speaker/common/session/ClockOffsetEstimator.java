@@ -0,0 +1,94 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+/**
+ * Estimates the offset between the clock of a remote device and the local clock,
+ * from the four timestamps of a {@link com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat#FLAG_PING ping}
+ * and its pong, the same way as NTP.
+ *
+ * <pre>
+ *   offset = ((t2 - t1) + (t3 - t4)) / 2
+ *   rtt    = (t4 - t1) - (t3 - t2)
+ * </pre>
+ *
+ * The error of one sample is at most half of its round trip time,
+ * so the sample with the shortest round trip among the most recent few is used.
+ * A window, rather than the best sample ever, lets the estimate follow clock drift.
+ */
+public class ClockOffsetEstimator {
+  private static final int WINDOW = 8;
+
+  private final long[] offsets;
+  private final long[] rtts;
+  private int          next;
+  private int          size;
+
+  private volatile long    offset;
+  private volatile long    rtt;
+  private volatile boolean isValid;
+
+  public ClockOffsetEstimator() {
+    offsets = new long[WINDOW];
+    rtts    = new long[WINDOW];
+    reset();
+  }
+
+  public synchronized void reset() {
+    next    = 0;
+    size    = 0;
+    offset  = 0;
+    rtt     = 0;
+    isValid = false;
+  }
+
+  /**
+   * @param t1  local time when the ping was sent
+   * @param t2  remote time when the ping was received
+   * @param t3  remote time when the pong was sent
+   * @param t4  local time when the pong was received
+   */
+  public synchronized void addSample(long t1, long t2, long t3, long t4) {
+    long sampleRtt = (t4 - t1) - (t3 - t2);
+    if (sampleRtt < 0)
+      return;
+
+    offsets[next] = ((t2 - t1) + (t3 - t4)) / 2;
+    rtts[next]    = sampleRtt;
+    next          = (next + 1) % WINDOW;
+    size          = Math.min(size + 1, WINDOW);
+
+    int best = 0;
+    for (int i = 1; i < size; i++) {
+      if (rtts[i] < rtts[best])
+        best = i;
+    }
+
+    offset  = offsets[best];
+    rtt     = rtts[best];
+    isValid = true;
+  }
+
+  public boolean isValid() {
+    return isValid;
+  }
+
+  /**
+   * @return remote clock minus local clock, in nanoseconds
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return round trip time of the sample that the offset was taken from, in nanoseconds
+   */
+  public long getRoundTripTime() {
+    return rtt;
+  }
+
+  /**
+   * @return the time in the local clock that corresponds to the given time in the remote clock
+   */
+  public long toLocalTime(long remoteTime) {
+    return remoteTime - offset;
+  }
+}
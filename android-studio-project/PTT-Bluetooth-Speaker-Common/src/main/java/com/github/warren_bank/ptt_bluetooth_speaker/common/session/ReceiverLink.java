@@ -0,0 +1,571 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.Frame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameParser;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameWriter;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.StreamFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Backoff;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportConnector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender side of one connected receiver.
+ *
+ * When it connects, the link offers the formats that the sender can capture,
+ * and waits for the receiver to choose one.
+ * After that, a reconnect only offers the format that was chosen,
+ * so the stream never changes format while audio is queued.
+ *
+ * Encoded frames are offered by the capture thread,
+ * and are queued in a lock-free ring until a writer thread owned by this link sends them.
+ * The frames are shared with the other links, by reference,
+ * and the payload is only copied once, into the send buffer of this link,
+ * so that the header and the payload go out in a single write.
+ * With the default overflow policy the oldest frame is dropped when the ring is full,
+ * so a slow or reconnecting receiver never stalls the capture thread or the other links.
+ *
+ * A second thread reads the pings that the receiver sends to synchronize clocks.
+ * The writer thread answers each one with a pong between two frames,
+ * so only one thread ever writes to the transport.
+ *
+ * When the connection is lost, the writer thread reconnects in the background,
+ * with exponential backoff, until the reconnect timeout expires.
+ * Meanwhile the capture thread keeps queueing frames, and the ring keeps the most recent of them.
+ * Once reconnected, the backlog is sent as fast as the transport allows,
+ * except for frames that are older than the backlog budget, which are dropped.
+ */
+public class ReceiverLink {
+
+  public interface Listener {
+    /**
+     * Called on the writer thread after the connection was lost and could not be reopened
+     * before the reconnect timeout expired.
+     */
+    void onLinkFailed(ReceiverLink link);
+  }
+
+  private static final long PONG_WAIT_NANOS              = 20000000L;  // 20 ms, the longest a pong waits while no frames are sent
+  private static final long RECONNECT_INITIAL_DELAY_MS   = 250;
+  private static final long RECONNECT_MAX_DELAY_MS       = 8000;
+  private static final long DEFAULT_RECONNECT_TIMEOUT_MS = 30000;
+  private static final long DEFAULT_BACKLOG_BUDGET_MS    = 500;
+  private static final long FORMAT_ANSWER_TIMEOUT_MS     = 3000;
+
+  private final TransportConnector connector;
+  private final int                codecId;
+  private final int                maxPayloadSize;
+  private final Listener           listener;
+  private final PooledFrameRing    queue;
+  private final Backoff            backoff;
+  private volatile long            reconnectTimeoutMs;
+  private volatile long            backlogBudgetNanos;
+  private volatile StreamFormat[]  offeredFormats;
+  private volatile StreamFormat    format;  // null until the receiver has chosen
+
+  private volatile Transport       transport;
+  private volatile FrameWriter     frameWriter;
+  private Thread                   thread;
+  private volatile boolean         closed;
+  private volatile boolean         connected;
+  private volatile boolean         transportLost;  // set by the reader thread when the receiver hangs up
+
+  private volatile long            sentFrames;
+  private volatile long            sentBytes;
+  private volatile long            staleFrames;
+  private volatile int             reconnects;
+  private volatile int             reconnectAttempts;
+  private volatile long            reconnectNanos;
+  private volatile long            lastReconnectNanos;
+
+  // written by the reader thread, read by the writer thread
+  private volatile boolean         pongPending;
+  private volatile long            pingSentTime;      // t1, in the receiver's clock
+  private volatile long            pingReceivedTime;  // t2
+  private volatile CountDownLatch  formatAnswered;
+  private volatile StreamFormat    formatAnswer;
+
+  public ReceiverLink(TransportConnector connector, int codecId, int queueCapacity, int maxPayloadSize, Listener listener) {
+    this(connector, codecId, queueCapacity, maxPayloadSize, SpscFrameRing.OVERFLOW_DROP_OLDEST, listener);
+  }
+
+  /**
+   * @param overflowPolicy  what happens to a frame offered when the queue is full, see {@link SpscFrameRing}
+   */
+  public ReceiverLink(TransportConnector connector, int codecId, int queueCapacity, int maxPayloadSize, int overflowPolicy, Listener listener) {
+    if ((maxPayloadSize <= 0) || (maxPayloadSize > FrameFormat.MAX_PAYLOAD_SIZE))
+      throw new IllegalArgumentException("maxPayloadSize");
+
+    this.connector      = connector;
+    this.codecId        = codecId;
+    this.maxPayloadSize = maxPayloadSize;
+    this.listener       = listener;
+    this.queue          = new PooledFrameRing(queueCapacity, overflowPolicy);
+    this.backoff        = new Backoff(RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+    this.transport      = null;
+    this.frameWriter    = null;
+    this.thread         = null;
+    this.closed         = false;
+    this.connected      = false;
+    this.transportLost  = false;
+    this.offeredFormats = new StreamFormat[] {StreamFormat.LEGACY};
+    this.format         = null;
+
+    setReconnectTimeout(DEFAULT_RECONNECT_TIMEOUT_MS);
+    setBacklogBudget(DEFAULT_BACKLOG_BUDGET_MS);
+  }
+
+  /**
+   * Must be called before {@link #open()}.
+   *
+   * @param formats  that the sender can capture, in order of preference
+   */
+  public void setOfferedFormats(StreamFormat[] formats) {
+    if (formats.length == 0)
+      throw new IllegalArgumentException("formats");
+
+    offeredFormats = formats;
+  }
+
+  /**
+   * @return the format chosen by the receiver, or null until connected
+   */
+  public StreamFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * @param timeoutMs  how long to keep trying to reconnect, before the link fails
+   */
+  public void setReconnectTimeout(long timeoutMs) {
+    reconnectTimeoutMs = timeoutMs;
+  }
+
+  /**
+   * Frames that are older than the budget when they are about to be sent are dropped,
+   * so that the backlog of a reconnected link doesn't add more than this much latency.
+   *
+   * The age of a frame is measured from the time at which it was captured,
+   * so the budget must be larger than any delay that is added before it is queued,
+   * for example the pre-roll of silence suppression.
+   *
+   * @param budgetMs  0 to never drop frames because of their age
+   */
+  public void setBacklogBudget(long budgetMs) {
+    backlogBudgetNanos = budgetMs * 1000000L;
+  }
+
+  public TransportConnector getConnector() {
+    return connector;
+  }
+
+  public String getName() {
+    return connector.getName();
+  }
+
+  // -------------------------------------------------------------------------
+  // connection
+
+  /**
+   * Connect, tell the receiver how to decode the stream, and wait for it to choose a format.
+   * Blocks, so it must not be called on the UI thread.
+   *
+   * @throws IOException  when the receiver can't play any of the offered formats, or doesn't answer
+   */
+  public void open() throws Exception {
+    close_transport();
+
+    StreamFormat[] offered = offeredFormats;
+    CountDownLatch answered = new CountDownLatch(1);
+
+    formatAnswered = answered;
+    formatAnswer   = null;
+
+    transport   = connector.connect();
+    frameWriter = new FrameWriter(transport.getOutputStream(), Math.max(Math.max(maxPayloadSize, FrameFormat.PONG_PAYLOAD_SIZE), StreamFormat.getOfferSize(offered.length)));
+
+    int length = StreamFormat.writeOffer(frameWriter.getBuffer(), FrameFormat.HEADER_SIZE, codecId, offered);
+    frameWriter.write(FrameFormat.FLAG_CONFIG, System.nanoTime(), length);
+
+    transportLost = false;
+    startReader(transport);
+
+    StreamFormat answer = null;
+    try {
+      if (answered.await(FORMAT_ANSWER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        answer = formatAnswer;
+    }
+    catch(InterruptedException e) {}
+
+    if ((answer == null) || answer.isNone()) {
+      close_transport();
+      throw new IOException((answer == null) ? "receiver did not answer the format offer" : "receiver can't play any of the offered formats");
+    }
+
+    format         = answer;
+    offeredFormats = new StreamFormat[] {answer};
+    connected      = true;
+  }
+
+  private void startReader(final Transport transport) {
+    Thread reader = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          readLoop(transport);
+        }
+      },
+      "ReceiverLink reader Thread"
+    );
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Start the writer thread. The link must already be open.
+   */
+  public synchronized void start() {
+    if ((thread != null) || closed)
+      return;
+
+    thread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          writeLoop();
+        }
+      },
+      "ReceiverLink Thread"
+    );
+    thread.start();
+  }
+
+  /**
+   * Disconnect and stop the writer thread. Queued frames are discarded.
+   */
+  public void close() {
+    closed    = true;
+    connected = false;
+    queue.close();
+    close_transport();
+
+    // cut short the wait between two attempts to reconnect
+    Thread writerThread = thread;
+    if ((writerThread != null) && (writerThread != Thread.currentThread()))
+      writerThread.interrupt();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @return false while reconnecting
+   */
+  public boolean isConnected() {
+    return connected;
+  }
+
+  private void close_transport() {
+    Transport oldTransport = transport;
+
+    if (oldTransport != null) {
+      transport = null;
+      oldTransport.close();
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // queue
+
+  /**
+   * Queue one encoded frame. Must only be called by one thread.
+   * Never blocks, unless the overflow policy is {@link SpscFrameRing#OVERFLOW_BLOCK}.
+   *
+   * @param frame  the link takes over one reference, and releases it once the frame has been sent or dropped
+   * @return false when the frame was not queued
+   */
+  public boolean offer(PooledFrame frame) {
+    if (frame.getLength() > maxPayloadSize) {
+      frame.release();
+      throw new IllegalArgumentException("length");
+    }
+
+    return queue.offer(frame);
+  }
+
+  private void writeLoop() {
+    PooledFrame frame;
+
+    while (!closed) {
+      FrameWriter writer = frameWriter;
+
+      try {
+        if (transportLost)
+          throw new IOException("connection closed by receiver");
+
+        if (pongPending)
+          writePong(writer);
+
+        frame = queue.take(PONG_WAIT_NANOS);
+        if (frame == null) {
+          if (queue.isClosed())
+            break;
+          continue;
+        }
+
+        try {
+          if (isStale(frame.getTimestamp())) {
+            staleFrames++;
+            continue;
+          }
+
+          writer.write(frame.getFlags(), frame.getTimestamp(), frame.getData(), 0, frame.getLength());
+          sentFrames++;
+          sentBytes += FrameFormat.HEADER_SIZE + frame.getLength();
+        }
+        finally {
+          frame.release();
+        }
+      }
+      catch(Exception e) {
+        // error writing to transport
+        //  1) check whether the link was closed
+        //  2) try to reconnect to the same receiver, until the timeout expires
+        //  3) give up and notify the listener
+
+        if (closed)
+          break;
+
+        if (!reconnect()) {
+          if (closed)
+            break;
+
+          close();
+
+          if (listener != null)
+            listener.onLinkFailed(this);
+          break;
+        }
+      }
+    }
+
+    // give the frames that will never be sent back to the pool
+    queue.clear();
+  }
+
+  private boolean isStale(long timestamp) {
+    long budget = backlogBudgetNanos;
+
+    return (budget > 0) && ((System.nanoTime() - timestamp) > budget);
+  }
+
+  /**
+   * Called on the writer thread. Frames that are offered meanwhile keep being queued.
+   *
+   * @return true when connected again
+   */
+  private boolean reconnect() {
+    long start    = System.nanoTime();
+    long deadline = start + (reconnectTimeoutMs * 1000000L);
+    long remainingMs;
+    long delayMs;
+
+    connected = false;
+    close_transport();
+    backoff.reset();
+
+    while (!closed) {
+      reconnectAttempts++;
+
+      try {
+        open();
+        reconnects++;
+        lastReconnectNanos = System.nanoTime() - start;
+        reconnectNanos    += lastReconnectNanos;
+        return true;
+      }
+      catch(Exception e) {}
+
+      // the last attempt is made when the timeout expires
+      remainingMs = (deadline - System.nanoTime()) / 1000000L;
+      if (remainingMs <= 0)
+        break;
+
+      delayMs = Math.min(backoff.nextDelayMs(), remainingMs);
+
+      try {
+        Thread.sleep(delayMs);
+      }
+      catch(InterruptedException e) {
+        break;
+      }
+    }
+
+    reconnectNanos += System.nanoTime() - start;
+    return false;
+  }
+
+  // -------------------------------------------------------------------------
+  // clock synchronization
+
+  private void writePong(FrameWriter writer) throws Exception {
+    byte[] buffer = writer.getBuffer();
+    int    offset = FrameFormat.HEADER_SIZE;
+    long   now    = System.nanoTime();
+
+    pongPending = false;
+
+    FrameFormat.writeLong(buffer, offset,      pingSentTime);
+    FrameFormat.writeLong(buffer, offset + 8,  pingReceivedTime);
+    FrameFormat.writeLong(buffer, offset + 16, now);
+    writer.write(FrameFormat.FLAG_PONG, now, FrameFormat.PONG_PAYLOAD_SIZE);
+  }
+
+  /**
+   * Read from the receiver until the transport is closed.
+   * Anything other than a ping, or the answer to the format offer, is ignored.
+   */
+  private void readLoop(Transport transport) {
+    FrameParser parser = new FrameParser();
+    Frame frame = new Frame();
+
+    try {
+      InputStream in = transport.getInputStream();
+
+      while (!closed && (parser.readFrom(in) != -1)) {
+        while (parser.next(frame)) {
+          if (frame.hasFlag(FrameFormat.FLAG_PING) && (frame.getPayloadLength() >= FrameFormat.PING_PAYLOAD_SIZE)) {
+            pingReceivedTime = System.nanoTime();
+            pingSentTime     = FrameFormat.readLong(frame.getPayload(), frame.getPayloadOffset());
+            pongPending      = true;
+          }
+          else if (frame.hasFlag(FrameFormat.FLAG_CONFIG) && (frame.getPayloadLength() >= StreamFormat.SIZE)) {
+            formatAnswer = StreamFormat.read(frame.getPayload(), frame.getPayloadOffset());
+            formatAnswered.countDown();
+          }
+        }
+      }
+    }
+    catch(Exception e) {}
+
+    // wake the writer thread, even when no frames are being sent
+    if (transport == this.transport)
+      transportLost = true;
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  /**
+   * @return the number of frames that are waiting to be sent
+   */
+  public int getBacklog() {
+    return queue.size();
+  }
+
+  public int getMaxBacklog() {
+    return queue.getHighWaterMark();
+  }
+
+  public int getQueueCapacity() {
+    return queue.getCapacity();
+  }
+
+  public long getSentFrameCount() {
+    return sentFrames;
+  }
+
+  /**
+   * @return the number of frames that found the queue full.
+   *         Unless the overflow policy is {@link SpscFrameRing#OVERFLOW_BLOCK}, each of them caused a frame to be dropped.
+   */
+  public long getDroppedFrameCount() {
+    return queue.getOverrunCount();
+  }
+
+  public long getSentByteCount() {
+    return sentBytes;
+  }
+
+  /**
+   * @return the number of frames that were dropped because they were older than the backlog budget
+   */
+  public long getStaleFrameCount() {
+    return staleFrames;
+  }
+
+  /**
+   * @return the number of successful reconnects
+   */
+  public int getReconnectCount() {
+    return reconnects;
+  }
+
+  public int getReconnectAttemptCount() {
+    return reconnectAttempts;
+  }
+
+  /**
+   * @return total time spent reconnecting, in nanoseconds, whether or not it succeeded
+   */
+  public long getReconnectNanos() {
+    return reconnectNanos;
+  }
+
+  /**
+   * @return time from losing the connection until it was reopened, the last time that happened, in nanoseconds
+   */
+  public long getLastReconnectNanos() {
+    return lastReconnectNanos;
+  }
+
+  /**
+   * Expose the counters of this link, for example with the prefix: "link.0."
+   */
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "frames_sent", new Gauge() {
+      public long getValue() { return getSentFrameCount(); }
+    });
+    registry.gauge(prefix + "bytes_sent", new Gauge() {
+      public long getValue() { return getSentByteCount(); }
+    });
+    registry.gauge(prefix + "frames_dropped", new Gauge() {
+      public long getValue() { return getDroppedFrameCount(); }
+    });
+    registry.gauge(prefix + "backlog", new Gauge() {
+      public long getValue() { return getBacklog(); }
+    });
+    registry.gauge(prefix + "backlog_max", new Gauge() {
+      public long getValue() { return getMaxBacklog(); }
+    });
+    registry.gauge(prefix + "frames_stale", new Gauge() {
+      public long getValue() { return getStaleFrameCount(); }
+    });
+    registry.gauge(prefix + "connected", new Gauge() {
+      public long getValue() { return isConnected() ? 1 : 0; }
+    });
+    registry.gauge(prefix + "reconnects", new Gauge() {
+      public long getValue() { return getReconnectCount(); }
+    });
+    registry.gauge(prefix + "reconnect_attempts", new Gauge() {
+      public long getValue() { return getReconnectAttemptCount(); }
+    });
+    registry.gauge(prefix + "reconnect_ms", new Gauge() {
+      public long getValue() { return getReconnectNanos() / 1000000L; }
+    });
+    registry.gauge(prefix + "reconnect_last_ms", new Gauge() {
+      public long getValue() { return getLastReconnectNanos() / 1000000L; }
+    });
+  }
+}
@@ -0,0 +1,502 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Backoff;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver side connection state machine.
+ *
+ * <pre>
+ *   IDLE       --start-->              LISTENING
+ *   LISTENING  --accepted-->           STREAMING
+ *   STREAMING  --last session ended--> DRAINING
+ *   DRAINING   --accepted-->           STREAMING
+ *   DRAINING   --drained-->            LISTENING
+ *   any state  --stop-->               IDLE
+ * </pre>
+ *
+ * Every transition happens on one executor thread, in the order that events arrive,
+ * so the state is never touched by two threads at once and the stack depth is fixed.
+ * Blocking work runs on threads of its own, which only post events:
+ * one thread blocks in {@link TransportServer#accept()},
+ * and one thread per sender runs its {@link SenderSession}.
+ *
+ * When accept fails, the listener is closed and reopened after a delay that grows
+ * with each consecutive failure, so a broken listener never spins.
+ * When it can't be reopened, only the listener is given up:
+ * the live sessions keep streaming, and the state machine returns to {@link #STATE_IDLE}
+ * once the last of them has ended and drained.
+ *
+ * {@link #start()} and {@link #stop()} never block, and can be called from any thread,
+ * any number of times, for example from a broadcast of the Bluetooth adapter state.
+ */
+public class ReceiverServer {
+
+  public static final int STATE_IDLE      = 0;
+  public static final int STATE_LISTENING = 1;
+  public static final int STATE_STREAMING = 2;
+  public static final int STATE_DRAINING  = 3;
+
+  /**
+   * All methods are called on the state machine thread.
+   */
+  public interface Callbacks {
+    /**
+     * Open a new listener. May block.
+     */
+    TransportServer openServer() throws Exception;
+
+    /**
+     * The listener could not be opened, and the state machine has returned to {@link #STATE_IDLE}.
+     * While senders are connected, this waits until the last of them has ended.
+     */
+    void onServerFailed(Exception e);
+
+    /**
+     * @return the session that reads from the new connection, or null to reject it
+     */
+    SenderSession onAccepted(Transport transport);
+
+    /**
+     * The session has stopped reading, and its transport is closed.
+     */
+    void onSessionEnded(SenderSession session);
+
+    void onStateChanged(int oldState, int newState);
+  }
+
+  private static final long ACCEPT_INITIAL_DELAY_MS = 250;
+  private static final long ACCEPT_MAX_DELAY_MS     = 8000;
+  private static final int  MAX_OPEN_ATTEMPTS       = 5;
+  private static final long RELEASE_TIMEOUT_MS      = 1000;
+
+  private final Callbacks                   callbacks;
+  private final long                        drainMs;
+  private final ScheduledThreadPoolExecutor executor;
+  private final Backoff                     backoff;
+
+  // only touched on the state machine thread
+  private TransportServer                   server;
+  private final List<SenderSession>         sessions;
+  private ScheduledFuture<?>                drainTask;
+  private ScheduledFuture<?>                reopenTask;
+  private int                               openFailures;
+  private Exception                         listenerFailure;  // the listener was given up, while sessions were live
+
+  private volatile int                      state;
+  private volatile int                      sessionCount;
+  private volatile long                     accepts;
+  private volatile long                     acceptErrors;
+  private volatile long                     rejected;
+  private volatile long                     reopens;
+
+  /**
+   * @param drainMs  how long to keep playing after the last sender disconnects,
+   *                 so that the audio already written to the speaker is heard
+   */
+  public ReceiverServer(Callbacks callbacks, long drainMs) {
+    this.callbacks       = callbacks;
+    this.drainMs         = drainMs;
+    this.backoff         = new Backoff(ACCEPT_INITIAL_DELAY_MS, ACCEPT_MAX_DELAY_MS);
+    this.server          = null;
+    this.sessions        = new ArrayList<SenderSession>();
+    this.drainTask       = null;
+    this.reopenTask      = null;
+    this.openFailures    = 0;
+    this.listenerFailure = null;
+    this.state           = STATE_IDLE;
+
+    this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "ReceiverServer Thread");
+      }
+    });
+    this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  // -------------------------------------------------------------------------
+  // events posted by other threads
+
+  /**
+   * Start listening. Also reopens a listener that was given up while senders were connected.
+   */
+  public void start() {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        handleStart();
+      }
+    });
+  }
+
+  /**
+   * Close the listener and all sessions.
+   */
+  public void stop() {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        handleStop();
+      }
+    });
+  }
+
+  /**
+   * Stop, and then stop the state machine thread.
+   * Waits briefly for the sessions to be closed. Can't be restarted.
+   */
+  public void release() {
+    stop();
+    executor.shutdown();
+
+    try {
+      executor.awaitTermination(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void post(Runnable event) {
+    try {
+      executor.execute(event);
+    }
+    catch(Exception e) {
+      // released
+    }
+  }
+
+  private ScheduledFuture<?> schedule(Runnable event, long delayMs) {
+    try {
+      return executor.schedule(event, delayMs, TimeUnit.MILLISECONDS);
+    }
+    catch(Exception e) {
+      return null;
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // transitions, on the state machine thread
+
+  private void handleStart() {
+    if ((state != STATE_IDLE) && (listenerFailure == null))
+      return;
+
+    listenerFailure = null;
+    openFailures    = 0;
+    backoff.reset();
+    openServer();
+  }
+
+  private void handleStop() {
+    if (state == STATE_IDLE)
+      return;
+
+    cancel(drainTask);
+    cancel(reopenTask);
+    drainTask       = null;
+    reopenTask      = null;
+    listenerFailure = null;
+
+    closeServer();
+
+    // each session thread posts its end, which is handled in the idle state
+    for (SenderSession session : sessions) {
+      session.close();
+    }
+
+    setState(STATE_IDLE);
+  }
+
+  private void handleAccepted(TransportServer acceptedBy, Transport transport) {
+    if ((acceptedBy != server) || (state == STATE_IDLE)) {
+      transport.close();
+      return;
+    }
+
+    accepts++;
+    openFailures = 0;
+    backoff.reset();
+
+    final SenderSession session = callbacks.onAccepted(transport);
+    if (session == null) {
+      rejected++;
+      transport.close();
+      return;
+    }
+
+    sessions.add(session);
+    sessionCount = sessions.size();
+
+    cancel(drainTask);
+    drainTask = null;
+    setState(STATE_STREAMING);
+
+    Thread thread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          session.run();
+          session.close();
+
+          post(new Runnable() {
+            @Override
+            public void run() {
+              handleSessionEnded(session);
+            }
+          });
+        }
+      },
+      "SenderSession Thread"
+    );
+    thread.start();
+  }
+
+  private void handleSessionEnded(SenderSession session) {
+    if (!sessions.remove(session))
+      return;
+
+    sessionCount = sessions.size();
+    callbacks.onSessionEnded(session);
+
+    if (sessions.isEmpty() && (state == STATE_STREAMING)) {
+      setState(STATE_DRAINING);
+
+      drainTask = schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            handleDrained();
+          }
+        },
+        drainMs
+      );
+    }
+  }
+
+  private void handleDrained() {
+    drainTask = null;
+
+    if (state != STATE_DRAINING)
+      return;
+
+    if (listenerFailure != null) {
+      Exception e = listenerFailure;
+
+      handleStop();
+      callbacks.onServerFailed(e);
+    }
+    else {
+      setState(STATE_LISTENING);
+    }
+  }
+
+  private void handleAcceptFailed(TransportServer failed) {
+    if (failed != server)
+      return;  // closed on purpose
+
+    acceptErrors++;
+    closeServer();
+    scheduleReopen();
+  }
+
+  private void handleReopen() {
+    reopenTask = null;
+
+    if ((state == STATE_IDLE) || (server != null))
+      return;
+
+    reopens++;
+    openServer();
+  }
+
+  // -------------------------------------------------------------------------
+  // listener
+
+  private void openServer() {
+    try {
+      server = callbacks.openServer();
+    }
+    catch(Exception e) {
+      server = null;
+      openFailures++;
+
+      if ((openFailures >= MAX_OPEN_ATTEMPTS) && !sessions.isEmpty()) {
+        // give up on the listener, but not on the senders that are already connected
+        listenerFailure = e;
+      }
+      else if (openFailures >= MAX_OPEN_ATTEMPTS) {
+        handleStop();
+        callbacks.onServerFailed(e);
+      }
+      else {
+        // the first attempt also counts as listening, so that stop() can cancel the retries
+        if (state == STATE_IDLE)
+          setState(STATE_LISTENING);
+
+        scheduleReopen();
+      }
+      return;
+    }
+
+    if (state == STATE_IDLE)
+      setState(STATE_LISTENING);
+
+    startAcceptThread(server);
+  }
+
+  private void closeServer() {
+    TransportServer oldServer = server;
+
+    if (oldServer != null) {
+      server = null;
+      oldServer.close();
+    }
+  }
+
+  private void scheduleReopen() {
+    reopenTask = schedule(
+      new Runnable() {
+        @Override
+        public void run() {
+          handleReopen();
+        }
+      },
+      backoff.nextDelayMs()
+    );
+  }
+
+  /**
+   * Accept until the listener fails or is closed, then post the failure and stop.
+   */
+  private void startAcceptThread(final TransportServer acceptingServer) {
+    Thread thread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          while (true) {
+            final Transport transport;
+
+            try {
+              transport = acceptingServer.accept();
+            }
+            catch(Exception e) {
+              post(new Runnable() {
+                @Override
+                public void run() {
+                  handleAcceptFailed(acceptingServer);
+                }
+              });
+              return;
+            }
+
+            post(new Runnable() {
+              @Override
+              public void run() {
+                handleAccepted(acceptingServer, transport);
+              }
+            });
+          }
+        }
+      },
+      "ReceiverServer accept Thread"
+    );
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // -------------------------------------------------------------------------
+  // helpers
+
+  private void setState(int newState) {
+    int oldState = state;
+    if (oldState == newState)
+      return;
+
+    state = newState;
+    callbacks.onStateChanged(oldState, newState);
+  }
+
+  private static void cancel(ScheduledFuture<?> task) {
+    if (task != null)
+      task.cancel(false);
+  }
+
+  public static String getStateName(int state) {
+    switch(state) {
+      case STATE_IDLE:      return "idle";
+      case STATE_LISTENING: return "listening";
+      case STATE_STREAMING: return "streaming";
+      case STATE_DRAINING:  return "draining";
+      default:              return "unknown";
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  public int getState() {
+    return state;
+  }
+
+  public int getSessionCount() {
+    return sessionCount;
+  }
+
+  public long getAcceptCount() {
+    return accepts;
+  }
+
+  public long getAcceptErrorCount() {
+    return acceptErrors;
+  }
+
+  /**
+   * @return the number of connections that were accepted, then rejected by {@link Callbacks#onAccepted}
+   */
+  public long getRejectedCount() {
+    return rejected;
+  }
+
+  /**
+   * @return the number of times the listener was reopened after a failure
+   */
+  public long getReopenCount() {
+    return reopens;
+  }
+
+  /**
+   * Expose the counters of this server, for example with the prefix: "server."
+   */
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "state", new Gauge() {
+      public long getValue() { return getState(); }
+    });
+    registry.gauge(prefix + "sessions", new Gauge() {
+      public long getValue() { return getSessionCount(); }
+    });
+    registry.gauge(prefix + "accepts", new Gauge() {
+      public long getValue() { return getAcceptCount(); }
+    });
+    registry.gauge(prefix + "accept_errors", new Gauge() {
+      public long getValue() { return getAcceptErrorCount(); }
+    });
+    registry.gauge(prefix + "rejected", new Gauge() {
+      public long getValue() { return getRejectedCount(); }
+    });
+    registry.gauge(prefix + "reopens", new Gauge() {
+      public long getValue() { return getReopenCount(); }
+    });
+  }
+}
@@ -0,0 +1,454 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioSource;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.DriftCompensator;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.JitterBuffer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodec;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodecs;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.LatencyHistogram;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.Frame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameParser;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameWriter;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.StreamFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Receiver side of one connected sender.
+ *
+ * The sender opens the stream with the codec it uses, and the formats it can capture.
+ * The session answers with the format that it plays, or closes when that wasn't offered.
+ *
+ * {@link #run()} reads and decodes frames on the calling thread,
+ * and hands the audio to the playout thread through a lock-free ring.
+ * The playout thread moves it into a jitter buffer owned by this session, and pulls from it through {@link AudioSource#read},
+ * at a rate that is nudged to follow the drift between the sender's clock and the speaker's.
+ * So the playout thread never waits on the thread that reads the socket.
+ *
+ * While the sender suppresses silence, the gaps are filled locally,
+ * with silence or with low level comfort noise.
+ *
+ * Once per second the session pings the sender, to estimate the offset between both clocks.
+ * The playout thread reports when each chunk will reach the speaker through {@link #recordPlayout},
+ * and the difference from the time that chunk was captured is the end-to-end latency.
+ */
+public class SenderSession implements AudioSource {
+  private static final int CAPACITY_MS  = 3000;
+  private static final int MIN_DEPTH_MS = 40;
+  private static final int MAX_DEPTH_MS = 300;
+  private static final int SLACK_MS     = 60;
+  private static final long PING_INTERVAL_NANOS = 1000000000L;
+
+  // a frame of decoded audio is handed off in pieces of up to this many samples,
+  // each preceded by the time at which it arrived
+  private static final int HANDOFF_FRAMES      = 128;
+  private static final int HANDOFF_MAX_SAMPLES = 1024;
+  private static final int HANDOFF_HEADER_SIZE = 8;
+
+  private final Transport    transport;
+  private final StreamFormat[] playableFormats;
+  private volatile StreamFormat format;  // null until the stream is configured
+  private final JitterBuffer jitterBuffer;
+  private final DriftCompensator drift;
+  private final SpscFrameRing handoff;
+  private final byte[]       handoffBuffer;  // used by the thread that reads the socket
+  private final byte[]       drainBuffer;    // used by the playout thread
+  private final short[]      drainSamples;
+  private final FrameParser  frameParser;
+  private final Frame        frame;
+  private AudioCodec         audioCodec;
+  private short[]            samples;
+  private volatile boolean   closed;
+
+  private volatile int       comfortNoiseAmplitude;
+  private int                noiseSeed;
+  private volatile long      silenceFrames;
+  private volatile long      receivedFrames;
+  private volatile long      receivedBytes;
+
+  // latency
+  private final ClockOffsetEstimator clock;
+  private final LatencyHistogram     latency;
+  private FrameWriter        controlWriter;  // pings, and the answer to the format offer
+  private long               lastPingTime;
+  private long               lastReadSenderTime;
+  private boolean            lastReadPlayed;
+
+  /**
+   * @param sampleRate  of the playout thread; the sender must send mono audio at this rate
+   */
+  public SenderSession(Transport transport, int sampleRate, int maxChunkSamples) {
+    this.transport    = transport;
+    this.playableFormats = new StreamFormat[] {new StreamFormat(sampleRate, 1)};
+    this.format       = null;
+    this.jitterBuffer = new JitterBuffer(sampleRate, CAPACITY_MS, MIN_DEPTH_MS, MAX_DEPTH_MS, SLACK_MS, DriftCompensator.getMaxPullSamples(maxChunkSamples));
+    this.drift        = new DriftCompensator(jitterBuffer, maxChunkSamples);
+    this.handoff      = new SpscFrameRing(HANDOFF_FRAMES, HANDOFF_HEADER_SIZE + (2 * HANDOFF_MAX_SAMPLES), SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    this.handoffBuffer = new byte[handoff.getMaxFrameSize()];
+    this.drainBuffer  = new byte[handoff.getMaxFrameSize()];
+    this.drainSamples = new short[HANDOFF_MAX_SAMPLES];
+    this.frameParser  = new FrameParser();
+    this.frame        = new Frame();
+    this.audioCodec   = null;
+    this.samples      = new short[FrameFormat.MAX_PAYLOAD_SIZE * AudioCodecs.MAX_SAMPLES_PER_BYTE];
+    this.closed       = false;
+    this.noiseSeed    = 1;
+    this.clock        = new ClockOffsetEstimator();
+    this.latency      = new LatencyHistogram();
+    this.controlWriter = null;
+  }
+
+  /**
+   * @param amplitude  peak level of the noise that fills suppressed silence, 0 for digital silence
+   */
+  public void setComfortNoiseAmplitude(int amplitude) {
+    comfortNoiseAmplitude = Math.max(0, Math.min(Short.MAX_VALUE, amplitude));
+  }
+
+  /**
+   * @return the number of silence markers received
+   */
+  public long getSilenceFrameCount() {
+    return silenceFrames;
+  }
+
+  public String getName() {
+    return transport.getName();
+  }
+
+  public JitterBuffer getJitterBuffer() {
+    return jitterBuffer;
+  }
+
+  public DriftCompensator getDriftCompensator() {
+    return drift;
+  }
+
+  public long getLostFrameCount() {
+    return frameParser.getLostFrameCount();
+  }
+
+  public long getReceivedFrameCount() {
+    return receivedFrames;
+  }
+
+  public long getReceivedByteCount() {
+    return receivedBytes;
+  }
+
+  /**
+   * @return the number of pieces of audio that were dropped,
+   *         because the playout thread didn't take them before the ring between the threads filled up
+   */
+  public long getHandoffOverrunCount() {
+    return handoff.getOverrunCount();
+  }
+
+  /**
+   * Expose the counters of this session, for example with the prefix: "session.0."
+   */
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "frames_received", new Gauge() {
+      public long getValue() { return getReceivedFrameCount(); }
+    });
+    registry.gauge(prefix + "bytes_received", new Gauge() {
+      public long getValue() { return getReceivedByteCount(); }
+    });
+    registry.gauge(prefix + "frames_lost", new Gauge() {
+      public long getValue() { return getLostFrameCount(); }
+    });
+    registry.gauge(prefix + "resyncs", new Gauge() {
+      public long getValue() { return frameParser.getResyncCount(); }
+    });
+    registry.gauge(prefix + "silence_frames", new Gauge() {
+      public long getValue() { return getSilenceFrameCount(); }
+    });
+    registry.gauge(prefix + "handoff_overruns", new Gauge() {
+      public long getValue() { return getHandoffOverrunCount(); }
+    });
+    registry.gauge(prefix + "jitter_depth_ms", new Gauge() {
+      public long getValue() { return jitterBuffer.getDepthMs(); }
+    });
+    registry.gauge(prefix + "jitter_target_ms", new Gauge() {
+      public long getValue() { return jitterBuffer.getTargetDepthMs(); }
+    });
+    registry.gauge(prefix + "jitter_us", new Gauge() {
+      public long getValue() { return (long) (jitterBuffer.getJitterMs() * 1000); }
+    });
+    registry.gauge(prefix + "jitter_underruns", new Gauge() {
+      public long getValue() { return jitterBuffer.getUnderrunCount(); }
+    });
+    registry.gauge(prefix + "jitter_trimmed_samples", new Gauge() {
+      public long getValue() { return jitterBuffer.getTrimmedSamples(); }
+    });
+    registry.gauge(prefix + "jitter_compressed_samples", new Gauge() {
+      public long getValue() { return jitterBuffer.getCompressedSamples(); }
+    });
+    registry.gauge(prefix + "drift_ppm", new Gauge() {
+      public long getValue() { return Math.round(drift.getDriftPpm()); }
+    });
+    registry.gauge(prefix + "drift_ratio_ppm", new Gauge() {
+      public long getValue() { return Math.round((drift.getRatio() - 1.0) * 1000000); }
+    });
+    registry.gauge(prefix + "latency_p50_ms", new Gauge() {
+      public long getValue() { return latency.getPercentile(50) / 1000; }
+    });
+    registry.gauge(prefix + "latency_p99_ms", new Gauge() {
+      public long getValue() { return latency.getPercentile(99) / 1000; }
+    });
+  }
+
+  /**
+   * @return the format agreed with the sender, {@link StreamFormat#NONE} when there was none, or null until the stream is configured
+   */
+  public StreamFormat getFormat() {
+    return format;
+  }
+
+  public ClockOffsetEstimator getClockOffsetEstimator() {
+    return clock;
+  }
+
+  /**
+   * @return end-to-end latency of this sender, from capture to speaker
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latency;
+  }
+
+  /**
+   * Read from the sender until it disconnects, or the session is closed.
+   */
+  public void run() {
+    InputStream audioStream;
+    OutputStream controlStream;
+
+    try {
+      audioStream   = transport.getInputStream();
+      controlStream = transport.getOutputStream();
+    }
+    catch(Exception e) {
+      close();
+      return;
+    }
+
+    controlWriter = new FrameWriter(controlStream, Math.max(FrameFormat.PING_PAYLOAD_SIZE, StreamFormat.SIZE));
+
+    while (!closed) {
+      try {
+        int count = frameParser.readFrom(audioStream);
+        if (count == -1)
+          break;
+
+        receivedBytes += count;
+      }
+      catch(Exception e) {
+        break;
+      }
+
+      while (frameParser.next(frame)) {
+        processFrame(frame);
+      }
+
+      sendPing();
+    }
+    close();
+  }
+
+  private void sendPing() {
+    long now = System.nanoTime();
+
+    if ((controlWriter == null) || ((now - lastPingTime) < PING_INTERVAL_NANOS))
+      return;
+
+    lastPingTime = now;
+
+    try {
+      FrameFormat.writeLong(controlWriter.getBuffer(), FrameFormat.HEADER_SIZE, now);
+      controlWriter.write(FrameFormat.FLAG_PING, now, FrameFormat.PING_PAYLOAD_SIZE);
+    }
+    catch(Exception e) {
+      // the sender may not be able to receive; measuring latency is optional
+      controlWriter = null;
+    }
+  }
+
+  private void processFrame(Frame frame) {
+    receivedFrames++;
+
+    if (frame.hasFlag(FrameFormat.FLAG_PONG)) {
+      if (frame.getPayloadLength() >= FrameFormat.PONG_PAYLOAD_SIZE) {
+        byte[] payload = frame.getPayload();
+        int    offset  = frame.getPayloadOffset();
+
+        clock.addSample(
+          FrameFormat.readLong(payload, offset),
+          FrameFormat.readLong(payload, offset + 8),
+          FrameFormat.readLong(payload, offset + 16),
+          System.nanoTime()
+        );
+      }
+      return;
+    }
+
+    if (frame.hasFlag(FrameFormat.FLAG_CONFIG)) {
+      configure(frame.getPayload(), frame.getPayloadOffset(), frame.getPayloadLength());
+      return;
+    }
+
+    // ignore audio until the stream has been configured
+    if (audioCodec == null)
+      return;
+
+    if (frame.hasFlag(FrameFormat.FLAG_SILENCE)) {
+      if (frame.getPayloadLength() >= FrameFormat.SILENCE_PAYLOAD_SIZE) {
+        int sampleCount = Math.min(samples.length, FrameFormat.readUnsignedShort(frame.getPayload(), frame.getPayloadOffset()));
+
+        fillSilence(samples, 0, sampleCount);
+        handOff(samples, sampleCount, frame.getTimestamp(), System.nanoTime());
+        silenceFrames++;
+      }
+      return;
+    }
+
+    int sampleCount = audioCodec.decode(frame.getPayload(), frame.getPayloadOffset(), frame.getPayloadLength(), samples, 0);
+
+    if (sampleCount > 0)
+      handOff(samples, sampleCount, frame.getTimestamp(), System.nanoTime());
+  }
+
+  /**
+   * Queue decoded audio for the playout thread.
+   *
+   * A frame that doesn't fit in one piece is split.
+   * Each piece is stamped as if it had arrived as far after the first as it was captured,
+   * so that splitting a frame doesn't look like jitter.
+   */
+  private void handOff(short[] samples, int count, long senderTime, long arrivalTime) {
+    int  sampleRate = jitterBuffer.getSampleRate();
+    long offsetNanos;
+    int  length;
+
+    for (int offset = 0; offset < count; offset += HANDOFF_MAX_SAMPLES) {
+      offsetNanos = ((long) offset * 1000000000L) / sampleRate;
+      length      = Math.min(HANDOFF_MAX_SAMPLES, count - offset);
+
+      FrameFormat.writeLong(handoffBuffer, 0, arrivalTime + offsetNanos);
+      PcmUtils.shortsToBytes(samples, offset, length, handoffBuffer, HANDOFF_HEADER_SIZE);
+      handoff.offer(handoffBuffer, 0, HANDOFF_HEADER_SIZE + (2 * length), senderTime + offsetNanos);
+    }
+  }
+
+  /**
+   * Move the audio that has been handed off into the jitter buffer. Called by the playout thread.
+   */
+  private void drainHandoff() {
+    int length;
+    int count;
+
+    while ((length = handoff.take(drainBuffer, 0, 0)) >= HANDOFF_HEADER_SIZE) {
+      count = PcmUtils.bytesToShorts(drainBuffer, HANDOFF_HEADER_SIZE, length - HANDOFF_HEADER_SIZE, drainSamples, 0);
+
+      jitterBuffer.push(drainSamples, 0, count, handoff.getLastTimestamp(), FrameFormat.readLong(drainBuffer, 0));
+    }
+  }
+
+  /**
+   * The client identifies the codec used to compress the stream,
+   * and offers the formats that it can capture.
+   */
+  private void configure(byte[] payload, int offset, int length) {
+    StreamFormat[] offered = StreamFormat.readOffer(payload, offset, length);
+    StreamFormat chosen    = StreamFormat.select(offered, playableFormats);
+
+    audioCodec = (length > 0)
+      ? AudioCodecs.create(payload[offset] & 0xff)
+      : null;
+
+    format = chosen;
+
+    try {
+      chosen.write(controlWriter.getBuffer(), FrameFormat.HEADER_SIZE);
+      controlWriter.write(FrameFormat.FLAG_CONFIG, System.nanoTime(), StreamFormat.SIZE);
+    }
+    catch(Exception e) {
+      close();
+      return;
+    }
+
+    if (chosen.isNone()) {
+      audioCodec = null;
+      close();
+    }
+  }
+
+  private void fillSilence(short[] out, int offset, int count) {
+    int amplitude = comfortNoiseAmplitude;
+
+    if (amplitude == 0) {
+      for (int i = offset; i < offset + count; i++) {
+        out[i] = 0;
+      }
+      return;
+    }
+
+    // linear congruential generator, uniform over [-amplitude, amplitude]
+    int seed  = noiseSeed;
+    int range = (2 * amplitude) + 1;
+    for (int i = offset; i < offset + count; i++) {
+      seed   = (seed * 1103515245) + 12345;
+      out[i] = (short) ((((seed >>> 16) & 0x7fff) % range) - amplitude);
+    }
+    noiseSeed = seed;
+  }
+
+  @Override
+  public boolean read(short[] out, int offset, int count) {
+    drainHandoff();
+
+    int result = drift.pull(out, offset, count);
+
+    lastReadPlayed = (result == JitterBuffer.PULL_PLAYED);
+    if (lastReadPlayed)
+      lastReadSenderTime = drift.getLastPulledSenderTime();
+
+    return result != JitterBuffer.PULL_SILENCE;
+  }
+
+  /**
+   * Called by the playout thread after {@link #read}.
+   *
+   * @param presentationTime  local time at which the first sample of the chunk is heard
+   * @return the latency of the chunk in nanoseconds,
+   *         or -1 when it contained no audio from the sender, or the clocks haven't been synchronized yet
+   */
+  public long recordPlayout(long presentationTime) {
+    if (!lastReadPlayed || !clock.isValid())
+      return -1;
+
+    long latencyNanos = presentationTime - clock.toLocalTime(lastReadSenderTime);
+
+    latency.recordNanos(latencyNanos);
+    return latencyNanos;
+  }
+
+  /**
+   * Disconnect. A thread blocked in {@link #run()} returns promptly.
+   */
+  public void close() {
+    closed = true;
+    handoff.close();
+    transport.close();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,181 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.VoiceActivityDetector;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+
+/**
+ * Sender side stage that replaces encoded frames of silence with small markers.
+ *
+ * Each frame is classified by a {@link VoiceActivityDetector},
+ * then held in a short delay line before it is passed on.
+ * A frame leaves the delay line as audio when speech was detected in it,
+ * or in any of the frames that arrived after it while it was delayed.
+ * This is the pre-roll: the quiet onset of a word is sent,
+ * even though the detector only reacts once the level has risen.
+ *
+ * Otherwise a {@link FrameFormat#FLAG_SILENCE} marker is passed on instead,
+ * which tells the receiver how many samples to fill,
+ * and also keeps the connection alive.
+ * The marker is written over the payload of the frame it replaces.
+ *
+ * Frames are delayed by reference, and are never copied.
+ * All storage is allocated by the constructor.
+ * Must only be used by one thread.
+ */
+public class SilenceSuppressor {
+  private final VoiceActivityDetector vad;
+  private final PooledFrameRing       out;
+
+  // delay line of encoded frames
+  private final PooledFrame[] frames;
+  private final int[]     sampleCounts;
+  private int             head;
+  private int             count;
+
+  private long            frameIndex;
+  private long            lastSpeechIndex;
+
+  // bytes on the wire, including frame headers
+  private volatile long   inputBytes;
+  private volatile long   outputBytes;
+  private volatile long   suppressedFrames;
+
+  /**
+   * @param prerollFrames  number of frames to delay, so that they can still be sent when speech starts
+   * @param out            receives the frames that should be sent
+   */
+  public SilenceSuppressor(VoiceActivityDetector vad, int prerollFrames, PooledFrameRing out) {
+    if (prerollFrames < 0)
+      throw new IllegalArgumentException("prerollFrames");
+
+    this.vad          = vad;
+    this.out          = out;
+    this.frames       = new PooledFrame[prerollFrames];
+    this.sampleCounts = new int[prerollFrames];
+    reset();
+  }
+
+  /**
+   * @return the number of frames that are held back, which is also the most that this stage holds at a time
+   */
+  public int getPrerollFrames() {
+    return frames.length;
+  }
+
+  /**
+   * Frames that are still delayed are released, rather than passed on.
+   */
+  public void reset() {
+    vad.reset();
+
+    while (count > 0) {
+      frames[head].release();
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      count--;
+    }
+
+    head            = 0;
+    count           = 0;
+    frameIndex      = 0;
+    lastSpeechIndex = -1;
+  }
+
+  /**
+   * Classify and delay one frame.
+   *
+   * @param pcm      the samples that were encoded, used only for classification
+   * @param encoded  the encoded payload, whose only reference is handed over to this stage
+   */
+  public void process(short[] pcm, int pcmOffset, int sampleCount, PooledFrame encoded) {
+    long index = frameIndex++;
+
+    if (vad.process(pcm, pcmOffset, sampleCount))
+      lastSpeechIndex = index;
+
+    if (frames.length == 0) {
+      emit(index, encoded, sampleCount);
+      return;
+    }
+
+    if (count == frames.length)
+      emitOldest();
+
+    int tail = (head + count) % frames.length;
+    frames[tail]       = encoded;
+    sampleCounts[tail] = sampleCount;
+    count++;
+  }
+
+  /**
+   * Pass on all delayed frames, for example when transmission is stopped.
+   */
+  public void flush() {
+    while (count > 0) {
+      emitOldest();
+    }
+  }
+
+  private void emitOldest() {
+    long index = frameIndex - count;
+
+    PooledFrame frame = frames[head];
+
+    frames[head] = null;
+    emit(index, frame, sampleCounts[head]);
+
+    head = (head + 1) % frames.length;
+    count--;
+  }
+
+  private void emit(long index, PooledFrame encoded, int sampleCount) {
+    inputBytes += FrameFormat.HEADER_SIZE + encoded.getLength();
+
+    if (index > lastSpeechIndex) {
+      // the frame hasn't been shared yet, so it can be overwritten
+      FrameFormat.writeUnsignedShort(encoded.getData(), 0, sampleCount);
+      encoded.set(FrameFormat.SILENCE_PAYLOAD_SIZE, encoded.getTimestamp(), FrameFormat.FLAG_SILENCE);
+      suppressedFrames++;
+    }
+
+    outputBytes += FrameFormat.HEADER_SIZE + encoded.getLength();
+    out.offer(encoded);
+  }
+
+  // -------------------------------------------------------------------------
+  // counters
+
+  public boolean isSpeech() {
+    return vad.isSpeech();
+  }
+
+  /**
+   * @return the number of bytes that would have been sent without silence suppression
+   */
+  public long getInputBytes() {
+    return inputBytes;
+  }
+
+  /**
+   * @return the number of bytes that were sent
+   */
+  public long getOutputBytes() {
+    return outputBytes;
+  }
+
+  public long getSuppressedFrameCount() {
+    return suppressedFrames;
+  }
+
+  /**
+   * @return the fraction of bandwidth saved, from 0.0 to 1.0
+   */
+  public float getSavedRatio() {
+    long input  = inputBytes;
+    long output = outputBytes;
+
+    return (input > 0) ? (float) (input - output) / input : 0.0f;
+  }
+}
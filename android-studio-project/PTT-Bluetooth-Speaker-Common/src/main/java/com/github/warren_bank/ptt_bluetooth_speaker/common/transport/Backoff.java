@@ -0,0 +1,68 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, for retrying a connection.
+ *
+ * The delay doubles after each failed attempt, up to a maximum.
+ * Each delay is randomized between half of its value and its full value,
+ * so that several devices that lost their connections at the same moment
+ * don't all retry at the same moment.
+ *
+ * Must only be used by one thread.
+ */
+public class Backoff {
+  private final long   initialDelayMs;
+  private final long   maxDelayMs;
+  private final Random random;
+
+  private long         delayMs;
+  private int          attempts;
+
+  public Backoff(long initialDelayMs, long maxDelayMs) {
+    if ((initialDelayMs <= 0) || (maxDelayMs < initialDelayMs))
+      throw new IllegalArgumentException("delay");
+
+    this.initialDelayMs = initialDelayMs;
+    this.maxDelayMs     = maxDelayMs;
+    this.random         = new Random();
+    reset();
+  }
+
+  /**
+   * Start over, for example after a successful attempt.
+   */
+  public void reset() {
+    delayMs  = initialDelayMs;
+    attempts = 0;
+  }
+
+  /**
+   * @return how long to wait before the next attempt, in milliseconds
+   */
+  public long nextDelayMs() {
+    long delay = delayMs;
+
+    delayMs = Math.min(delayMs * 2, maxDelayMs);
+    attempts++;
+
+    return (delay / 2) + (long) (random.nextDouble() * ((delay / 2) + 1));
+  }
+
+  /**
+   * Wait before the next attempt.
+   *
+   * @throws InterruptedException  when the wait is cut short, for example because the connection was closed
+   */
+  public void sleep() throws InterruptedException {
+    Thread.sleep(nextDelayMs());
+  }
+
+  /**
+   * @return the number of delays since the last reset
+   */
+  public int getAttemptCount() {
+    return attempts;
+  }
+}
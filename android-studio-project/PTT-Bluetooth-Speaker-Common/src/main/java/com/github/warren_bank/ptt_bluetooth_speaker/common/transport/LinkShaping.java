@@ -0,0 +1,45 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+/**
+ * Characteristics of a simulated link, used by {@link LoopbackTransport}.
+ */
+public class LinkShaping {
+  public static final LinkShaping NONE = new LinkShaping(0, 0, 0, 0L);
+
+  private final long bandwidthBytesPerSecond;
+  private final int  latencyMs;
+  private final int  jitterMs;
+  private final long seed;
+
+  /**
+   * @param bandwidthBytesPerSecond  0 for unlimited
+   * @param latencyMs  fixed one-way delay
+   * @param jitterMs   upper bound of an additional random delay, uniformly distributed
+   * @param seed       for the random delay, so that a simulation can be repeated
+   */
+  public LinkShaping(long bandwidthBytesPerSecond, int latencyMs, int jitterMs, long seed) {
+    if ((bandwidthBytesPerSecond < 0) || (latencyMs < 0) || (jitterMs < 0))
+      throw new IllegalArgumentException();
+
+    this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    this.latencyMs               = latencyMs;
+    this.jitterMs                = jitterMs;
+    this.seed                    = seed;
+  }
+
+  public long getBandwidthBytesPerSecond() {
+    return bandwidthBytesPerSecond;
+  }
+
+  public int getLatencyMs() {
+    return latencyMs;
+  }
+
+  public int getJitterMs() {
+    return jitterMs;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+}
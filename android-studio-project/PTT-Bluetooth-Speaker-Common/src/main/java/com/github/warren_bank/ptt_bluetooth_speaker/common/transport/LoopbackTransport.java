@@ -0,0 +1,250 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * In-memory transport, for benchmarks and soak tests that run without Bluetooth hardware.
+ *
+ * Each direction is a bounded pipe.
+ * Every write is delivered to the reader after a delay that models the configured
+ * {@link LinkShaping}: serialization at the link bandwidth, fixed latency, and random jitter.
+ * Data is always delivered in order.
+ */
+public class LoopbackTransport implements Transport {
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+  private final ShapedPipe   inbound;
+  private final ShapedPipe   outbound;
+  private final String       name;
+  private final InputStream  inputStream;
+  private final OutputStream outputStream;
+
+  private LoopbackTransport(ShapedPipe inbound, ShapedPipe outbound, String name) {
+    this.inbound      = inbound;
+    this.outbound     = outbound;
+    this.name         = name;
+    this.inputStream  = new PipeInputStream(inbound);
+    this.outputStream = new PipeOutputStream(outbound);
+  }
+
+  /**
+   * @return two connected ends: [0] for the sender, [1] for the receiver
+   */
+  public static LoopbackTransport[] createPair(LinkShaping shaping) {
+    return createPair(shaping, shaping, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param upstream    shaping of data written by the sender
+   * @param downstream  shaping of data written by the receiver
+   * @param capacity    bytes that can be in flight in each direction before a write blocks
+   */
+  public static LoopbackTransport[] createPair(LinkShaping upstream, LinkShaping downstream, int capacity) {
+    ShapedPipe up   = new ShapedPipe(upstream,   capacity);
+    ShapedPipe down = new ShapedPipe(downstream, capacity);
+
+    return new LoopbackTransport[] {
+      new LoopbackTransport(/* inbound= */ down, /* outbound= */ up,   "loopback://receiver"),
+      new LoopbackTransport(/* inbound= */ up,   /* outbound= */ down, "loopback://sender")
+    };
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    inbound.close();
+    outbound.close();
+  }
+
+  // -------------------------------------------------------------------------
+  // internal
+
+  private static final class Chunk {
+    final byte[] data;
+    final long   deliverAt;
+    int          offset;
+
+    Chunk(byte[] data, long deliverAt) {
+      this.data      = data;
+      this.deliverAt = deliverAt;
+      this.offset    = 0;
+    }
+  }
+
+  private static final class ShapedPipe {
+    private final LinkShaping      shaping;
+    private final Random           random;
+    private final int              capacity;
+    private final ArrayDeque<Chunk> chunks;
+    private int                    buffered;
+    private long                   linkFreeAt;
+    private long                   lastDeliverAt;
+    private boolean                closed;
+
+    ShapedPipe(LinkShaping shaping, int capacity) {
+      this.shaping  = shaping;
+      this.random   = new Random(shaping.getSeed());
+      this.capacity = capacity;
+      this.chunks   = new ArrayDeque<Chunk>();
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        while (!closed && (buffered >= capacity)) {
+          waitFor(0L);
+        }
+        if (closed)
+          throw new IOException("closed");
+
+        int count = Math.min(len, capacity - buffered);
+        byte[] data = new byte[count];
+        System.arraycopy(b, off, data, 0, count);
+
+        chunks.addLast(new Chunk(data, getDeliveryTime(count)));
+        buffered += count;
+        off      += count;
+        len      -= count;
+        notifyAll();
+      }
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+
+      while (true) {
+        Chunk head = chunks.peekFirst();
+
+        if (head == null) {
+          if (closed) return -1;
+          waitFor(0L);
+          continue;
+        }
+
+        long delay = head.deliverAt - System.nanoTime();
+        if (delay > 0) {
+          if (closed) return -1;
+          waitFor(delay);
+          continue;
+        }
+
+        // copy from every chunk that is already due
+        int count = 0;
+        while ((head != null) && (count < len) && (head.deliverAt <= System.nanoTime())) {
+          int n = Math.min(len - count, head.data.length - head.offset);
+          System.arraycopy(head.data, head.offset, b, off + count, n);
+          head.offset += n;
+          count       += n;
+
+          if (head.offset == head.data.length) {
+            chunks.removeFirst();
+            head = chunks.peekFirst();
+          }
+        }
+        buffered -= count;
+        notifyAll();
+        return count;
+      }
+    }
+
+    synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    private long getDeliveryTime(int count) {
+      long now       = System.nanoTime();
+      long bandwidth = shaping.getBandwidthBytesPerSecond();
+
+      linkFreeAt = Math.max(now, linkFreeAt);
+      if (bandwidth > 0)
+        linkFreeAt += (count * 1000000000L) / bandwidth;
+
+      long delay = shaping.getLatencyMs() * 1000000L;
+      if (shaping.getJitterMs() > 0)
+        delay += (long) (random.nextDouble() * shaping.getJitterMs() * 1000000L);
+
+      // never reorder
+      lastDeliverAt = Math.max(lastDeliverAt, linkFreeAt + delay);
+      return lastDeliverAt;
+    }
+
+    private void waitFor(long nanos) throws IOException {
+      try {
+        if (nanos <= 0)
+          wait();
+        else
+          wait(nanos / 1000000L, (int) (nanos % 1000000L));
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted");
+      }
+    }
+  }
+
+  private static final class PipeInputStream extends InputStream {
+    private final ShapedPipe pipe;
+    private final byte[]     single = new byte[1];
+
+    PipeInputStream(ShapedPipe pipe) {
+      this.pipe = pipe;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int n = pipe.read(single, 0, 1);
+      return (n <= 0) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return pipe.read(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      pipe.close();
+    }
+  }
+
+  private static final class PipeOutputStream extends OutputStream {
+    private final ShapedPipe pipe;
+
+    PipeOutputStream(ShapedPipe pipe) {
+      this.pipe = pipe;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      pipe.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      pipe.write(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      pipe.close();
+    }
+  }
+}
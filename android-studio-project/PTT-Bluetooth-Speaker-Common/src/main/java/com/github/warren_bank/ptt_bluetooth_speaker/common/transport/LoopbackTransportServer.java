@@ -0,0 +1,79 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * In-memory counterpart to a listening socket.
+ *
+ * {@link #connect()} plays the role of the sender:
+ * it returns one end of a new {@link LoopbackTransport},
+ * and the other end is handed to the next call to {@link #accept()}.
+ */
+public class LoopbackTransportServer implements TransportServer {
+  private final LinkShaping                  shaping;
+  private final ArrayDeque<LoopbackTransport> pending;
+  private boolean                            closed;
+
+  public LoopbackTransportServer(LinkShaping shaping) {
+    this.shaping = shaping;
+    this.pending = new ArrayDeque<LoopbackTransport>();
+    this.closed  = false;
+  }
+
+  public synchronized Transport connect() throws IOException {
+    if (closed)
+      throw new IOException("connection refused");
+
+    LoopbackTransport[] pair = LoopbackTransport.createPair(shaping);
+    pending.addLast(pair[1]);
+    notifyAll();
+    return pair[0];
+  }
+
+  public TransportConnector connector() {
+    return new TransportConnector() {
+      @Override
+      public Transport connect() throws IOException {
+        return LoopbackTransportServer.this.connect();
+      }
+
+      @Override
+      public String getName() {
+        return LoopbackTransportServer.this.getName();
+      }
+    };
+  }
+
+  @Override
+  public synchronized Transport accept() throws IOException {
+    while (!closed && pending.isEmpty()) {
+      try {
+        wait();
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted");
+      }
+    }
+    if (closed)
+      throw new IOException("closed");
+
+    return pending.removeFirst();
+  }
+
+  @Override
+  public String getName() {
+    return "loopback://";
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+
+    while (!pending.isEmpty()) {
+      pending.removeFirst().close();
+    }
+    notifyAll();
+  }
+}
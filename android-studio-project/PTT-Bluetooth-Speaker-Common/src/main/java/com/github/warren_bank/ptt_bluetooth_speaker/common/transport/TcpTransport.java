@@ -0,0 +1,107 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP over Wi-Fi or Wi-Fi Direct.
+ */
+public class TcpTransport implements Transport {
+  public static final int DEFAULT_PORT       = 5555;
+  public static final int CONNECT_TIMEOUT_MS = 5000;
+
+  private final Socket socket;
+  private final String name;
+
+  public TcpTransport(Socket socket) throws IOException {
+    // frames are small and latency sensitive: don't wait to coalesce them
+    socket.setTcpNoDelay(true);
+
+    this.socket = socket;
+    this.name   = "tcp://" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+  }
+
+  public static TcpTransport connect(String host, int port) throws IOException {
+    Socket socket = new Socket();
+
+    try {
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+      return new TcpTransport(socket);
+    }
+    catch(IOException e) {
+      try {
+        socket.close();
+      }
+      catch(Exception e2) {}
+      throw e;
+    }
+  }
+
+  public static TransportConnector connector(final String host, final int port) {
+    return new TransportConnector() {
+      @Override
+      public Transport connect() throws IOException {
+        return TcpTransport.connect(host, port);
+      }
+
+      @Override
+      public String getName() {
+        return "tcp://" + host + ":" + port;
+      }
+    };
+  }
+
+  /**
+   * @param address "host" or "host:port"
+   * @return null when the address can't be parsed
+   */
+  public static TransportConnector connector(String address) {
+    if (address == null) return null;
+
+    address = address.trim();
+    if (address.isEmpty()) return null;
+
+    int colon = address.lastIndexOf(':');
+    if (colon < 0)
+      return connector(address, DEFAULT_PORT);
+
+    try {
+      int port = Integer.parseInt(address.substring(colon + 1).trim(), 10);
+      String host = address.substring(0, colon).trim();
+
+      if (host.isEmpty() || (port <= 0) || (port > 65535))
+        return null;
+
+      return connector(host, port);
+    }
+    catch(NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    }
+    catch(Exception e) {}
+  }
+}
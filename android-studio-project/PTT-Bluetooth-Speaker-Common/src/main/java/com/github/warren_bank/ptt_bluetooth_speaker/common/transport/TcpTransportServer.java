@@ -0,0 +1,71 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+public class TcpTransportServer implements TransportServer {
+  private final ServerSocket server;
+
+  public TcpTransportServer(int port) throws IOException {
+    this.server = new ServerSocket(port);
+    this.server.setReuseAddress(true);
+  }
+
+  @Override
+  public Transport accept() throws IOException {
+    return new TcpTransport(server.accept());
+  }
+
+  @Override
+  public String getName() {
+    return "tcp://*:" + server.getLocalPort();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  @Override
+  public void close() {
+    try {
+      server.close();
+    }
+    catch(Exception e) {}
+  }
+
+  /**
+   * @return the IPv4 addresses of all network interfaces that are up, excluding loopback,
+   *         so the user can be told where to point the sender
+   */
+  public static List<String> getLocalAddresses() {
+    List<String> addresses = new ArrayList<String>();
+
+    try {
+      Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+
+      while ((interfaces != null) && interfaces.hasMoreElements()) {
+        NetworkInterface networkInterface = interfaces.nextElement();
+
+        if (!networkInterface.isUp() || networkInterface.isLoopback())
+          continue;
+
+        Enumeration<InetAddress> inetAddresses = networkInterface.getInetAddresses();
+        while (inetAddresses.hasMoreElements()) {
+          InetAddress inetAddress = inetAddresses.nextElement();
+
+          if (inetAddress instanceof Inet4Address)
+            addresses.add(inetAddress.getHostAddress());
+        }
+      }
+    }
+    catch(Exception e) {}
+
+    return addresses;
+  }
+}
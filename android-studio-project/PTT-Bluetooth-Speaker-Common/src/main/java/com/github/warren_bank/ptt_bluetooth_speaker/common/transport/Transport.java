@@ -0,0 +1,30 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected, bidirectional byte stream between a sender and a receiver.
+ *
+ * The audio pipeline only depends on this interface,
+ * so the same code runs over Bluetooth RFCOMM, TCP, or an in-memory loopback.
+ */
+public interface Transport {
+
+  public InputStream getInputStream() throws IOException;
+
+  public OutputStream getOutputStream() throws IOException;
+
+  /**
+   * @return a description of the remote end, for logging: "rfcomm://00:11:22:33:44:55", "tcp://192.168.1.2:5555", etc
+   */
+  public String getName();
+
+  /**
+   * Close the connection. Any thread that is blocked on a read or write is released.
+   * Never throws.
+   */
+  public void close();
+
+}
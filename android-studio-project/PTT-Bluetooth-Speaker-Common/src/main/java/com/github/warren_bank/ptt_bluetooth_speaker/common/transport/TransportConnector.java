@@ -0,0 +1,18 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+
+/**
+ * Remembers how to reach one receiver,
+ * so the sender can open a new connection to it whenever the previous one is lost.
+ */
+public interface TransportConnector {
+
+  /**
+   * Block until a new connection has been established.
+   */
+  public Transport connect() throws IOException;
+
+  public String getName();
+
+}
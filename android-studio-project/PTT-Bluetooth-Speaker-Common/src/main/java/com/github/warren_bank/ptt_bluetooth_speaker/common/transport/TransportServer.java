@@ -0,0 +1,25 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.transport;
+
+import java.io.IOException;
+
+/**
+ * Listens for connections from senders.
+ */
+public interface TransportServer {
+
+  /**
+   * Block until a sender connects.
+   *
+   * @throws IOException when the server is closed, or the underlying listener fails
+   */
+  public Transport accept() throws IOException;
+
+  public String getName();
+
+  /**
+   * Stop listening. A thread that is blocked in {@link #accept()} is released.
+   * Never throws.
+   */
+  public void close();
+
+}
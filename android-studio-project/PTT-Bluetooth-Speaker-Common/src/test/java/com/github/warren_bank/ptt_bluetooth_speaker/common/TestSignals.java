@@ -0,0 +1,87 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common;
+
+import java.util.Random;
+
+/**
+ * Synthetic audio, and the measurements that the tests make on it.
+ */
+public final class TestSignals {
+  public static final int SAMPLE_RATE = 16000;
+
+  private TestSignals() {}
+
+  /**
+   * A few harmonics of a voiced fundamental plus noise, peaking near the given amplitude.
+   */
+  public static short[] speechLike(int count, int amplitude, long seed) {
+    Random random = new Random(seed);
+    short[] signal = new short[count];
+    double value;
+
+    for (int i = 0; i < count; i++) {
+      value  = 0;
+      value += 0.6  * Math.sin((2 * Math.PI * 140 * i) / SAMPLE_RATE);
+      value += 0.3  * Math.sin((2 * Math.PI * 280 * i) / SAMPLE_RATE);
+      value += 0.15 * Math.sin((2 * Math.PI * 560 * i) / SAMPLE_RATE);
+      value += 0.05 * random.nextGaussian();
+
+      signal[i] = clip(amplitude * value);
+    }
+    return signal;
+  }
+
+  public static short[] sine(int count, double frequency, int amplitude) {
+    short[] signal = new short[count];
+
+    for (int i = 0; i < count; i++) {
+      signal[i] = clip(amplitude * Math.sin((2 * Math.PI * frequency * i) / SAMPLE_RATE));
+    }
+    return signal;
+  }
+
+  /**
+   * Gaussian white noise, whose root mean square is the given amplitude.
+   */
+  public static short[] noise(int count, double amplitude, long seed) {
+    Random random = new Random(seed);
+    short[] signal = new short[count];
+
+    for (int i = 0; i < count; i++) {
+      signal[i] = clip(amplitude * random.nextGaussian());
+    }
+    return signal;
+  }
+
+  public static short clip(double value) {
+    return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+  }
+
+  /**
+   * @return the signal to noise ratio of {@code actual} against {@code expected}, in dB
+   */
+  public static double snrDb(short[] expected, int expectedOffset, short[] actual, int actualOffset, int count) {
+    double signal = 0;
+    double noise  = 0;
+    double error;
+
+    for (int i = 0; i < count; i++) {
+      error   = actual[actualOffset + i] - expected[expectedOffset + i];
+      signal += (double) expected[expectedOffset + i] * expected[expectedOffset + i];
+      noise  += error * error;
+    }
+
+    return (noise == 0) ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+  }
+
+  /**
+   * @return the root mean square level, in dBFS
+   */
+  public static double rmsDbfs(short[] samples, int offset, int count) {
+    double sum = 0;
+
+    for (int i = offset; i < offset + count; i++) {
+      sum += (double) samples[i] * samples[i];
+    }
+    return 20 * Math.log10(Math.sqrt(sum / Math.max(1, count)) / Short.MAX_VALUE + 1e-12);
+  }
+}
@@ -0,0 +1,277 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes synthetic audio in each supported format to a temporary directory, and reads it back as 16-bit mono.
+ */
+public class AudioFileSourceTest {
+  private static final int SAMPLE_RATE = TestSignals.SAMPLE_RATE;
+  private static final int READ_COUNT  = 320;
+  private static final int LENGTH      = 4000;
+
+  private static final int FORMAT_PCM        = 1;
+  private static final int FORMAT_FLOAT      = 3;
+  private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  /**
+   * Each format holds the 16-bit samples exactly, except 8-bit, which holds their top byte.
+   */
+  @Test
+  public void readsPcmOfEachSize() throws IOException {
+    short[] signal = TestSignals.speechLike(LENGTH, 20000, 1);
+
+    for (int bits : new int[] {16, 24, 32}) {
+      File f = wav("pcm" + bits + ".wav", FORMAT_PCM, false, 1, SAMPLE_RATE, bits, encode(signal, bits, false), 0);
+      assertArrayEquals(bits + "-bit", signal, readAll(open(f)));
+    }
+
+    short[] coarse = new short[LENGTH];
+    for (int i = 0; i < LENGTH; i++) {
+      coarse[i] = (short) (signal[i] & 0xFF00);
+    }
+    File f = wav("pcm8.wav", FORMAT_PCM, false, 1, SAMPLE_RATE, 8, encode(coarse, 8, false), 0);
+    assertArrayEquals("8-bit", coarse, readAll(open(f)));
+  }
+
+  @Test
+  public void readsFloat() throws IOException {
+    short[] signal = TestSignals.speechLike(LENGTH, 20000, 2);
+    File    f      = wav("float.wav", FORMAT_FLOAT, false, 1, SAMPLE_RATE, 32, encode(signal, 32, true), 0);
+
+    assertArrayEquals(signal, readAll(open(f)));
+  }
+
+  /**
+   * The format is taken from the sub-format of WAVE_FORMAT_EXTENSIBLE, and the channels are averaged.
+   */
+  @Test
+  public void readsExtensibleAndAveragesChannels() throws IOException {
+    short[] left   = TestSignals.speechLike(LENGTH, 20000, 3);
+    short[] right  = TestSignals.sine(LENGTH, 440, 10000);
+    short[] stereo = new short[2 * LENGTH];
+    short[] mono   = new short[LENGTH];
+
+    for (int i = 0; i < LENGTH; i++) {
+      stereo[2 * i]       = left[i];
+      stereo[(2 * i) + 1] = right[i];
+      mono[i]             = (short) ((left[i] + right[i]) / 2);
+    }
+
+    File pcm = wav("extensible-pcm.wav", FORMAT_PCM, true, 2, SAMPLE_RATE, 24, encode(stereo, 24, false), 0);
+    File flt = wav("extensible-float.wav", FORMAT_FLOAT, true, 2, SAMPLE_RATE, 32, encode(stereo, 32, true), 0);
+
+    AudioFileSource source = open(pcm);
+    assertEquals(2, source.getChannelCount());
+    assertEquals((LENGTH * 1000L) / SAMPLE_RATE, source.getDurationMs());
+    assertArrayEquals("PCM", mono, readAll(source));
+    assertArrayEquals("float", mono, readAll(open(flt)));
+  }
+
+  /**
+   * A header that was never patched, by a recorder that stopped early, claims more audio than there is.
+   */
+  @Test
+  public void readsToTheEndOfAnOversizedDataChunk() throws IOException {
+    short[] signal = TestSignals.speechLike(LENGTH, 20000, 4);
+
+    for (int claimed : new int[] {10 * LENGTH, Integer.MAX_VALUE}) {
+      File            f      = wav("unpatched-" + claimed + ".wav", FORMAT_PCM, false, 1, SAMPLE_RATE, 16, encode(signal, 16, false), claimed);
+      AudioFileSource source = open(f);
+
+      assertEquals((LENGTH * 1000L) / SAMPLE_RATE, source.getDurationMs());
+      assertArrayEquals("claimed " + claimed + " bytes", signal, readAll(source));
+    }
+  }
+
+  @Test
+  public void rejectsUnsupportedFiles() throws IOException {
+    byte[] data = new byte[100];
+
+    assertRejected(wav("pcm12.wav",    FORMAT_PCM,   false, 1, SAMPLE_RATE, 12, data, 0));
+    assertRejected(wav("float64.wav",  FORMAT_FLOAT, false, 1, SAMPLE_RATE, 64, data, 0));
+    assertRejected(wav("mulaw.wav",    7,            false, 1, SAMPLE_RATE, 8,  data, 0));
+    assertRejected(write("short.wav",  new byte[8]));
+    assertRejected(write("riff.wav",   data));
+  }
+
+  /**
+   * A 44.1 kHz file is read at 16 kHz, to its end, including the samples still in the filter.
+   */
+  @Test
+  public void readsAResampledFileToItsEnd() throws IOException {
+    int     inputRate = 44100;
+    int     length    = inputRate * 2;
+    short[] signal    = new short[length];
+
+    // a 1 kHz tone, at the rate of the file
+    for (int i = 0; i < length; i++) {
+      signal[i] = (short) (10000 * Math.sin((2 * Math.PI * 1000 * i) / inputRate));
+    }
+
+    File            f      = wav("44100.wav", FORMAT_PCM, false, 1, inputRate, 16, encode(signal, 16, false), 0);
+    AudioFileSource source = open(f);
+    short[]         out    = new short[4 * SAMPLE_RATE];
+    int             total  = 0;
+    int             count;
+
+    assertEquals(inputRate, source.getSampleRate());
+
+    while ((count = source.read(out, total, READ_COUNT)) == READ_COUNT) {
+      total += count;
+    }
+    total += count;
+
+    // the file, plus the filter flushed out after its end
+    long expected = ((long) length * SAMPLE_RATE) / inputRate;
+    long flushed  = ((long) Resampler.TAPS * SAMPLE_RATE) / inputRate;
+    assertTrue("read " + total + " samples, expected " + expected, (total >= expected) && (total <= (expected + flushed + 1)));
+    assertEquals(0, source.read(out, total, READ_COUNT));
+
+    // the tone comes through at its level, away from the edges
+    double sum = 0;
+    for (int i = SAMPLE_RATE / 10; i < (expected - (SAMPLE_RATE / 10)); i++) {
+      sum += (double) out[i] * out[i];
+    }
+    double rms = Math.sqrt(sum / (expected - (SAMPLE_RATE / 5)));
+    assertEquals(10000 / Math.sqrt(2), rms, 100);
+  }
+
+  @Test
+  public void readsRawPcmAtTheGivenRate() throws IOException {
+    short[]         signal = TestSignals.speechLike(LENGTH, 20000, 5);
+    File            f      = write("raw.pcm", encode(signal, 16, false));
+    AudioFileSource source = new AudioFileSource(f, SAMPLE_RATE, READ_COUNT, SAMPLE_RATE);
+
+    assertEquals(SAMPLE_RATE, source.getSampleRate());
+    assertArrayEquals(signal, readAll(source));
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static AudioFileSource open(File f) throws IOException {
+    return new AudioFileSource(f, SAMPLE_RATE, READ_COUNT, AudioFileSource.DEFAULT_RAW_SAMPLE_RATE);
+  }
+
+  /**
+   * Read in chunks of {@link #READ_COUNT}, as the sender does, until a read comes up short.
+   */
+  private static short[] readAll(AudioFileSource source) {
+    short[] out   = new short[2 * LENGTH];
+    int     total = 0;
+    int     count;
+
+    do {
+      count  = source.read(out, total, READ_COUNT);
+      total += count;
+    } while (count == READ_COUNT);
+
+    short[] samples = new short[total];
+    System.arraycopy(out, 0, samples, 0, total);
+    return samples;
+  }
+
+  private static void assertRejected(File f) {
+    try {
+      open(f);
+      fail(f.getName() + " was accepted");
+    }
+    catch(IOException e) {}
+  }
+
+  /**
+   * @param samples  interleaved
+   */
+  private static byte[] encode(short[] samples, int bits, boolean isFloat) {
+    ByteBuffer out = ByteBuffer.allocate(samples.length * (bits / 8)).order(ByteOrder.LITTLE_ENDIAN);
+
+    for (short sample : samples) {
+      if (isFloat) {
+        out.putFloat(sample / (float) Short.MAX_VALUE);
+        continue;
+      }
+
+      switch(bits) {
+        case 8:
+          out.put((byte) ((sample >> 8) + 128));
+          break;
+        case 16:
+          out.putShort(sample);
+          break;
+        case 24:
+          out.put((byte) 0x5A).putShort(sample);
+          break;
+        default:
+          out.putShort((short) 0x5A5A).putShort(sample);
+          break;
+      }
+    }
+    return out.array();
+  }
+
+  /**
+   * A WAV file with a "LIST" chunk of odd length between "fmt " and "data", which has to be skipped, with its pad byte.
+   *
+   * @param claimedSize  the size written in the header of the data chunk, or 0 for the actual size
+   */
+  private File wav(String name, int format, boolean extensible, int channels, int rate, int bits, byte[] data, int claimedSize) throws IOException {
+    int        fmtSize = extensible ? 40 : 16;
+    ByteBuffer out     = ByteBuffer.allocate(12 + (8 + fmtSize) + (8 + 5 + 1) + 8 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+
+    out.put("RIFF".getBytes("US-ASCII")).putInt(out.capacity() - 8).put("WAVE".getBytes("US-ASCII"));
+
+    out.put("fmt ".getBytes("US-ASCII")).putInt(fmtSize);
+    out.putShort((short) (extensible ? FORMAT_EXTENSIBLE : format));
+    out.putShort((short) channels);
+    out.putInt(rate);
+    out.putInt(rate * channels * (bits / 8));
+    out.putShort((short) (channels * (bits / 8)));
+    out.putShort((short) bits);
+    if (extensible) {
+      out.putShort((short) 22);         // size of the extension
+      out.putShort((short) bits);       // valid bits per sample
+      out.putInt(0);                    // channel mask
+      out.putShort((short) format);     // the sub-format GUID, which starts with the format code
+      out.put(new byte[] {0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71});
+    }
+
+    out.put("LIST".getBytes("US-ASCII")).putInt(5).put(new byte[] {'I', 'N', 'F', 'O', 0}).put((byte) 0);
+
+    out.put("data".getBytes("US-ASCII")).putInt((claimedSize > 0) ? claimedSize : data.length);
+    out.put(data);
+
+    return write(name, out.array());
+  }
+
+  private File write(String name, byte[] bytes) throws IOException {
+    File             f   = new File(temp.getRoot(), name);
+    FileOutputStream out = new FileOutputStream(f);
+
+    try {
+      out.write(bytes);
+    }
+    finally {
+      out.close();
+    }
+    return f;
+  }
+}
@@ -0,0 +1,161 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Replays synthetic underrun counts to the controller, as the playout thread reports them every 100 ms.
+ */
+public class BufferSizeControllerTest {
+  private static final int  BURST     = 96;
+  private static final int  MAX       = 500;   // 5 bursts and a bit
+  private static final long UPDATE_MS = 100;
+  private static final long SHRINK_MS = BufferSizeController.SHRINK_AFTER_MS;
+
+  @Test
+  public void firstUpdateOnlySetsTheBaseline() {
+    Speaker speaker = new Speaker(1000);
+
+    assertEquals(BURST, speaker.controller.getBufferFrames());
+    assertEquals(-1,    speaker.run(UPDATE_MS * 10));
+    assertEquals(BURST, speaker.controller.getBufferFrames());
+    assertEquals(0,     speaker.controller.getGrowCount());
+  }
+
+  /**
+   * One burst for each update that saw an underrun, however many there were.
+   */
+  @Test
+  public void growsByABurstOnAnUnderrun() {
+    Speaker speaker = new Speaker(0);
+
+    speaker.underrun(1);
+    assertEquals(2 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(BufferSizeController.DECISION_GROW, speaker.controller.getLastDecision());
+
+    speaker.underrun(5);
+    assertEquals(3 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(2, speaker.controller.getGrowCount());
+  }
+
+  /**
+   * Down by one burst after each {@link BufferSizeController#SHRINK_AFTER_MS} without an underrun, to one burst and no further.
+   */
+  @Test
+  public void shrinksAfterAQuietInterval() {
+    Speaker speaker = new Speaker(0);
+
+    speaker.underrun(1);
+    speaker.underrun(1);
+    assertEquals(3 * BURST, speaker.controller.getBufferFrames());
+
+    assertEquals(SHRINK_MS, speaker.run(10 * SHRINK_MS));
+    assertEquals(2 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(BufferSizeController.DECISION_SHRINK, speaker.controller.getLastDecision());
+
+    assertEquals(SHRINK_MS, speaker.run(10 * SHRINK_MS));
+    assertEquals(BURST, speaker.controller.getBufferFrames());
+
+    assertEquals(-1, speaker.run(10 * SHRINK_MS));
+    assertEquals(BURST, speaker.controller.getBufferFrames());
+    assertEquals(2, speaker.controller.getShrinkCount());
+  }
+
+  /**
+   * Each shrink that is followed by an underrun doubles the wait before the next one, up to the limit.
+   * A shrink that holds brings the wait back down.
+   */
+  @Test
+  public void failedProbesDoubleTheInterval() {
+    Speaker speaker = new Speaker(0);
+    long    wait    = SHRINK_MS;
+
+    speaker.underrun(1);
+    speaker.underrun(1);
+    speaker.underrun(1);
+    assertEquals(4 * BURST, speaker.controller.getBufferFrames());
+
+    for (int probe = 0; probe < 8; probe++) {
+      assertEquals("probe " + probe, wait, speaker.run(2 * BufferSizeController.MAX_SHRINK_AFTER_MS));
+      assertEquals(3 * BURST, speaker.controller.getBufferFrames());
+
+      // the probe fails
+      speaker.underrun(1);
+      assertEquals(4 * BURST, speaker.controller.getBufferFrames());
+
+      wait = Math.min(BufferSizeController.MAX_SHRINK_AFTER_MS, 2 * wait);
+    }
+    assertEquals(BufferSizeController.MAX_SHRINK_AFTER_MS, wait);
+
+    // this probe holds, so the one after it is made sooner
+    assertEquals(wait, speaker.run(2 * wait));
+    assertEquals(3 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(wait, speaker.run(2 * wait));
+    assertEquals(2 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(SHRINK_MS, speaker.run(2 * wait));
+    assertEquals(BURST, speaker.controller.getBufferFrames());
+  }
+
+  /**
+   * The ceiling is rounded down to a whole number of bursts, and underruns beyond it are only counted.
+   */
+  @Test
+  public void neverGrowsPastTheCeiling() {
+    Speaker speaker = new Speaker(0);
+
+    assertEquals(5 * BURST, speaker.controller.getMaxFrames());
+
+    for (int i = 0; i < 4; i++) {
+      speaker.underrun(1);
+    }
+    assertEquals(5 * BURST, speaker.controller.getBufferFrames());
+
+    speaker.underrun(3);
+    speaker.underrun(2);
+    assertEquals(5 * BURST, speaker.controller.getBufferFrames());
+    assertEquals(BufferSizeController.DECISION_CAPPED, speaker.controller.getLastDecision());
+    assertEquals(5, speaker.controller.getCappedUnderrunCount());
+    assertEquals(4, speaker.controller.getGrowCount());
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * The total underrun count that a speaker reports, and the clock.
+   */
+  private static final class Speaker {
+    final BufferSizeController controller = new BufferSizeController(BURST, MAX);
+
+    long underruns;
+    long nowMs = 1000000;
+
+    Speaker(long underruns) {
+      this.underruns = underruns;
+      controller.update(underruns, nowMs);
+    }
+
+    void underrun(int count) {
+      underruns += count;
+      nowMs     += UPDATE_MS;
+      controller.update(underruns, nowMs);
+    }
+
+    /**
+     * Update without underruns, until the size changes.
+     *
+     * @return the time until it changed, or -1 when it didn't change within {@code durationMs}
+     */
+    long run(long durationMs) {
+      int  frames = controller.getBufferFrames();
+      long start  = nowMs;
+
+      while ((nowMs - start) < durationMs) {
+        nowMs += UPDATE_MS;
+        if (controller.update(underruns, nowMs) != frames)
+          return nowMs - start;
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The direct buffer that audio is read into and written from, and its view as samples.
+ */
+public class DirectPcmBufferTest {
+  private static final int CAPACITY = 320;
+
+  @Test
+  public void samplesAreSeenInTheBytesInNativeOrder() {
+    DirectPcmBuffer buffer = new DirectPcmBuffer(CAPACITY);
+    short[]         in     = TestSignals.speechLike(CAPACITY, 20000, 1);
+    short[]         out    = new short[CAPACITY];
+
+    assertEquals(CAPACITY, buffer.getCapacity());
+
+    buffer.put(in, 0, CAPACITY);
+    buffer.get(out, 0, CAPACITY);
+    assertArrayEquals(in, out);
+
+    // the bytes of the first 100 samples, as the platform's audio I/O sees them
+    ByteBuffer bytes = buffer.getBytes(100);
+    assertTrue(bytes.isDirect());
+    assertEquals(ByteOrder.nativeOrder(), bytes.order());
+    assertEquals(0, bytes.position());
+    assertEquals(200, bytes.remaining());
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals("sample " + i, in[i], bytes.getShort(i * 2));
+    }
+
+    // a write through the bytes is seen in the samples
+    bytes.putShort(2, (short) -1234);
+    assertEquals(-1234, buffer.getSamples().get(1));
+  }
+
+  @Test
+  public void putAndGetStartAtTheFirstSample() {
+    DirectPcmBuffer buffer = new DirectPcmBuffer(CAPACITY);
+    short[]         in     = TestSignals.sine(CAPACITY, 440, 10000);
+    short[]         out    = new short[CAPACITY];
+
+    buffer.put(in, 0, CAPACITY);
+    buffer.put(in, 50, 10);
+    buffer.get(out, 5, 10);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(in[50 + i], buffer.getSamples().get(i));
+      assertEquals(in[50 + i], out[5 + i]);
+    }
+    assertEquals(in[10], buffer.getSamples().get(10));
+  }
+
+  /**
+   * The recorder converts the samples in the buffer as it would convert an array.
+   */
+  @Test
+  public void convertsToLittleEndianBytesLikeAnArray() {
+    DirectPcmBuffer buffer    = new DirectPcmBuffer(CAPACITY);
+    short[]         in        = TestSignals.speechLike(CAPACITY, 30000, 2);
+    byte[]          fromArray = new byte[CAPACITY * 2];
+    byte[]          fromView  = new byte[CAPACITY * 2];
+
+    buffer.put(in, 0, CAPACITY);
+
+    assertEquals(CAPACITY * 2, PcmUtils.shortsToBytes(in, 0, CAPACITY, fromArray, 0));
+    assertEquals(CAPACITY * 2, PcmUtils.shortsToBytes(buffer.getSamples(), CAPACITY, fromView, 0));
+    assertArrayEquals(fromArray, fromView);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bytesBeyondTheCapacityAreRejected() {
+    new DirectPcmBuffer(CAPACITY).getBytes(CAPACITY + 1);
+  }
+}
@@ -0,0 +1,134 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Runs the pacer on a simulated clock, whose thread wakes up late by a random amount,
+ * and checks each deadline against the exact time at which its last sample would have been captured.
+ */
+public class FramePacerTest {
+  private static final long SECOND_NS   = 1000000000L;
+  private static final long MS          = 1000000L;
+  private static final long HOUR_NS     = 3600 * SECOND_NS;
+  private static final long START_NS    = Long.MAX_VALUE - (2 * HOUR_NS);  // nanoTime() may wrap during the stream
+  private static final int  MAX_LATE_MS = FramePacer.DEFAULT_MAX_LATE_MS;
+
+  /**
+   * An hour of frames of varied sizes, at rates that don't divide a second into whole nanoseconds.
+   */
+  @Test
+  public void anHourOfFramesAccumulatesNoError() {
+    for (int sampleRate : new int[] {8000, 16000, 22050, 44100, 48000}) {
+      SimulatedPacer pacer   = new SimulatedPacer(sampleRate, 3 * MS, 1);
+      Random         random  = new Random(sampleRate);
+      long           total   = 3600L * sampleRate;
+      long           samples = 0;
+      int            count;
+
+      while (samples < total) {
+        count    = (int) Math.min(total - samples, 1 + random.nextInt(sampleRate / 20));
+        samples += count;
+
+        long deadline = pacer.await(count);
+        assertEquals(sampleRate + " Hz, after " + samples + " samples", START_NS + exactNanos(samples, sampleRate), deadline);
+        assertTrue(pacer.now - deadline >= 0);
+      }
+
+      assertEquals(START_NS + HOUR_NS, pacer.await(0));
+      assertEquals(0, pacer.getResyncCount());
+    }
+  }
+
+  /**
+   * A stall longer than {@code maxLateMs} moves the schedule forward by the time lost, rather than releasing a burst.
+   * A shorter one is made up for.
+   */
+  @Test
+  public void aLongStallMovesTheScheduleForward() {
+    int            sampleRate = 44100;
+    int            count      = 441;   // 10 ms
+    SimulatedPacer pacer      = new SimulatedPacer(sampleRate, 0, 2);
+    long           samples    = 0;
+    long           start      = START_NS;
+    long           deadline;
+
+    for (int i = 0; i < 100; i++) {
+      samples += count;
+      assertEquals(start + exactNanos(samples, sampleRate), pacer.await(count));
+    }
+
+    // late, but within the limit: the next frames are released at once, until the schedule is caught up
+    pacer.now += (MAX_LATE_MS - 50) * MS;
+
+    for (int i = 0; i < 20; i++) {
+      samples += count;
+      assertEquals(start + exactNanos(samples, sampleRate), pacer.await(count));
+    }
+    assertEquals(0, pacer.getResyncCount());
+
+    // a stall of 5 seconds
+    pacer.now += 5 * SECOND_NS;
+    samples   += count;
+    deadline   = pacer.await(count);
+
+    assertEquals(1, pacer.getResyncCount());
+    assertEquals(pacer.now, deadline);
+
+    start = deadline - exactNanos(samples, sampleRate);
+
+    // the frames after it are paced from where the stall ended, with no burst
+    long parks = pacer.parks;
+    for (int i = 0; i < 1000; i++) {
+      samples += count;
+      assertEquals(start + exactNanos(samples, sampleRate), pacer.await(count));
+    }
+    assertEquals(1, pacer.getResyncCount());
+    assertEquals(parks + 1000, pacer.parks);
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * @return the time at which the last of {@code samples} would be captured, rounded down to a whole nanosecond
+   */
+  private static long exactNanos(long samples, int sampleRate) {
+    return (samples * SECOND_NS) / sampleRate;
+  }
+
+  /**
+   * Each park wakes up late, by up to {@code maxOversleep}.
+   */
+  private static final class SimulatedPacer extends FramePacer {
+    private final long   maxOversleep;
+    private final Random random;
+
+    long now;
+    long parks = 0;
+
+    SimulatedPacer(int sampleRate, long maxOversleep, long seed) {
+      super(sampleRate, MAX_LATE_MS);
+
+      this.maxOversleep = maxOversleep;
+      this.random       = new Random(seed);
+      this.now          = START_NS;
+
+      reset();
+    }
+
+    @Override
+    long nanoTime() {
+      return now;
+    }
+
+    @Override
+    void parkNanos(long nanos) {
+      now += nanos + ((maxOversleep > 0) ? (long) (random.nextDouble() * maxOversleep) : 0);
+      parks++;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Records synthetic audio into a temporary directory,
+ * then reads back each segment, its header, and the samples in it.
+ */
+public class WavSegmentRecorderTest {
+  private static final int  SAMPLE_RATE   = TestSignals.SAMPLE_RATE;
+  private static final int  FRAME_SAMPLES = 320;   // 20 ms
+  private static final int  HEADER_SIZE   = 44;
+  private static final long QUOTA_BYTES   = 10000000L;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  /**
+   * A segment that is closed early, by a pause or by stopping, is patched and trimmed to the audio in it.
+   */
+  @Test
+  public void segmentsClosedEarlyArePatchedAndTrimmed() throws IOException {
+    WavSegmentRecorder recorder = new WavSegmentRecorder(temp.getRoot(), SAMPLE_RATE, FRAME_SAMPLES, 10000, QUOTA_BYTES);
+    short[]            signal   = TestSignals.speechLike(15 * FRAME_SAMPLES, 20000, 1);
+
+    recorder.start();
+    write(recorder, signal, 0, 10);
+    recorder.endSegment();
+    write(recorder, signal, 10, 5);
+    recorder.stop();
+
+    File[] files = recorder.getSegmentFiles();
+
+    assertEquals(2, files.length);
+    assertEquals(HEADER_SIZE + (10 * FRAME_SAMPLES * 2), files[0].length());
+    assertEquals(HEADER_SIZE + (5  * FRAME_SAMPLES * 2), files[1].length());
+    assertArrayEquals(slice(signal, 0,                  10 * FRAME_SAMPLES), readSegment(files[0]));
+    assertArrayEquals(slice(signal, 10 * FRAME_SAMPLES, 5  * FRAME_SAMPLES), readSegment(files[1]));
+
+    assertEquals(15, recorder.getWrittenFrameCount());
+    assertEquals(0,  recorder.getDroppedFrameCount());
+    assertEquals(0,  recorder.getErrorCount());
+
+    // no more chunks are accepted
+    assertFalse(recorder.write(signal, 0, FRAME_SAMPLES));
+  }
+
+  /**
+   * Chunks that don't divide the segment evenly are split across two files, without losing a sample.
+   */
+  @Test
+  public void rotatesWhenASegmentIsFull() throws IOException {
+    int                segmentSamples = (SAMPLE_RATE * 100) / 1000;
+    int                chunkSamples   = 300;
+    WavSegmentRecorder recorder       = new WavSegmentRecorder(temp.getRoot(), SAMPLE_RATE, FRAME_SAMPLES, 100, QUOTA_BYTES);
+    short[]            signal         = TestSignals.speechLike(12 * chunkSamples, 20000, 2);
+
+    recorder.start();
+    for (int i = 0; i < signal.length; i += chunkSamples) {
+      assertTrue(recorder.write(signal, i, chunkSamples));
+    }
+    recorder.stop();
+
+    File[] files = recorder.getSegmentFiles();
+
+    // 3600 samples: 2 full segments of 1600, then 400
+    assertEquals(3, files.length);
+    assertEquals(3, recorder.getSegmentCount());
+    for (int i = 0; i < files.length; i++) {
+      int start = i * segmentSamples;
+      int count = Math.min(segmentSamples, signal.length - start);
+
+      assertEquals(files[i].getName(), HEADER_SIZE + (2 * count), files[i].length());
+      assertArrayEquals(files[i].getName(), slice(signal, start, count), readSegment(files[i]));
+    }
+  }
+
+  @Test
+  public void oldestSegmentsAreEvictedToStayWithinTheQuota() throws IOException {
+    int                segmentBytes = 2 * ((SAMPLE_RATE * 100) / 1000);
+    long               quota        = 3 * (HEADER_SIZE + segmentBytes);
+    WavSegmentRecorder recorder     = new WavSegmentRecorder(temp.getRoot(), SAMPLE_RATE, FRAME_SAMPLES, 100, quota);
+    short[]            signal       = TestSignals.speechLike(25 * FRAME_SAMPLES, 20000, 3);
+
+    recorder.start();
+    write(recorder, signal, 0, 25);
+    recorder.stop();
+
+    File[] files = recorder.getSegmentFiles();
+    long   total = 0;
+
+    assertEquals(5, recorder.getSegmentCount());
+    assertEquals(2, recorder.getEvictedSegmentCount());
+    assertEquals(3, files.length);
+
+    // the newest 3 segments are kept, in order
+    for (int i = 0; i < files.length; i++) {
+      total += files[i].length();
+      assertArrayEquals(files[i].getName(), slice(signal, (2 + i) * (segmentBytes / 2), segmentBytes / 2), readSegment(files[i]));
+    }
+    assertTrue(total <= quota);
+  }
+
+  /**
+   * Segments that start within the same millisecond sort in the order they were recorded.
+   */
+  @Test
+  public void namesWithinTheSameMillisecondSortAfterTheFirst() throws IOException {
+    WavSegmentRecorder recorder = new WavSegmentRecorder(temp.getRoot(), SAMPLE_RATE, FRAME_SAMPLES, 10000, QUOTA_BYTES);
+    short[]            signal   = TestSignals.speechLike(20 * FRAME_SAMPLES, 20000, 4);
+
+    // one chunk in each segment, as fast as they can be queued
+    for (int i = 0; i < 20; i++) {
+      write(recorder, signal, i, 1);
+      recorder.endSegment();
+    }
+    recorder.start();
+    recorder.stop();
+
+    File[]  files    = recorder.getSegmentFiles();
+    boolean numbered = false;
+
+    assertEquals(20, files.length);
+    for (int i = 0; i < files.length; i++) {
+      numbered |= files[i].getName().endsWith("_01" + WavSegmentRecorder.FILE_SUFFIX);
+      assertArrayEquals(files[i].getName(), slice(signal, i * FRAME_SAMPLES, FRAME_SAMPLES), readSegment(files[i]));
+    }
+    assertTrue("no two segments started within the same millisecond", numbered);
+  }
+
+  /**
+   * The audio thread never waits for the writer: once the queue is full, chunks are dropped and counted.
+   */
+  @Test
+  public void dropsAndCountsWhenTheQueueIsFull() throws IOException {
+    WavSegmentRecorder recorder = new WavSegmentRecorder(temp.getRoot(), SAMPLE_RATE, FRAME_SAMPLES, 10000, QUOTA_BYTES);
+    short[]            signal   = TestSignals.speechLike(FRAME_SAMPLES, 20000, 5);
+    int                queued   = WavSegmentRecorder.QUEUE_MS / 20;
+    int                accepted = 0;
+
+    // the writer hasn't started, so nothing is taken from the queue
+    for (int i = 0; i < (queued + 50); i++) {
+      if (recorder.write(signal, 0, FRAME_SAMPLES))
+        accepted++;
+    }
+
+    assertEquals(queued, accepted);
+    assertEquals(50,     recorder.getDroppedFrameCount());
+
+    recorder.start();
+    recorder.stop();
+
+    assertEquals(queued, recorder.getWrittenFrameCount());
+    assertEquals(50,     recorder.getDroppedFrameCount());
+
+    File[] files = recorder.getSegmentFiles();
+    assertEquals(1, files.length);
+    assertEquals(HEADER_SIZE + (queued * FRAME_SAMPLES * 2), files[0].length());
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static void write(WavSegmentRecorder recorder, short[] signal, int firstFrame, int frames) {
+    for (int f = firstFrame; f < (firstFrame + frames); f++) {
+      assertTrue("frame " + f, recorder.write(signal, f * FRAME_SAMPLES, FRAME_SAMPLES));
+    }
+  }
+
+  private static short[] slice(short[] signal, int offset, int count) {
+    short[] out = new short[count];
+    System.arraycopy(signal, offset, out, 0, count);
+    return out;
+  }
+
+  /**
+   * Check the header against the size of the file.
+   *
+   * @return the samples in the data chunk
+   */
+  private static short[] readSegment(File f) throws IOException {
+    byte[]           bytes = new byte[(int) f.length()];
+    RandomAccessFile in    = new RandomAccessFile(f, "r");
+
+    try {
+      in.readFully(bytes);
+    }
+    finally {
+      in.close();
+    }
+
+    String name = f.getName();
+
+    assertEquals(name, "RIFF", new String(bytes, 0,  4, "US-ASCII"));
+    assertEquals(name, "WAVE", new String(bytes, 8,  4, "US-ASCII"));
+    assertEquals(name, "data", new String(bytes, 36, 4, "US-ASCII"));
+    assertEquals(name + ": RIFF size", bytes.length - 8,           readInt(bytes, 4));
+    assertEquals(name + ": data size", bytes.length - HEADER_SIZE, readInt(bytes, 40));
+    assertEquals(name + ": sample rate", SAMPLE_RATE,              readInt(bytes, 24));
+
+    short[] samples = new short[(bytes.length - HEADER_SIZE) / 2];
+    PcmUtils.bytesToShorts(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, samples, 0);
+    return samples;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff)
+      | ((bytes[offset + 1] & 0xff) << 8)
+      | ((bytes[offset + 2] & 0xff) << 16)
+      | ((bytes[offset + 3] & 0xff) << 24);
+  }
+}
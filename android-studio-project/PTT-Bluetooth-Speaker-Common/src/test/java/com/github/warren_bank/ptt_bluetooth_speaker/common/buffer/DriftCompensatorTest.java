@@ -0,0 +1,148 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Plays a simulated hour of audio from a sender whose clock runs faster or slower than the speaker's,
+ * with and without the drift compensator.
+ *
+ * The sender captures 20 ms frames by its own clock, the network delays each one by 20 ms plus
+ * up to 10 ms of random jitter, and the speaker pulls 10 ms chunks by its own clock.
+ * The jitter is kept within what the jitter buffer absorbs, so that every glitch is caused by the drift.
+ */
+public class DriftCompensatorTest {
+  private static final int  SAMPLE_RATE      = TestSignals.SAMPLE_RATE;
+  private static final int  FRAME_SAMPLES    = (SAMPLE_RATE * 20) / 1000;
+  private static final int  CHUNK_SAMPLES    = (SAMPLE_RATE * 10) / 1000;
+  private static final long NETWORK_DELAY_NS = 20000000L;
+  private static final long JITTER_MAX_NS    = 10000000L;
+  private static final long SETTLE_NS        = 10 * 60 * 1000000000L;
+  private static final long HOUR_NS          = 3600 * 1000000000L;
+
+  @Test
+  public void compensatedDriftLeavesNoGlitchesOnceSettled() {
+    for (int skewPpm : new int[] {100, -100, 1000, -1000}) {
+      Simulation sim = new Simulation(skewPpm, true);
+      sim.run(HOUR_NS);
+
+      String name = skewPpm + " ppm: ";
+      assertEquals(name + "underruns", 0, sim.settledUnderruns);
+      assertEquals(name + "trimmed", 0, sim.settledTrimmed);
+      assertTrue(name + "estimated " + sim.compensator.getDriftPpm() + " ppm", Math.abs(sim.compensator.getDriftPpm() - skewPpm) <= (2 + (Math.abs(skewPpm) / 20)));
+      assertTrue(name + "depth above target: " + sim.minError + " to " + sim.maxError + " ms", (sim.minError > -30) && (sim.maxError < 30));
+      assertTrue(name + "mean depth above target: " + sim.getMeanError() + " ms", Math.abs(sim.getMeanError()) < 5);
+    }
+  }
+
+  /**
+   * Without compensation, a fast sender builds a backlog that has to be played faster or trimmed,
+   * and a slow sender runs the buffer dry again and again.
+   */
+  @Test
+  public void uncompensatedDriftGlitches() {
+    Simulation fast = new Simulation(1000, false);
+    Simulation slow = new Simulation(-1000, false);
+
+    fast.run(HOUR_NS);
+    slow.run(HOUR_NS);
+
+    // 1000 ppm of an hour is 3.6 seconds
+    long fastSamples = fast.jitterBuffer.getCompressedSamples() + fast.jitterBuffer.getTrimmedSamples();
+    assertTrue("played faster or trimmed: " + ((fastSamples * 1000) / SAMPLE_RATE) + " ms", fastSamples > (3 * SAMPLE_RATE));
+    assertTrue("underruns: " + slow.settledUnderruns, slow.settledUnderruns > 50);
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static final class Simulation {
+    final JitterBuffer     jitterBuffer;
+    final DriftCompensator compensator;
+    final boolean          compensated;
+    final Random           random;
+    final short[]          frame;
+    final short[]          chunk;
+    final long             chunkNanos;
+    final double           frameNanos;
+
+    long   settledUnderruns;
+    long   settledTrimmed;
+    double minError   = Double.MAX_VALUE;
+    double maxError   = -Double.MAX_VALUE;
+    double sumError   = 0;
+    long   errorCount = 0;
+
+    Simulation(int skewPpm, boolean compensated) {
+      this.jitterBuffer = new JitterBuffer(SAMPLE_RATE, 1000, 40, 300, 60, DriftCompensator.getMaxPullSamples(CHUNK_SAMPLES));
+      this.compensator  = new DriftCompensator(jitterBuffer, CHUNK_SAMPLES);
+      this.compensated  = compensated;
+      this.random       = new Random(skewPpm);
+      this.frame        = TestSignals.speechLike(FRAME_SAMPLES, 6000, 1);
+      this.chunk        = new short[CHUNK_SAMPLES];
+      this.chunkNanos   = (CHUNK_SAMPLES * 1000000000L) / SAMPLE_RATE;
+      this.frameNanos   = ((FRAME_SAMPLES * 1000000000.0) / SAMPLE_RATE) / (1.0 + (skewPpm / 1000000.0));
+    }
+
+    /**
+     * Counts the glitches after the first 10 minutes, which the controller is given to settle.
+     */
+    void run(long duration) {
+      long   frameIndex    = 0;
+      long   lastArrival   = 0;
+      long   arrival       = nextArrival(frameIndex, lastArrival);
+      long   underrunsAt   = -1;
+      long   trimmedAt     = -1;
+      double error;
+
+      for (long now = 0; now < duration; now += chunkNanos) {
+        while (arrival <= now) {
+          jitterBuffer.push(frame, 0, FRAME_SAMPLES, (frameIndex * FRAME_SAMPLES * 1000000000L) / SAMPLE_RATE, arrival);
+          lastArrival = arrival;
+          frameIndex++;
+          arrival = nextArrival(frameIndex, lastArrival);
+        }
+
+        if (now >= SETTLE_NS) {
+          if (underrunsAt < 0) {
+            underrunsAt = jitterBuffer.getUnderrunCount();
+            trimmedAt   = jitterBuffer.getTrimmedSamples();
+          }
+
+          error     = (jitterBuffer.getDepthSamples() - jitterBuffer.getTargetDepthSamples()) * 1000.0 / SAMPLE_RATE;
+          minError  = Math.min(minError, error);
+          maxError  = Math.max(maxError, error);
+          sumError += error;
+          errorCount++;
+        }
+
+        if (compensated)
+          compensator.pull(chunk, 0, CHUNK_SAMPLES);
+        else
+          jitterBuffer.pull(chunk, 0, CHUNK_SAMPLES);
+      }
+
+      settledUnderruns = jitterBuffer.getUnderrunCount() - underrunsAt;
+      settledTrimmed   = jitterBuffer.getTrimmedSamples() - trimmedAt;
+    }
+
+    double getMeanError() {
+      return sumError / Math.max(1, errorCount);
+    }
+
+    /**
+     * Frames leave the sender on its own clock, and the network keeps them in order.
+     */
+    private long nextArrival(long frameIndex, long lastArrival) {
+      long sent   = (long) ((frameIndex + 1) * frameNanos);
+      long jitter = (long) (JITTER_MAX_NS * random.nextDouble());
+
+      return Math.max(lastArrival, sent + NETWORK_DELAY_NS + jitter);
+    }
+  }
+}
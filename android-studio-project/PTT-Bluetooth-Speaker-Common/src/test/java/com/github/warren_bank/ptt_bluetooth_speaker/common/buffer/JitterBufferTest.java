@@ -0,0 +1,267 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives the jitter buffer with synthetic arrival schedules:
+ * steady, jittered, a stall followed by a burst, lost frames, reordered frames, and an overflow.
+ *
+ * The sender captures 20 ms frames of a continuous tone,
+ * and the speaker pulls 10 ms chunks by the same clock.
+ */
+public class JitterBufferTest {
+  private static final int  SAMPLE_RATE   = 16000;
+  private static final int  FRAME_SAMPLES = (SAMPLE_RATE * 20) / 1000;
+  private static final int  CHUNK_SAMPLES = (SAMPLE_RATE * 10) / 1000;
+  private static final long FRAME_NANOS   = 20000000L;
+  private static final long CHUNK_NANOS   = 10000000L;
+  private static final long MS            = 1000000L;
+
+  @Test
+  public void steadyStreamIsPlayedUnchanged() {
+    Simulation sim = new Simulation(newJitterBuffer());
+
+    for (int f = 0; f < 1000; f++) {
+      sim.send(f, sendTime(f) + (30 * MS));
+    }
+    sim.run(20000 * MS);
+
+    assertEquals(0, sim.jitterBuffer.getUnderrunCount());
+    assertEquals(0, sim.jitterBuffer.getTrimmedSamples());
+    assertEquals(0, sim.jitterBuffer.getCompressedSamples());
+    assertEquals(0, sim.jitterBuffer.getDroppedSamples());
+
+    // once playing, the output is exactly the input
+    assertTrue(sim.played.size() > (900 * FRAME_SAMPLES));
+    for (int i = 0; i < sim.played.size(); i++) {
+      assertEquals("sample " + i, sample(i), (short) sim.played.get(i));
+    }
+  }
+
+  @Test
+  public void jitterRaisesTheTargetDepthAndAvoidsUnderruns() {
+    Random     random = new Random(1);
+    Simulation sim    = new Simulation(newJitterBuffer());
+    long       last   = 0;
+    long       arrival;
+
+    // up to 60 ms of delay, on a transport that delivers in order
+    for (int f = 0; f < 3000; f++) {
+      arrival = Math.max(last, sendTime(f) + (20 * MS) + (long) (random.nextDouble() * 60 * MS));
+      sim.send(f, arrival);
+      last = arrival;
+    }
+    sim.run(10000 * MS);
+    long earlyUnderruns = sim.jitterBuffer.getUnderrunCount();
+    sim.run(60000 * MS);
+
+    assertTrue("target: " + sim.jitterBuffer.getTargetDepthMs() + " ms", sim.jitterBuffer.getTargetDepthMs() > 60);
+    assertTrue("jitter: " + sim.jitterBuffer.getJitterMs() + " ms", sim.jitterBuffer.getJitterMs() > 5);
+    assertTrue("underruns after settling: " + (sim.jitterBuffer.getUnderrunCount() - earlyUnderruns), (sim.jitterBuffer.getUnderrunCount() - earlyUnderruns) <= 2);
+    assertEquals(0, sim.jitterBuffer.getDroppedSamples());
+  }
+
+  @Test
+  public void burstAfterAStallIsPlayedFasterNotDropped() {
+    Simulation sim = new Simulation(newJitterBuffer());
+
+    // the connection stalls for 1 second after 5 seconds, then delivers everything at once
+    for (int f = 0; f < 1000; f++) {
+      long arrival = sendTime(f) + (30 * MS);
+
+      if ((sendTime(f) >= (5000 * MS)) && (sendTime(f) < (6000 * MS)))
+        arrival = 6030 * MS;
+
+      sim.send(f, arrival);
+    }
+    sim.run(6100 * MS);
+    int depthAfterBurst = sim.jitterBuffer.getDepthMs();
+    sim.run(20000 * MS);
+
+    assertTrue("depth after burst: " + depthAfterBurst + " ms", depthAfterBurst > 500);
+    assertTrue(sim.jitterBuffer.getCompressedSamples() > 0);
+    assertEquals(0, sim.jitterBuffer.getTrimmedSamples());
+    assertEquals(0, sim.jitterBuffer.getDroppedSamples());
+    assertTrue("depth: " + sim.jitterBuffer.getDepthMs() + " ms", sim.jitterBuffer.getDepthMs() <= (sim.jitterBuffer.getTargetDepthMs() + 60 + 10));
+    assertTrue(!sim.jitterBuffer.isCatchingUp());
+  }
+
+  @Test
+  public void lostFramesAreConcealedBeforeSilence() {
+    Random     random = new Random(2);
+    Simulation sim    = new Simulation(newJitterBuffer());
+
+    for (int f = 0; f < 1500; f++) {
+      if (random.nextInt(10) != 0)
+        sim.send(f, sendTime(f) + (30 * MS));
+    }
+    sim.run(30000 * MS);
+
+    assertTrue(sim.jitterBuffer.getUnderrunCount() > 0);
+    assertTrue(sim.concealed > 0);
+
+    // after audio has played, the first chunk that is missing repeats it, rather than cutting to silence
+    for (int i = 1; i < sim.results.size(); i++) {
+      if (sim.results.get(i - 1) == JitterBuffer.PULL_PLAYED)
+        assertTrue("pull " + i, sim.results.get(i) != JitterBuffer.PULL_SILENCE);
+    }
+  }
+
+  @Test
+  public void reorderedFramesKeepEverySample() {
+    Random     random = new Random(3);
+    Simulation sim    = new Simulation(newJitterBuffer());
+    int        pushed = 0;
+
+    // a tenth of the frames overtake the one before them
+    for (int f = 0; f < 1000; f++) {
+      if ((f + 1 < 1000) && (random.nextInt(10) == 0)) {
+        sim.send(f + 1, sendTime(f) + (30 * MS));
+        sim.send(f,     sendTime(f) + (31 * MS));
+        f++;
+        pushed += 2 * FRAME_SAMPLES;
+      }
+      else {
+        sim.send(f, sendTime(f) + (30 * MS));
+        pushed += FRAME_SAMPLES;
+      }
+    }
+    sim.run(21000 * MS);
+
+    JitterBuffer jb = sim.jitterBuffer;
+    long accounted = ((long) sim.playedChunks * CHUNK_SAMPLES) + jb.getCompressedSamples() + jb.getTrimmedSamples() + jb.getDroppedSamples() + jb.getDepthSamples();
+
+    assertEquals(pushed, accounted);
+    assertTrue("jitter: " + jb.getJitterMs() + " ms", jb.getJitterMs() < 20);
+    assertTrue(jb.getTargetDepthMs() <= 300);
+  }
+
+  /**
+   * A ring that is just large enough for the maximum depth overflows before a backlog can be trimmed,
+   * and the samples that it discards leave a gap that must not click.
+   */
+  @Test
+  public void overflowIsCrossfaded() {
+    JitterBuffer jb     = new JitterBuffer(SAMPLE_RATE, 400, 40, 300, 100, CHUNK_SAMPLES);
+    short[]      frame  = new short[FRAME_SAMPLES];
+    short[]      chunk  = new short[CHUNK_SAMPLES];
+    int          f      = 0;
+    short        last   = 0;
+
+    // play for 1 second
+    for (long now = 0; now < (1000 * MS); now += CHUNK_NANOS) {
+      if ((now % FRAME_NANOS) == 0) {
+        fillFrame(frame, f);
+        jb.push(frame, 0, FRAME_SAMPLES, sendTime(f), now);
+        f++;
+      }
+      if (jb.pull(chunk, 0, CHUNK_SAMPLES) == JitterBuffer.PULL_PLAYED)
+        last = chunk[CHUNK_SAMPLES - 1];
+    }
+
+    // the playout thread is stalled for 510 ms, while frames keep arriving
+    for (int i = 0; i < 26; i++, f++) {
+      fillFrame(frame, f);
+      jb.push(frame, 0, FRAME_SAMPLES, sendTime(f), sendTime(f));
+    }
+
+    assertTrue(jb.getOverflowCount() > 0);
+    assertEquals(JitterBuffer.PULL_PLAYED, jb.pull(chunk, 0, CHUNK_SAMPLES));
+    assertTrue("seam: " + last + " -> " + chunk[0], Math.abs(chunk[0] - last) <= 1000);
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static JitterBuffer newJitterBuffer() {
+    // as configured for each sender on the receiver
+    return new JitterBuffer(SAMPLE_RATE, 3000, 40, 300, 60, CHUNK_SAMPLES);
+  }
+
+  private static long sendTime(int frameIndex) {
+    return frameIndex * FRAME_NANOS;
+  }
+
+  /**
+   * A 130 Hz tone, whose value at any point in the stream is known.
+   * Its period is not a whole number of samples, so skipping any number of frames leaves a step.
+   */
+  private static short sample(long index) {
+    return (short) Math.round(16000 * Math.sin((2 * Math.PI * 130 * index) / SAMPLE_RATE));
+  }
+
+  private static void fillFrame(short[] frame, int frameIndex) {
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = sample(((long) frameIndex * FRAME_SAMPLES) + i);
+    }
+  }
+
+  /**
+   * Frames are pushed in order of arrival, then the speaker pulls a chunk every 10 ms.
+   */
+  private static final class Simulation {
+    final JitterBuffer   jitterBuffer;
+    final List<long[]>   arrivals = new ArrayList<long[]>();  // {arrival time, frame index}
+    final List<Short>    played   = new ArrayList<Short>();
+    final List<Integer>  results  = new ArrayList<Integer>();
+    final short[]        frame    = new short[FRAME_SAMPLES];
+    final short[]        chunk    = new short[CHUNK_SAMPLES];
+    int                  next     = 0;
+    long                 now      = 0;
+    int                  playedChunks;
+    int                  concealed;
+    boolean              sorted;
+
+    Simulation(JitterBuffer jitterBuffer) {
+      this.jitterBuffer = jitterBuffer;
+    }
+
+    void send(int frameIndex, long arrivalTime) {
+      arrivals.add(new long[] {arrivalTime, frameIndex});
+    }
+
+    void run(long until) {
+      if (!sorted) {
+        // stable, so frames that arrive at the same time keep the order they were sent in
+        Collections.sort(arrivals, new Comparator<long[]>() {
+          @Override
+          public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+          }
+        });
+        sorted = true;
+      }
+
+      for (; now < until; now += CHUNK_NANOS) {
+        while ((next < arrivals.size()) && (arrivals.get(next)[0] <= now)) {
+          int f = (int) arrivals.get(next)[1];
+
+          fillFrame(frame, f);
+          jitterBuffer.push(frame, 0, FRAME_SAMPLES, sendTime(f), arrivals.get(next)[0]);
+          next++;
+        }
+
+        int result = jitterBuffer.pull(chunk, 0, CHUNK_SAMPLES);
+        results.add(result);
+
+        if (result == JitterBuffer.PULL_PLAYED) {
+          playedChunks++;
+          for (short s : chunk) {
+            played.add(s);
+          }
+        }
+        else if (result == JitterBuffer.PULL_CONCEALED) {
+          concealed++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.VoiceActivityDetector;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.SilenceSuppressor;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes 2 million frames from a {@link FramePool} through the sender's pipeline, as fast as they can be encoded:
+ * a capture ring, a fan-out thread that shares each frame with 3 links, and a ring and a reader thread for each link.
+ * The readers stall now and then, so the rings overflow.
+ *
+ * Every frame carries its index in its timestamp, and a payload that is derived from it,
+ * so a frame that is reused while it is still queued shows up as a corrupted payload or a frame out of order.
+ * Afterwards, every frame must be back in the pool, and no reference may have been released twice.
+ */
+public class PooledFrameRingTest {
+  private static final int SAMPLE_RATE    = 16000;
+  private static final int FRAMES         = 2000000;
+  private static final int LINKS          = 3;
+  private static final int CAPACITY       = 32;
+  private static final int PREROLL        = 10;
+  private static final int MAX_FRAME_SIZE = 256;
+  private static final int FRAME_SAMPLES  = 320;
+  private static final int SPEECH_FRAMES  = 50;   // alternating with as many frames of silence
+
+  @Test
+  public void dropOldest() throws Exception {
+    run(SpscFrameRing.OVERFLOW_DROP_OLDEST, false);
+  }
+
+  @Test
+  public void dropNewest() throws Exception {
+    run(SpscFrameRing.OVERFLOW_DROP_NEWEST, false);
+  }
+
+  @Test
+  public void block() throws Exception {
+    run(SpscFrameRing.OVERFLOW_BLOCK, false);
+  }
+
+  /**
+   * The silence suppressor holds frames in its pre-roll, and writes markers over the frames it replaces.
+   */
+  @Test
+  public void dropOldestWithSilenceSuppression() throws Exception {
+    run(SpscFrameRing.OVERFLOW_DROP_OLDEST, true);
+  }
+
+  @Test
+  public void dropNewestWithSilenceSuppression() throws Exception {
+    run(SpscFrameRing.OVERFLOW_DROP_NEWEST, true);
+  }
+
+  @Test
+  public void blockWithSilenceSuppression() throws Exception {
+    run(SpscFrameRing.OVERFLOW_BLOCK, true);
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static void run(final int policy, final boolean suppress) throws Exception {
+    final FramePool                 pool        = new FramePool((CAPACITY * (LINKS + 1)) + PREROLL + LINKS + 2, MAX_FRAME_SIZE);
+    final PooledFrameRing           captureRing = new PooledFrameRing(CAPACITY, policy);
+    final PooledFrameRing[]         linkRings   = new PooledFrameRing[LINKS];
+    final Reader[]                  readers     = new Reader[LINKS];
+    final AtomicReference<String>   failure     = new AtomicReference<String>();
+    final SilenceSuppressor         suppressor  = suppress
+      ? new SilenceSuppressor(new VoiceActivityDetector(SAMPLE_RATE), PREROLL, captureRing)
+      : null;
+
+    for (int i = 0; i < LINKS; i++) {
+      linkRings[i] = new PooledFrameRing(CAPACITY, policy);
+      readers[i]   = new Reader(linkRings[i], i, failure);
+      readers[i].start();
+    }
+
+    Thread fanOut = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          try {
+            PooledFrame frame;
+
+            while ((frame = captureRing.take(-1)) != null) {
+              for (int i = 0; i < LINKS; i++) {
+                frame.retain();
+                linkRings[i].offer(frame);
+              }
+              frame.release();
+            }
+          }
+          catch(Throwable e) {
+            failure.compareAndSet(null, "fan out: " + e);
+          }
+
+          for (int i = 0; i < LINKS; i++) {
+            linkRings[i].close();
+          }
+        }
+      }
+    );
+    fanOut.start();
+
+    // the capture thread
+    short[]     speech  = new short[FRAME_SAMPLES];
+    short[]     silence = new short[FRAME_SAMPLES];
+    PooledFrame frame;
+
+    for (int i = 0; i < FRAME_SAMPLES; i++) {
+      speech[i] = (short) (((i * 7919) % 16000) - 8000);
+    }
+
+    try {
+      for (long index = 0; index < FRAMES; index++) {
+        frame = pool.acquire();
+        if (frame == null)
+          continue;
+
+        fill(frame, index);
+
+        if (suppressor != null)
+          suppressor.process((((index / SPEECH_FRAMES) % 2) == 0) ? speech : silence, 0, FRAME_SAMPLES, frame);
+        else
+          captureRing.offer(frame);
+      }
+
+      if (suppressor != null)
+        suppressor.flush();
+    }
+    catch(Throwable e) {
+      failure.compareAndSet(null, "capture: " + e);
+    }
+    captureRing.close();
+
+    fanOut.join();
+    for (int i = 0; i < LINKS; i++) {
+      readers[i].join();
+    }
+
+    String name = "policy " + policy + (suppress ? ", with silence suppression" : "") + ": ";
+
+    assertNull(name + failure.get(), failure.get());
+    assertEquals(name + "frames in use", 0, pool.getInUseCount());
+    assertEquals(name + "pool exhausted", 0, pool.getExhaustedCount());
+    assertEquals(FRAMES, pool.getAcquiredFrameCount());
+
+    long overruns = captureRing.getOverrunCount();
+
+    for (int i = 0; i < LINKS; i++) {
+      overruns += linkRings[i].getOverrunCount();
+
+      if (policy == SpscFrameRing.OVERFLOW_BLOCK) {
+        // nothing is lost
+        assertEquals(name + "link " + i, FRAMES, readers[i].received);
+      }
+      else {
+        assertTrue(name + "link " + i + " received " + readers[i].received, (readers[i].received > 0) && (readers[i].received < FRAMES));
+      }
+
+      if (suppress) {
+        assertTrue(name + "link " + i + " received no markers", readers[i].silent > 0);
+        assertTrue(name + "link " + i + " received no audio",   readers[i].received > readers[i].silent);
+      }
+    }
+
+    // otherwise the test proves nothing
+    assertTrue(name + "no overruns", overruns > 0);
+  }
+
+  /**
+   * A payload whose length and bytes are derived from the index, which is also the timestamp.
+   */
+  private static void fill(PooledFrame frame, long index) {
+    byte[] data   = frame.getData();
+    int    length = 40 + (int) (index % (MAX_FRAME_SIZE - 40));
+
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (index + (i * 7));
+    }
+    frame.set(length, index, /* flags= */ 0);
+  }
+
+  /**
+   * @return a description of the damage, or null when the frame is intact
+   */
+  private static String check(PooledFrame frame) {
+    byte[] data  = frame.getData();
+    long   index = frame.getTimestamp();
+
+    if (frame.getFlags() == FrameFormat.FLAG_SILENCE) {
+      if ((frame.getLength() != FrameFormat.SILENCE_PAYLOAD_SIZE) || (FrameFormat.readUnsignedShort(data, 0) != FRAME_SAMPLES))
+        return "bad silence marker in frame " + index;
+      return null;
+    }
+
+    if ((frame.getFlags() != 0) || (frame.getLength() != (40 + (int) (index % (MAX_FRAME_SIZE - 40)))))
+      return "bad length or flags in frame " + index;
+
+    for (int i = 0; i < frame.getLength(); i++) {
+      if (data[i] != (byte) (index + (i * 7)))
+        return "bad payload in frame " + index + " at byte " + i;
+    }
+    return null;
+  }
+
+  /**
+   * The writer thread of one link, which checks and releases every frame in turn.
+   */
+  private static final class Reader extends Thread {
+    private final PooledFrameRing         ring;
+    private final int                     link;
+    private final AtomicReference<String> failure;
+
+    volatile long received = 0;
+    volatile long silent   = 0;
+
+    Reader(PooledFrameRing ring, int link, AtomicReference<String> failure) {
+      this.ring    = ring;
+      this.link    = link;
+      this.failure = failure;
+    }
+
+    @Override
+    public void run() {
+      PooledFrame frame;
+      long        last = -1;
+      String      damage;
+
+      try {
+        while ((frame = ring.take(-1)) != null) {
+          damage = check(frame);
+          if ((damage == null) && (frame.getTimestamp() <= last))
+            damage = "frame " + frame.getTimestamp() + " after frame " + last;
+
+          if (damage != null)
+            failure.compareAndSet(null, "link " + link + ": " + damage);
+
+          last = frame.getTimestamp();
+          received++;
+          if (frame.getFlags() == FrameFormat.FLAG_SILENCE)
+            silent++;
+
+          frame.release();
+
+          // stall now and then, each link differently
+          if ((received % (1024 << link)) == 0)
+            LockSupport.parkNanos(100000L << link);
+        }
+      }
+      catch(Throwable e) {
+        failure.compareAndSet(null, "link " + link + ": " + e);
+      }
+    }
+  }
+}
@@ -0,0 +1,336 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A producer thread and a consumer thread share the ring, with each overflow policy.
+ *
+ * Every frame carries its index in its timestamp, and a payload whose length and bytes are derived from it,
+ * so a frame that is overwritten while it is being taken shows up as a corrupted payload.
+ */
+public class SpscFrameRingTest {
+  private static final int  CAPACITY       = 16;
+  private static final int  MAX_FRAME_SIZE = 200;
+  private static final int  FRAMES         = 500000;
+  private static final long WAKE_MS        = 1000;
+
+  /**
+   * The producer fills the ring 3 times over before the consumer starts.
+   */
+  @Test
+  public void dropOldestKeepsTheNewestFrames() throws Exception {
+    SpscFrameRing ring     = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    Producer      producer = new Producer(ring, 3 * CAPACITY, null);
+
+    producer.start();
+    producer.join();
+    ring.close();
+
+    assertEquals(3 * CAPACITY, producer.accepted);
+    assertEquals(2 * CAPACITY, ring.getOverrunCount());
+    assertEquals(CAPACITY,     ring.getHighWaterMark());
+
+    List<Long> taken = takeAll(ring);
+    assertEquals(CAPACITY, taken.size());
+    for (int i = 0; i < CAPACITY; i++) {
+      assertEquals((2 * CAPACITY) + i, (long) taken.get(i));
+    }
+  }
+
+  @Test
+  public void dropNewestKeepsTheFirstFrames() throws Exception {
+    SpscFrameRing ring     = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, SpscFrameRing.OVERFLOW_DROP_NEWEST);
+    Producer      producer = new Producer(ring, 3 * CAPACITY, null);
+
+    producer.start();
+    producer.join();
+    ring.close();
+
+    assertEquals(CAPACITY,     producer.accepted);
+    assertEquals(2 * CAPACITY, ring.getOverrunCount());
+    assertEquals(CAPACITY,     ring.getHighWaterMark());
+
+    List<Long> taken = takeAll(ring);
+    assertEquals(CAPACITY, taken.size());
+    for (int i = 0; i < CAPACITY; i++) {
+      assertEquals(i, (long) taken.get(i));
+    }
+  }
+
+  /**
+   * Each frame that finds the ring full waits, and none is lost.
+   */
+  @Test
+  public void blockWaitsForTheConsumer() throws Exception {
+    SpscFrameRing ring     = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, SpscFrameRing.OVERFLOW_BLOCK);
+    Producer      producer = new Producer(ring, 3 * CAPACITY, null);
+
+    producer.start();
+    waitUntilParked(producer);
+    assertEquals(CAPACITY, ring.size());
+    assertEquals(1,        ring.getOverrunCount());
+
+    List<Long> taken = new ArrayList<Long>();
+    byte[]     dst   = new byte[MAX_FRAME_SIZE];
+
+    while (taken.size() < (3 * CAPACITY)) {
+      int length = ring.take(dst, 0, WAKE_MS * 1000000L);
+      assertTrue("timed out after " + taken.size() + " frames", length >= 0);
+      assertNull(check(dst, length, ring.getLastTimestamp()));
+      taken.add(ring.getLastTimestamp());
+    }
+    producer.join();
+
+    assertEquals(3 * CAPACITY, producer.accepted);
+    assertEquals(CAPACITY,     ring.getHighWaterMark());
+    assertTrue(ring.getOverrunCount() >= 1);
+    for (int i = 0; i < taken.size(); i++) {
+      assertEquals(i, (long) taken.get(i));
+    }
+  }
+
+  @Test
+  public void dropOldestUnderLoad() throws Exception {
+    Result result = run(SpscFrameRing.OVERFLOW_DROP_OLDEST);
+
+    // a frame is dropped for each overrun, unless the consumer took it first
+    assertTrue(result.taken.size() + " taken, " + result.overruns + " overruns", (result.taken.size() + result.overruns) >= FRAMES);
+    assertTrue(result.taken.size() < FRAMES);
+    assertEquals(FRAMES, result.accepted);
+
+    // the newest frame is never dropped
+    assertEquals(FRAMES - 1, (long) result.taken.get(result.taken.size() - 1));
+  }
+
+  @Test
+  public void dropNewestUnderLoad() throws Exception {
+    Result result = run(SpscFrameRing.OVERFLOW_DROP_NEWEST);
+
+    // each overrun drops exactly one frame
+    assertEquals(FRAMES, result.taken.size() + result.overruns);
+    assertEquals(result.accepted, result.taken.size());
+    assertTrue(result.taken.size() < FRAMES);
+
+    // the first frames always find room
+    for (int i = 0; i < CAPACITY; i++) {
+      assertEquals(i, (long) result.taken.get(i));
+    }
+  }
+
+  @Test
+  public void blockUnderLoad() throws Exception {
+    Result result = run(SpscFrameRing.OVERFLOW_BLOCK);
+
+    assertEquals(FRAMES, result.accepted);
+    assertEquals(FRAMES, result.taken.size());
+    for (int i = 0; i < FRAMES; i++) {
+      assertEquals(i, (long) result.taken.get(i));
+    }
+  }
+
+  /**
+   * A consumer waiting without a timeout returns once the ring is closed,
+   * after it has taken the frames that were queued before.
+   */
+  @Test
+  public void closeWakesABlockedTake() throws Exception {
+    final SpscFrameRing           ring   = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, SpscFrameRing.OVERFLOW_BLOCK);
+    final AtomicReference<String> result = new AtomicReference<String>();
+
+    Thread consumer = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          byte[]        dst   = new byte[MAX_FRAME_SIZE];
+          StringBuilder taken = new StringBuilder();
+          int           length;
+
+          while ((length = ring.take(dst, 0, -1)) >= 0) {
+            taken.append(ring.getLastTimestamp()).append(',');
+          }
+          result.set(taken.append(length).toString());
+        }
+      }
+    );
+    consumer.start();
+    waitUntilParked(consumer);
+
+    byte[] src = new byte[MAX_FRAME_SIZE];
+    assertTrue(ring.offer(src, 0, fill(src, 0), 0));
+    waitUntilParked(consumer);
+
+    assertTrue(ring.offer(src, 0, fill(src, 1), 1));
+    assertTrue(ring.offer(src, 0, fill(src, 2), 2));
+    ring.close();
+    consumer.join(WAKE_MS);
+
+    assertFalse("take is still blocked", consumer.isAlive());
+    assertEquals("0,1,2,-1", result.get());
+    assertFalse(ring.offer(src, 0, 1, 3));
+  }
+
+  /**
+   * A producer waiting for room returns false once the ring is closed.
+   */
+  @Test
+  public void closeWakesABlockedOffer() throws Exception {
+    SpscFrameRing ring     = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, SpscFrameRing.OVERFLOW_BLOCK);
+    Producer      producer = new Producer(ring, CAPACITY + 1, null);
+
+    producer.start();
+    waitUntilParked(producer);
+    ring.close();
+    producer.join(WAKE_MS);
+
+    assertFalse("offer is still blocked", producer.isAlive());
+    assertEquals(CAPACITY, producer.accepted);
+    assertEquals(CAPACITY, takeAll(ring).size());
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static final class Result {
+    List<Long> taken;
+    long       accepted;
+    long       overruns;
+  }
+
+  /**
+   * The consumer stalls now and then, so the ring overflows.
+   */
+  private static Result run(int policy) throws Exception {
+    SpscFrameRing           ring     = new SpscFrameRing(CAPACITY, MAX_FRAME_SIZE, policy);
+    AtomicReference<String> failure  = new AtomicReference<String>();
+    Producer                producer = new Producer(ring, FRAMES, failure);
+    List<Long>              taken    = new ArrayList<Long>(FRAMES);
+    byte[]                  dst      = new byte[MAX_FRAME_SIZE];
+    long                    last     = -1;
+    int                     length;
+
+    producer.start();
+
+    while ((length = ring.take(dst, 0, -1)) >= 0) {
+      long   index  = ring.getLastTimestamp();
+      String damage = check(dst, length, index);
+
+      if ((damage == null) && (index <= last))
+        damage = "frame " + index + " after frame " + last;
+      if (damage != null)
+        failure.compareAndSet(null, damage);
+
+      taken.add(index);
+      last = index;
+
+      if ((taken.size() % 1024) == 0)
+        LockSupport.parkNanos(100000L);
+    }
+    producer.join();
+
+    assertNull(failure.get(), failure.get());
+    assertEquals(CAPACITY, ring.getHighWaterMark());
+    assertEquals(FRAMES,   ring.getOfferedFrameCount() + ((policy == SpscFrameRing.OVERFLOW_DROP_NEWEST) ? ring.getOverrunCount() : 0));
+
+    // otherwise the test proves nothing
+    assertTrue("no overruns", ring.getOverrunCount() > 0);
+
+    Result result   = new Result();
+    result.taken    = taken;
+    result.accepted = producer.accepted;
+    result.overruns = ring.getOverrunCount();
+    return result;
+  }
+
+  /**
+   * Offers frames as fast as it can, then closes the ring when it was given a place to report a failure.
+   */
+  private static final class Producer extends Thread {
+    private final SpscFrameRing           ring;
+    private final int                     count;
+    private final AtomicReference<String> failure;
+
+    volatile long accepted = 0;
+
+    Producer(SpscFrameRing ring, int count, AtomicReference<String> failure) {
+      this.ring    = ring;
+      this.count   = count;
+      this.failure = failure;
+    }
+
+    @Override
+    public void run() {
+      byte[] src = new byte[MAX_FRAME_SIZE];
+
+      try {
+        for (int index = 0; index < count; index++) {
+          if (ring.offer(src, 0, fill(src, index), index, index & 0xff))
+            accepted++;
+        }
+      }
+      catch(Throwable e) {
+        if (failure != null)
+          failure.compareAndSet(null, "producer: " + e);
+      }
+
+      if (failure != null)
+        ring.close();
+    }
+  }
+
+  /**
+   * @return the length of a payload whose bytes are derived from the index
+   */
+  private static int fill(byte[] data, long index) {
+    int length = 1 + (int) (index % (MAX_FRAME_SIZE - 1));
+
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ((index * 31) + i);
+    }
+    return length;
+  }
+
+  /**
+   * @return a description of the damage, or null when the frame is intact
+   */
+  private static String check(byte[] data, int length, long index) {
+    if (length != (1 + (int) (index % (MAX_FRAME_SIZE - 1))))
+      return "bad length in frame " + index;
+
+    for (int i = 0; i < length; i++) {
+      if (data[i] != (byte) ((index * 31) + i))
+        return "bad payload in frame " + index + " at byte " + i;
+    }
+    return null;
+  }
+
+  private static List<Long> takeAll(SpscFrameRing ring) {
+    List<Long> taken = new ArrayList<Long>();
+    byte[]     dst   = new byte[MAX_FRAME_SIZE];
+    int        length;
+
+    while ((length = ring.take(dst, 0, 0)) >= 0) {
+      assertNull(check(dst, length, ring.getLastTimestamp()));
+      assertEquals(ring.getLastTimestamp() & 0xff, ring.getLastFlags());
+      taken.add(ring.getLastTimestamp());
+    }
+    return taken;
+  }
+
+  private static void waitUntilParked(Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAKE_MS;
+
+    while (thread.getState() != Thread.State.TIMED_WAITING) {
+      assertTrue("thread never waited", System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}
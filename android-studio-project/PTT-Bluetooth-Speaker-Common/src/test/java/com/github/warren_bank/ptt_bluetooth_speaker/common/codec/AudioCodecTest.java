@@ -0,0 +1,137 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Round trip of every codec, through frames of odd and even lengths.
+ */
+public class AudioCodecTest {
+  private static final int[] FRAME_SIZES = {1, 2, 3, 159, 160, 161, 321, 882};
+
+  @Test
+  public void pcmIsLossless() {
+    assertRoundTrip(AudioCodecs.PCM, Double.POSITIVE_INFINITY);
+  }
+
+  @Test
+  public void muLawRoundTrip() {
+    assertRoundTrip(AudioCodecs.MULAW, 33.0);
+  }
+
+  @Test
+  public void aLawRoundTrip() {
+    assertRoundTrip(AudioCodecs.ALAW, 33.0);
+  }
+
+  @Test
+  public void imaAdpcmRoundTrip() {
+    assertRoundTrip(AudioCodecs.IMA_ADPCM, 25.0);
+  }
+
+  @Test
+  public void createByName() {
+    assertEquals(AudioCodecs.PCM,       AudioCodecs.create("pcm").getId());
+    assertEquals(AudioCodecs.IMA_ADPCM, AudioCodecs.create("ADPCM").getId());
+    assertEquals(AudioCodecs.MULAW,     AudioCodecs.create(" ulaw ").getId());
+    assertEquals(AudioCodecs.ALAW,      AudioCodecs.create("alaw").getId());
+    assertEquals(null,                  AudioCodecs.create("opus"));
+  }
+
+  /**
+   * Every frame carries the predictor state that it starts from,
+   * so it decodes to the same samples whether or not the frames before it arrived.
+   */
+  @Test
+  public void imaAdpcmBlocksDecodeIndependently() {
+    int       frameSize = 161;
+    int       frames    = 50;
+    short[]   input     = TestSignals.speechLike(frameSize * frames, 12000, 3);
+    AudioCodec encoder  = AudioCodecs.create(AudioCodecs.IMA_ADPCM);
+    byte[][]  encoded   = new byte[frames][];
+    short[][] inOrder   = new short[frames][frameSize];
+    byte[]    buffer    = new byte[encoder.getMaxEncodedSize(frameSize)];
+
+    for (int f = 0; f < frames; f++) {
+      int length = encoder.encode(input, f * frameSize, frameSize, buffer, 0);
+      encoded[f] = Arrays.copyOf(buffer, length);
+    }
+
+    AudioCodec sequential = AudioCodecs.create(AudioCodecs.IMA_ADPCM);
+    for (int f = 0; f < frames; f++) {
+      assertEquals(frameSize, sequential.decode(encoded[f], 0, encoded[f].length, inOrder[f], 0));
+    }
+
+    // every other frame is lost, and the rest arrive in reverse order, at one decoder
+    AudioCodec lossy = AudioCodecs.create(AudioCodecs.IMA_ADPCM);
+    short[] decoded = new short[frameSize];
+    for (int f = frames - 1; f >= 0; f -= 2) {
+      assertEquals(frameSize, lossy.decode(encoded[f], 0, encoded[f].length, decoded, 0));
+      assertArrayEquals("frame " + f, inOrder[f], decoded);
+    }
+
+    // and each frame alone, at a new decoder
+    for (int f = 0; f < frames; f++) {
+      AudioCodec fresh = AudioCodecs.create(AudioCodecs.IMA_ADPCM);
+      assertEquals(frameSize, fresh.decode(encoded[f], 0, encoded[f].length, decoded, 0));
+      assertArrayEquals("frame " + f, inOrder[f], decoded);
+    }
+  }
+
+  @Test
+  public void imaAdpcmIgnoresTruncatedHeader() {
+    AudioCodec codec = AudioCodecs.create(AudioCodecs.IMA_ADPCM);
+
+    assertEquals(0, codec.decode(new byte[3], 0, 3, new short[8], 0));
+  }
+
+  private static void assertRoundTrip(int codecId, double minSnrDb) {
+    for (int frameSize : FRAME_SIZES) {
+      for (int amplitude : new int[] {2000, 12000, 30000}) {
+        assertRoundTrip(codecId, frameSize, amplitude, minSnrDb);
+      }
+    }
+  }
+
+  /**
+   * Encode one second of speech-like audio in frames of the given size, decode each frame with a separate codec,
+   * and compare the result after the first 20 ms, while the ADPCM predictor converges.
+   */
+  private static void assertRoundTrip(int codecId, int frameSize, int amplitude, double minSnrDb) {
+    AudioCodec encoder = AudioCodecs.create(codecId);
+    AudioCodec decoder = AudioCodecs.create(codecId);
+    assertNotNull(encoder);
+
+    int     frames  = Math.max(1, TestSignals.SAMPLE_RATE / frameSize);
+    int     total   = frames * frameSize;
+    short[] input   = TestSignals.speechLike(total, amplitude, frameSize);
+    short[] output  = new short[total];
+    byte[]  payload = new byte[encoder.getMaxEncodedSize(frameSize) + 2];
+    String  name    = encoder.getName() + ", frame: " + frameSize + ", amplitude: " + amplitude;
+
+    for (int f = 0; f < frames; f++) {
+      // a guard byte after the largest payload catches an encoder that writes past its own bound
+      payload[payload.length - 1] = 0x5a;
+
+      int length = encoder.encode(input, f * frameSize, frameSize, payload, 1);
+      assertTrue(name + ": encoded size", (length > 0) && (length <= encoder.getMaxEncodedSize(frameSize)));
+      assertEquals(name + ": guard byte", 0x5a, payload[payload.length - 1]);
+      assertTrue(name + ": decoded size bound", decoder.getMaxDecodedSize(length) >= frameSize);
+
+      int count = decoder.decode(payload, 1, length, output, f * frameSize);
+      assertEquals(name + ": decoded samples", frameSize, count);
+    }
+
+    int skip = Math.min(total - 1, (TestSignals.SAMPLE_RATE * 20) / 1000);
+    double snr = TestSignals.snrDb(input, skip, output, skip, total - skip);
+    assertTrue(name + ": SNR " + snr + " dB", snr >= minSnrDb);
+  }
+}
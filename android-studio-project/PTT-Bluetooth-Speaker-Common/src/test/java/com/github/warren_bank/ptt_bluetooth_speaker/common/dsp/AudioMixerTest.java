@@ -0,0 +1,318 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioSource;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.DirectPcmBuffer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodecs;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.FrameWriter;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.StreamFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.SenderSession;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LinkShaping;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mixes synthetic sources, then 8 live sessions that are fed over loopback transports,
+ * as the playout thread of the receiver would.
+ */
+public class AudioMixerTest {
+  private static final int CHANNELS       = 8;
+  private static final int CHUNK_SAMPLES  = TestSignals.SAMPLE_RATE / 100;  // 10 ms
+  private static final int FRAME_SAMPLES  = TestSignals.SAMPLE_RATE / 50;   // 20 ms
+  private static final long CHUNK_NANOS   = 10000000L;
+  private static final long FRAME_NANOS   = 20000000L;
+
+  @Test
+  public void sumsEightStreamsWithGainMuteAndSaturation() {
+    AudioMixer      mixer   = new AudioMixer(CHANNELS, CHUNK_SAMPLES);
+    AudioSource[]   sources = new AudioSource[CHANNELS];
+    AtomicInteger[] reads   = new AtomicInteger[CHANNELS];
+    short[]         out     = new short[CHUNK_SAMPLES];
+
+    for (int c = 0; c < CHANNELS; c++) {
+      reads[c]   = new AtomicInteger();
+      sources[c] = constant((short) (1000 * (c + 1)), reads[c]);
+      assertEquals(c, mixer.addSource(sources[c]));
+    }
+    assertEquals(-1, mixer.addSource(constant((short) 1, new AtomicInteger())));
+
+    // 1000 + 2000 + ... + 8000 = 36000
+    assertEquals(CHANNELS, mixer.mix(out, 0, CHUNK_SAMPLES));
+    assertAll(out, Short.MAX_VALUE);
+
+    // 36000 - 7000 - 8000 = 21000, and muted sources keep draining
+    mixer.setMuted(6, true);
+    mixer.setMuted(7, true);
+    assertEquals(CHANNELS - 2, mixer.mix(out, 0, CHUNK_SAMPLES));
+    assertAll(out, (short) 21000);
+    assertEquals(2, reads[7].get());
+
+    // 21000 - (1000 / 2) + 2000
+    mixer.setGain(0, 0.5f);
+    mixer.setGain(1, 2.0f);
+    mixer.mix(out, 0, CHUNK_SAMPLES);
+    assertAll(out, (short) 22500);
+
+    // the gain is limited to the maximum
+    mixer.setGain(1, 10.0f);
+    mixer.mix(out, 0, CHUNK_SAMPLES);
+    assertAll(out, (short) 22500);
+
+    // a source that has nothing to contribute is skipped, and a free channel is reused
+    AudioSource idle = new AudioSource() {
+      @Override
+      public boolean read(short[] samples, int offset, int count) {
+        return false;
+      }
+    };
+    mixer.setMuted(7, false);
+    mixer.removeSource(sources[7]);
+    assertEquals(CHANNELS - 1, mixer.getSourceCount());
+    assertEquals(7, mixer.addSource(idle));
+    assertEquals(CHANNELS - 2, mixer.mix(out, 0, CHUNK_SAMPLES));
+  }
+
+  @Test
+  public void saturatesNegativeSums() {
+    AudioMixer mixer = new AudioMixer(CHANNELS, CHUNK_SAMPLES);
+    short[]    out   = new short[CHUNK_SAMPLES];
+
+    for (int c = 0; c < CHANNELS; c++) {
+      mixer.addSource(constant(Short.MIN_VALUE, new AtomicInteger()));
+    }
+    mixer.mix(out, 0, CHUNK_SAMPLES);
+    assertAll(out, Short.MIN_VALUE);
+  }
+
+  /**
+   * The mix written into a direct buffer, as the speaker reads it, is the same as the mix into an array.
+   */
+  @Test
+  public void mixesIntoADirectBuffer() {
+    AudioMixer      arrayMixer  = new AudioMixer(CHANNELS, CHUNK_SAMPLES);
+    AudioMixer      directMixer = new AudioMixer(CHANNELS, CHUNK_SAMPLES);
+    short[]         out         = new short[CHUNK_SAMPLES];
+    DirectPcmBuffer direct      = new DirectPcmBuffer(CHUNK_SAMPLES);
+    short[]         tone;
+
+    for (int c = 0; c < 3; c++) {
+      tone = TestSignals.sine(CHUNK_SAMPLES * 10, 300 * (c + 1), 16000);
+      arrayMixer.addSource(samples(tone));
+      directMixer.addSource(samples(tone));
+      arrayMixer.setGain(c, 0.5f * (c + 1));
+      directMixer.setGain(c, 0.5f * (c + 1));
+    }
+
+    // the sum of the louder tones saturates
+    for (int chunk = 0; chunk < 10; chunk++) {
+      assertEquals(3, arrayMixer.mix(out, 0, CHUNK_SAMPLES));
+      assertEquals(3, directMixer.mix(direct.getSamples(), CHUNK_SAMPLES));
+
+      for (int i = 0; i < CHUNK_SAMPLES; i++) {
+        assertEquals("chunk " + chunk + ", sample " + i, out[i], direct.getSamples().get(i));
+      }
+    }
+  }
+
+  /**
+   * 8 senders stream 20 ms frames in real time, each read and decoded by its own session thread,
+   * while metrics are read continuously on another thread.
+   * The playout thread mixes a 10 ms chunk on schedule, and must never take long enough to miss it.
+   */
+  @Test
+  public void mixesEightLiveSessionsWithinTheDeadline() throws Exception {
+    final AudioMixer      mixer    = new AudioMixer(CHANNELS, CHUNK_SAMPLES);
+    final MetricsRegistry registry = new MetricsRegistry();
+    final SenderSession[] sessions = new SenderSession[CHANNELS];
+    final Thread[]        readers  = new Thread[CHANNELS];
+    final Thread[]        senders  = new Thread[CHANNELS];
+    final AtomicBoolean   stop     = new AtomicBoolean(false);
+
+    for (int c = 0; c < CHANNELS; c++) {
+      LoopbackTransport[] pair = LoopbackTransport.createPair(LinkShaping.NONE);
+
+      sessions[c] = new SenderSession(pair[1], TestSignals.SAMPLE_RATE, CHUNK_SAMPLES);
+      sessions[c].registerMetrics(registry, "session." + c + ".");
+      assertEquals(c, mixer.addSource(sessions[c]));
+
+      readers[c] = new Thread(runSession(sessions[c]), "reader-" + c);
+      senders[c] = new Thread(runSender(pair[0], c, stop), "sender-" + c);
+      readers[c].start();
+      senders[c].start();
+    }
+
+    Thread gauges = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!stop.get()) {
+          registry.snapshot();
+        }
+      }
+    }, "gauges");
+    gauges.start();
+
+    short[] out         = new short[CHUNK_SAMPLES];
+    int     warmUp      = 100;
+    int     chunks      = 300;
+    long    maxMixNanos = 0;
+    int     fullMixes   = 0;
+    long    next        = System.nanoTime();
+
+    try {
+      for (int i = 0; i < (warmUp + chunks); i++) {
+        long wait = next - System.nanoTime();
+        if (wait > 0)
+          Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        next += CHUNK_NANOS;
+
+        long start       = System.nanoTime();
+        int  contributed = mixer.mix(out, 0, CHUNK_SAMPLES);
+        long elapsed     = System.nanoTime() - start;
+
+        if (i >= warmUp) {
+          maxMixNanos = Math.max(maxMixNanos, elapsed);
+          if (contributed == CHANNELS)
+            fullMixes++;
+        }
+      }
+
+      // nothing is allocated on the playout thread, apart from what it takes to ask
+      long overhead        = -getAllocatedBytes() + getAllocatedBytes();
+      long allocatedBefore = getAllocatedBytes();
+      for (int i = 0; i < 10000; i++) {
+        mixer.mix(out, 0, CHUNK_SAMPLES);
+      }
+      long allocated = getAllocatedBytes() - allocatedBefore - overhead;
+
+      assertTrue("longest mix: " + (maxMixNanos / 1000) + " us", maxMixNanos < CHUNK_NANOS);
+      assertTrue("chunks with all 8 streams: " + fullMixes + " of " + chunks, fullMixes >= ((chunks * 9) / 10));
+      if (allocatedBefore >= 0)
+        assertTrue("allocated by 10000 mixes: " + allocated + " bytes", allocated < 10000);
+    }
+    finally {
+      stop.set(true);
+      for (int c = 0; c < CHANNELS; c++) {
+        sessions[c].close();
+      }
+      for (int c = 0; c < CHANNELS; c++) {
+        senders[c].join(5000);
+        readers[c].join(5000);
+      }
+      gauges.join(5000);
+    }
+
+    for (int c = 0; c < CHANNELS; c++) {
+      assertEquals(0, sessions[c].getHandoffOverrunCount());
+      assertTrue(sessions[c].getReceivedFrameCount() > 100);
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  private static AudioSource constant(final short value, final AtomicInteger reads) {
+    return new AudioSource() {
+      @Override
+      public boolean read(short[] out, int offset, int count) {
+        reads.incrementAndGet();
+        for (int i = offset; i < (offset + count); i++) {
+          out[i] = value;
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Plays the samples once, then has nothing to contribute.
+   */
+  private static AudioSource samples(final short[] samples) {
+    return new AudioSource() {
+      private int position = 0;
+
+      @Override
+      public boolean read(short[] out, int offset, int count) {
+        if ((position + count) > samples.length)
+          return false;
+
+        System.arraycopy(samples, position, out, offset, count);
+        position += count;
+        return true;
+      }
+    };
+  }
+
+  private static void assertAll(short[] samples, short expected) {
+    for (int i = 0; i < samples.length; i++) {
+      assertEquals("sample " + i, expected, samples[i]);
+    }
+  }
+
+  private static Runnable runSession(final SenderSession session) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        session.run();
+      }
+    };
+  }
+
+  /**
+   * Offer the receiver's format, then send a tone in 20 ms frames of PCM, paced by the clock.
+   */
+  private static Runnable runSender(final LoopbackTransport transport, final int channel, final AtomicBoolean stop) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        short[] tone = TestSignals.sine(FRAME_SAMPLES * 50, 100 * (channel + 1), 2000);
+
+        try {
+          FrameWriter writer = new FrameWriter(transport.getOutputStream());
+          StreamFormat[] formats = new StreamFormat[] {new StreamFormat(TestSignals.SAMPLE_RATE, 1)};
+
+          int length = StreamFormat.writeOffer(writer.getBuffer(), FrameFormat.HEADER_SIZE, AudioCodecs.PCM, formats);
+          writer.write(FrameFormat.FLAG_CONFIG, System.nanoTime(), length);
+
+          long next = System.nanoTime();
+          for (int f = 0; !stop.get(); f++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+              Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+
+            length = PcmUtils.shortsToBytes(tone, (f % 50) * FRAME_SAMPLES, FRAME_SAMPLES, writer.getBuffer(), FrameFormat.HEADER_SIZE);
+            writer.write(0, next, length);
+            next += FRAME_NANOS;
+          }
+        }
+        catch(Exception e) {}
+        transport.close();
+      }
+    };
+  }
+
+  /**
+   * @return bytes allocated so far by the current thread, or -1 when the JVM doesn't count them
+   */
+  private static long getAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    if (!(bean instanceof com.sun.management.ThreadMXBean))
+      return -1;
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+      return -1;
+
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,144 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Plays synthetic speech at a sweep of levels through the automatic gain control.
+ *
+ * The speech is a voiced fundamental with harmonics, modulated by syllables and broken by pauses.
+ * For every input level, and for sudden jumps between a quiet and a loud talker, it checks that:
+ * <ul>
+ *   <li>no sample exceeds the ceiling, so nothing is clipped</li>
+ *   <li>the gain changes by no more than its rate limit between two frames</li>
+ *   <li>once settled, speech comes out within 3 dB of the target, whenever the gain needed is within range</li>
+ * </ul>
+ */
+public class AutomaticGainControlTest {
+  private static final int   SAMPLE_RATE   = TestSignals.SAMPLE_RATE;
+  private static final int   FRAME_SAMPLES = (SAMPLE_RATE * 20) / 1000;
+  private static final int   SECONDS       = 8;
+  private static final int   SETTLE_FRAMES = (3 * 1000) / 20;
+  private static final float TARGET_DBFS   = -18.0f;
+  private static final float TOLERANCE_DB  = 3.0f;
+
+  private static final float MAX_STEP_DB   = (AutomaticGainControl.MAX_FALL_DB_PER_SECOND * 20) / 1000 + 0.01f;
+  private static final int   CEILING       = (int) (Short.MAX_VALUE * Math.pow(10, AutomaticGainControl.CEILING_DBFS / 20));
+
+  @Test
+  public void sweepOfLevelsReachesTheTargetWithoutClipping() {
+    for (int level = -48; level <= 0; level += 6) {
+      run(new float[] {level}, true);
+    }
+  }
+
+  @Test
+  public void jumpsBetweenTalkersDontClipOrJump() {
+    run(new float[] {-40, 0, -40}, false);
+    run(new float[] {-6, -36, -6}, false);
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * Play {@link #SECONDS} of speech at each level in turn.
+   */
+  private static void run(float[] levels, boolean checkLevel) {
+    AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE, TARGET_DBFS);
+    Random  random   = new Random(1);
+    short[] frame    = new short[FRAME_SAMPLES];
+    int     frames   = (SECONDS * SAMPLE_RATE) / FRAME_SAMPLES;
+    long    n        = 0;
+    int     peak     = 0;
+    float   maxStep  = 0;
+    float   lastGain = agc.getGainDb();
+    double  power;
+    long    powerCount;
+    boolean voiced;
+
+    for (float level : levels) {
+      power      = 0;
+      powerCount = 0;
+
+      for (int f = 0; f < frames; f++) {
+        voiced = createSpeech(frame, n, level, random);
+        n     += FRAME_SAMPLES;
+
+        agc.process(frame, 0, FRAME_SAMPLES);
+
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+          peak = Math.max(peak, Math.abs(frame[i]));
+        }
+
+        maxStep  = Math.max(maxStep, Math.abs(agc.getGainDb() - lastGain));
+        lastGain = agc.getGainDb();
+
+        if (voiced && (f >= SETTLE_FRAMES)) {
+          for (int i = 0; i < FRAME_SAMPLES; i++) {
+            power += (double) frame[i] * frame[i];
+          }
+          powerCount += FRAME_SAMPLES;
+        }
+      }
+
+      double outputDb = 10 * Math.log10(power / Math.max(1, powerCount) / ((double) Short.MAX_VALUE * Short.MAX_VALUE));
+      double neededDb = TARGET_DBFS - speechLevel(level);
+
+      assertTrue("level " + level + ": peak " + peak + " exceeds the ceiling " + CEILING, peak <= CEILING);
+      assertTrue("level " + level + ": gain changed by " + maxStep + " dB in one frame", maxStep <= MAX_STEP_DB);
+
+      if (checkLevel && (neededDb >= AutomaticGainControl.MIN_GAIN_DB) && (neededDb <= AutomaticGainControl.MAX_GAIN_DB))
+        assertTrue("level " + level + ": speech came out at " + outputDb + " dBFS", Math.abs(outputDb - TARGET_DBFS) <= TOLERANCE_DB);
+    }
+  }
+
+  /**
+   * Syllables of about 200 ms, with a pause of 300 ms after every third one.
+   *
+   * @param level  peak level of the harmonics, in dBFS
+   * @return whether the frame is within a syllable
+   */
+  private static boolean createSpeech(short[] frame, long start, float level, Random random) {
+    double amplitude = Short.MAX_VALUE * Math.pow(10, level / 20) / 1.6;  // the harmonics sum to a peak of about 1.6
+    long   cycle     = (SAMPLE_RATE * 900L) / 1000;
+    long   syllable  = (SAMPLE_RATE * 200L) / 1000;
+    boolean voiced   = false;
+    double value;
+    double gain;
+    long   t;
+    long   position;
+
+    for (int i = 0; i < frame.length; i++) {
+      t        = start + i;
+      position = t % cycle;
+      gain     = (position < (3 * syllable))
+        ? Math.pow(Math.sin((Math.PI * (position % syllable)) / syllable), 2)
+        : 0;
+
+      value  = Math.sin((2 * Math.PI * 140 * t) / SAMPLE_RATE);
+      value += 0.4 * Math.sin((2 * Math.PI * 280 * t) / SAMPLE_RATE);
+      value += 0.2 * Math.sin((2 * Math.PI * 560 * t) / SAMPLE_RATE);
+      value  = (amplitude * gain * value) + (3 * random.nextGaussian());
+
+      frame[i] = TestSignals.clip(value);
+
+      if (gain > 0.5)
+        voiced = true;
+    }
+    return voiced;
+  }
+
+  /**
+   * @return the RMS level of {@link #createSpeech} during syllables, in dBFS, for a peak level in dBFS
+   */
+  private static double speechLevel(float level) {
+    // harmonics: RMS = sqrt((1 + 0.16 + 0.04) / 2) of a peak of 1.6; syllables: mean of sin^4 = 3/8
+    double rms = Math.sqrt(((1 + 0.16 + 0.04) / 2) * 0.375) / 1.6;
+    return level + (20 * Math.log10(rms));
+  }
+}
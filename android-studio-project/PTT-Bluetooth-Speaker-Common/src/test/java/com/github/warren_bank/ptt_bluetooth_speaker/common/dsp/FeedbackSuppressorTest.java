@@ -0,0 +1,209 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Plays synthetic speech and feedback tones through the feedback suppressor.
+ *
+ * <ul>
+ *   <li>speech only: no howl should be found</li>
+ *   <li>a tone that grows by 20 dB per second under speech:
+ *       it should be notched no later than 300 ms after rising above the speech, at the right frequency</li>
+ *   <li>a closed loop: the output is played into a room with two resonances,
+ *       and picked up again by the microphone 100 ms later, with a loop gain above 1 at both.
+ *       Without the suppressor it howls until it clips; with it, the howl should be caught no later than 500 ms
+ *       after it became loud without the suppressor, and the loop should stay stable.</li>
+ * </ul>
+ */
+public class FeedbackSuppressorTest {
+  private static final int   SAMPLE_RATE   = TestSignals.SAMPLE_RATE;
+  private static final int   FRAME_SAMPLES = (SAMPLE_RATE * 20) / 1000;
+  private static final int   LOOP_DELAY    = (SAMPLE_RATE * 100) / 1000;
+  private static final float SPEECH_DBFS   = -20.0f;
+
+  @Test
+  public void speechIsNeverAHowl() {
+    FeedbackSuppressor suppressor = new FeedbackSuppressor(SAMPLE_RATE, true);
+    Speech             speech     = new Speech(SPEECH_DBFS);
+    short[]            frame      = new short[FRAME_SAMPLES];
+
+    for (int f = 0; f < ((60 * SAMPLE_RATE) / FRAME_SAMPLES); f++) {
+      speech.next(frame);
+      suppressor.process(frame, 0, FRAME_SAMPLES);
+    }
+
+    assertEquals(0, suppressor.getHowlCount());
+  }
+
+  @Test
+  public void growingTonesAreNotchedInTime() {
+    growingTone(1234.0f);
+    growingTone(437.0f);
+    growingTone(3150.0f);
+  }
+
+  @Test
+  public void closedLoopIsCaughtAndStaysStable() {
+    Loop unsuppressed = closedLoop(false, 20);
+    Loop suppressed   = closedLoop(true, 20);
+
+    // otherwise the simulation proves nothing
+    assertTrue("loudest frame in the last second, unsuppressed: " + unsuppressed.lastPower + " dBFS", unsuppressed.lastPower >= -6);
+    assertTrue(unsuppressed.loudAt >= 0);
+
+    assertTrue("howl first found at sample " + suppressed.foundAt, suppressed.foundAt >= 0);
+    assertTrue("found " + (((suppressed.foundAt - unsuppressed.loudAt) * 1000) / SAMPLE_RATE) + " ms after the loop became loud", (((suppressed.foundAt - unsuppressed.loudAt) * 1000) / SAMPLE_RATE) <= 500);
+    assertTrue("loudest frame in the last second, suppressed: " + suppressed.lastPower + " dBFS", suppressed.lastPower <= (SPEECH_DBFS + 6));
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * A tone that starts at -70 dBFS and grows by 20 dB per second, up to -6 dBFS, mixed with speech.
+   */
+  private static void growingTone(float frequency) {
+    FeedbackSuppressor suppressor = new FeedbackSuppressor(SAMPLE_RATE, false);
+    Speech             speech     = new Speech(SPEECH_DBFS);
+    short[]            frame      = new short[FRAME_SAMPLES];
+    long               n          = 0;
+    long               audibleAt  = -1;  // when the tone rises above the speech
+    long               foundAt    = -1;
+    double             level;
+    double             value;
+
+    for (int f = 0; f < ((6 * SAMPLE_RATE) / FRAME_SAMPLES); f++) {
+      speech.next(frame);
+
+      for (int i = 0; i < FRAME_SAMPLES; i++, n++) {
+        level = Math.min(-6.0, -70.0 + ((20.0 * n) / SAMPLE_RATE));
+        value = frame[i] + (Short.MAX_VALUE * Math.pow(10, level / 20) * Math.sin((2 * Math.PI * frequency * n) / SAMPLE_RATE));
+
+        if ((audibleAt < 0) && (level >= SPEECH_DBFS))
+          audibleAt = n;
+
+        frame[i] = TestSignals.clip(value);
+      }
+
+      suppressor.process(frame, 0, FRAME_SAMPLES);
+
+      if ((foundAt < 0) && (suppressor.getHowlCount() > 0))
+        foundAt = n;
+    }
+
+    float notch = suppressor.getNotchFrequency(0);
+    long  delay = ((foundAt - audibleAt) * 1000) / SAMPLE_RATE;
+
+    assertTrue("the tone at " + frequency + " Hz was never found", foundAt >= 0);
+    assertTrue("the tone at " + frequency + " Hz was found " + delay + " ms after rising above the speech", delay <= 300);
+    assertTrue("the notch for the tone at " + frequency + " Hz is at " + notch + " Hz", Math.abs(notch - frequency) <= 10);
+  }
+
+  private static final class Loop {
+    long   loudAt    = -1;  // when the loop first runs 10 dB above the speech, in samples
+    long   foundAt   = -1;  // when the first howl was found, in samples
+    double lastPower = -200;
+  }
+
+  /**
+   * Speech into a microphone that also hears the speaker, which plays the output 100 ms later.
+   */
+  private static Loop closedLoop(boolean suppress, int seconds) {
+    FeedbackSuppressor suppressor = new FeedbackSuppressor(SAMPLE_RATE, true);
+    Speech             speech     = new Speech(SPEECH_DBFS);
+    short[]            frame      = new short[FRAME_SAMPLES];
+    short[]            echo       = new short[FRAME_SAMPLES];
+    short[]            played     = new short[LOOP_DELAY];  // the output, on its way around the loop
+    int                position   = 0;
+    Loop               loop       = new Loop();
+
+    // the room: flat at -12 dB, with resonances that raise the loop gain to about +3 dB at 900 Hz and 2500 Hz
+    BiquadFilter       resonance1 = BiquadFilter.peaking(SAMPLE_RATE, 900.0f,  8.0f, 15.0f);
+    BiquadFilter       resonance2 = BiquadFilter.peaking(SAMPLE_RATE, 2500.0f, 8.0f, 15.0f);
+    float              roomGain   = (float) Math.pow(10, -12.0 / 20);
+
+    double power;
+    long   n = 0;
+
+    for (int f = 0; f < ((seconds * SAMPLE_RATE) / FRAME_SAMPLES); f++) {
+      speech.next(frame);
+
+      for (int i = 0; i < FRAME_SAMPLES; i++) {
+        echo[i] = (short) Math.round(played[(position + i) % LOOP_DELAY] * roomGain);
+      }
+      resonance1.process(echo, 0, FRAME_SAMPLES);
+      resonance2.process(echo, 0, FRAME_SAMPLES);
+
+      power = 0;
+      for (int i = 0; i < FRAME_SAMPLES; i++) {
+        frame[i] = TestSignals.clip(frame[i] + echo[i]);
+        power   += (double) frame[i] * frame[i];
+      }
+
+      if (suppress)
+        suppressor.process(frame, 0, FRAME_SAMPLES);
+
+      for (int i = 0; i < FRAME_SAMPLES; i++) {
+        played[(position + i) % LOOP_DELAY] = frame[i];
+      }
+      position = (position + FRAME_SAMPLES) % LOOP_DELAY;
+      n       += FRAME_SAMPLES;
+
+      power = 10 * Math.log10(Math.max(1, power / FRAME_SAMPLES) / ((double) Short.MAX_VALUE * Short.MAX_VALUE));
+      if ((loop.loudAt < 0) && (power > (SPEECH_DBFS + 10)))
+        loop.loudAt = n;
+      if ((loop.foundAt < 0) && (suppressor.getHowlCount() > 0))
+        loop.foundAt = n;
+
+      // the last second
+      if (f >= (((seconds - 1) * SAMPLE_RATE) / FRAME_SAMPLES))
+        loop.lastPower = Math.max(loop.lastPower, power);
+    }
+    return loop;
+  }
+
+  /**
+   * Syllables with a gliding pitch between 110 and 190 Hz, and pauses between words.
+   */
+  private static final class Speech {
+    private final double amplitude;
+    private final Random random = new Random(7);
+    private long         n      = 0;
+    private double       phase  = 0;
+
+    Speech(float levelDbfs) {
+      amplitude = Short.MAX_VALUE * Math.pow(10, levelDbfs / 20) * 2;
+    }
+
+    void next(short[] frame) {
+      long   syllable = (SAMPLE_RATE * 180L) / 1000;
+      long   word     = 4 * syllable;
+      long   cycle    = word + ((SAMPLE_RATE * 250L) / 1000);
+      double pitch;
+      double gain;
+      double value;
+      long   position;
+
+      for (int i = 0; i < frame.length; i++, n++) {
+        position = n % cycle;
+        pitch    = 150 + (40 * Math.sin((2 * Math.PI * n) / (SAMPLE_RATE * 1.3))) + (15 * Math.sin((2 * Math.PI * n) / (SAMPLE_RATE * 0.21)));
+        gain     = (position < word) ? Math.pow(Math.sin((Math.PI * (position % syllable)) / syllable), 2) : 0;
+        phase   += (2 * Math.PI * pitch) / SAMPLE_RATE;
+
+        value = 0;
+        for (int h = 1; h <= 12; h++) {
+          value += Math.sin(h * phase) / h;
+        }
+        value = (amplitude * gain * value * 0.5) + (30 * random.nextGaussian());
+
+        frame[i] = TestSignals.clip(value);
+      }
+    }
+  }
+}
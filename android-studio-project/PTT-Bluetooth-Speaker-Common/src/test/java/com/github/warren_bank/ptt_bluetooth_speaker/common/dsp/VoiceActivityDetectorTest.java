@@ -0,0 +1,141 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.dsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.TestSignals;
+
+import org.junit.Test;
+
+/**
+ * Classifies 20 ms frames of synthetic speech and background noise.
+ */
+public class VoiceActivityDetectorTest {
+  private static final int SAMPLE_RATE   = TestSignals.SAMPLE_RATE;
+  private static final int FRAME_SAMPLES = SAMPLE_RATE / 50;
+
+  // one window of the minimum, plus the time for the floor to rise by 25 dB towards it, plus the hangover
+  private static final int SILENT_WITHIN_MS = 8000;
+
+  /**
+   * The noise floor must not learn the speech itself, however long it lasts.
+   * Its level dips between syllables, as real speech does, even without a pause between words.
+   */
+  @Test
+  public void continuousSpeechIsNeverClassedAsSilence() {
+    VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE);
+
+    // 1 second of a quiet room, then 2 minutes of talking (or an announcement) without a pause
+    assertEquals(0, countSpeechFrames(vad, TestSignals.noise(SAMPLE_RATE, 10, 1)));
+
+    short[] speech = syllables(TestSignals.speechLike(SAMPLE_RATE * 120, 3000, 2));
+    int     frames = speech.length / FRAME_SAMPLES;
+
+    assertEquals(frames, countSpeechFrames(vad, speech));
+    // it may rise to the quietest ends of syllables, which are still 20 dB below the speech
+    assertTrue("floor: " + vad.getNoiseFloorDb() + " dBFS", vad.getNoiseFloorDb() < -50);
+  }
+
+  @Test
+  public void silenceFollowsTheHangover() {
+    VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE);
+    short[] noise = TestSignals.noise(FRAME_SAMPLES, 10, 3);
+
+    countSpeechFrames(vad, TestSignals.noise(SAMPLE_RATE, 10, 4));
+    countSpeechFrames(vad, TestSignals.speechLike(SAMPLE_RATE, 3000, 5));
+
+    int hangoverFrames = VoiceActivityDetector.DEFAULT_HANGOVER_MS / 20;
+    for (int f = 0; f < hangoverFrames; f++) {
+      assertTrue("frame " + f, vad.process(noise, 0, FRAME_SAMPLES));
+    }
+    for (int f = 0; f < 50; f++) {
+      assertFalse("frame " + f, vad.process(noise, 0, FRAME_SAMPLES));
+    }
+  }
+
+  /**
+   * A background that gets louder slowly, like a fan spinning up, is followed by the floor.
+   */
+  @Test
+  public void floorFollowsARisingBackground() {
+    VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE);
+
+    // from -70 to -50 dBFS over 40 seconds
+    for (int f = 0; f < (40 * 50); f++) {
+      double  amplitude = 32768 * Math.pow(10, (-70 + (f / 100.0d)) / 20);
+      short[] noise     = TestSignals.noise(FRAME_SAMPLES, amplitude, f);
+
+      assertFalse("frame " + f, vad.process(noise, 0, FRAME_SAMPLES));
+    }
+    assertTrue("floor: " + vad.getNoiseFloorDb() + " dBFS", vad.getNoiseFloorDb() > -55);
+
+    // and speech well above it is still detected
+    assertEquals(50, countSpeechFrames(vad, TestSignals.speechLike(SAMPLE_RATE, 8000, 6)));
+  }
+
+  /**
+   * A steady background that is suddenly much louder than the floor, like a crowd in a hall,
+   * is voiced at first, and must be learned while it is, so that it is classed as silence within seconds.
+   */
+  @Test
+  public void floorLearnsASteadyBackgroundAboveTheThreshold() {
+    for (int levelDb = -45; levelDb <= -35; levelDb += 5) {
+      VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE);
+
+      // 10 seconds at -60 dBFS
+      for (int f = 0; f < (10 * 50); f++) {
+        assertFalse("frame " + f, vad.process(noise(-60, f), 0, FRAME_SAMPLES));
+      }
+
+      // then up to 30 seconds at the louder level
+      int silentAt = -1;
+      for (int f = 0; f < (30 * 50); f++) {
+        boolean speech = vad.process(noise(levelDb, f), 0, FRAME_SAMPLES);
+
+        if ((silentAt < 0) && !speech)
+          silentAt = f;
+        if (silentAt >= 0)
+          assertFalse(levelDb + " dBFS: frame " + f + " is speech again after silence at frame " + silentAt, speech);
+      }
+
+      assertTrue(levelDb + " dBFS: never classed as silence", silentAt >= 0);
+      assertTrue(levelDb + " dBFS: classed as silence after " + (silentAt * 20) + " ms", (silentAt * 20) <= SILENT_WITHIN_MS);
+      assertTrue(levelDb + " dBFS: floor: " + vad.getNoiseFloorDb() + " dBFS", Math.abs(vad.getNoiseFloorDb() - levelDb) <= 3);
+
+      // and speech well above it is still detected
+      assertEquals(50, countSpeechFrames(vad, TestSignals.speechLike(SAMPLE_RATE, 16000, 7)));
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * @return a frame of white noise at the level
+   */
+  private static short[] noise(int levelDb, long seed) {
+    return TestSignals.noise(FRAME_SAMPLES, 32768 * Math.pow(10, levelDb / 20.0d), seed);
+  }
+
+  /**
+   * Shape the signal into syllables of 180 ms, whose level rises and falls.
+   */
+  private static short[] syllables(short[] signal) {
+    int syllable = (SAMPLE_RATE * 180) / 1000;
+
+    for (int i = 0; i < signal.length; i++) {
+      signal[i] = TestSignals.clip(signal[i] * Math.pow(Math.sin((Math.PI * (i % syllable)) / syllable), 2));
+    }
+    return signal;
+  }
+
+  private static int countSpeechFrames(VoiceActivityDetector vad, short[] signal) {
+    int count = 0;
+
+    for (int offset = 0; (offset + FRAME_SAMPLES) <= signal.length; offset += FRAME_SAMPLES) {
+      if (vad.process(signal, offset, FRAME_SAMPLES))
+        count++;
+    }
+    return count;
+  }
+}
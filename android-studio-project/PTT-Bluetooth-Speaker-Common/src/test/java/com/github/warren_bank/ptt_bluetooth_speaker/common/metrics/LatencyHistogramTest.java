@@ -0,0 +1,53 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsCoverEveryValueWithinAnEighth() {
+    for (long value = 0; value < (1L << 38); value = (value * 9 / 8) + 1) {
+      int index = LatencyHistogram.getBucketIndex(value);
+
+      assertTrue("value " + value, LatencyHistogram.getBucketLowerBound(index) <= value);
+      assertTrue("value " + value, LatencyHistogram.getBucketUpperBound(index) >= value);
+      assertTrue("value " + value, (LatencyHistogram.getBucketUpperBound(index) - LatencyHistogram.getBucketLowerBound(index)) <= Math.max(0, value / 8));
+    }
+  }
+
+  @Test
+  public void percentilesMatchTheSortedSamples() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Random random  = new Random(1);
+    long[] samples = new long[10000];
+
+    // 80 ms, give or take, with a tail
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = 80000 + (long) (random.nextGaussian() * 5000) + ((i % 100 == 0) ? 60000 : 0);
+      histogram.record(samples[i]);
+    }
+    Arrays.sort(samples);
+
+    for (double percentile : new double[] {50, 95, 99}) {
+      long expected = samples[(int) Math.ceil((percentile / 100) * samples.length) - 1];
+      long actual   = histogram.getPercentile(percentile);
+
+      assertTrue("p" + percentile + ": " + actual + " us, expected " + expected + " us", (actual >= expected) && (actual <= ((expected * 9) / 8)));
+    }
+    assertEquals(samples.length, histogram.getCount());
+    assertEquals(samples[0], histogram.getMin());
+    assertEquals(samples[samples.length - 1], histogram.getMax());
+    assertEquals(samples[samples.length - 1], histogram.getPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals("", histogram.getBuckets());
+  }
+}
@@ -0,0 +1,252 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds the parser with streams of frames from a {@link FrameWriter},
+ * split as an RFCOMM or TCP socket might split them.
+ */
+public class FrameParserTest {
+  private static final int CAPACITY = FrameFormat.MAX_FRAME_SIZE * 2;
+
+  /**
+   * Every way of splitting the stream in two, then every read size from 1 byte up.
+   */
+  @Test
+  public void framesSplitAtEveryOffset() throws IOException {
+    byte[] stream = writeFrames(6);
+
+    for (int split = 0; split <= stream.length; split++) {
+      FrameParser  parser = new FrameParser(CAPACITY);
+      List<long[]> frames = new ArrayList<long[]>();
+
+      parser.write(stream, 0, split);
+      drain(parser, frames);
+      parser.write(stream, split, stream.length - split);
+      drain(parser, frames);
+
+      assertFrames("split at " + split, frames, 6);
+      assertEquals(0, parser.getResyncCount());
+    }
+
+    for (int readSize = 1; readSize <= stream.length; readSize++) {
+      FrameParser  parser = new FrameParser(CAPACITY);
+      List<long[]> frames = new ArrayList<long[]>();
+      InputStream  in     = new ChunkedInputStream(stream, readSize);
+
+      while (parser.readFrom(in) >= 0) {
+        drain(parser, frames);
+      }
+
+      assertFrames("reads of " + readSize + " bytes", frames, 6);
+    }
+  }
+
+  @Test
+  public void severalFramesInOneRead() throws IOException {
+    FrameParser  parser = new FrameParser(CAPACITY);
+    List<long[]> frames = new ArrayList<long[]>();
+    byte[]       stream = writeFrames(20);
+
+    assertEquals(stream.length, parser.readFrom(new ChunkedInputStream(stream, stream.length)));
+    drain(parser, frames);
+
+    assertFrames("one read", frames, 20);
+    assertEquals(0, parser.getLostFrameCount());
+  }
+
+  /**
+   * Garbage, and a frame with an unknown version, are skipped one byte at a time.
+   */
+  @Test
+  public void resyncsPastGarbageAndABadVersion() throws IOException {
+    ByteArrayOutputStream out      = new ByteArrayOutputStream();
+    byte[]                frames   = writeFrames(3);
+    byte[]                garbage  = new byte[] {1, 2, 'P', 'T', 3, 'P', 0, 0, 0};
+    byte[]                badFrame = frame(FrameFormat.VERSION + 1, 0, 7, new byte[40]);
+
+    out.write(garbage);
+    out.write(frames);
+    out.write(badFrame);
+    out.write(garbage);
+    out.write(frames);
+
+    byte[]       stream = out.toByteArray();
+    FrameParser  parser = new FrameParser(CAPACITY);
+    List<long[]> parsed = new ArrayList<long[]>();
+
+    // one byte at a time, the worst case for the search
+    for (int i = 0; i < stream.length; i++) {
+      parser.write(stream, i, 1);
+      drain(parser, parsed);
+    }
+
+    assertEquals(6, parsed.size());
+    for (int i = 0; i < 6; i++) {
+      assertEquals(i % 3, parsed.get(i)[0]);
+    }
+    assertEquals((2 * garbage.length) + badFrame.length, parser.getResyncCount());
+  }
+
+  @Test
+  public void countsFramesMissingFromTheSequence() {
+    FrameParser parser    = new FrameParser(CAPACITY);
+    Frame       frame     = new Frame();
+    int[]       sequences = new int[] {0, 1, 2, 5, 6, 10, 11};
+
+    for (int i = 0; i < sequences.length; i++) {
+      byte[] data = frame(FrameFormat.VERSION, 0, sequences[i], new byte[4]);
+      parser.write(data, 0, data.length);
+
+      assertTrue(parser.next(frame));
+      assertEquals(sequences[i], frame.getSequence());
+    }
+
+    // 3 and 4, then 7, 8 and 9
+    assertEquals(5, parser.getLostFrameCount());
+
+    // a frame that arrives late isn't counted again
+    byte[] late = frame(FrameFormat.VERSION, 0, 4, new byte[4]);
+    parser.write(late, 0, late.length);
+    assertTrue(parser.next(frame));
+    assertEquals(5, parser.getLostFrameCount());
+  }
+
+  /**
+   * The payload is served from the parser's buffer, where it was read, and is never copied.
+   */
+  @Test
+  public void payloadIsNotCopied() throws IOException {
+    FrameParser parser = new FrameParser(CAPACITY);
+    Frame       frame  = new Frame();
+    byte[]      stream = writeFrames(3);
+
+    parser.write(stream, 0, stream.length);
+
+    assertTrue(parser.next(frame));
+    byte[] buffer = frame.getPayload();
+
+    assertNotSame(stream, buffer);
+    assertEquals(CAPACITY, buffer.length);
+    assertEquals(FrameFormat.HEADER_SIZE, frame.getPayloadOffset());
+
+    int offset = frame.getPayloadOffset() + frame.getPayloadLength();
+    for (int f = 1; f < 3; f++) {
+      assertTrue(parser.next(frame));
+      assertSame(buffer, frame.getPayload());
+      assertEquals(offset + FrameFormat.HEADER_SIZE, frame.getPayloadOffset());
+      assertPayload(frame, f);
+      offset = frame.getPayloadOffset() + frame.getPayloadLength();
+    }
+    assertFalse(parser.next(frame));
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * Frames of different lengths, whose payload bytes are derived from their sequence number.
+   */
+  private static byte[] writeFrames(int count) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    FrameWriter           writer = new FrameWriter(out, 1024);
+
+    for (int f = 0; f < count; f++) {
+      int length = payloadLength(f);
+
+      for (int i = 0; i < length; i++) {
+        writer.getBuffer()[FrameFormat.HEADER_SIZE + i] = payloadByte(f, i);
+      }
+      writer.write(f % 4, 1000L * f, length);
+    }
+    return out.toByteArray();
+  }
+
+  private static int payloadLength(int sequence) {
+    return (sequence * 37) % 300;
+  }
+
+  private static byte payloadByte(int sequence, int i) {
+    return (byte) ((sequence * 13) + i);
+  }
+
+  private static byte[] frame(int version, int flags, int sequence, byte[] payload) {
+    byte[] data = new byte[FrameFormat.HEADER_SIZE + payload.length];
+
+    FrameFormat.writeHeader(data, 0, flags, payload.length, sequence, 0);
+    data[2] = (byte) version;
+    System.arraycopy(payload, 0, data, FrameFormat.HEADER_SIZE, payload.length);
+    return data;
+  }
+
+  /**
+   * Check each frame as it is parsed, while its payload is still valid, and keep its sequence number.
+   */
+  private static void drain(FrameParser parser, List<long[]> frames) {
+    Frame frame = new Frame();
+
+    while (parser.next(frame)) {
+      assertPayload(frame, frame.getSequence());
+      frames.add(new long[] {frame.getSequence(), frame.getFlags(), frame.getTimestamp()});
+    }
+  }
+
+  private static void assertPayload(Frame frame, int sequence) {
+    assertEquals("length of frame " + sequence, payloadLength(sequence), frame.getPayloadLength());
+
+    for (int i = 0; i < frame.getPayloadLength(); i++) {
+      assertEquals("frame " + sequence + ", byte " + i, payloadByte(sequence, i), frame.getPayload()[frame.getPayloadOffset() + i]);
+    }
+  }
+
+  private static void assertFrames(String name, List<long[]> frames, int count) {
+    assertEquals(name, count, frames.size());
+
+    for (int f = 0; f < count; f++) {
+      assertEquals(name, f,         frames.get(f)[0]);
+      assertEquals(name, f % 4,     frames.get(f)[1]);
+      assertEquals(name, 1000L * f, frames.get(f)[2]);
+    }
+  }
+
+  /**
+   * Returns at most {@code readSize} bytes from each read, as a socket may.
+   */
+  private static final class ChunkedInputStream extends InputStream {
+    private final byte[] data;
+    private final int    readSize;
+    private int          position = 0;
+
+    ChunkedInputStream(byte[] data, int readSize) {
+      this.data     = data;
+      this.readSize = readSize;
+    }
+
+    @Override
+    public int read() {
+      return (position < data.length) ? (data[position++] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (position >= data.length)
+        return -1;
+
+      int count = Math.min(Math.min(length, readSize), data.length - position);
+      System.arraycopy(data, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+  }
+}
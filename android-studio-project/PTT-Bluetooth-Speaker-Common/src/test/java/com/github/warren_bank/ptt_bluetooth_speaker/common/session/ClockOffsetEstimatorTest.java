@@ -0,0 +1,61 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ClockOffsetEstimatorTest {
+  private static final long MS = 1000000L;
+
+  /**
+   * The remote clock is 5 seconds ahead, and each leg of the round trip is delayed by 20 to 120 ms.
+   */
+  @Test
+  public void offsetIsTakenFromTheShortestRoundTrip() {
+    ClockOffsetEstimator clock  = new ClockOffsetEstimator();
+    Random               random = new Random(1);
+    long                 offset = 5000 * MS;
+    long                 t1     = 0;
+
+    assertFalse(clock.isValid());
+
+    for (int i = 0; i < 100; i++) {
+      t1 += 1000 * MS;
+
+      long up   = (20 * MS) + (long) (random.nextDouble() * 100 * MS);
+      long down = (20 * MS) + (long) (random.nextDouble() * 100 * MS);
+      long t2   = t1 + up + offset;
+      long t3   = t2 + MS;
+      long t4   = (t3 - offset) + down;
+
+      clock.addSample(t1, t2, t3, t4);
+
+      // the error is at most half of the round trip of the sample that was used
+      assertTrue(clock.isValid());
+      assertTrue("ping " + i, Math.abs(clock.getOffset() - offset) <= (clock.getRoundTripTime() / 2));
+      assertTrue("ping " + i, clock.getRoundTripTime() <= (240 * MS));
+    }
+
+    assertEquals(t1 - (9 * MS), clock.toLocalTime(t1 + offset - (9 * MS)), 60 * MS);
+  }
+
+  @Test
+  public void sampleWithANegativeRoundTripIsIgnored() {
+    ClockOffsetEstimator clock = new ClockOffsetEstimator();
+
+    clock.addSample(1000, 2000, 3000, 1500);
+    assertFalse(clock.isValid());
+
+    clock.addSample(1000, 2000, 2100, 1500);
+    assertTrue(clock.isValid());
+    assertEquals(400, clock.getRoundTripTime());
+    assertEquals(800, clock.getOffset());
+
+    clock.reset();
+    assertFalse(clock.isValid());
+  }
+}
@@ -0,0 +1,156 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.PcmUtils;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.FramePool;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodecs;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.LatencyHistogram;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LinkShaping;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LoopbackTransportServer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A sender streams to a receiver over a loopback transport with 40 to 50 ms of one-way delay,
+ * and the receiver measures the latency of every chunk that it plays, as the playout thread does.
+ *
+ * The audio is a ramp of the sample index, so the test can tell which captured sample each chunk starts with,
+ * and measure the true latency independently.
+ */
+public class EndToEndLatencyTest {
+  private static final int  SAMPLE_RATE    = 16000;
+  private static final int  FRAME_SAMPLES  = SAMPLE_RATE / 50;   // 20 ms
+  private static final int  CHUNK_SAMPLES  = SAMPLE_RATE / 100;  // 10 ms
+  private static final long FRAME_NANOS    = 20000000L;
+  private static final long CHUNK_NANOS    = 10000000L;
+  private static final long OUTPUT_NANOS   = 20000000L;  // from writing a chunk to hearing it
+  private static final int  RAMP_PERIOD    = 1 << 14;    // samples, about 1 second
+  private static final long MS             = 1000000L;
+
+  @Test
+  public void measuredLatencyMatchesTheTrueLatency() throws Exception {
+    final LoopbackTransportServer server  = new LoopbackTransportServer(new LinkShaping(0, 40, 10, 1));
+    final AtomicReference<SenderSession> sessionRef = new AtomicReference<SenderSession>();
+    final AtomicBoolean stop     = new AtomicBoolean(false);
+    final AtomicLong    captured = new AtomicLong(0);  // samples
+    final long          start    = System.nanoTime();
+
+    // receiver: accept the sender, and read from it
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Transport transport = server.accept();
+          SenderSession session = new SenderSession(transport, SAMPLE_RATE, CHUNK_SAMPLES);
+
+          sessionRef.set(session);
+          session.run();
+        }
+        catch(Exception e) {}
+      }
+    }, "reader");
+    reader.start();
+
+    // sender: capture a ramp in real time, and stamp each frame with the time of its first sample
+    final ReceiverLink link = new ReceiverLink(server.connector(), AudioCodecs.PCM, 64, FRAME_SAMPLES * 2, null);
+    link.open();
+    link.start();
+
+    Thread capture = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        FramePool pool   = new FramePool(128, FRAME_SAMPLES * 2);
+        short[]   frame  = new short[FRAME_SAMPLES];
+        long      sample = 0;
+
+        try {
+          while (!stop.get()) {
+            long captureTime = start + ((sample * 1000000000L) / SAMPLE_RATE);
+            long wait        = (captureTime + FRAME_NANOS) - System.nanoTime();
+            if (wait > 0)
+              Thread.sleep(wait / MS, (int) (wait % MS));
+
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+              frame[i] = (short) ((sample + i) % RAMP_PERIOD);
+            }
+
+            PooledFrame pooled = pool.acquire();
+            PcmUtils.shortsToBytes(frame, 0, FRAME_SAMPLES, pooled.getData(), 0);
+            pooled.set(FRAME_SAMPLES * 2, captureTime, 0);
+            link.offer(pooled);
+
+            sample += FRAME_SAMPLES;
+            captured.set(sample);
+          }
+        }
+        catch(Exception e) {}
+      }
+    }, "capture");
+    capture.start();
+
+    // playout
+    LatencyHistogram trueLatency = new LatencyHistogram();
+    short[] chunk = new short[CHUNK_SAMPLES];
+    long    next  = System.nanoTime();
+
+    try {
+      while ((System.nanoTime() - start) < (6000 * MS)) {
+        long wait = next - System.nanoTime();
+        if (wait > 0)
+          Thread.sleep(wait / MS, (int) (wait % MS));
+        next += CHUNK_NANOS;
+
+        SenderSession session = sessionRef.get();
+        if (session == null)
+          continue;
+
+        long now = System.nanoTime();
+        session.read(chunk, 0, CHUNK_SAMPLES);
+
+        long presentationTime = now + OUTPUT_NANOS;
+        if (session.recordPlayout(presentationTime) < 0)
+          continue;
+
+        // the newest captured sample whose ramp value is the first sample of the chunk
+        long newest        = captured.get();
+        long sample        = newest - (((newest - chunk[0]) % RAMP_PERIOD + RAMP_PERIOD) % RAMP_PERIOD);
+        long captureTime   = start + ((sample * 1000000000L) / SAMPLE_RATE);
+
+        trueLatency.recordNanos(presentationTime - captureTime);
+      }
+    }
+    finally {
+      stop.set(true);
+      capture.join(5000);
+      link.close();
+      if (sessionRef.get() != null)
+        sessionRef.get().close();
+      server.close();
+      reader.join(5000);
+    }
+
+    SenderSession    session  = sessionRef.get();
+    LatencyHistogram measured = session.getLatencyHistogram();
+    ClockOffsetEstimator clock = session.getClockOffsetEstimator();
+
+    // the same clock on both ends, with a symmetric link
+    assertTrue("offset: " + (clock.getOffset() / 1000) + " us", Math.abs(clock.getOffset()) < (10 * MS));
+    assertTrue("rtt: " + (clock.getRoundTripTime() / 1000) + " us", (clock.getRoundTripTime() >= (80 * MS)) && (clock.getRoundTripTime() < (120 * MS)));
+
+    // at least the delay of the link and of the output, and no more than the jitter buffer can add to it
+    assertTrue(measured.getCount() > 200);
+    assertTrue("measured: " + measured.getSummary(), measured.getPercentile(50) >= 60000);
+    assertTrue("measured: " + measured.getSummary(), measured.getPercentile(99) <= 400000);
+
+    // within the resolution of the histogram, and of the offset estimate
+    long difference = Math.abs(measured.getPercentile(50) - trueLatency.getPercentile(50));
+    assertTrue("measured: " + measured.getSummary() + ", true: " + trueLatency.getSummary(), difference <= ((trueLatency.getPercentile(50) / 8) + 10000));
+  }
+}
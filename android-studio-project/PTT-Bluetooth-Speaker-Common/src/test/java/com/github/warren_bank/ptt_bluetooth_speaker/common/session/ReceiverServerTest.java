@@ -0,0 +1,196 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.common.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LinkShaping;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.LoopbackTransportServer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportServer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives the receiver state machine with senders that connect over a loopback transport.
+ */
+public class ReceiverServerTest {
+  private static final int  SAMPLE_RATE   = 16000;
+  private static final int  CHUNK_SAMPLES = SAMPLE_RATE / 100;
+  private static final long TIMEOUT_MS    = 20000;
+
+  /**
+   * Senders connect and disconnect 10000 times, 100 at a time.
+   * Afterwards, the server is listening with no sessions, and every thread that it started has ended.
+   */
+  @Test
+  public void soakOfTenThousandConnections() throws Exception {
+    final LoopbackTransportServer listener  = new LoopbackTransportServer(LinkShaping.NONE);
+    final Callbacks               callbacks = new Callbacks(listener, /* maxOpens= */ 1);
+    final ReceiverServer          server    = new ReceiverServer(callbacks, /* drainMs= */ 0);
+    final ThreadGroup             threads   = Thread.currentThread().getThreadGroup();
+
+    // the threads that the server starts are in the same group as this one
+    int threadsBefore = threads.activeCount();
+
+    try {
+      server.start();
+      waitFor(server, ReceiverServer.STATE_LISTENING, 0);
+
+      for (int i = 0; i < 10000; i++) {
+        Transport transport = listener.connect();
+        transport.close();
+
+        if ((i % 100) == 99) {
+          waitForAccepts(server, i + 1);
+          waitFor(server, -1, 0);
+        }
+      }
+      waitFor(server, ReceiverServer.STATE_LISTENING, 0);
+
+      assertEquals(10000, server.getAcceptCount());
+      assertEquals(10000, callbacks.ended.get());
+      assertEquals(0, server.getAcceptErrorCount());
+      assertEquals(0, server.getRejectedCount());
+      assertEquals(0, server.getSessionCount());
+
+      // only the state machine and accept threads are left, once the session threads have ended
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while ((threads.activeCount() > (threadsBefore + 2)) && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(10);
+      }
+      assertEquals(threadsBefore + 2, threads.activeCount());
+    }
+    finally {
+      server.release();
+    }
+
+    assertEquals(ReceiverServer.STATE_IDLE, server.getState());
+    assertNull(callbacks.failure.get());
+  }
+
+  /**
+   * The listener fails while a sender is connected, and can't be reopened.
+   * The sender keeps streaming, and the server only stops once it has disconnected.
+   */
+  @Test
+  public void listenerFailureKeepsLiveSessions() throws Exception {
+    final LoopbackTransportServer listener  = new LoopbackTransportServer(LinkShaping.NONE);
+    final Callbacks               callbacks = new Callbacks(listener, /* maxOpens= */ 1);
+    final ReceiverServer          server    = new ReceiverServer(callbacks, /* drainMs= */ 0);
+
+    try {
+      server.start();
+      waitFor(server, ReceiverServer.STATE_LISTENING, 0);
+
+      Transport sender = listener.connect();
+      waitFor(server, ReceiverServer.STATE_STREAMING, 1);
+      SenderSession session = callbacks.session.get();
+
+      // the first open, then every reopen fails
+      listener.close();
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while ((callbacks.opens.get() < 6) && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(500);
+
+      assertEquals(6, callbacks.opens.get());
+      assertEquals(1, server.getAcceptErrorCount());
+      assertEquals(ReceiverServer.STATE_STREAMING, server.getState());
+      assertEquals(1, server.getSessionCount());
+      assertFalse(session.isClosed());
+      assertNull(callbacks.failure.get());
+
+      // the failure is reported once the last sender has gone
+      sender.close();
+      waitFor(server, ReceiverServer.STATE_IDLE, 0);
+
+      assertTrue(session.isClosed());
+      assertEquals(1, callbacks.ended.get());
+      assertTrue(callbacks.failure.get() instanceof IOException);
+    }
+    finally {
+      server.release();
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * Wait until the server reaches the state (or any state, when it is -1) with the number of sessions.
+   */
+  private static void waitFor(ReceiverServer server, int state, int sessionCount) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+    while (((state != -1) && (server.getState() != state)) || (server.getSessionCount() != sessionCount)) {
+      if (System.currentTimeMillis() > deadline)
+        throw new AssertionError("state: " + ReceiverServer.getStateName(server.getState()) + ", sessions: " + server.getSessionCount());
+
+      Thread.sleep(1);
+    }
+  }
+
+  private static void waitForAccepts(ReceiverServer server, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+    while (server.getAcceptCount() < count) {
+      if (System.currentTimeMillis() > deadline)
+        throw new AssertionError("accepted: " + server.getAcceptCount() + " of " + count);
+
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Opens the loopback listener, then fails to open it again.
+   */
+  private static final class Callbacks implements ReceiverServer.Callbacks {
+    final LoopbackTransportServer          listener;
+    final int                              maxOpens;
+    final AtomicInteger                    opens   = new AtomicInteger();
+    final AtomicInteger                    ended   = new AtomicInteger();
+    final AtomicReference<SenderSession>   session = new AtomicReference<SenderSession>();
+    final AtomicReference<Exception>       failure = new AtomicReference<Exception>();
+
+    Callbacks(LoopbackTransportServer listener, int maxOpens) {
+      this.listener = listener;
+      this.maxOpens = maxOpens;
+    }
+
+    @Override
+    public TransportServer openServer() throws Exception {
+      if (opens.incrementAndGet() > maxOpens)
+        throw new IOException("listener unavailable");
+
+      return listener;
+    }
+
+    @Override
+    public void onServerFailed(Exception e) {
+      failure.set(e);
+    }
+
+    @Override
+    public SenderSession onAccepted(Transport transport) {
+      SenderSession newSession = new SenderSession(transport, SAMPLE_RATE, CHUNK_SAMPLES);
+
+      session.set(newSession);
+      return newSession;
+    }
+
+    @Override
+    public void onSessionEnded(SenderSession endedSession) {
+      ended.incrementAndGet();
+    }
+
+    @Override
+    public void onStateChanged(int oldState, int newState) {
+    }
+  }
+}
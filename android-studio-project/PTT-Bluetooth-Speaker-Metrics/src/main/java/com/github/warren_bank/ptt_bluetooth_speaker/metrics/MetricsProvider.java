@@ -0,0 +1,61 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.metrics;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Read-only view of the metrics of this process, one row per metric.
+ *
+ * Each app that depends on this module declares it with the authority "${applicationId}.metrics".
+ * Reading requires the DUMP permission, which the shell has, so it can be polled with adb:
+ * <pre>
+ *   adb shell content query --uri content://com.github.warren_bank.ptt_bluetooth_speaker.receiver.metrics
+ *   adb shell content query --uri content://com.github.warren_bank.ptt_bluetooth_speaker.sender.metrics
+ * </pre>
+ */
+public class MetricsProvider extends ContentProvider {
+  public static final String COLUMN_NAME  = "name";
+  public static final String COLUMN_VALUE = "value";
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    MatrixCursor cursor = new MatrixCursor(new String[] {COLUMN_NAME, COLUMN_VALUE});
+
+    for (String[] metric : MetricsRegistry.getDefault().snapshot()) {
+      if ((selection != null) && !metric[0].startsWith(selection)) continue;
+
+      cursor.addRow(metric);
+    }
+    return cursor;
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return "vnd.android.cursor.dir/vnd.com.github.warren_bank.ptt_bluetooth_speaker.metric";
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    return null;
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    return 0;
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    return 0;
+  }
+}
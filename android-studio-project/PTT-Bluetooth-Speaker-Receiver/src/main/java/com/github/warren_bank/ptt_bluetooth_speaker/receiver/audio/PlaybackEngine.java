@@ -0,0 +1,268 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.receiver.audio;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.BufferSizeController;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.DirectPcmBuffer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * The speaker: a mono 16-bit {@link AudioTrack} in streaming mode.
+ *
+ * <ul>
+ *   <li>API 26+: built with {@link AudioTrack#PERFORMANCE_MODE_LOW_LATENCY} when low latency is requested,
+ *       which the system may or may not grant</li>
+ *   <li>API 24+: the buffer starts at one burst of the system mixer, and a {@link BufferSizeController}
+ *       grows or shrinks it from the underrun count, up to a latency ceiling</li>
+ *   <li>older versions: the buffer is fixed at {@link AudioTrack#getMinBufferSize}</li>
+ * </ul>
+ *
+ * On API 21+, samples can also be written from a {@link DirectPcmBuffer}, which the track reads in place,
+ * so that audio produced straight into it doesn't have to be copied into an array first.
+ * Every write blocks until all samples are queued, so the speaker paces the caller.
+ *
+ * {@link #write} and {@link #adjustBufferSize} must only be called from the playout thread.
+ */
+public class PlaybackEngine {
+  private static final int BURST_MS           = 10;   // when the system doesn't say
+  private static final int UPDATE_INTERVAL_MS = 100;
+
+  private final int                  sampleRate;
+  private final AudioTrack           track;
+  private final boolean              isLowLatency;
+  private final BufferSizeController controller;  // null when the buffer size is fixed
+
+  private long                       lastUpdateMs;
+
+  /**
+   * @param latencyCeilingMs  the largest that the buffer is allowed to grow
+   */
+  public PlaybackEngine(Context context, int sampleRate, boolean lowLatency, int latencyCeilingMs) {
+    int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    int ceilingFrames = (int) (((long) sampleRate * latencyCeilingMs) / 1000);
+
+    this.sampleRate = sampleRate;
+
+    if (Build.VERSION.SDK_INT >= 24) {
+      int burstFrames = getBurstFrames(context, sampleRate);
+
+      track = buildTrack(sampleRate, Math.max(minBufferSize, ceilingFrames * 2), lowLatency);
+
+      controller = new BufferSizeController(burstFrames, Math.max(burstFrames, Math.min(ceilingFrames, track.getBufferCapacityInFrames())));
+      track.setBufferSizeInFrames(controller.getBufferFrames());
+    }
+    else {
+      track      = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize, AudioTrack.MODE_STREAM);
+      controller = null;
+    }
+
+    isLowLatency = (Build.VERSION.SDK_INT >= 26) && (track.getPerformanceMode() == AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+    lastUpdateMs = 0;
+  }
+
+  /**
+   * API 24+, which is the only version it is called on
+   */
+  @TargetApi(24)
+  private static AudioTrack buildTrack(int sampleRate, int bufferSize, boolean lowLatency) {
+    AudioAttributes.Builder attributes = new AudioAttributes.Builder()
+      .setUsage(AudioAttributes.USAGE_MEDIA)
+      .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH);
+
+    if (lowLatency && (Build.VERSION.SDK_INT < 26))
+      attributes.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
+
+    AudioTrack.Builder builder = new AudioTrack.Builder()
+      .setAudioAttributes(attributes.build())
+      .setAudioFormat(
+        new AudioFormat.Builder()
+          .setSampleRate(sampleRate)
+          .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+          .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+          .build()
+      )
+      .setBufferSizeInBytes(bufferSize)
+      .setTransferMode(AudioTrack.MODE_STREAM);
+
+    if (lowLatency && (Build.VERSION.SDK_INT >= 26))
+      builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+
+    return builder.build();
+  }
+
+  /**
+   * @return the number of frames that the system mixer reads at a time, or else 10 ms
+   */
+  private static int getBurstFrames(Context context, int sampleRate) {
+    int burstFrames = 0;
+
+    if (Build.VERSION.SDK_INT >= 17) {
+      try {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        burstFrames = Integer.parseInt(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+      }
+      catch(Exception e) {}
+    }
+
+    return (burstFrames > 0)
+      ? burstFrames
+      : (sampleRate * BURST_MS) / 1000;
+  }
+
+  // -------------------------------------------------------------------------
+  // playback
+
+  public void play() {
+    track.play();
+  }
+
+  public void pause() {
+    track.pause();
+  }
+
+  public void flush() {
+    track.flush();
+  }
+
+  public void release() {
+    track.release();
+  }
+
+  public void setVolume(float gain) {
+    if (Build.VERSION.SDK_INT >= 21) {
+      track.setVolume(gain);
+    }
+    else {
+      track.setStereoVolume(gain, gain);
+    }
+  }
+
+  /**
+   * @return a buffer to fill and pass to {@link #write(DirectPcmBuffer, int)}, or null before API 21
+   */
+  public DirectPcmBuffer createBuffer(int maxSamples) {
+    return (Build.VERSION.SDK_INT >= 21) ? new DirectPcmBuffer(maxSamples) : null;
+  }
+
+  /**
+   * Blocks until all samples are queued.
+   *
+   * @return the number of samples written, or a negative error code
+   */
+  public int write(short[] samples, int offset, int count) {
+    return track.write(samples, offset, count);
+  }
+
+  /**
+   * Blocks until the first {@code count} samples of {@code buffer} are queued.
+   *
+   * @param buffer  from {@link #createBuffer}, so only on API 21+
+   * @return the number of samples written, or a negative error code
+   */
+  public int write(DirectPcmBuffer buffer, int count) {
+    if (Build.VERSION.SDK_INT >= 21) {
+      int result = track.write(buffer.getBytes(count), count * 2, AudioTrack.WRITE_BLOCKING);
+
+      return (result < 0) ? result : (result / 2);
+    }
+    return AudioTrack.ERROR_INVALID_OPERATION;
+  }
+
+  /**
+   * Let the controller resize the buffer, at most once every {@link #UPDATE_INTERVAL_MS}.
+   */
+  public void adjustBufferSize(long nowMs) {
+    if ((controller == null) || ((nowMs - lastUpdateMs) < UPDATE_INTERVAL_MS))
+      return;
+
+    lastUpdateMs = nowMs;
+
+    // the controller is only created on API 24+
+    if (Build.VERSION.SDK_INT >= 24) {
+      int oldFrames = controller.getBufferFrames();
+      int newFrames = controller.update(track.getUnderrunCount(), nowMs);
+
+      if (newFrames != oldFrames)
+        track.setBufferSizeInFrames(newFrames);
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // position
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @return false before API 19, where there is no timestamp
+   */
+  public boolean getTimestamp(AudioTimestamp timestamp) {
+    return (Build.VERSION.SDK_INT >= 19) && track.getTimestamp(timestamp);
+  }
+
+  /**
+   * @return the number of frames played, as an unsigned 32-bit count
+   */
+  public long getPlaybackHeadPosition() {
+    return track.getPlaybackHeadPosition() & 0xffffffffL;
+  }
+
+  /**
+   * @return the total number of underruns, or -1 before API 24
+   */
+  public long getUnderrunCount() {
+    return (Build.VERSION.SDK_INT >= 24) ? track.getUnderrunCount() : -1;
+  }
+
+  /**
+   * @return whether the system granted the low latency mode, which is only known on API 26+
+   */
+  public boolean isLowLatency() {
+    return isLowLatency;
+  }
+
+  /**
+   * @return the current size of the buffer, in frames
+   */
+  public int getBufferFrames() {
+    return (controller != null)
+      ? controller.getBufferFrames()
+      : ((Build.VERSION.SDK_INT >= 23) ? track.getBufferSizeInFrames() : 0);
+  }
+
+  /**
+   * Expose the speaker, for example with the prefix: "speaker."
+   */
+  public void registerMetrics(MetricsRegistry registry, String prefix) {
+    registry.gauge(prefix + "sample_rate", new Gauge() {
+      public long getValue() { return getSampleRate(); }
+    });
+    registry.gauge(prefix + "low_latency", new Gauge() {
+      public long getValue() { return isLowLatency() ? 1 : 0; }
+    });
+
+    if (Build.VERSION.SDK_INT >= 24) {
+      registry.gauge(prefix + "underruns", new Gauge() {
+        public long getValue() { return getUnderrunCount(); }
+      });
+    }
+
+    if (controller != null) {
+      controller.registerMetrics(registry, prefix + "buffer.");
+    }
+    else {
+      registry.gauge(prefix + "buffer.frames", new Gauge() {
+        public long getValue() { return getBufferFrames(); }
+      });
+    }
+  }
+}
@@ -1,6 +1,23 @@
 package com.github.warren_bank.ptt_bluetooth_speaker.receiver.service;
 
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.DirectPcmBuffer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.WavSegmentRecorder;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AudioMixer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.Resampler;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Counter;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.LatencyHistogram;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsFileLogger;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.StreamFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.ReceiverServer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.SenderSession;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TcpTransportServer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportServer;
 import com.github.warren_bank.ptt_bluetooth_speaker.receiver.R;
+import com.github.warren_bank.ptt_bluetooth_speaker.receiver.audio.PlaybackEngine;
+import com.github.warren_bank.ptt_bluetooth_speaker.receiver.transport.RfcommTransportServer;
 
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -8,17 +25,17 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 import android.view.Gravity;
 import android.widget.RemoteViews;
@@ -27,24 +44,68 @@ import android.os.Handler;
 import android.os.Looper;
 import android.widget.Toast;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class NetworkingService extends Service {
   private static final int      DISCOVERABLE_TIMEOUT_SEC = 60;
   private static final int      NOTIFICATION_ID          = 1;
   private static final String   ACTION_STOP              = "STOP";
+  private static final String   ACTION_SET_GAIN          = "SET_GAIN";
+  private static final String   ACTION_SET_MUTED         = "SET_MUTED";
+  private static final String   ACTION_DUMP_LATENCY      = "DUMP_LATENCY";
+  private static final String   ACTION_RESET_LATENCY     = "RESET_LATENCY";
+  private static final String   EXTRA_CHANNEL            = "channel";
+  private static final String   EXTRA_GAIN               = "gain";
+  private static final String   EXTRA_MUTED              = "muted";
+  private static final String   TRANSPORT_TCP            = "tcp";
 
   private static final String   tag                      = NetworkingService.class.getSimpleName();
-  private static final int      bufferSize               = AudioTrack.getMinBufferSize(16000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+  private static final int      playoutChunkMs           = 10;
+  private static final int      maxSenders               = 8;
+  private static final int      timestampIntervalChunks  = 10;    // poll AudioTrack.getTimestamp every 100 ms
+  private static final int      notificationIntervalMs   = 5000;
+  private static final int      drainMs                  = 500;   // keep playing after the last sender disconnects
+  private static final String   latencyFileName          = "latency.txt";
+  private static final String   metricsFileName          = "metrics.log";
+  private static final String   recordingsDirName        = "recordings";
+  private static final int      metricsIntervalMs        = 10000;
   private static final float    audioGain                = AudioTrack.getMaxVolume(); // max gain >= 1.0
 
+  // sized from the format that senders are asked to send
+  private StreamFormat          playoutFormat;
+  private int                   sampleRate;
+  private int                   playoutChunkSize;  // samples
+
+  // the speaker runs at its native rate, so the system mixer doesn't resample
+  private int                   speakerRate;
+  private Resampler             resampler;   // null when the rates are the same
+
   private BluetoothAdapter      btAdapter;
   private UUID                  uuid;
-  private BluetoothServerSocket server;
-  private BluetoothSocket       socket;
-  private InputStream           audioStream;
-  private AudioTrack            speaker;
+  private boolean               useTcp;
+  private volatile TransportServer server;
+  private ReceiverServer        receiverServer;
+  private List<SenderSession>   sessions;
+  private Map<SenderSession, Integer> sessionChannels;  // only used on the ReceiverServer thread
+  private volatile SenderSession[] activeSessions;  // copy of sessions, for the playout thread
+  private volatile LatencyHistogram latency;  // only the playout thread records, so it is replaced rather than reset
+  private Handler               handler;
+  private AudioMixer            mixer;
+  private PlaybackEngine        speaker;
+  private WavSegmentRecorder    recorder;  // null when recording is disabled
+  private Thread                playoutThread;
+  private volatile boolean      isPlaying;
+
+  private MetricsRegistry       metrics;
+  private MetricsFileLogger     metricsLogger;
+  private Counter               speakerFrames;
+  private Counter               speakerShortWrites;
 
   private BroadcastReceiver     btAdapterStateChangeReceiver;
   private boolean               didChangeBtAdapterState;
@@ -52,24 +113,36 @@ public class NetworkingService extends Service {
   @Override
   public void onCreate() {
     super.onCreate();
-    Log.d(tag, "starting bluetooth socket server");
+    Log.d(tag, "starting socket server");
+
+    playoutFormat    = getPlayoutFormat();
+    sampleRate       = playoutFormat.getSampleRate();
+    playoutChunkSize = playoutFormat.getSampleCount(playoutChunkMs);
+    speakerRate      = getSpeakerRate();
+    resampler        = (speakerRate != sampleRate) ? new Resampler(sampleRate, speakerRate, playoutChunkSize) : null;
 
     btAdapter   = BluetoothAdapter.getDefaultAdapter();
     uuid        = UUID.fromString(getString(R.string.server_uuid));
+    useTcp      = TRANSPORT_TCP.equals(getString(R.string.transport));
     server      = null;
-    socket      = null;
-    audioStream = null;
-    speaker     = new AudioTrack(AudioManager.STREAM_MUSIC, 16000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+    receiverServer = new ReceiverServer(serverCallbacks, drainMs);
+    sessions    = new ArrayList<SenderSession>();
+    sessionChannels = new HashMap<SenderSession, Integer>();
+    activeSessions = new SenderSession[0];
+    latency     = new LatencyHistogram();
+    handler     = new Handler(Looper.getMainLooper());
+    mixer       = new AudioMixer(maxSenders, playoutChunkSize);
+    speaker     = new PlaybackEngine(NetworkingService.this, speakerRate, getResources().getBoolean(R.bool.low_latency_playout), getResources().getInteger(R.integer.playout_latency_ceiling_ms));
 
     speaker.pause();
     speaker.flush();
+    speaker.setVolume(audioGain);
 
-    if (Build.VERSION.SDK_INT >= 21) {
-      speaker.setVolume(audioGain);
-    }
-    else {
-      speaker.setStereoVolume(audioGain, audioGain);
-    }
+    recorder    = createRecorder();
+    if (recorder != null)
+      recorder.start();
+
+    registerMetrics();
 
     /**
      * Handle an intent that is broadcast by the Bluetooth adapter whenever it changes its state.
@@ -78,12 +151,15 @@ public class NetworkingService extends Service {
      */
     btAdapterStateChangeReceiver = new BroadcastReceiver() {
       public void onReceive(Context context, Intent intent) {
+        // a TCP server doesn't depend on the state of the Bluetooth adapter
+        if (useTcp) return;
+
         int oldState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, -1);
         int newState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
 
         switch(newState) {
           case BluetoothAdapter.STATE_ON :
-            startServerThread();
+            receiverServer.start();
             break;
           case BluetoothAdapter.STATE_TURNING_OFF :
           case BluetoothAdapter.STATE_OFF :
@@ -96,9 +172,13 @@ public class NetworkingService extends Service {
     showNotification();
     registerReceiver(btAdapterStateChangeReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
 
-    if (btAdapter.isEnabled()) {
+    if (useTcp) {
+      didChangeBtAdapterState = false;
+      receiverServer.start();
+    }
+    else if (btAdapter.isEnabled()) {
       didChangeBtAdapterState = false;
-      startServerThread();
+      receiverServer.start();
     }
     else {
       didChangeBtAdapterState = true;
@@ -120,16 +200,22 @@ public class NetworkingService extends Service {
   @Override
   public void onDestroy() {
     super.onDestroy();
-    Log.d(tag, "stopping bluetooth socket server");
+    Log.d(tag, "stopping socket server");
 
     unregisterReceiver(btAdapterStateChangeReceiver);
+    handler.removeCallbacks(updateNotification);
     hideNotification();
 
-    shutdown(false);
+    receiverServer.release();
+    close_playoutThread();
     close_speaker();
+    close_recorder();
 
     if (didChangeBtAdapterState)
       disableBT();
+
+    metricsLogger.stop();
+    unregisterMetrics();
   }
 
   @Override
@@ -140,58 +226,46 @@ public class NetworkingService extends Service {
   // -------------------------------------------------------------------------
   // house cleaning
 
-  private void close_server() {
-    if (server != null) {
-      try {
-        server.close();
-      }
-      catch(Exception e) {}
-      finally {
-        server = null;
-      }
-    }
-  }
+  private void close_playoutThread() {
+    if (playoutThread != null) {
+      isPlaying = false;
 
-  private void close_socket() {
-    if (socket != null) {
       try {
-        socket.close();
+        playoutThread.join();
       }
       catch(Exception e) {}
       finally {
-        socket = null;
+        playoutThread = null;
       }
     }
   }
 
-  private void close_audioStream() {
-    if (audioStream != null) {
+  private void close_speaker() {
+    if (speaker != null) {
       try {
-        audioStream.close();
+        speaker.release();
       }
       catch(Exception e) {}
       finally {
-        audioStream = null;
+        speaker = null;
       }
     }
   }
 
-  private void close_speaker() {
-    if (speaker != null) {
+  private void close_recorder() {
+    if (recorder != null) {
       try {
-        speaker.release();
+        recorder.stop();
       }
       catch(Exception e) {}
       finally {
-        speaker = null;
+        recorder = null;
       }
     }
   }
 
   private void shutdown(boolean killService) {
-    close_audioStream();
-    close_socket();
-    close_server();
+    receiverServer.stop();
 
     if (killService) stopSelf();
   }
@@ -228,6 +302,26 @@ public class NetworkingService extends Service {
     }
   }
 
+  /**
+   * Refresh the latency shown in the notification, while any sender is connected.
+   */
+  private final Runnable updateNotification = new Runnable() {
+    @Override
+    public void run() {
+      NotificationManager NM = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+      NM.notify(NOTIFICATION_ID, getNotification());
+
+      if (activeSessions.length > 0)
+        handler.postDelayed(this, notificationIntervalMs);
+    }
+  };
+
+  private String getNotificationLine2() {
+    return (latency.getCount() > 0)
+      ? getString(R.string.notification_service_content_latency, latency.getSummary())
+      : getString(R.string.notification_service_content_line2);
+  }
+
   private void hideNotification() {
     if (Build.VERSION.SDK_INT >= 5) {
       stopForeground(true);
@@ -246,7 +340,7 @@ public class NetworkingService extends Service {
 
       if (Build.VERSION.SDK_INT >= 31) {
         builder.setContentTitle(getString(R.string.notification_service_content_line1));
-        builder.setContentText (getString(R.string.notification_service_content_line2));
+        builder.setContentText (getNotificationLine2());
         builder.setForegroundServiceBehavior(Notification.FOREGROUND_SERVICE_IMMEDIATE);
       }
 
@@ -279,7 +373,7 @@ public class NetworkingService extends Service {
     RemoteViews contentView    = new RemoteViews(getPackageName(), R.layout.service_notification);
     contentView.setImageViewResource(R.id.notification_icon,  R.drawable.phone_bluetooth_speaker);
     contentView.setTextViewText(R.id.notification_text_line1, getString(R.string.notification_service_content_line1));
-    contentView.setTextViewText(R.id.notification_text_line2, getString(R.string.notification_service_content_line2));
+    contentView.setTextViewText(R.id.notification_text_line2, getNotificationLine2());
 
     if (Build.VERSION.SDK_INT < 31)
       notification.contentView = contentView;
@@ -309,8 +403,31 @@ public class NetworkingService extends Service {
     if (intent == null) return;
 
     String action = intent.getAction();
-    if (action == ACTION_STOP)
+    if (action == null) return;
+
+    if (action.equals(ACTION_STOP)) {
       shutdown(true);
+    }
+    else if (action.equals(ACTION_DUMP_LATENCY)) {
+      dumpLatency();
+    }
+    else if (action.equals(ACTION_RESET_LATENCY)) {
+      latency = new LatencyHistogram();
+    }
+    else if (action.equals(ACTION_SET_GAIN)) {
+      int channel = intent.getIntExtra(EXTRA_CHANNEL, -1);
+      float gain  = intent.getFloatExtra(EXTRA_GAIN, 1.0f);
+
+      if ((channel >= 0) && (channel < maxSenders))
+        mixer.setGain(channel, gain);
+    }
+    else if (action.equals(ACTION_SET_MUTED)) {
+      int channel   = intent.getIntExtra(EXTRA_CHANNEL, -1);
+      boolean muted = intent.getBooleanExtra(EXTRA_MUTED, true);
+
+      if ((channel >= 0) && (channel < maxSenders))
+        mixer.setMuted(channel, muted);
+    }
   }
 
   // -------------------------------------------------------------------------
@@ -332,43 +449,72 @@ public class NetworkingService extends Service {
     catch(Exception e) {}
   }
 
-  private void startServerThread() {
-    Thread thread = new Thread(
-      new Runnable() {
-        @Override
-        public void run() {
-          startServer(/* shouldMakeDiscoverable= */ true);
-        }
-      },
-      "startServer Thread"
-    );
-    thread.start();
-  }
+  // -------------------------------------------------------------------------
+  // connection state machine
 
-  private void startServer() {
-    startServer(/* shouldMakeDiscoverable= */ false);
-  }
+  private final ReceiverServer.Callbacks serverCallbacks = new ReceiverServer.Callbacks() {
+    @Override
+    public TransportServer openServer() throws Exception {
+      server = useTcp
+        ? new TcpTransportServer(getResources().getInteger(R.integer.tcp_port))
+        : new RfcommTransportServer(btAdapter, tag, uuid);
 
-  private void startServer(boolean shouldMakeDiscoverable) {
-    if (server != null)
-      return;
-    if ((socket != null) && (audioStream != null))
-      return;
-
-    try {
-      server = btAdapter.listenUsingInsecureRfcommWithServiceRecord(tag, uuid);
+      return server;
     }
-    catch(Exception e) {
+
+    @Override
+    public void onServerFailed(Exception e) {
       Log.e(tag, "startServer", e);
-      showToast("Bluetooth server registration failed");
+      showToast(useTcp ? "TCP server registration failed" : "Bluetooth server registration failed");
       shutdown(true);
-      return;
     }
 
-    if (shouldMakeDiscoverable)
-      makeDiscoverable();
+    @Override
+    public SenderSession onAccepted(Transport transport) {
+      return startSession(transport);
+    }
+
+    @Override
+    public void onSessionEnded(SenderSession session) {
+      endSession(session);
+    }
+
+    @Override
+    public void onStateChanged(int oldState, int newState) {
+      Log.d(tag, "state: " + ReceiverServer.getStateName(oldState) + " -> " + ReceiverServer.getStateName(newState));
 
-    waitForClientConnection();
+      switch(newState) {
+        case ReceiverServer.STATE_LISTENING:
+          if (oldState == ReceiverServer.STATE_IDLE)
+            onListening();
+          else
+            stopPlayout();
+          break;
+        case ReceiverServer.STATE_STREAMING:
+          startPlayoutThread();
+          handler.removeCallbacks(updateNotification);
+          handler.postDelayed(updateNotification, notificationIntervalMs);
+          break;
+        case ReceiverServer.STATE_DRAINING:
+          // the playout thread keeps running, so the audio already written to the speaker is heard
+          break;
+        case ReceiverServer.STATE_IDLE:
+          stopPlayout();
+          break;
+      }
+    }
+  };
+
+  private void onListening() {
+    if (useTcp) {
+      TransportServer currentServer = server;
+
+      if (currentServer instanceof TcpTransportServer)
+        showToast(getString(R.string.toast_tcp_listening, TcpTransportServer.getLocalAddresses().toString(), ((TcpTransportServer) currentServer).getPort()));
+    }
+    else {
+      makeDiscoverable();
+    }
   }
 
   /**
@@ -384,74 +530,346 @@ public class NetworkingService extends Service {
     }
   }
 
-  private void waitForClientConnection() {
-    if (socket != null)
-      return;
+  /**
+   * @return null to reject the sender, when all mixer channels are in use
+   */
+  private SenderSession startSession(Transport transport) {
+    SenderSession session = new SenderSession(transport, sampleRate, playoutChunkSize);
+    session.setComfortNoiseAmplitude(getResources().getInteger(R.integer.comfort_noise_amplitude));
+    int channel;
 
-    if (server == null) {
-      startServer();
-      return;
-    }
+    synchronized(sessions) {
+      channel = mixer.addSource(session);
 
-    while (socket == null) {
-      try {
-        socket = server.accept();
-      }
-      catch(Exception e) {
-        socket = null;
+      if (channel < 0) {
+        Log.w(tag, "client rejected, all mixer channels are in use: " + transport.getName());
+        return null;
       }
+
+      session.registerMetrics(metrics, getSessionMetricsPrefix(channel));
+      sessionChannels.put(session, channel);
+      sessions.add(session);
+      activeSessions = sessions.toArray(new SenderSession[sessions.size()]);
     }
-    close_server();
-    getAudioStream();
+
+    Log.d(tag, "client connected: " + transport.getName() + ", mixer channel: " + channel);
+    return session;
   }
 
-  private void getAudioStream() {
-    if (audioStream != null)
-      return;
+  private void endSession(SenderSession session) {
+    Log.d(tag, "client disconnected: " + session.getName());
 
-    if (socket == null) {
-      waitForClientConnection();
-      return;
+    if ((session.getFormat() != null) && session.getFormat().isNone())
+      Log.w(tag, "client rejected, it can't send audio in the format that is played: " + playoutFormat);
+
+    if (session.getSilenceFrameCount() > 0)
+      Log.d(tag, "silence markers received: " + session.getSilenceFrameCount());
+
+    if (session.getLostFrameCount() > 0)
+      Log.w(tag, "frames lost: " + session.getLostFrameCount());
+
+    if (session.getJitterBuffer().getUnderrunCount() > 0)
+      Log.w(tag, "jitter buffer underruns: " + session.getJitterBuffer().getUnderrunCount() + ", samples trimmed: " + session.getJitterBuffer().getTrimmedSamples());
+
+    if (session.getJitterBuffer().getCompressedSamples() > 0)
+      Log.d(tag, "backlog caught up by playing faster, samples skipped: " + session.getJitterBuffer().getCompressedSamples());
+
+    if (session.getLatencyHistogram().getCount() > 0)
+      Log.d(tag, "latency: " + session.getLatencyHistogram().getSummary());
+
+    Log.d(tag, "clock drift: " + Math.round(session.getDriftCompensator().getDriftPpm()) + " ppm");
+
+    Integer channel = sessionChannels.remove(session);
+    if (channel != null)
+      metrics.removeAll(getSessionMetricsPrefix(channel));
+
+    synchronized(sessions) {
+      mixer.removeSource(session);
+      sessions.remove(session);
+      activeSessions = sessions.toArray(new SenderSession[sessions.size()]);
     }
+  }
+
+  /**
+   * @return mono, at the sample rate from the resource when the speaker supports it, otherwise at 16 kHz
+   */
+  private StreamFormat getPlayoutFormat() {
+    int rate = getResources().getInteger(R.integer.sample_rate);
+
+    return (AudioTrack.getMinBufferSize(rate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT) > 0)
+      ? new StreamFormat(rate, 1)
+      : StreamFormat.LEGACY;
+  }
+
+  /**
+   * @return the sample rate at which the system mixer runs, or else the rate that senders are asked to send
+   */
+  private int getSpeakerRate() {
+    int rate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+
+    return (AudioTrack.getMinBufferSize(rate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT) > 0)
+      ? rate
+      : sampleRate;
+  }
+
+  /**
+   * @return null when recording is disabled
+   */
+  private WavSegmentRecorder createRecorder() {
+    if (!getResources().getBoolean(R.bool.recording))
+      return null;
+
+    File dir = getExternalFilesDir(recordingsDirName);
+    if (dir == null)
+      dir = new File(getFilesDir(), recordingsDirName);
+
+    long segmentMs  = getResources().getInteger(R.integer.recording_segment_minutes) * 60000L;
+    long quotaBytes = getResources().getInteger(R.integer.recording_quota_mb) * 1024L * 1024L;
 
     try {
-      audioStream = socket.getInputStream();
+      return new WavSegmentRecorder(dir, sampleRate, playoutChunkSize, segmentMs, quotaBytes);
     }
     catch(Exception e) {
-      audioStream = null;
-      close_socket();
-      waitForClientConnection();
-      return;
+      Log.e(tag, "recording disabled", e);
+      return null;
     }
-    pipeAudioToSink();
   }
 
-  private void pipeAudioToSink() {
-    byte[] buffer = new byte[bufferSize];
-    int bytesRead;
+  /**
+   * Stop the playout thread, after the last sender has disconnected and its audio has drained.
+   */
+  private void stopPlayout() {
+    close_playoutThread();
 
-    speaker.play();
+    WavSegmentRecorder currentRecorder = recorder;
+    if (currentRecorder != null)
+      currentRecorder.endSegment();
 
-    while (true) {
-      try {
-        bytesRead = audioStream.read(buffer);
+    PlaybackEngine currentSpeaker = speaker;
+    if (currentSpeaker != null) {
+      currentSpeaker.pause();
+      currentSpeaker.flush();
+    }
+  }
 
-        if (bytesRead == -1)
-          break;
+  /**
+   * Write the mix of all connected senders to the speaker at the rate it is consumed.
+   *
+   * The mix is queued for the recorder, which never makes the loop wait,
+   * and is converted to the native rate of the speaker when the two differ.
+   * When they don't, on API 21+, the mix is written straight into the direct buffer that the speaker reads.
+   * The blocking call to {@link PlaybackEngine#write} paces the loop,
+   * and the size of the speaker's buffer is adjusted between writes.
+   *
+   * The time at which each chunk will be heard is extrapolated from the latest
+   * {@link AudioTrack#getTimestamp} (API 19+), or else from the playback head position,
+   * and is reported to every session to measure its end-to-end latency.
+   */
+  private void startPlayoutThread() {
+    if ((playoutThread != null) && playoutThread.isAlive())
+      return;
+
+    isPlaying = true;
+    playoutThread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+          short[] chunk = new short[playoutChunkSize];
+          short[] resampled = (resampler != null) ? new short[resampler.getMaxOutputCount(playoutChunkSize)] : null;
+          DirectPcmBuffer direct = (resampler == null) ? speaker.createBuffer(playoutChunkSize) : null;
+          long resamplerDelayNanos = (resampler != null) ? ((Resampler.getDelaySamples() * 1000000000L) / sampleRate) : 0;
+          short[] output;
+          int outputCount;
+          AudioTimestamp timestamp = (Build.VERSION.SDK_INT >= 19) ? new AudioTimestamp() : null;
+          boolean hasTimestamp = false;
+          long framesWritten = 0;
+          int written;
+          long presentationTime;
+          long latencyNanos;
+          LatencyHistogram histogram;
+          SenderSession[] current;
+          int chunkCount = 0;
+
+          if (resampler != null)
+            resampler.reset();
+
+          speaker.play();
+
+          while (isPlaying) {
+            if ((timestamp != null) && ((chunkCount % timestampIntervalChunks) == 0))
+              hasTimestamp = speaker.getTimestamp(timestamp);
+            chunkCount++;
+
+            // time at which the first sample of this chunk will be heard
+            if ((Build.VERSION.SDK_INT >= 19) && hasTimestamp)
+              presentationTime = resamplerDelayNanos + timestamp.nanoTime + (((framesWritten - timestamp.framePosition) * 1000000000L) / speakerRate);
+            else
+              presentationTime = resamplerDelayNanos + System.nanoTime() + (((framesWritten - speaker.getPlaybackHeadPosition()) * 1000000000L) / speakerRate);
+
+            if (direct != null) {
+              outputCount = chunk.length;
+              mixer.mix(direct.getSamples(), outputCount);
+
+              if (recorder != null)
+                recorder.write(direct.getSamples(), outputCount);
+
+              written = speaker.write(direct, outputCount);
+            }
+            else {
+              mixer.mix(chunk, 0, chunk.length);
+
+              if (recorder != null)
+                recorder.write(chunk, 0, chunk.length);
+
+              if (resampler != null) {
+                output      = resampled;
+                outputCount = resampler.process(chunk, 0, chunk.length, resampled, 0);
+              }
+              else {
+                output      = chunk;
+                outputCount = chunk.length;
+              }
+
+              written = speaker.write(output, 0, outputCount);
+            }
+            if (written > 0) {
+              framesWritten += written;
+              speakerFrames.add(written);
+            }
+            if (written < outputCount)
+              speakerShortWrites.increment();
+
+            speaker.adjustBufferSize(System.nanoTime() / 1000000);
+
+            current   = activeSessions;
+            histogram = latency;
+            for (int i = 0; i < current.length; i++) {
+              latencyNanos = current[i].recordPlayout(presentationTime);
+              if (latencyNanos >= 0)
+                histogram.recordNanos(latencyNanos);
+            }
+          }
+        }
+      },
+      "playout Thread"
+    );
+    playoutThread.start();
+  }
+
+  // -------------------------------------------------------------------------
+  // metrics
+  //  - counters are incremented by the playout Thread
+  //  - gauges are only read when a snapshot is taken
+  //  - a snapshot is written to "metrics.log" every 10 seconds,
+  //    and can be read at any time from MetricsProvider
+
+  private void registerMetrics() {
+    metrics = MetricsRegistry.getDefault();
+
+    speakerFrames      = metrics.counter("speaker.frames_written");
+    speakerShortWrites = metrics.counter("speaker.short_writes");
+
+    receiverServer.registerMetrics(metrics, "server.");
+
+    speaker.registerMetrics(metrics, "speaker.");
+
+    if (recorder != null)
+      recorder.registerMetrics(metrics, "recorder.");
+
+    metrics.gauge("latency.p50_ms", new Gauge() {
+      @Override
+      public long getValue() {
+        return latency.getPercentile(50) / 1000;
       }
-      catch(Exception e) {
-        break;
+    });
+    metrics.gauge("latency.p95_ms", new Gauge() {
+      @Override
+      public long getValue() {
+        return latency.getPercentile(95) / 1000;
       }
+    });
+    metrics.gauge("latency.p99_ms", new Gauge() {
+      @Override
+      public long getValue() {
+        return latency.getPercentile(99) / 1000;
+      }
+    });
+
+    File dir = getExternalFilesDir(null);
+    if (dir == null)
+      dir = getFilesDir();
+
+    metricsLogger = new MetricsFileLogger(metrics, new File(dir, metricsFileName), /* maxFileSize= */ 256 * 1024, /* maxFileCount= */ 4, metricsIntervalMs);
+    metricsLogger.start();
+  }
+
+  /**
+   * The registry outlives this service, and its gauges hold a reference to it.
+   */
+  private void unregisterMetrics() {
+    String[] prefixes = new String[] {"speaker.", "server.", "recorder.", "latency.", "session."};
+
+    for (String prefix : prefixes) {
+      metrics.removeAll(prefix);
+    }
+  }
+
+  /**
+   * Sessions are numbered by their mixer channel, which is reused after a sender disconnects.
+   */
+  private String getSessionMetricsPrefix(int channel) {
+    return "session." + channel + ".";
+  }
 
-      speaker.write(buffer, 0, buffer.length);
+  // -------------------------------------------------------------------------
+  // latency
+
+  /**
+   * Write percentiles and buckets of the end-to-end latency to logcat, and to a file.
+   * Overall and per connected sender.
+   */
+  private void dumpLatency() {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("all senders: " + latency.getSummary() + "\n");
+    synchronized(sessions) {
+      for (SenderSession session : sessions) {
+        sb.append(session.getName() + ": " + session.getLatencyHistogram().getSummary());
+        sb.append(", clock offset: " + (session.getClockOffsetEstimator().getOffset() / 1000) + " us");
+        sb.append(", rtt: " + (session.getClockOffsetEstimator().getRoundTripTime() / 1000) + " us");
+        sb.append(", clock drift: " + Math.round(session.getDriftCompensator().getDriftPpm()) + " ppm\n");
+      }
     }
+    sb.append("\nbuckets (us): lower, upper, count\n");
+    sb.append(latency.getBuckets());
 
-    // client has disconnected
-    speaker.pause();
-    speaker.flush();
+    String text = sb.toString();
+    Log.i(tag, text);
+
+    File dir = getExternalFilesDir(null);
+    if (dir == null)
+      dir = getFilesDir();
 
-    shutdown(false);
-    startServer();
+    File file = new File(dir, latencyFileName);
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      out.write(text.getBytes("UTF-8"));
+      Log.i(tag, "latency written to: " + file.getAbsolutePath());
+    }
+    catch(Exception e) {
+      Log.e(tag, "dumpLatency", e);
+    }
+    finally {
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch(Exception e) {}
+      }
+    }
   }
 
   // -------------------------------------------------------------------------
@@ -0,0 +1,45 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.receiver.transport;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bluetooth RFCOMM socket, accepted by {@link RfcommTransportServer}.
+ */
+public class RfcommTransport implements Transport {
+  private final BluetoothSocket socket;
+  private final String          name;
+
+  public RfcommTransport(BluetoothSocket socket) {
+    this.socket = socket;
+    this.name   = "rfcomm://" + socket.getRemoteDevice().getAddress();
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    }
+    catch(Exception e) {}
+  }
+}
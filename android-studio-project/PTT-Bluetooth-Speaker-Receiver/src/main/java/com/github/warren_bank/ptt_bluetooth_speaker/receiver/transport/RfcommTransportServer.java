@@ -0,0 +1,39 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.receiver.transport;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportServer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM server socket, registered with an SDP service record.
+ */
+public class RfcommTransportServer implements TransportServer {
+  private final BluetoothServerSocket server;
+
+  public RfcommTransportServer(BluetoothAdapter btAdapter, String serviceName, UUID uuid) throws IOException {
+    this.server = btAdapter.listenUsingInsecureRfcommWithServiceRecord(serviceName, uuid);
+  }
+
+  @Override
+  public Transport accept() throws IOException {
+    return new RfcommTransport(server.accept());
+  }
+
+  @Override
+  public String getName() {
+    return "rfcomm://";
+  }
+
+  @Override
+  public void close() {
+    try {
+      server.close();
+    }
+    catch(Exception e) {}
+  }
+}
@@ -1,10 +1,33 @@
 package com.github.warren_bank.ptt_bluetooth_speaker.sender;
 
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioFilePlayer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.AudioFileSource;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.audio.FramePacer;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.FramePool;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrame;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.PooledFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.buffer.SpscFrameRing;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodec;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.codec.AudioCodecs;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AudioProcessorChain;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.AutomaticGainControl;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.FeedbackSuppressor;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.dsp.VoiceActivityDetector;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Counter;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.Gauge;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsFileLogger;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.metrics.MetricsRegistry;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.protocol.StreamFormat;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.ReceiverLink;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.session.SilenceSuppressor;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TcpTransport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportConnector;
+import com.github.warren_bank.ptt_bluetooth_speaker.sender.transport.RfcommTransport;
+
 import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -18,39 +41,73 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.OutputStream;
+import java.io.File;
+import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 public class MainActivity extends Activity {
-  private static final String   tag        = MainActivity.class.getSimpleName();
-  private static final int      bufferSize = AudioTrack.getMinBufferSize(16000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+  private static final String   tag                  = MainActivity.class.getSimpleName();
+  private static final String   announcementsDirName = "announcements";
+
+  // sized from the format agreed with the receivers
+  private StreamFormat[]        captureFormats;  // offered to receivers
+  private StreamFormat          streamFormat;
+  private int                   sampleRate;
+  private int                   bufferSize;  // bytes
+  private int                   frameSize;   // samples
+  private int                   queueSize;   // frames: about 1 second per receiver
 
   private TextView              textView;
   private ListView              pairedDevices;
+  private View                  tcpReceiver;
+  private EditText              tcpAddress;
+  private Button                tcpConnect;
   private ImageButton           microphoneToggle;
+  private Button                announcementsToggle;
   private SeekBar               microphoneVolume;
 
   private BluetoothAdapter      btAdapter;
   private UUID                  uuid;
-  private BluetoothDevice       receiverDevice;
-  private BluetoothSocket       socket;
-  private OutputStream          audioStream;
+  private volatile ReceiverLink[] links;
+  private AudioCodec            audioCodec;
+  private int                   overflowPolicy;
   private AudioRecord           microphoneRecorder;
   private Thread                thread;
-  private boolean               isRecording;
-  private float                 volumeGain;  // range: 0.0 to 2.0
+  private Thread                fanOutThread;
+  private volatile boolean      isRecording;
+  private volatile boolean      isFilesOnly;  // the capture Thread was started to play files, and the microphone is off
+  private File[]                pendingFiles;  // to play when the capture Thread starts
+  private volatile AudioFilePlayer filePlayer;  // null until the first recording
+  private volatile FramePacer   filePacer;
+  private AudioProcessorChain   captureProcessors;
+  private volatile float        targetLevel;  // dBFS, set by the slider
+  private volatile AutomaticGainControl agc;  // null when the chain has no AGC stage
+  private volatile FeedbackSuppressor feedbackSuppressor;  // null when the chain has no feedback stage
+  private volatile SilenceSuppressor silenceSuppressor;  // null when disabled
+  private volatile PooledFrameRing captureRing;  // null until the first recording
+  private volatile FramePool    framePool;    // null until the first recording
+
+  private MetricsRegistry       metrics;
+  private MetricsFileLogger     metricsLogger;
+  private Counter               captureFrames;
+  private Counter               captureShortReads;
+  private Counter               captureReadErrors;
+  private Counter               captureReadRetries;
 
   private BroadcastReceiver     btAdapterStateChangeReceiver;
   private boolean               didChangeBtAdapterState;
@@ -62,18 +119,38 @@ public class MainActivity extends Activity {
 
     textView         = (TextView)    findViewById(R.id.text_view);
     pairedDevices    = (ListView)    findViewById(R.id.paired_devices);
+    tcpReceiver      = (View)        findViewById(R.id.tcp_receiver);
+    tcpAddress       = (EditText)    findViewById(R.id.tcp_address);
+    tcpConnect       = (Button)      findViewById(R.id.tcp_connect);
     microphoneToggle = (ImageButton) findViewById(R.id.microphone_toggle);
+    announcementsToggle = (Button)   findViewById(R.id.announcements_toggle);
     microphoneVolume = (SeekBar)     findViewById(R.id.microphone_volume);
 
+    captureFormats     = getCaptureFormats();
+    setStreamFormat(captureFormats[0]);
+
     btAdapter          = BluetoothAdapter.getDefaultAdapter();
     uuid               = UUID.fromString(getString(R.string.server_uuid));
-    receiverDevice     = null;
-    socket             = null;
-    audioStream        = null;
+    links              = new ReceiverLink[0];
+    audioCodec         = getAudioCodec();
+    overflowPolicy     = getOverflowPolicy();
     microphoneRecorder = null;
     thread             = null;
+    fanOutThread       = null;
     isRecording        = false;
-    volumeGain         = getVolumeGain(microphoneVolume.getProgress());
+    isFilesOnly        = false;
+    pendingFiles       = null;
+    filePlayer         = null;
+    filePacer          = null;
+    captureProcessors  = new AudioProcessorChain();
+    targetLevel        = getTargetLevel(microphoneVolume.getProgress());
+    agc                = null;
+    feedbackSuppressor = null;
+    silenceSuppressor  = null;
+    captureRing        = null;
+    framePool          = null;
+
+    registerMetrics();
 
     /**
      * Handle an intent that is broadcast by the Bluetooth adapter whenever it changes its state.
@@ -82,8 +159,11 @@ public class MainActivity extends Activity {
      */
     btAdapterStateChangeReceiver = new BroadcastReceiver() {
       public void onReceive(Context context, Intent intent) {
-        close_audioStream();
-        close_socket();
+        // a TCP connection doesn't depend on the state of the Bluetooth adapter
+        if (close_links(/* rfcommOnly= */ true) > 0)
+          return;
+
+        stopRecording();
         showPairedDevices();
       }
     };
@@ -102,44 +182,63 @@ public class MainActivity extends Activity {
     unregisterReceiver(btAdapterStateChangeReceiver);
 
     close_microphoneRecorder();
-    close_audioStream();
-    close_socket();
+    close_links(/* rfcommOnly= */ false);
 
     disableBT();
+
+    metricsLogger.stop();
+    unregisterMetrics();
   }
 
   // -------------------------------------------------------------------------
   // house cleaning
 
-  private void close_socket() {
-    close_socket(/* keepDevice= */ false);
-  }
+  /**
+   * @return the number of links that remain open
+   */
+  private synchronized int close_links(boolean rfcommOnly) {
+    List<ReceiverLink> remaining = new ArrayList<ReceiverLink>();
 
-  private void close_socket(boolean keepDevice) {
-    if (socket != null) {
-      try {
-        socket.close();
+    for (ReceiverLink link : links) {
+      if (rfcommOnly && !(link.getConnector() instanceof RfcommTransport.Connector)) {
+        remaining.add(link);
+        continue;
       }
-      catch(Exception e) {}
-      finally {
-        socket = null;
 
-        if (!keepDevice)
-          receiverDevice = null;
-      }
+      link.close();
+      logLinkStats(link);
     }
+
+    links = remaining.toArray(new ReceiverLink[remaining.size()]);
+    registerLinkMetrics();
+    return links.length;
   }
 
-  private void close_audioStream() {
-    if (audioStream != null) {
-      try {
-        audioStream.close();
-      }
-      catch(Exception e) {}
-      finally {
-        audioStream = null;
-      }
+  /**
+   * @return the number of links that remain open
+   */
+  private synchronized int remove_link(ReceiverLink link) {
+    List<ReceiverLink> remaining = new ArrayList<ReceiverLink>();
+
+    for (ReceiverLink other : links) {
+      if (other != link)
+        remaining.add(other);
     }
+
+    links = remaining.toArray(new ReceiverLink[remaining.size()]);
+    registerLinkMetrics();
+    return links.length;
+  }
+
+  private synchronized void set_links(List<ReceiverLink> opened) {
+    close_links(/* rfcommOnly= */ false);
+
+    links = opened.toArray(new ReceiverLink[opened.size()]);
+    registerLinkMetrics();
+  }
+
+  private void open_microphoneRecorder() {
+    microphoneRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
   }
 
   private void close_microphoneRecorder() {
@@ -163,10 +262,13 @@ public class MainActivity extends Activity {
   }
 
   private void reset_views() {
+    textView.removeCallbacks(showLinkStats);
     textView.setText("");
     pairedDevices.setAdapter(null);
     pairedDevices.setVisibility(View.GONE);
+    tcpReceiver.setVisibility(View.GONE);
     microphoneToggle.setVisibility(View.GONE);
+    announcementsToggle.setVisibility(View.GONE);
     microphoneVolume.setVisibility(View.GONE);
   }
 
@@ -207,7 +309,7 @@ public class MainActivity extends Activity {
   }
 
   private void passedPermissionsCheck() {
-    microphoneRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, 16000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+    open_microphoneRecorder();
 
     registerReceiver(btAdapterStateChangeReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
 
@@ -220,29 +322,53 @@ public class MainActivity extends Activity {
   // add click handlers to visible elements
 
   private void addClickHandlers() {
-    addPairedDeviceClickHander();
+    addConnectClickHandler();
     addMicrophoneToggleClickHandler();
+    addAnnouncementsToggleClickHandler();
     addMicrophoneVolumeChangeHandler();
   }
 
-  private void addPairedDeviceClickHander() {
-    pairedDevices.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+  private void addConnectClickHandler() {
+    tcpConnect.setOnClickListener(new View.OnClickListener() {
       @Override
-      public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-        try {
-          String receiverMacAddress = devices.get(position).getAddress();
-          receiverDevice = btAdapter.getRemoteDevice(receiverMacAddress);
+      public void onClick(View v) {
+        List<TransportConnector> connectors = new ArrayList<TransportConnector>();
+
+        // paired devices that are checked
+        SparseBooleanArray checked = pairedDevices.getCheckedItemPositions();
+        for (int i = 0; i < devices.size(); i++) {
+          String receiverMacAddress = devices.get(i).getAddress();
+          if ((receiverMacAddress == null) || (checked == null) || !checked.get(i)) continue;
+
+          try {
+            BluetoothDevice receiverDevice = btAdapter.getRemoteDevice(receiverMacAddress);
+
+            connectors.add(new RfcommTransport.Connector(receiverDevice, uuid));
+          }
+          catch(Exception e) {
+            showToast(getString(R.string.toast_connection_failed_to, devices.get(i).getName()));
+          }
+        }
+
+        // receiver on the local network
+        String address = tcpAddress.getText().toString().trim();
+        if (address.length() > 0) {
+          TransportConnector connector = TcpTransport.connector(address);
+
+          if (connector == null) {
+            showToast(getString(R.string.toast_invalid_tcp_address));
+            return;
+          }
 
-          openSocketToReceiver();
+          connectors.add(connector);
         }
-        catch(Exception e) {
-          close_audioStream();
-          close_socket();
 
-          showToast(getString(R.string.toast_connection_failed));
+        if (connectors.isEmpty()) {
+          showToast(getString(R.string.toast_no_receiver_selected));
           return;
         }
-        showConnectedReceiver();
+
+        connectToReceivers(connectors);
       }
     });
   }
@@ -251,7 +377,16 @@ public class MainActivity extends Activity {
     microphoneToggle.setOnClickListener(new View.OnClickListener() {
       @Override
       public void onClick(View v) {
+        // files are playing without the microphone: switch to the microphone, and keep streaming
+        if (isRecording && isFilesOnly) {
+          isFilesOnly = false;
+          filePlayer.stop();
+          microphoneToggle.setImageBitmap(BitmapFactory.decodeResource(getResources(), R.drawable.microphone_active));
+          return;
+        }
+
         isRecording = !isRecording;
+        isFilesOnly = false;
 
         int resource_id = (isRecording)
           ? R.drawable.microphone_active
@@ -267,11 +402,94 @@ public class MainActivity extends Activity {
     });
   }
 
+  private void stopRecording() {
+    isRecording = false;
+    isFilesOnly = false;
+    microphoneToggle.setImageBitmap(BitmapFactory.decodeResource(getResources(), R.drawable.microphone_mute));
+    showAnnouncementsState();
+  }
+
+  /**
+   * Play the files in the announcements directory, in place of the microphone, or stop them.
+   * When the microphone is off, streaming starts for the files, and stops after them.
+   */
+  private void addAnnouncementsToggleClickHandler() {
+    announcementsToggle.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        AudioFilePlayer player = filePlayer;
+        boolean isStreaming = isRecording && (thread != null) && thread.isAlive() && (player != null);
+
+        if (isStreaming && player.isActive()) {
+          player.stop();
+          showAnnouncementsState();
+          return;
+        }
+
+        File[] files = getAnnouncementFiles();
+        if (files.length == 0) {
+          showToast(getString(R.string.toast_no_announcements, getAnnouncementsDir().getAbsolutePath()));
+          return;
+        }
+
+        if (isStreaming) {
+          player.play(files);
+        }
+        else {
+          pendingFiles = files;
+          isFilesOnly  = true;
+          isRecording  = true;
+          pipeAudioToReceiver();
+        }
+        announcementsToggle.setText(R.string.button_stop_announcements);
+      }
+    });
+  }
+
+  private void showAnnouncementsState() {
+    AudioFilePlayer player = filePlayer;
+    boolean isPlaying = isRecording && (player != null) && player.isActive();
+
+    announcementsToggle.setText(isPlaying ? R.string.button_stop_announcements : R.string.button_play_announcements);
+  }
+
+  private File getAnnouncementsDir() {
+    File dir = getExternalFilesDir(announcementsDirName);
+    if (dir == null)
+      dir = new File(getFilesDir(), announcementsDirName);
+
+    dir.mkdirs();
+    return dir;
+  }
+
+  /**
+   * @return the audio files in the announcements directory, in order of their names
+   */
+  private File[] getAnnouncementFiles() {
+    File[] files = getAnnouncementsDir().listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        String name = f.getName().toLowerCase();
+        return f.isFile() && (name.endsWith(".wav") || name.endsWith(".pcm") || name.endsWith(".raw"));
+      }
+    });
+
+    if (files == null)
+      return new File[0];
+
+    Arrays.sort(files);
+    return files;
+  }
+
   private void addMicrophoneVolumeChangeHandler() {
     microphoneVolume.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
       @Override
       public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-        volumeGain = getVolumeGain(progress);
+        targetLevel = getTargetLevel(progress);
+
+        AutomaticGainControl current = agc;
+        if (current != null)
+          current.setTargetLevel(targetLevel);
       }
 
       @Override
@@ -282,9 +500,82 @@ public class MainActivity extends Activity {
     });
   }
 
-  private float getVolumeGain(int progress) {
+  /**
+   * @return the loudness that speech is brought to, in dBFS
+   */
+  private float getTargetLevel(int progress) {
     // progress is an integer in the range: 0 to 2000
-    return (float) progress / 1000;
+    float range = AutomaticGainControl.MAX_TARGET_DBFS - AutomaticGainControl.MIN_TARGET_DBFS;
+
+    return AutomaticGainControl.MIN_TARGET_DBFS + ((range * progress) / 2000);
+  }
+
+  private AudioCodec getAudioCodec() {
+    AudioCodec codec = AudioCodecs.create(getString(R.string.audio_codec));
+
+    if (codec == null)
+      codec = AudioCodecs.create(AudioCodecs.PCM);
+
+    return codec;
+  }
+
+  private int getOverflowPolicy() {
+    int policy = SpscFrameRing.getOverflowPolicy(getString(R.string.link_overflow_policy));
+
+    if (policy < 0)
+      policy = SpscFrameRing.OVERFLOW_DROP_OLDEST;
+
+    return policy;
+  }
+
+  // -------------------------------------------------------------------------
+  // stream format
+
+  /**
+   * @return the sample rates from the resource that the microphone supports, in the same order
+   */
+  private StreamFormat[] getCaptureFormats() {
+    List<StreamFormat> formats = new ArrayList<StreamFormat>();
+
+    for (int rate : getResources().getIntArray(R.array.capture_sample_rates)) {
+      if (AudioRecord.getMinBufferSize(rate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT) > 0)
+        formats.add(new StreamFormat(rate, 1));
+    }
+
+    if (formats.isEmpty())
+      formats.add(StreamFormat.LEGACY);
+
+    return formats.toArray(new StreamFormat[formats.size()]);
+  }
+
+  private void setStreamFormat(StreamFormat format) {
+    streamFormat = format;
+    sampleRate   = format.getSampleRate();
+    bufferSize   = getBufferSize(sampleRate);
+    frameSize    = bufferSize / 2;
+    queueSize    = Math.max(4, sampleRate / frameSize);
+  }
+
+  /**
+   * Reopen the microphone when the receivers chose a different format than the current one.
+   */
+  private void applyStreamFormat(StreamFormat format) {
+    if (format.equals(streamFormat))
+      return;
+
+    close_microphoneRecorder();
+    setStreamFormat(format);
+    open_microphoneRecorder();
+  }
+
+  /**
+   * @return bytes
+   */
+  private static int getBufferSize(int rate) {
+    return Math.max(
+      AudioRecord.getMinBufferSize(rate, AudioFormat.CHANNEL_IN_MONO,  AudioFormat.ENCODING_PCM_16BIT),
+      AudioTrack.getMinBufferSize (rate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT)
+    );
   }
 
   // -------------------------------------------------------------------------
@@ -357,57 +648,286 @@ public class MainActivity extends Activity {
       devices.add(new DeviceInfo(getString(R.string.listview_no_devices), null));
     }
 
-    ArrayAdapter<DeviceInfo> adapter = new ArrayAdapter<DeviceInfo>(MainActivity.this, android.R.layout.simple_list_item_1, devices);
+    ArrayAdapter<DeviceInfo> adapter = new ArrayAdapter<DeviceInfo>(MainActivity.this, android.R.layout.simple_list_item_multiple_choice, devices);
 
     textView.setText(R.string.heading_paired_devices);
 
+    pairedDevices.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
     pairedDevices.setAdapter(adapter);
     pairedDevices.setVisibility(View.VISIBLE);
+    tcpReceiver.setVisibility(View.VISIBLE);
   }
 
   // -------------------------------------------------------------------------
-  // show connected receiver
+  // show connected receivers
 
   private void showConnectedReceiver() {
     reset_views();
 
-    textView.setText(R.string.heading_connected_receiver);
-
     microphoneToggle.setVisibility(View.VISIBLE);
+    announcementsToggle.setVisibility(View.VISIBLE);
     microphoneVolume.setVisibility(View.VISIBLE);
+
+    showAnnouncementsState();
+
+    showLinkStats.run();
+  }
+
+  /**
+   * Refresh the counters of each link once per second, while connected.
+   */
+  private final Runnable showLinkStats = new Runnable() {
+    @Override
+    public void run() {
+      ReceiverLink[] current = links;
+      if (current.length == 0) return;
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(getString(R.string.heading_connected_receiver));
+      sb.append("\n\n");
+      sb.append(getString(R.string.stream_format_stats, streamFormat.toString()));
+
+      SilenceSuppressor suppressor = silenceSuppressor;
+      if (suppressor != null) {
+        sb.append("\n\n");
+        sb.append(getString(R.string.silence_suppression_stats, Math.round(suppressor.getSavedRatio() * 100)));
+      }
+
+      for (ReceiverLink link : current) {
+        int resource_id = (link.isConnected())
+          ? R.string.link_stats
+          : R.string.link_stats_reconnecting;
+
+        sb.append("\n\n");
+        sb.append(getString(resource_id, link.getName(), link.getBacklog(), link.getQueueCapacity(), link.getDroppedFrameCount() + link.getStaleFrameCount()));
+      }
+
+      textView.setText(sb.toString());
+      textView.postDelayed(this, 1000);
+    }
+  };
+
+  private void logLinkStats(ReceiverLink link) {
+    Log.d(tag, link.getName() + ": frames sent: " + link.getSentFrameCount() + ", dropped: " + link.getDroppedFrameCount() + ", stale: " + link.getStaleFrameCount() + ", max backlog: " + link.getMaxBacklog() + ", reconnects: " + link.getReconnectCount() + " of " + link.getReconnectAttemptCount() + " attempts");
   }
 
   // -------------------------------------------------------------------------
-  // start a Thread to pipe audio from microphone through outbound socket
+  // connect to receivers
+
+  /**
+   * Connecting can block for several seconds, so it is done on a background Thread.
+   */
+  private void connectToReceivers(final List<TransportConnector> connectors) {
+    StringBuilder names = new StringBuilder();
+    for (TransportConnector connector : connectors) {
+      names.append("\n");
+      names.append(connector.getName());
+    }
 
-  private void openSocketToReceiver() throws Exception {
-    // open socket connection
-    socket = receiverDevice.createRfcommSocketToServiceRecord(uuid);
-    socket.connect();
+    reset_views();
+    textView.setText(getString(R.string.heading_connecting_receiver, names.toString()));
 
-    audioStream = socket.getOutputStream();
+    Thread connectThread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          List<ReceiverLink> opened = new ArrayList<ReceiverLink>();
+          StreamFormat[] offered = captureFormats;
+          StreamFormat agreed = null;
+
+          // queues are sized for the largest format that may be chosen
+          int maxFrameSize = 0;
+          int maxQueueSize = 0;
+          for (StreamFormat format : offered) {
+            int formatFrameSize = getBufferSize(format.getSampleRate()) / 2;
+
+            maxFrameSize = Math.max(maxFrameSize, formatFrameSize);
+            maxQueueSize = Math.max(maxQueueSize, Math.max(4, format.getSampleRate() / formatFrameSize));
+          }
+          int maxPayloadSize = audioCodec.getMaxEncodedSize(maxFrameSize);
+
+          for (TransportConnector connector : connectors) {
+            ReceiverLink link = new ReceiverLink(connector, audioCodec.getId(), maxQueueSize, maxPayloadSize, overflowPolicy, linkListener);
+            link.setReconnectTimeout(getResources().getInteger(R.integer.link_reconnect_timeout_ms));
+            link.setBacklogBudget(getResources().getInteger(R.integer.link_backlog_budget_ms));
+            link.setOfferedFormats(offered);
+
+            try {
+              link.open();
+              opened.add(link);
+
+              // audio is captured once for all receivers, so the first choice is offered to the rest
+              if (agreed == null) {
+                agreed  = link.getFormat();
+                offered = new StreamFormat[] {agreed};
+              }
+            }
+            catch(Exception e) {
+              link.close();
+              showToast_NonUiThread(getString(R.string.toast_connection_failed_to, connector.getName()));
+            }
+          }
+
+          if (opened.isEmpty()) {
+            showPairedDevices_NonUiThread();
+            return;
+          }
+
+          set_links(opened);
+
+          for (ReceiverLink link : opened) {
+            link.start();
+          }
+          showConnectedReceiver_NonUiThread(agreed);
+        }
+      },
+      "connectToReceivers Thread"
+    );
+    connectThread.start();
   }
 
+  private final ReceiverLink.Listener linkListener = new ReceiverLink.Listener() {
+    @Override
+    public void onLinkFailed(ReceiverLink link) {
+      logLinkStats(link);
+
+      if (isFinishing())
+        return;
+
+      showToast_NonUiThread(getString(R.string.toast_connection_lost, link.getName()));
+
+      // last receiver has disconnected
+      if (remove_link(link) == 0) {
+        MainActivity.this.runOnUiThread(new Runnable() {
+          public void run() {
+            stopRecording();
+            showPairedDevices();
+          }
+        });
+      }
+    }
+  };
+
+  // -------------------------------------------------------------------------
+  // start Threads to pipe audio from microphone to all connected receivers
+  //  1) capture: read from the microphone, and encode
+  //  2) fan out: queue each encoded frame for every receiver
+  // each frame is encoded into a buffer from a pool, and shared by reference with every receiver
+  // the capture Thread never blocks on anything but the microphone,
+  // even when the overflow policy of the receiver links is to block
+
   private void pipeAudioToReceiver() {
     // prevent the user from starting multiple threads by toggling the microphone button too quickly
     if ((thread != null) && (thread.isAlive()))
       return;
+    if ((fanOutThread != null) && (fanOutThread.isAlive()))
+      return;
+
+    final PooledFrameRing captureRing = new PooledFrameRing(queueSize, SpscFrameRing.OVERFLOW_DROP_OLDEST);
+    final SilenceSuppressor suppressor = createSilenceSuppressor(captureRing);
+    final FramePool pool = createFramePool(suppressor);
+    final int processingDelay = configureCaptureProcessors();
+
+    final AudioFilePlayer player = new AudioFilePlayer(sampleRate, frameSize, AudioFileSource.DEFAULT_RAW_SAMPLE_RATE);
+    final FramePacer pacer = new FramePacer(sampleRate, FramePacer.DEFAULT_MAX_LATE_MS);
+
+    if (pendingFiles != null) {
+      player.play(pendingFiles);
+      pendingFiles = null;
+    }
+
+    this.captureRing  = captureRing;
+    framePool         = pool;
+    silenceSuppressor = suppressor;
+    filePlayer        = player;
+    filePacer         = pacer;
+
+    fanOutThread = new Thread(
+      new Runnable() {
+        @Override
+        public void run() {
+          PooledFrame frame;
+          ReceiverLink[] current;
+
+          while (true) {
+            frame = captureRing.take(/* timeoutNanos= */ -1);
+            if (frame == null)
+              break;
+
+            // one reference for each link; the frame goes back to the pool after the last of them has sent it
+            current = links;
+            for (int i = 0; i < current.length; i++) {
+              frame.retain();
+              current[i].offer(frame);
+            }
+            frame.release();
+          }
+
+          Log.d(tag, "capture ring: frames: " + captureRing.getOfferedFrameCount() + ", overruns: " + captureRing.getOverrunCount() + ", high-water mark: " + captureRing.getHighWaterMark() + " of " + captureRing.getCapacity());
+          Log.d(tag, "frame pool: frames: " + pool.getAcquiredFrameCount() + ", exhausted: " + pool.getExhaustedCount() + ", capacity: " + pool.getCapacity());
+        }
+      },
+      "fanOutAudio Thread"
+    );
+    fanOutThread.start();
 
     thread = new Thread(
       new Runnable() {
         @Override
         public void run() {
-          byte[] buffer = new byte[bufferSize];
-          int bytesRead = 0;
+          short[] samples = new short[frameSize];
+          PooledFrame encoded;
+          int sampleCount = 0;
+          int encodedLength = 0;
+          long timestamp = 0;
           int retry_count = 0;
           int retry_limit = 10;
           int status = 0;
+          boolean isMicrophoneOn = false;
+          boolean isPlayingFiles = false;
 
-          microphoneRecorder.startRecording();
+          audioCodec.reset();
+          captureProcessors.reset();
           while (isRecording && (microphoneRecorder != null)) {
-            bytesRead = microphoneRecorder.read(buffer, 0, bufferSize);
+            if (player.isActive()) {
+              // switch from the microphone to the files, within the same stream
+              if (!isPlayingFiles) {
+                isPlayingFiles = true;
+                if (isMicrophoneOn) {
+                  microphoneRecorder.stop();
+                  isMicrophoneOn = false;
+                }
+                pacer.reset();
+              }
 
-            if (bytesRead < 0) {
+              sampleCount = player.read(samples, 0, samples.length);
+              if (sampleCount == 0) continue;
+
+              // released at the rate that the microphone would capture it
+              timestamp = pacer.await(sampleCount);
+            }
+            else {
+              if (isPlayingFiles) {
+                isPlayingFiles = false;
+                showAnnouncementsState_NonUiThread();
+              }
+
+              // the files were played without the microphone, and have ended
+              if (isFilesOnly) {
+                status = 3;
+                break;
+              }
+
+              if (!isMicrophoneOn) {
+                microphoneRecorder.startRecording();
+                isMicrophoneOn = true;
+              }
+
+              sampleCount = microphoneRecorder.read(samples, 0, samples.length);
+              timestamp   = System.nanoTime();
+            }
+
+            if (sampleCount < 0) {
               // error reading audio from microphone
               //  1) check whether the app is closing
               //  2) continue looping to try again,
@@ -419,8 +939,12 @@ public class MainActivity extends Activity {
                 break;
               }
 
+              captureReadErrors.increment();
               retry_count++;
-              if (retry_count <= retry_limit) continue;
+              if (retry_count <= retry_limit) {
+                captureReadRetries.increment();
+                continue;
+              }
 
               status = 2;
               break;
@@ -429,39 +953,41 @@ public class MainActivity extends Activity {
               retry_count = 0;
             }
 
-            applyVolumeGain(buffer, bytesRead);
+            if ((sampleCount < samples.length) && !isPlayingFiles)
+              captureShortReads.increment();
+            if (sampleCount == 0) continue;
 
-            try {
-              audioStream.write(buffer);
-            }
-            catch(Exception e) {
-              // error writing audio stream to socket
-              //  1) check whether the app is closing
-              //  2) close socket
-              //  3) try to reconnect to same receiver
-              //  4) give up and show list of paired devices (again)
+            captureFrames.increment();
+            captureProcessors.process(samples, 0, sampleCount);
 
-              if (isFinishing()) {
-                status = 1;
-                break;
-              }
+            // approximate time at which the first sample in the frame was captured, before the look-ahead of the limiter
+            timestamp -= ((sampleCount + processingDelay) * 1000000000L) / sampleRate;
 
-              close_audioStream();
-              close_socket(true);
+            // only when a frame is leaked, since the pool holds as many frames as all of the queues; counted by the pool
+            encoded = pool.acquire();
+            if (encoded == null) continue;
 
-              try {
-                openSocketToReceiver();
-                continue;
-              }
-              catch(Exception e2) {
-                status = 3;
-                break;
-              }
-            }
+            // encode once, and hand off the frame to be queued for every receiver
+            encodedLength = audioCodec.encode(samples, 0, sampleCount, encoded.getData(), 0);
+            encoded.set(encodedLength, timestamp, /* flags= */ 0);
+
+            if (suppressor != null)
+              suppressor.process(samples, 0, sampleCount, encoded);
+            else
+              captureRing.offer(encoded);
           }
 
+          if (suppressor != null) {
+            suppressor.flush();
+            Log.d(tag, "silence suppression: frames suppressed: " + suppressor.getSuppressedFrameCount() + ", bytes sent: " + suppressor.getOutputBytes() + " of " + suppressor.getInputBytes());
+          }
+
+          // the fan out Thread drains the ring, then stops
+          captureRing.close();
+
           try {
-            microphoneRecorder.stop();
+            if (isMicrophoneOn)
+              microphoneRecorder.stop();
           }
           catch(Exception e) {
             if ((status == 0) && !isFinishing())
@@ -481,10 +1007,12 @@ public class MainActivity extends Activity {
               finish();
               break;
             case 3:
-              // problem with socket
-              close_audioStream();
-              close_socket();
-              showPairedDevices_NonUiThread();
+              // the files have ended
+              MainActivity.this.runOnUiThread(new Runnable() {
+                public void run() {
+                  stopRecording();
+                }
+              });
               break;
           }
         }
@@ -495,34 +1023,58 @@ public class MainActivity extends Activity {
   }
 
   /**
-   * Scale the amplitude of 16-bit audio samples by a gain factor between 0 and 2
-   *
-   * `volumeGain` is the value of `microphoneVolume` SeekBar,
-   * converted to a float within the range: 0.0 to 2.0
+   * Apply the list of stages from the resource, keeping the state of those that were already running.
+   * Safe to call while recording.
    *
-   * Based on the answer:
-   *   https://stackoverflow.com/a/26037576
+   * @return the number of samples by which the stages delay the audio
    */
-  private void applyVolumeGain(byte[] buffer, int bytesRead) {
-    short buf1, buf2, res;
+  private int configureCaptureProcessors() {
+    List<String> unknown = captureProcessors.configure(getResources().getStringArray(R.array.capture_processors), sampleRate);
+
+    for (String spec : unknown) {
+      Log.w(tag, "unknown capture processor: " + spec);
+    }
 
-    if (bytesRead < 2) return;
+    AutomaticGainControl current = captureProcessors.find(AutomaticGainControl.class);
+    if (current != null)
+      current.setTargetLevel(targetLevel);
+    agc = current;
 
-    for (int i = 0; (i+1) < bytesRead; i+=2) {
-      // convert byte pair to int
-      buf1 = buffer[i+1];
-      buf2 = buffer[i];
+    feedbackSuppressor = captureProcessors.find(FeedbackSuppressor.class);
 
-      buf1 = (short) ((buf1 & 0xff) << 8);
-      buf2 = (short) (buf2 & 0xff);
+    return (current != null) ? current.getDelaySamples() : 0;
+  }
 
-      res = (short) (buf1 | buf2);
-      res = (short) Math.min((int)(res * volumeGain), (int)Short.MAX_VALUE);
+  /**
+   * @return null when silence suppression is disabled
+   */
+  private SilenceSuppressor createSilenceSuppressor(PooledFrameRing captureRing) {
+    if (!getResources().getBoolean(R.bool.silence_suppression))
+      return null;
 
-      // convert back
-      buffer[i]   = (byte) res;
-      buffer[i+1] = (byte) (res >> 8);
+    int frameMs       = (frameSize * 1000) / sampleRate;
+    int prerollMs     = getResources().getInteger(R.integer.silence_suppression_preroll_ms);
+    int prerollFrames = (prerollMs + frameMs - 1) / Math.max(1, frameMs);
+
+    return new SilenceSuppressor(new VoiceActivityDetector(sampleRate), prerollFrames, captureRing);
+  }
+
+  /**
+   * @return a pool with a frame for every place that one can be held at the same time:
+   *         the capture ring, the pre-roll of silence suppression, the queue of each link,
+   *         and one in the hands of each thread
+   */
+  private FramePool createFramePool(SilenceSuppressor suppressor) {
+    int capacity = queueSize + 2;
+
+    if (suppressor != null)
+      capacity += suppressor.getPrerollFrames();
+
+    for (ReceiverLink link : links) {
+      capacity += link.getQueueCapacity() + 1;
     }
+
+    return new FramePool(capacity, audioCodec.getMaxEncodedSize(frameSize));
   }
 
   private void showToast_NonUiThread(String text) {
@@ -533,6 +1085,23 @@ public class MainActivity extends Activity {
     });
   }
 
+  private void showConnectedReceiver_NonUiThread(final StreamFormat format) {
+    MainActivity.this.runOnUiThread(new Runnable() {
+      public void run() {
+        applyStreamFormat(format);
+        showConnectedReceiver();
+      }
+    });
+  }
+
+  private void showAnnouncementsState_NonUiThread() {
+    MainActivity.this.runOnUiThread(new Runnable() {
+      public void run() {
+        showAnnouncementsState();
+      }
+    });
+  }
+
   private void showPairedDevices_NonUiThread() {
     MainActivity.this.runOnUiThread(new Runnable() {
       public void run() {
@@ -541,6 +1110,163 @@ public class MainActivity extends Activity {
     });
   }
 
+  // -------------------------------------------------------------------------
+  // metrics
+  //  - counters are incremented by the capture Thread
+  //  - gauges are only read when a snapshot is taken
+  //  - a snapshot is written to "metrics.log" every 10 seconds,
+  //    and can be read at any time from MetricsProvider
+
+  private void registerMetrics() {
+    metrics = MetricsRegistry.getDefault();
+
+    captureFrames      = metrics.counter("capture.frames");
+    captureShortReads  = metrics.counter("capture.short_reads");
+    captureReadErrors  = metrics.counter("capture.read_errors");
+    captureReadRetries = metrics.counter("capture.read_retries");
+
+    metrics.gauge("capture.ring_depth", new Gauge() {
+      @Override
+      public long getValue() {
+        PooledFrameRing ring = captureRing;
+        return (ring != null) ? ring.size() : 0;
+      }
+    });
+    metrics.gauge("capture.ring_high_water", new Gauge() {
+      @Override
+      public long getValue() {
+        PooledFrameRing ring = captureRing;
+        return (ring != null) ? ring.getHighWaterMark() : 0;
+      }
+    });
+    metrics.gauge("capture.ring_overruns", new Gauge() {
+      @Override
+      public long getValue() {
+        PooledFrameRing ring = captureRing;
+        return (ring != null) ? ring.getOverrunCount() : 0;
+      }
+    });
+    metrics.gauge("pool.in_use", new Gauge() {
+      @Override
+      public long getValue() {
+        FramePool pool = framePool;
+        return (pool != null) ? pool.getInUseCount() : 0;
+      }
+    });
+    metrics.gauge("pool.exhausted", new Gauge() {
+      @Override
+      public long getValue() {
+        FramePool pool = framePool;
+        return (pool != null) ? pool.getExhaustedCount() : 0;
+      }
+    });
+    metrics.gauge("vad.saved_percent", new Gauge() {
+      @Override
+      public long getValue() {
+        SilenceSuppressor suppressor = silenceSuppressor;
+        return (suppressor != null) ? Math.round(suppressor.getSavedRatio() * 100) : 0;
+      }
+    });
+    metrics.gauge("agc.gain_db", new Gauge() {
+      @Override
+      public long getValue() {
+        AutomaticGainControl current = agc;
+        return (current != null) ? Math.round(current.getGainDb()) : 0;
+      }
+    });
+    metrics.gauge("agc.level_dbfs", new Gauge() {
+      @Override
+      public long getValue() {
+        AutomaticGainControl current = agc;
+        return (current != null) ? Math.round(current.getLevelDb()) : 0;
+      }
+    });
+    metrics.gauge("agc.target_dbfs", new Gauge() {
+      @Override
+      public long getValue() {
+        return Math.round(targetLevel);
+      }
+    });
+    metrics.gauge("agc.limited_samples", new Gauge() {
+      @Override
+      public long getValue() {
+        AutomaticGainControl current = agc;
+        return (current != null) ? current.getLimitedSampleCount() : 0;
+      }
+    });
+    metrics.gauge("feedback.howls", new Gauge() {
+      @Override
+      public long getValue() {
+        FeedbackSuppressor current = feedbackSuppressor;
+        return (current != null) ? current.getHowlCount() : 0;
+      }
+    });
+    metrics.gauge("feedback.notches", new Gauge() {
+      @Override
+      public long getValue() {
+        FeedbackSuppressor current = feedbackSuppressor;
+        return (current != null) ? current.getActiveNotchCount() : 0;
+      }
+    });
+    metrics.gauge("files.played", new Gauge() {
+      @Override
+      public long getValue() {
+        AudioFilePlayer player = filePlayer;
+        return (player != null) ? player.getPlayedFileCount() : 0;
+      }
+    });
+    metrics.gauge("files.failed", new Gauge() {
+      @Override
+      public long getValue() {
+        AudioFilePlayer player = filePlayer;
+        return (player != null) ? player.getFailedFileCount() : 0;
+      }
+    });
+    metrics.gauge("files.pacer_resyncs", new Gauge() {
+      @Override
+      public long getValue() {
+        FramePacer pacer = filePacer;
+        return (pacer != null) ? pacer.getResyncCount() : 0;
+      }
+    });
+    metrics.gauge("links.active", new Gauge() {
+      @Override
+      public long getValue() {
+        return links.length;
+      }
+    });
+
+    File dir = getExternalFilesDir(null);
+    if (dir == null)
+      dir = getFilesDir();
+
+    metricsLogger = new MetricsFileLogger(metrics, new File(dir, "metrics.log"), /* maxFileSize= */ 256 * 1024, /* maxFileCount= */ 4, /* intervalMs= */ 10000);
+    metricsLogger.start();
+  }
+
+  /**
+   * The registry outlives this activity, and its gauges hold a reference to it.
+   */
+  private void unregisterMetrics() {
+    String[] prefixes = new String[] {"capture.", "pool.", "vad.", "agc.", "feedback.", "files.", "links.", "link."};
+
+    for (String prefix : prefixes) {
+      metrics.removeAll(prefix);
+    }
+  }
+
+  /**
+   * Links are numbered by their position in the current list.
+   */
+  private synchronized void registerLinkMetrics() {
+    metrics.removeAll("link.");
+
+    ReceiverLink[] current = links;
+    for (int i = 0; i < current.length; i++) {
+      current[i].registerMetrics(metrics, "link." + i + ".");
+    }
+  }
+
   // -------------------------------------------------------------------------
   // helpers
 
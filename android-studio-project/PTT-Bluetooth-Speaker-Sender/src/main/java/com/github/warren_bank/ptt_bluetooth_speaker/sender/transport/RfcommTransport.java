@@ -0,0 +1,80 @@
+package com.github.warren_bank.ptt_bluetooth_speaker.sender.transport;
+
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.Transport;
+import com.github.warren_bank.ptt_bluetooth_speaker.common.transport.TransportConnector;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM socket.
+ */
+public class RfcommTransport implements Transport {
+  private final BluetoothSocket socket;
+  private final String          name;
+
+  public RfcommTransport(BluetoothSocket socket) {
+    this.socket = socket;
+    this.name   = "rfcomm://" + socket.getRemoteDevice().getAddress();
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    }
+    catch(Exception e) {}
+  }
+
+  public static class Connector implements TransportConnector {
+    private final BluetoothDevice device;
+    private final UUID            uuid;
+
+    public Connector(BluetoothDevice device, UUID uuid) {
+      this.device = device;
+      this.uuid   = uuid;
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+      BluetoothSocket socket = device.createRfcommSocketToServiceRecord(uuid);
+
+      try {
+        socket.connect();
+        return new RfcommTransport(socket);
+      }
+      catch(IOException e) {
+        try {
+          socket.close();
+        }
+        catch(Exception e2) {}
+        throw e;
+      }
+    }
+
+    @Override
+    public String getName() {
+      return "rfcomm://" + device.getAddress();
+    }
+  }
+}